@@ -21,16 +21,17 @@
 
 package com.tomergabel.build.intellij.ant;
 
+import com.tomergabel.build.intellij.model.ClasspathEntry;
+import com.tomergabel.build.intellij.model.Module;
 import com.tomergabel.build.intellij.model.ModuleResolver;
-import com.tomergabel.build.intellij.model.Project;
 import com.tomergabel.build.intellij.model.ResolutionException;
 import com.tomergabel.util.CollectionUtils;
 import com.tomergabel.util.Predicate;
+import com.tomergabel.util.UriUtils;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.taskdefs.Copy;
 import org.apache.tools.ant.taskdefs.Javac;
 import org.apache.tools.ant.taskdefs.Move;
-import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Path;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
@@ -62,34 +63,6 @@ public class AntUtils {
         this.project = project;
     }
 
-    /**
-     * Generates a set of resource inclusion pattern for the specified project.
-     * <p/>
-     * These patterns follow the Ant pattern format, e.g. <code>**&#x2f;*.xml</code>.
-     *
-     * @param project The project for which to generate resource inclusion patterns.
-     * @return An array of reosurce inclusion patterns for the specified project.
-     * @throws IllegalArgumentException The project cannot be null.
-     */
-    static String[] generateResourceIncludes( final Project project ) throws IllegalArgumentException {
-        if ( project == null )
-            throw new IllegalArgumentException( "The project cannot be null." );
-
-        // Derive resource patterns from project
-        final String[] includes = new String[project.getResourceExtensions().size() +
-                project.getResourceWildcardPatterns().size()];
-
-        // Process resource extensions
-        int i = 0;
-        for ( final String extension : project.getResourceExtensions() )
-            includes[ i++ ] = "**/*." + extension;
-
-        // Process wildcard patterns
-        for ( final String pattern : project.getResourceWildcardPatterns() )
-            includes[ i++ ] = "**/" + pattern;
-        return includes;
-    }
-
     /**
      * Takes a URI and returns it without the preceding slash (if present).
      *
@@ -202,6 +175,9 @@ public class AntUtils {
 
     /**
      * Takes a set of source directories and compiles all source files to a target directory.
+     * <p/>
+     * Compilation is performed in-process by the build's shared {@link CompilerEngine} when available, and by the Ant
+     * <code>javac</code> task otherwise.
      *
      * @param sourceDirectories The source directories.
      * @param to                The target directory.
@@ -224,7 +200,6 @@ public class AntUtils {
             throw new BuildException( "Target path \"" + to + "\" already exists but is not a directory." );
         to.mkdirs();
 
-        final Javac javac = (Javac) this.project.createTask( "javac" );
         for ( final File directory : sourceDirectories ) {
             if ( directory == null )
                 throw new IllegalArgumentException( "The source directory list contains a null directory." );
@@ -233,6 +208,17 @@ public class AntUtils {
             else if ( !directory.isDirectory() )
                 throw new IllegalArgumentException(
                         "Source path \"" + directory + "\" exists but is not a directory." );
+        }
+
+        // Prefer the shared in-process compiler, fall back to the javac task if it's not available
+        final CompilerEngine engine = CompilerEngine.forProject( this.project );
+        if ( engine != null ) {
+            engine.compile( sourceDirectories, to, classpath );
+            return;
+        }
+
+        final Javac javac = (Javac) this.project.createTask( "javac" );
+        for ( final File directory : sourceDirectories ) {
             final Path path = (Path) this.project.createDataType( "path" );
             path.setLocation( directory );
             javac.setSrcdir( path );
@@ -264,10 +250,8 @@ public class AntUtils {
             throw new IllegalArgumentException(
                     "The specified source URL \"" + rootUrl + "\" is not part of the module." );
 
-        final FileSet fs = (FileSet) this.project.createDataType( "fileset" );
-        fs.setDir( module.resolveUriFile( rootUrl ) );
-        fs.appendIncludes( generateResourceIncludes( module.getProjectResolver().getProject() ) );
-        return fs;
+        return ResourceMatcher.forProject( module.getProjectResolver().getProject() )
+                .select( module.resolveUriFile( rootUrl ) );
     }
 
     /**
@@ -309,9 +293,10 @@ public class AntUtils {
             throw new IllegalArgumentException( "The source filter cannot be null." );
 
         // Resolve classpath
-        final Collection<String> resolved;
+        final Collection<ClasspathEntry> resolved;
         try {
-            resolved = module.resolveModuleClasspath( filter == SourceFilter.source || filter == SourceFilter.both,
+            resolved = module.resolveModuleClasspathEntries(
+                    filter == SourceFilter.source || filter == SourceFilter.both,
                     filter == SourceFilter.test || filter == SourceFilter.both );
         } catch ( ResolutionException e ) {
             throw new BuildException(
@@ -320,11 +305,99 @@ public class AntUtils {
 
         // Create path object and add reference by name
         final Path classpath = (Path) this.project.createDataType( "path" );
-        for ( final String path : resolved ) {
-            final Path entry = (Path) this.project.createDataType( "path" );
-            entry.setPath( path );
-            classpath.add( entry );
-        }
+        // Entries are already resolved and absolute, so add them as-is rather than parsing them as path strings
+        for ( final ClasspathEntry entry : resolved )
+            classpath.createPathElement().setLocation( entry.getFile() );
         return classpath;
     }
+
+    /**
+     * Returns the module's source URLs according to the specified filter.
+     *
+     * @param module The module.
+     * @param filter A {@link SourceFilter} which specifies which source URLs should be returned.
+     * @return The matching source URLs.
+     * @throws IllegalArgumentException <ul><li>The module cannot be null.</li><li>The source filter cannot be
+     *                                  null.</li></ul>
+     */
+    static Iterable<String> getSourceUrls( final Module module, final SourceFilter filter )
+            throws IllegalArgumentException {
+        if ( module == null )
+            throw new IllegalArgumentException( "The module cannot be null." );
+        if ( filter == null )
+            throw new IllegalArgumentException( "The source filter cannot be null." );
+
+        switch ( filter ) {
+            case source:
+                return module.getSourceUrls();
+            case test:
+                return module.getTestSourceUrls();
+            case both:
+                return CollectionUtils.concat( module.getSourceUrls(), module.getTestSourceUrls() );
+            default:
+                // Safety net, should never happen
+                throw new IllegalStateException( "Unrecognized filter \"" + filter.toString() + "\"" );
+        }
+    }
+
+    /**
+     * Resolves the module's source directories and generates an Ant path object containing them.
+     *
+     * @param module The module for which to build the source path.
+     * @param filter A {@link SourceFilter} which specifies which source directories should be included.
+     * @return A {@link Path} containing the module's source directories.
+     * @throws BuildException           An error has occurred while resolving a source directory.
+     * @throws IllegalArgumentException <ul><li>The module cannot be null.</li><li>The source filter cannot be
+     *                                  null.</li></ul>
+     */
+    public Path buildModuleSourcePath( final ModuleResolver module, final SourceFilter filter )
+            throws BuildException, IllegalArgumentException {
+        if ( module == null )
+            throw new IllegalArgumentException( "The module cannot be null." );
+
+        final Path path = (Path) this.project.createDataType( "path" );
+        for ( final String sourceUrl : getSourceUrls( module.getModule(), filter ) ) {
+            final Path dir = (Path) this.project.createDataType( "path" );
+            dir.setLocation( resolveSourceDirectory( module, sourceUrl ) );
+            path.append( dir );
+        }
+        return path;
+    }
+
+    /**
+     * Resolves the resources in the module's source directories and generates an Ant path object containing them. If
+     * the module is not associated with a project, no resource patterns are available and the path is empty.
+     *
+     * @param module The module for which to build the resource path.
+     * @param filter A {@link SourceFilter} which specifies which source directories should be considered.
+     * @return A {@link Path} containing the module's resources.
+     * @throws BuildException           An error has occurred while resolving a source directory.
+     * @throws IllegalArgumentException <ul><li>The module cannot be null.</li><li>The source filter cannot be
+     *                                  null.</li></ul>
+     */
+    public Path buildModuleResourcePath( final ModuleResolver module, final SourceFilter filter )
+            throws BuildException, IllegalArgumentException {
+        if ( module == null )
+            throw new IllegalArgumentException( "The module cannot be null." );
+
+        final Path path = new Path( this.project );
+        if ( module.getProjectResolver() != null ) {
+            final ResourceMatcher matcher = ResourceMatcher.forProject( module.getProjectResolver().getProject() );
+
+            // Select the resources in each source directory
+            for ( final String sourceUrl : getSourceUrls( module.getModule(), filter ) )
+                path.add( matcher.select( resolveSourceDirectory( module, sourceUrl ) ) );
+        }
+        return path;
+    }
+
+    private static File resolveSourceDirectory( final ModuleResolver module, final String sourceUrl )
+            throws BuildException {
+        try {
+            return UriUtils.getFile( module.resolveUriString( sourceUrl ) );
+        } catch ( ResolutionException e ) {
+            throw new BuildException(
+                    "Cannot resolve source directory for module \"" + module.getModule().getName() + "\"", e );
+        }
+    }
 }
@@ -0,0 +1,362 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import com.tomergabel.build.intellij.model.Module;
+import com.tomergabel.build.intellij.model.ModuleDependencyGraph;
+import com.tomergabel.build.intellij.model.ResolutionException;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.MacroDef;
+import org.apache.tools.ant.taskdefs.MacroInstance;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Executes a nested sequence of tasks for each module in the project, running independent modules concurrently.
+ * <p/>
+ * Modules are scheduled on a fixed-size worker pool as soon as all of their dependencies have completed; the nested
+ * <code>&lt;sequential&gt;</code> element refers to the current module via the <code>@{<em>param</em>}</code>
+ * attribute (<code>@{module}</code> by default), which evaluates to the module name or module file location as
+ * determined by the <code>outputMode</code> attribute. If a module fails, no further modules are scheduled; modules
+ * which are already running are allowed to complete, after which the first failure is reported.
+ * <p/>
+ * Since the nested tasks of different modules run concurrently, they must not share mutable properties or references
+ * (such as those set by <code>&lt;var&gt;</code>); module-specific values published by
+ * {@link ResolveProjectModelTask} can be accessed via the module parameter instead, e.g.
+ * <code>${idea.model.@{module}.output.source}</code>.
+ * <p/>
+ * Whenever a worker becomes available, the next module is chosen according to the <code>schedule</code> attribute:
+ * <ul>
+ * <li><code>order</code> (default): Modules are started in build order;</li>
+ * <li><code>criticalpath</code>: Modules with the longest remaining path through the dependency graph are started
+ * first, weighted by their historical build durations if a <code>statsFile</code> is specified (modules with no
+ * recorded duration are assumed to take the average time). This keeps slow chains of modules from gating the end of
+ * the build.</li>
+ * </ul>
+ * If a <code>statsFile</code> is specified, the build duration of each successfully built module is recorded in it
+ * regardless of the scheduling mode.
+ */
+public class BuildModulesParallelTask extends ProjectTaskBase {
+    public enum Schedule {
+        order,
+        criticalpath
+    }
+
+    protected static final String LIST_SEPARATOR = ",";
+    protected String param = "module";
+    protected int threads = Runtime.getRuntime().availableProcessors();
+    protected Collection<String> modules;
+    protected ResolutionModes inputMode = ResolutionModes.names;
+    protected ResolutionModes outputMode = ResolutionModes.descriptors;
+    protected Schedule schedule = Schedule.order;
+    protected File statsFile;
+    private BuildStatistics statistics;
+    private MacroDef macroDef;
+
+    public String getParam() {
+        return this.param;
+    }
+
+    public void setParam( final String param ) {
+        if ( param == null )
+            throw new IllegalArgumentException( "The parameter name cannot be null." );
+
+        this.param = param;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Sets the number of modules to build concurrently.
+     *
+     * @param threads The number of worker threads, or 0 to use the number of available processors.
+     * @throws IllegalArgumentException The thread count cannot be negative.
+     */
+    public void setThreads( final int threads ) throws IllegalArgumentException {
+        if ( threads < 0 )
+            throw new IllegalArgumentException( "The thread count cannot be negative." );
+
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public ResolutionModes getInputMode() {
+        return this.inputMode;
+    }
+
+    public void setInputMode( final ResolutionModes inputMode ) throws IllegalArgumentException {
+        if ( inputMode == null )
+            throw new IllegalArgumentException( "Mode value cannot be null." );
+
+        this.inputMode = inputMode;
+    }
+
+    public ResolutionModes getOutputMode() {
+        return this.outputMode;
+    }
+
+    public void setOutputMode( final ResolutionModes outputMode ) throws IllegalArgumentException {
+        if ( outputMode == null )
+            throw new IllegalArgumentException( "Mode value cannot be null." );
+
+        this.outputMode = outputMode;
+    }
+
+    public Schedule getSchedule() {
+        return this.schedule;
+    }
+
+    public void setSchedule( final Schedule schedule ) throws IllegalArgumentException {
+        if ( schedule == null )
+            throw new IllegalArgumentException( "The schedule cannot be null." );
+
+        this.schedule = schedule;
+    }
+
+    public File getStatsFile() {
+        return this.statsFile;
+    }
+
+    public void setStatsFile( final File statsFile ) {
+        this.statsFile = statsFile;
+    }
+
+    public void setModules( final String modules ) {
+        if ( modules == null )
+            throw new IllegalArgumentException( "The name list cannot be null." );
+
+        final String[] split = modules.split( LIST_SEPARATOR );
+        final Collection<String> list = new HashSet<String>( split.length );
+        for ( final String module : split )
+            if ( module.length() > 0 )
+                list.add( module );
+        this.modules = list.size() > 0 ? list : null;
+    }
+
+    public Object createSequential() {
+        if ( this.macroDef != null )
+            throw new BuildException( "Only one nested <sequential> element is supported." );
+
+        this.macroDef = new MacroDef();
+        this.macroDef.setProject( getProject() );
+        return this.macroDef.createSequential();
+    }
+
+    @Override
+    protected void executeTask() throws BuildException {
+        if ( this.macroDef == null )
+            throw new BuildException( "Nested <sequential> element not specified." );
+
+        assertProjectSpecified();
+
+        // Resolve the modules to build and their dependency graph
+        final Set<Module> scheduled;
+        final ModuleDependencyGraph graph;
+        try {
+            scheduled = new HashSet<Module>( resolveModules() );
+            graph = projectResolver().resolveModuleDependencyGraph( scheduled );
+        } catch ( ResolutionException e ) {
+            throw new BuildException( e );
+        }
+
+        final MacroDef.Attribute attribute = new MacroDef.Attribute();
+        attribute.setName( this.param );
+        this.macroDef.addConfiguredAttribute( attribute );
+
+        if ( this.statsFile != null )
+            this.statistics = new BuildStatistics( this.statsFile );
+
+        logVerbose( "Building %d modules with %d threads (schedule=%s)", scheduled.size(), this.threads,
+                this.schedule );
+        try {
+            build( graph, scheduled );
+        } finally {
+            if ( this.statistics != null )
+                try {
+                    this.statistics.store();
+                } catch ( IOException e ) {
+                    logWarn( e, "Cannot write build statistics to \"%s\"", this.statsFile );
+                }
+        }
+    }
+
+    private Collection<Module> resolveModules() throws ResolutionException {
+        if ( this.modules == null )
+            return projectResolver().resolveModuleBuildOrder();
+
+        switch ( this.inputMode ) {
+            case names:
+                return projectResolver().resolveModuleBuildOrderByName( this.modules );
+
+            case descriptors:
+                final Collection<Module> modules = new ArrayList<Module>();
+                for ( final String descriptor : this.modules )
+                    modules.add( projectResolver().getModule( projectResolver().resolveUriString( descriptor ) ) );
+                return modules;
+
+            default:
+                // Safety net, should never happen
+                throw new IllegalStateException( "Unknown input mode '" + this.inputMode + "'" );
+        }
+    }
+
+    private void build( final ModuleDependencyGraph graph, final Set<Module> scheduled ) throws BuildException {
+        // Count the unfinished dependencies of each module
+        final Map<Module, Integer> pending = new HashMap<Module, Integer>();
+        final Map<Module, Collection<Module>> dependants = new HashMap<Module, Collection<Module>>();
+        for ( final Module module : scheduled )
+            dependants.put( module, new ArrayList<Module>() );
+        for ( final Module module : scheduled ) {
+            final Collection<Module> dependencies = graph.getDependencies( module, scheduled );
+            pending.put( module, dependencies.size() );
+            for ( final Module dependency : dependencies )
+                dependants.get( dependency ).add( module );
+        }
+
+        // Seed the ready queue with all modules that have no dependencies
+        final Queue<Module> ready = new PriorityQueue<Module>( Math.max( 1, scheduled.size() ),
+                createPriority( graph, scheduled ) );
+        for ( final Module module : scheduled )
+            if ( pending.get( module ) == 0 )
+                ready.add( module );
+
+        final int workers = Math.max( 1, Math.min( this.threads, scheduled.size() ) );
+        final ExecutorService executor = Executors.newFixedThreadPool( workers );
+        final CompletionService<Module> completion = new ExecutorCompletionService<Module>( executor );
+        BuildException failure = null;
+        int running = 0;
+        try {
+            while ( true ) {
+                // Only submit as many modules as there are workers, so that the next module is picked from the
+                // ready queue by priority. Fail fast: once a module has failed, stop scheduling new ones.
+                while ( failure == null && !ready.isEmpty() && running < workers ) {
+                    completion.submit( createWorker( ready.remove() ) );
+                    running++;
+                }
+                if ( running == 0 )
+                    break;
+
+                final Future<Module> done = completion.take();
+                running--;
+                try {
+                    for ( final Module dependant : dependants.get( done.get() ) ) {
+                        final int remaining = pending.get( dependant ) - 1;
+                        pending.put( dependant, remaining );
+                        if ( remaining == 0 )
+                            ready.add( dependant );
+                    }
+                } catch ( ExecutionException e ) {
+                    if ( failure == null )
+                        failure = e.getCause() instanceof BuildException
+                                ? (BuildException) e.getCause()
+                                : new BuildException( e.getCause() );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new BuildException( "Interrupted while building modules.", e );
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if ( failure != null )
+            throw failure;
+    }
+
+    /**
+     * Creates the ready queue ordering: modules with higher priority are started first, with build order as
+     * tie-breaker.
+     */
+    private Comparator<Module> createPriority( final ModuleDependencyGraph graph, final Set<Module> scheduled ) {
+        final Map<Module, Integer> buildOrder = new HashMap<Module, Integer>();
+        for ( final Module module : graph.sortByBuildOrder( scheduled ) )
+            buildOrder.put( module, buildOrder.size() );
+
+        final Map<Module, Long> priority;
+        switch ( this.schedule ) {
+            case order:
+                priority = Collections.emptyMap();
+                break;
+
+            case criticalpath:
+                final Map<Module, Long> costs = new HashMap<Module, Long>();
+                Long average = null;
+                if ( this.statistics != null ) {
+                    for ( final Module module : scheduled ) {
+                        final Long duration = this.statistics.getDuration( module.getName() );
+                        if ( duration != null )
+                            costs.put( module, duration );
+                    }
+                    average = this.statistics.getAverageDuration();
+                }
+                priority = graph.getRemainingPathCosts( scheduled, costs,
+                        average != null ? Math.max( 1, average ) : 1 );
+                break;
+
+            default:
+                // Safety net, should never happen
+                throw new IllegalStateException( "Unknown schedule '" + this.schedule + "'" );
+        }
+
+        return new Comparator<Module>() {
+            @Override
+            public int compare( final Module o1, final Module o2 ) {
+                final Long p1 = priority.get( o1 );
+                final Long p2 = priority.get( o2 );
+                if ( p1 != null && p2 != null && !p1.equals( p2 ) )
+                    return p2.compareTo( p1 );
+                return buildOrder.get( o1 ) - buildOrder.get( o2 );
+            }
+        };
+    }
+
+    private Callable<Module> createWorker( final Module module ) {
+        return new Callable<Module>() {
+            @Override
+            public Module call() throws BuildException {
+                logVerbose( "Building module \"%s\"", module.getName() );
+                final MacroInstance instance = new MacroInstance();
+                instance.setProject( getProject() );
+                instance.setOwningTarget( getOwningTarget() );
+                instance.setLocation( getLocation() );
+                instance.setMacroDef( BuildModulesParallelTask.this.macroDef );
+                instance.setDynamicAttribute( BuildModulesParallelTask.this.param.toLowerCase(),
+                        String.valueOf( BuildModulesParallelTask.this.outputMode.mapper.map( module ) ) );
+                final long start = System.currentTimeMillis();
+                try {
+                    instance.execute();
+                    if ( BuildModulesParallelTask.this.statistics != null )
+                        BuildModulesParallelTask.this.statistics
+                                .record( module.getName(), System.currentTimeMillis() - start );
+                } catch ( BuildException e ) {
+                    throw new BuildException( "Failed to build module \"" + module.getName() + "\"", e,
+                            getLocation() );
+                }
+                return module;
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A small persistent store of historical module build durations, used to prioritize modules on the critical path when
+ * building concurrently.
+ * <p/>
+ * Durations are kept in a properties file which maps module names to build durations in milliseconds. Each recorded
+ * duration is averaged with the previously stored one, which smooths out occasional outliers (e.g. a cold JIT or a
+ * busy build agent). The file is advisory: failures to read or write it are not fatal. This class is thread-safe.
+ */
+class BuildStatistics {
+    private final File file;
+    private final Map<String, Long> durations = new HashMap<String, Long>();
+
+    /**
+     * Creates a new statistics store and loads existing statistics from the specified file, if it exists.
+     *
+     * @param file The statistics file.
+     * @throws IllegalArgumentException The statistics file cannot be null.
+     */
+    BuildStatistics( final File file ) throws IllegalArgumentException {
+        if ( file == null )
+            throw new IllegalArgumentException( "The statistics file cannot be null." );
+        this.file = file;
+
+        if ( !file.isFile() )
+            return;
+        final Properties properties = new Properties();
+        try {
+            final InputStream in = new BufferedInputStream( new FileInputStream( file ) );
+            try {
+                properties.load( in );
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // Statistics are advisory, start from scratch
+            return;
+        }
+        for ( final String module : properties.stringPropertyNames() )
+            try {
+                this.durations.put( module, Long.parseLong( properties.getProperty( module ).trim() ) );
+            } catch ( NumberFormatException e ) {
+                // Ignore malformed entries
+            }
+    }
+
+    /**
+     * Returns the recorded build duration of the specified module.
+     *
+     * @param module The module name.
+     * @return The build duration in milliseconds, or {@literal null} if no duration was recorded for the module.
+     */
+    synchronized Long getDuration( final String module ) {
+        return this.durations.get( module );
+    }
+
+    /**
+     * Returns the average recorded build duration of all modules.
+     *
+     * @return The average build duration in milliseconds, or {@literal null} if no durations were recorded.
+     */
+    synchronized Long getAverageDuration() {
+        if ( this.durations.isEmpty() )
+            return null;
+        long total = 0;
+        for ( final long duration : this.durations.values() )
+            total += duration;
+        return total / this.durations.size();
+    }
+
+    /**
+     * Records a build duration for the specified module.
+     *
+     * @param module   The module name.
+     * @param duration The build duration in milliseconds.
+     * @throws IllegalArgumentException <ul><li>The module name cannot be null.</li><li>The duration cannot be
+     *                                  negative.</li></ul>
+     */
+    synchronized void record( final String module, final long duration ) throws IllegalArgumentException {
+        if ( module == null )
+            throw new IllegalArgumentException( "The module name cannot be null." );
+        if ( duration < 0 )
+            throw new IllegalArgumentException( "The duration cannot be negative." );
+
+        final Long previous = this.durations.get( module );
+        this.durations.put( module, previous != null ? ( previous + duration ) / 2 : duration );
+    }
+
+    /**
+     * Writes the statistics back to the statistics file.
+     *
+     * @throws IOException An error has occurred while writing the statistics file.
+     */
+    synchronized void store() throws IOException {
+        final Properties properties = new Properties();
+        for ( final Map.Entry<String, Long> entry : this.durations.entrySet() )
+            properties.setProperty( entry.getKey(), entry.getValue().toString() );
+
+        final File directory = this.file.getAbsoluteFile().getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException( "Cannot create directory \"" + directory + "\"" );
+
+        // Write to a temporary file first so that concurrent builds never observe partial files
+        File temp = File.createTempFile( this.file.getName(), ".tmp", directory );
+        try {
+            final OutputStream out = new BufferedOutputStream( new FileOutputStream( temp ) );
+            try {
+                properties.store( out, "ant-intellij-tasks module build durations (milliseconds)" );
+            } finally {
+                out.close();
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            this.file.delete();
+            if ( !temp.renameTo( this.file ) )
+                throw new IOException( "Cannot write statistics file \"" + this.file + "\"" );
+            temp = null;
+        } finally {
+            if ( temp != null )
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A minimal reader for compiled Java class files, used to track dependencies between classes for incremental
+ * compilation.
+ * <p/>
+ * Besides the classes referenced by a class file, the reader computes an <em>API fingerprint</em>: a hash of the
+ * class's signature and of the signatures of its non-private members (including the values of constant fields, which
+ * are inlined by the compiler), but not of method bodies. Two versions of a class with the same fingerprint are
+ * interchangeable as far as the compilation of other classes is concerned. Package-private members are included, as
+ * they are accessible to classes in the same package in other modules; synthetic members are not, as they are derived
+ * from method bodies (e.g. accessors for private members of nested classes).
+ * <p/>
+ * Compilers inline compile-time constants without necessarily leaving a reference to the declaring class (javac 6
+ * through 8 leave none), so the values of a class's constants are additionally summarized in a separate
+ * {@link #getConstantsFingerprint() constants fingerprint}, which allows changes to them to be handled conservatively.
+ */
+final class ClassFile {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_SYNTHETIC = 0x1000;
+    private static final int CLASS_FLAGS = 0x6611;          // Public, final, interface, abstract, annotation, enum
+    private static final int NESTED_CLASS_FLAGS = 0x661f;   // As above, plus private, protected and static
+    private static final int FIELD_FLAGS = 0x005f;          // Access, static, final and volatile
+    private static final int METHOD_FLAGS = 0x049f;         // Access, static, final, varargs and abstract
+
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces;
+    private final Set<String> references;
+    private final String apiFingerprint;
+    private final String constantsFingerprint;
+
+    private ClassFile( final String name, final String superName, final List<String> interfaces,
+                       final Set<String> references, final String apiFingerprint,
+                       final String constantsFingerprint ) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.references = references;
+        this.apiFingerprint = apiFingerprint;
+        this.constantsFingerprint = constantsFingerprint;
+    }
+
+    /**
+     * Returns the internal name of the class (e.g. <code>java/lang/String</code>).
+     *
+     * @return The internal name of the class.
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * Returns the internal names of the class's superclass (if any) and implemented interfaces.
+     *
+     * @return The internal names of the class's direct supertypes.
+     */
+    List<String> getSupertypes() {
+        final List<String> supertypes = new ArrayList<String>( this.interfaces.size() + 1 );
+        if ( this.superName != null )
+            supertypes.add( this.superName );
+        supertypes.addAll( this.interfaces );
+        return supertypes;
+    }
+
+    /**
+     * Returns the names of all classes referenced by the class file. References are collected from the class file's
+     * constant pool, including both class constants and type descriptors (e.g. field types and method signatures).
+     * <p/>
+     * Note that compile-time constants are inlined by the compiler and are therefore not visible as references; see
+     * {@link #getConstantsFingerprint()}.
+     *
+     * @return The internal names of all referenced classes, excluding the class itself.
+     */
+    Set<String> getReferences() {
+        return this.references;
+    }
+
+    /**
+     * Returns the API fingerprint of the class.
+     *
+     * @return The API fingerprint of the class, or {@literal null} if the class cannot be referenced from other
+     *         top-level classes (i.e. private, local, anonymous and synthetic classes).
+     */
+    String getApiFingerprint() {
+        return this.apiFingerprint;
+    }
+
+    /**
+     * Returns the constants fingerprint of the class, i.e. a hash of the names and values of its non-private constant
+     * fields, which may be inlined into other classes.
+     *
+     * @return The constants fingerprint of the class, or {@literal null} if the class declares no such constants or
+     *         cannot be referenced from other top-level classes.
+     */
+    String getConstantsFingerprint() {
+        return this.constantsFingerprint;
+    }
+
+    /**
+     * Reads the specified class file.
+     *
+     * @param file The class file.
+     * @return The class file information.
+     * @throws IOException              An error has occurred while reading the class file, or the file is not a valid
+     *                                  class file.
+     * @throws IllegalArgumentException The class file cannot be null.
+     */
+    static ClassFile read( final File file ) throws IOException, IllegalArgumentException {
+        if ( file == null )
+            throw new IllegalArgumentException( "The class file cannot be null." );
+
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try {
+            if ( in.readInt() != MAGIC )
+                throw new IOException( "File \"" + file + "\" is not a valid class file." );
+            in.readUnsignedShort();     // Minor version
+            in.readUnsignedShort();     // Major version
+
+            // Read the constant pool
+            final int count = in.readUnsignedShort();
+            final Object[] constants = new Object[count];
+            final int[] classes = new int[count];
+            for ( int i = 1; i < count; i++ ) {
+                final int tag = in.readUnsignedByte();
+                switch ( tag ) {
+                    case 1:     // Utf8
+                        constants[ i ] = in.readUTF();
+                        break;
+                    case 7:     // Class
+                        classes[ i ] = in.readUnsignedShort();
+                        break;
+                    case 8:     // String
+                        constants[ i ] = in.readUnsignedShort();
+                        break;
+                    case 16:    // MethodType
+                    case 19:    // Module
+                    case 20:    // Package
+                        in.readUnsignedShort();
+                        break;
+                    case 15:    // MethodHandle
+                        in.readUnsignedByte();
+                        in.readUnsignedShort();
+                        break;
+                    case 3:     // Integer
+                        constants[ i ] = "I" + in.readInt();
+                        break;
+                    case 4:     // Float
+                        constants[ i ] = "F" + in.readInt();
+                        break;
+                    case 9:     // Fieldref
+                    case 10:    // Methodref
+                    case 11:    // InterfaceMethodref
+                    case 12:    // NameAndType
+                    case 17:    // Dynamic
+                    case 18:    // InvokeDynamic
+                        in.readInt();
+                        break;
+                    case 5:     // Long
+                        constants[ i ] = "J" + in.readLong();
+                        i++;    // Eight-byte constants take up two entries
+                        break;
+                    case 6:     // Double
+                        constants[ i ] = "D" + in.readLong();
+                        i++;
+                        break;
+                    default:
+                        throw new IOException( "Unrecognized constant pool tag " + tag + " in class file \"" +
+                                file + "\"." );
+                }
+            }
+            final Reader pool = new Reader( in, constants, classes );
+
+            // Read the class declaration
+            int flags = in.readUnsignedShort();
+            final String name = pool.readClass();
+            final String superName = pool.readClass();
+            final List<String> interfaces = new ArrayList<String>();
+            for ( int i = in.readUnsignedShort(); i > 0; i-- )
+                interfaces.add( pool.readClass() );
+            boolean exported = ( flags & ACC_SYNTHETIC ) == 0;
+
+            // Read member declarations; members are sorted, as their order is irrelevant to the API
+            final SortedSet<String> members = new TreeSet<String>();
+            final SortedSet<String> inlined = new TreeSet<String>();
+            for ( int kind = 0; kind < 2; kind++ )
+                for ( int i = in.readUnsignedShort(); i > 0; i-- ) {
+                    final int memberFlags = in.readUnsignedShort();
+                    final StringBuilder member = new StringBuilder( kind == 0 ? "field " : "method " );
+                    final String memberName = pool.readString();
+                    member.append( memberFlags & ( kind == 0 ? FIELD_FLAGS : METHOD_FLAGS ) ).append( ' ' )
+                            .append( memberName ).append( ' ' ).append( pool.readString() );
+                    for ( int j = in.readUnsignedShort(); j > 0; j-- ) {
+                        final String attribute = pool.readString();
+                        final int length = in.readInt();
+                        if ( "ConstantValue".equals( attribute ) || "Signature".equals( attribute ) ) {
+                            final Object value = pool.readValue();
+                            member.append( ' ' ).append( attribute ).append( '=' ).append( value );
+                            if ( kind == 0 && "ConstantValue".equals( attribute ) &&
+                                    ( memberFlags & ( ACC_PRIVATE | ACC_SYNTHETIC ) ) == 0 )
+                                inlined.add( memberName + '=' + value );
+                        } else if ( "Exceptions".equals( attribute ) ) {
+                            final SortedSet<String> exceptions = new TreeSet<String>();
+                            for ( int k = in.readUnsignedShort(); k > 0; k-- )
+                                exceptions.add( pool.readClass() );
+                            member.append( " throws " ).append( exceptions );
+                        } else
+                            pool.skip( length );
+                    }
+                    if ( ( memberFlags & ( ACC_PRIVATE | ACC_SYNTHETIC ) ) == 0 )
+                        members.add( member.toString() );
+                }
+
+            // Read class attributes
+            String signature = null;
+            for ( int i = in.readUnsignedShort(); i > 0; i-- ) {
+                final String attribute = pool.readString();
+                final int length = in.readInt();
+                if ( "Signature".equals( attribute ) )
+                    signature = pool.readString();
+                else if ( "InnerClasses".equals( attribute ) ) {
+                    for ( int j = in.readUnsignedShort(); j > 0; j-- ) {
+                        final String inner = pool.readClass();
+                        final String outer = pool.readClass();
+                        final int innerName = in.readUnsignedShort();
+                        final int innerFlags = in.readUnsignedShort();
+                        if ( name.equals( inner ) ) {
+                            // Local and anonymous classes have no outer class and no name, respectively
+                            if ( outer == null || innerName == 0 || ( innerFlags & ACC_PRIVATE ) != 0 )
+                                exported = false;
+                            flags = innerFlags & NESTED_CLASS_FLAGS;
+                        }
+                    }
+                } else
+                    pool.skip( length );
+            }
+
+            String fingerprint = null;
+            String constantsFingerprint = null;
+            if ( exported ) {
+                final StringBuilder api = new StringBuilder();
+                api.append( "class " ).append( flags & NESTED_CLASS_FLAGS ).append( ' ' ).append( name )
+                        .append( " extends " ).append( superName ).append( " implements " ).append( interfaces )
+                        .append( ' ' ).append( signature );
+                for ( final String member : members )
+                    api.append( '\n' ).append( member );
+                fingerprint = Fingerprint.digest( api.toString() );
+                if ( !inlined.isEmpty() )
+                    constantsFingerprint = Fingerprint.digest( name + ' ' + inlined );
+            }
+            final Set<String> references = pool.getReferences();
+            references.remove( name );
+            return new ClassFile( name, superName, interfaces, references, fingerprint, constantsFingerprint );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Resolves constant pool references while reading the remainder of a class file.
+     */
+    private static class Reader {
+        private final DataInputStream in;
+        private final Object[] constants;
+        private final int[] classes;
+
+        Reader( final DataInputStream in, final Object[] constants, final int[] classes ) {
+            this.in = in;
+            this.constants = constants;
+            this.classes = classes;
+        }
+
+        String readString() throws IOException {
+            return (String) this.constants[ this.in.readUnsignedShort() ];
+        }
+
+        String readClass() throws IOException {
+            final int index = this.in.readUnsignedShort();
+            return index != 0 ? (String) this.constants[ this.classes[ index ] ] : null;
+        }
+
+        Object readValue() throws IOException {
+            final Object value = this.constants[ this.in.readUnsignedShort() ];
+            // String constants refer to a Utf8 entry
+            return value instanceof Integer ? "S" + this.constants[ (Integer) value ] : value;
+        }
+
+        void skip( final int length ) throws IOException {
+            int remaining = length;
+            while ( remaining > 0 ) {
+                final int skipped = this.in.skipBytes( remaining );
+                if ( skipped <= 0 )
+                    throw new EOFException();
+                remaining -= skipped;
+            }
+        }
+
+        Set<String> getReferences() {
+            final Set<String> references = new HashSet<String>();
+            for ( int i = 0; i < this.classes.length; i++ ) {
+                final int index = this.classes[ i ];
+                if ( index != 0 && !( (String) this.constants[ index ] ).startsWith( "[" ) )
+                    references.add( (String) this.constants[ index ] );
+            }
+
+            // Descriptors and signatures refer to classes as "Lname;"; scanning every string may produce spurious
+            // names, but these never match an actual class and are harmless
+            for ( final Object constant : this.constants )
+                if ( constant instanceof String ) {
+                    final String string = (String) constant;
+                    for ( int start = string.indexOf( 'L' ); start >= 0; start = string.indexOf( 'L', start + 1 ) ) {
+                        final int end = string.indexOf( ';', start );
+                        if ( end < 0 )
+                            break;
+                        references.add( string.substring( start + 1, end ) );
+                    }
+                }
+            return references;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import com.tomergabel.build.intellij.model.ResolutionException;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Javac;
+import org.apache.tools.ant.types.Path;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles the production or test sources of a module to the module's output directory.
+ * <p/>
+ * Compilation is incremental: the build state of the module is kept in its output directory, and only sources which
+ * have changed since the previous build (along with the sources which depend on them) are recompiled. Class files of
+ * removed sources are deleted. See {@link IncrementalCompiler} for details. If in-process compilation is not
+ * available (see {@link CompilerEngine}), the module is compiled with the Ant <code>javac</code> task instead.
+ */
+public class CompileModuleTask extends ModuleTaskBase {
+    public enum Mode {
+        test,
+        source
+    }
+
+    protected Mode mode = Mode.source;
+    protected boolean debug = true;
+    protected String encoding;
+
+    public void setMode( final Mode mode ) {
+        if ( mode == null )
+            throw new IllegalArgumentException( "The mode cannot be null." );
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    public void setDebug( final boolean debug ) {
+        this.debug = debug;
+    }
+
+    public boolean isDebug() {
+        return this.debug;
+    }
+
+    public void setEncoding( final String encoding ) {
+        this.encoding = encoding;
+    }
+
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    @Override
+    protected void executeTask() throws BuildException {
+        final boolean test = this.mode == Mode.test;
+        final File output;
+        try {
+            output = resolver().resolveModuleOutput( test );
+        } catch ( ResolutionException e ) {
+            throw new BuildException( "Failed to resolve module output directory.", e );
+        }
+        final Path sources = ant().buildModuleSourcePath( resolver(), test ? SourceFilter.test : SourceFilter.source );
+        final Path classpath = ant().buildModuleClasspath( resolver(), test ? SourceFilter.both : SourceFilter.source );
+
+        final CompilerEngine engine = CompilerEngine.forProject( getProject() );
+        if ( engine == null ) {
+            logVerbose( "In-process compilation not available, compiling module '%s' with javac", module().getName() );
+            compileWithJavac( sources, output, classpath );
+            return;
+        }
+
+        final List<String> options = new ArrayList<String>();
+        options.add( this.debug ? "-g" : "-g:none" );
+        if ( this.encoding != null ) {
+            options.add( "-encoding" );
+            options.add( this.encoding );
+        }
+        final int compiled = new IncrementalCompiler( getProject(), engine )
+                .compile( toFiles( sources ), output, toFiles( classpath ), options );
+        logVerbose( "Compiled %d source file(s) in module '%s', mode=%s", compiled, module().getName(), this.mode );
+    }
+
+    private void compileWithJavac( final Path sources, final File output, final Path classpath ) {
+        final Path existing = new Path( getProject() );
+        for ( final File directory : toFiles( sources ) )
+            if ( directory.isDirectory() )
+                existing.setLocation( directory );
+        if ( existing.size() == 0 )
+            return;
+
+        output.mkdirs();
+        final Javac javac = (Javac) getProject().createTask( "javac" );
+        javac.setSrcdir( existing );
+        javac.setDestdir( output );
+        javac.setClasspath( classpath );
+        // The compiler engine only compiles against the module classpath, so the Ant runtime is excluded here as well
+        javac.setIncludeantruntime( false );
+        javac.setDebug( this.debug );
+        if ( this.encoding != null )
+            javac.setEncoding( this.encoding );
+        javac.perform();
+    }
+
+    private static List<File> toFiles( final Path path ) {
+        final List<File> files = new ArrayList<File>();
+        for ( final String entry : path.list() )
+            files.add( new File( entry ) );
+        return files;
+    }
+}
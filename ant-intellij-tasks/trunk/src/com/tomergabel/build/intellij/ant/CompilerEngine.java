@@ -0,0 +1,502 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An in-process compilation engine built on the {@link JavaCompiler javax.tools} compiler API.
+ * <p/>
+ * Unlike the Ant <code>javac</code> task, which sets up a new compiler and file manager for every invocation, the
+ * engine is shared by all compilations in the same Ant build. File managers are pooled and reused across modules, so
+ * that library JARs opened (and indexed) by the compiler for one module are not reopened for the next; concurrent
+ * compilations (e.g. via {@link BuildModulesParallelTask}) each use a separate file manager from the pool. Compiler
+ * diagnostics are mapped to Ant log messages. The engine is closed, releasing all open JARs, when the build finishes.
+ * <p/>
+ * Since the compiler keeps JARs open (and their indices cached) for the lifetime of a file manager, each pooled file
+ * manager records the length and modification time of the classpath JARs it was used with; a file manager is closed
+ * and replaced rather than reused if any of those JARs has changed since, e.g. because an earlier module in the build
+ * repackaged it.
+ * <p/>
+ * As with the <code>javac</code> task, the <code>{@value #SOURCE_PROPERTY}</code> and
+ * <code>{@value #TARGET_PROPERTY}</code> Ant properties are passed to the compiler as <code>-source</code> and
+ * <code>-target</code>, unless the compiler options already specify them.
+ * <p/>
+ * As with the <code>javac</code> task, only sources which are newer than their class files are compiled. The engine is
+ * unavailable if the JVM does not provide a system Java compiler (i.e. on a JRE), or if the
+ * <code>{@value #COMPILER_PROPERTY}</code> Ant property is set to <code>javac</code>; {@link AntUtils} then falls back
+ * to the <code>javac</code> task.
+ */
+class CompilerEngine implements BuildListener {
+    /**
+     * The Ant property which selects the compiler implementation; set to <code>javac</code> to use the Ant
+     * <code>javac</code> task instead of the in-process compilation engine.
+     */
+    static final String COMPILER_PROPERTY = "ant-intellij-tasks.compiler";
+    /**
+     * The Ant property which specifies the default source level, as with the <code>javac</code> task.
+     */
+    static final String SOURCE_PROPERTY = "ant.build.javac.source";
+    /**
+     * The Ant property which specifies the default target level, as with the <code>javac</code> task.
+     */
+    static final String TARGET_PROPERTY = "ant.build.javac.target";
+    private static final String REFERENCE = "ant-intellij-tasks.compiler.engine";
+
+    private final Project project;
+    private final JavaCompiler compiler;
+    private final Queue<PooledFileManager> fileManagers = new ConcurrentLinkedQueue<PooledFileManager>();
+
+    /**
+     * A pooled file manager, along with the length and modification time of the classpath JARs it has been used with.
+     */
+    private static final class PooledFileManager {
+        final StandardJavaFileManager fileManager;
+        private final Map<File, String> jars = new HashMap<File, String>();
+
+        PooledFileManager( final StandardJavaFileManager fileManager ) {
+            this.fileManager = fileManager;
+        }
+
+        void record( final Iterable<File> classpath ) {
+            for ( final File entry : classpath )
+                if ( !this.jars.containsKey( entry ) && entry.isFile() )
+                    this.jars.put( entry, stamp( entry ) );
+        }
+
+        boolean isCurrent() {
+            for ( final Map.Entry<File, String> jar : this.jars.entrySet() )
+                if ( !jar.getValue().equals( stamp( jar.getKey() ) ) )
+                    return false;
+            return true;
+        }
+
+        void close() {
+            try {
+                this.fileManager.close();
+            } catch ( IOException e ) {
+                // Nothing we can do, ignore
+            }
+        }
+
+        private static String stamp( final File jar ) {
+            return jar.length() + "/" + jar.lastModified();
+        }
+    }
+
+    private CompilerEngine( final Project project, final JavaCompiler compiler ) {
+        this.project = project;
+        this.compiler = compiler;
+    }
+
+    /**
+     * Returns the compilation engine for the specified Ant project, creating it if necessary.
+     *
+     * @param project The Ant project.
+     * @return The project's compilation engine, or {@literal null} if in-process compilation is not available or has
+     *         been disabled.
+     * @throws IllegalArgumentException The project cannot be null.
+     */
+    static CompilerEngine forProject( final Project project ) throws IllegalArgumentException {
+        if ( project == null )
+            throw new IllegalArgumentException( "The project cannot be null." );
+        if ( "javac".equals( project.getProperty( COMPILER_PROPERTY ) ) )
+            return null;
+
+        synchronized ( project ) {
+            CompilerEngine engine = (CompilerEngine) project.getReference( REFERENCE );
+            if ( engine == null ) {
+                final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+                if ( compiler == null )
+                    return null;
+                engine = new CompilerEngine( project, compiler );
+                project.addReference( REFERENCE, engine );
+                project.addBuildListener( engine );
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Compiles all stale source files in the specified source directories to the target directory.
+     *
+     * @param sourceDirectories The source directories.
+     * @param to                The target directory.
+     * @param classpath         The compilation classpath, or {@literal null} if the default classpath is desired.
+     * @throws BuildException           An error has occurred during the compilation.
+     * @throws IllegalArgumentException <ul><li>The list of source directories cannot be null.</li><li>The target
+     *                                  directory cannot be null.</li></ul>
+     */
+    void compile( final Iterable<File> sourceDirectories, final File to, final Path classpath )
+            throws BuildException, IllegalArgumentException {
+        if ( sourceDirectories == null )
+            throw new IllegalArgumentException( "The list of source directories cannot be null." );
+        if ( to == null )
+            throw new IllegalArgumentException( "The target directory cannot be null." );
+
+        // Find stale sources
+        final List<File> roots = new ArrayList<File>();
+        final List<File> sources = new ArrayList<File>();
+        for ( final File directory : sourceDirectories ) {
+            roots.add( directory );
+            collectStaleSources( directory, to, sources );
+        }
+        if ( sources.isEmpty() ) {
+            this.project.log( "All sources are up to date in " + to, Project.MSG_VERBOSE );
+            return;
+        }
+
+        // As with the javac task, the default classpath is used if none is specified
+        final List<File> entries = new ArrayList<File>();
+        for ( final String entry : ( classpath != null ? classpath : Path.systemClasspath ).list() )
+            entries.add( new File( entry ) );
+
+        // Debug information is omitted, as with the javac task defaults
+        if ( !compile( sources, roots, to, entries, Arrays.asList( "-g:none" ), null ) )
+            throw new BuildException( "Compile failed; see the compiler error output for details." );
+    }
+
+    /**
+     * Compiles the specified source files to the target directory. The target directory is implicitly prepended to
+     * the classpath, so that classes which are already compiled are not compiled again.
+     *
+     * @param sources    The source files to compile.
+     * @param sourcePath The source directories, used to look up additional sources referenced by the compiled sources.
+     * @param to         The target directory.
+     * @param classpath  The compilation classpath.
+     * @param options    Additional compiler options (e.g. <code>-g</code>).
+     * @param outputs    If not {@literal null}, receives the class files generated for each source file. Source and
+     *                   class files are keyed by their {@link #normalize(File) normalized} form.
+     * @return {@literal true} if the compilation succeeded, or {@literal false} if errors were reported.
+     * @throws BuildException           The compiler failed unexpectedly.
+     * @throws IllegalArgumentException <ul><li>The source file list cannot be null.</li><li>The source path cannot be
+     *                                  null.</li><li>The target directory cannot be null.</li><li>The classpath cannot
+     *                                  be null.</li><li>The compiler options cannot be null.</li></ul>
+     */
+    boolean compile( final Collection<File> sources, final Iterable<File> sourcePath, final File to,
+                     final Iterable<File> classpath, final Iterable<String> options,
+                     final Map<File, Collection<File>> outputs ) throws BuildException, IllegalArgumentException {
+        if ( sources == null )
+            throw new IllegalArgumentException( "The source file list cannot be null." );
+        if ( sourcePath == null )
+            throw new IllegalArgumentException( "The source path cannot be null." );
+        if ( to == null )
+            throw new IllegalArgumentException( "The target directory cannot be null." );
+        if ( classpath == null )
+            throw new IllegalArgumentException( "The classpath cannot be null." );
+        if ( options == null )
+            throw new IllegalArgumentException( "The compiler options cannot be null." );
+
+        this.project.log( "Compiling " + sources.size() + " source file" + ( sources.size() == 1 ? "" : "s" ) +
+                " to " + to );
+        return run( sources, sourcePath, to, classpath, options, outputs, null );
+    }
+
+    private boolean run( final Collection<File> sources, final Iterable<File> sourcePath, final File to,
+                         final Iterable<File> classpath, final Iterable<String> options,
+                         final Map<File, Collection<File>> outputs, final Map<String, ByteArrayOutputStream> memory )
+            throws BuildException {
+        PooledFileManager pooled = this.fileManagers.poll();
+        if ( pooled != null && !pooled.isCurrent() ) {
+            // The file manager may hold stale contents of a changed JAR
+            this.project.log( "Classpath JAR changed, reopening compiler file manager", Project.MSG_VERBOSE );
+            pooled.close();
+            pooled = null;
+        }
+        if ( pooled == null )
+            pooled = new PooledFileManager( this.compiler.getStandardFileManager( null, null, null ) );
+        final StandardJavaFileManager fileManager = pooled.fileManager;
+        try {
+            final List<File> entries = new ArrayList<File>();
+            if ( to != null )
+                entries.add( to );
+            for ( final File entry : classpath )
+                entries.add( entry );
+            pooled.record( entries );
+            fileManager.setLocation( StandardLocation.CLASS_OUTPUT, to != null ? Collections.singleton( to ) : null );
+            fileManager.setLocation( StandardLocation.SOURCE_PATH, sourcePath );
+            fileManager.setLocation( StandardLocation.CLASS_PATH, entries );
+
+            final List<String> arguments = effectiveOptions( options );
+            final JavaFileManager effective = memory != null ? new MemoryOutput( fileManager, memory )
+                    : outputs != null ? new OutputRecorder( fileManager, outputs ) : fileManager;
+            final JavaCompiler.CompilationTask task = this.compiler.getTask( null, effective,
+                    new DiagnosticLogger(), arguments, null, fileManager.getJavaFileObjectsFromFiles( sources ) );
+            return task.call();
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot set up compiler file manager.", e );
+        } catch ( RuntimeException e ) {
+            throw new BuildException( "Compiler failed unexpectedly.", e );
+        } finally {
+            // Return the file manager (and its open JARs) to the pool
+            this.fileManagers.add( pooled );
+        }
+    }
+
+    /**
+     * Returns the compiler options actually passed to the compiler for the specified options, i.e. including the
+     * source and target levels specified by the <code>{@value #SOURCE_PROPERTY}</code> and
+     * <code>{@value #TARGET_PROPERTY}</code> Ant properties.
+     *
+     * @param options The compiler options.
+     * @return The effective compiler options.
+     * @throws IllegalArgumentException The compiler options cannot be null.
+     */
+    List<String> effectiveOptions( final Iterable<String> options ) throws IllegalArgumentException {
+        if ( options == null )
+            throw new IllegalArgumentException( "The compiler options cannot be null." );
+
+        final List<String> arguments = new ArrayList<String>();
+        for ( final String option : options )
+            arguments.add( option );
+        addLevel( arguments, "-source", this.project.getProperty( SOURCE_PROPERTY ) );
+        addLevel( arguments, "-target", this.project.getProperty( TARGET_PROPERTY ) );
+        return arguments;
+    }
+
+    private static void addLevel( final List<String> arguments, final String option, final String level ) {
+        if ( level != null && level.length() > 0 && !arguments.contains( option ) ) {
+            arguments.add( option );
+            arguments.add( level );
+        }
+    }
+
+    /**
+     * Compiles all source files in the specified source directories in memory, without writing class files to disk.
+     *
+     * @param sourceDirectories The source directories.
+     * @param classpath         The compilation classpath.
+     * @param options           Additional compiler options (e.g. <code>-g</code>).
+     * @return The generated class files, keyed by their path relative to the class output root (e.g.
+     *         <code>com/example/Foo.class</code>), or {@literal null} if errors were reported.
+     * @throws BuildException           The compiler failed unexpectedly.
+     * @throws IllegalArgumentException <ul><li>The list of source directories cannot be null.</li><li>The classpath
+     *                                  cannot be null.</li><li>The compiler options cannot be null.</li></ul>
+     */
+    Map<String, byte[]> compileToMemory( final Iterable<File> sourceDirectories, final Iterable<File> classpath,
+                                         final Iterable<String> options )
+            throws BuildException, IllegalArgumentException {
+        if ( sourceDirectories == null )
+            throw new IllegalArgumentException( "The list of source directories cannot be null." );
+        if ( classpath == null )
+            throw new IllegalArgumentException( "The classpath cannot be null." );
+        if ( options == null )
+            throw new IllegalArgumentException( "The compiler options cannot be null." );
+
+        final List<File> sources = new ArrayList<File>();
+        for ( final File directory : sourceDirectories )
+            collectStaleSources( directory, null, sources );
+        final Map<String, ByteArrayOutputStream> classes = new TreeMap<String, ByteArrayOutputStream>();
+        if ( !sources.isEmpty() ) {
+            this.project.log( "Compiling " + sources.size() + " source file" + ( sources.size() == 1 ? "" : "s" ) +
+                    " in memory" );
+            if ( !run( sources, sourceDirectories, null, classpath, options, null, classes ) )
+                return null;
+        }
+
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for ( final Map.Entry<String, ByteArrayOutputStream> entry : classes.entrySet() )
+            result.put( entry.getKey(), entry.getValue().toByteArray() );
+        return result;
+    }
+
+    /**
+     * Normalizes the specified file to an absolute path without redundant elements, which is the form in which the
+     * compiler reports source and class files.
+     *
+     * @param file The file to normalize.
+     * @return The normalized file.
+     */
+    static File normalize( final File file ) {
+        return new File( file.getAbsoluteFile().toURI().normalize() );
+    }
+
+    private static void collectStaleSources( final File directory, final File to, final List<File> sources ) {
+        final Deque<File> directories = new ArrayDeque<File>();
+        final Deque<String> prefixes = new ArrayDeque<String>();
+        directories.push( directory );
+        prefixes.push( "" );
+        while ( !directories.isEmpty() ) {
+            final File current = directories.pop();
+            final String prefix = prefixes.pop();
+            final File[] children = current.listFiles();
+            if ( children == null )
+                continue;
+            for ( final File child : children ) {
+                final String name = child.getName();
+                if ( child.isDirectory() ) {
+                    directories.push( child );
+                    prefixes.push( prefix + name + File.separatorChar );
+                } else if ( name.endsWith( ".java" ) ) {
+                    if ( to == null ) {
+                        sources.add( child );
+                        continue;
+                    }
+                    final File target = new File( to,
+                            prefix + name.substring( 0, name.length() - ".java".length() ) + ".class" );
+                    if ( !target.exists() || target.lastModified() < child.lastModified() )
+                        sources.add( child );
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all pooled file managers.
+     */
+    void close() {
+        PooledFileManager pooled;
+        while ( ( pooled = this.fileManagers.poll() ) != null )
+            pooled.close();
+    }
+
+    /**
+     * A file manager which records the class files generated for each source file.
+     */
+    private static class OutputRecorder extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<File, Collection<File>> outputs;
+
+        OutputRecorder( final StandardJavaFileManager fileManager, final Map<File, Collection<File>> outputs ) {
+            super( fileManager );
+            this.outputs = outputs;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput( final Location location, final String className,
+                                                    final JavaFileObject.Kind kind, final FileObject sibling )
+                throws IOException {
+            final JavaFileObject output = super.getJavaFileForOutput( location, className, kind, sibling );
+            if ( kind == JavaFileObject.Kind.CLASS && sibling != null &&
+                    "file".equals( sibling.toUri().getScheme() ) ) {
+                final File source = normalize( new File( sibling.toUri() ) );
+                synchronized ( this.outputs ) {
+                    Collection<File> classes = this.outputs.get( source );
+                    if ( classes == null )
+                        this.outputs.put( source, classes = new ArrayList<File>() );
+                    classes.add( normalize( new File( output.toUri() ) ) );
+                }
+            }
+            return output;
+        }
+    }
+
+    /**
+     * A file manager which keeps generated class files in memory.
+     */
+    private static class MemoryOutput extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, ByteArrayOutputStream> classes;
+
+        MemoryOutput( final StandardJavaFileManager fileManager, final Map<String, ByteArrayOutputStream> classes ) {
+            super( fileManager );
+            this.classes = classes;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput( final Location location, final String className,
+                                                    final JavaFileObject.Kind kind, final FileObject sibling )
+                throws IOException {
+            if ( kind != JavaFileObject.Kind.CLASS )
+                return super.getJavaFileForOutput( location, className, kind, sibling );
+
+            final String path = className.replace( '.', '/' ) + kind.extension;
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            this.classes.put( path, buffer );
+            return new SimpleJavaFileObject( URI.create( "memory:///" + path ), kind ) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return buffer;
+                }
+            };
+        }
+    }
+
+    private class DiagnosticLogger implements DiagnosticListener<JavaFileObject> {
+        @Override
+        public void report( final Diagnostic<? extends JavaFileObject> diagnostic ) {
+            final int level;
+            switch ( diagnostic.getKind() ) {
+                case ERROR:
+                    level = Project.MSG_ERR;
+                    break;
+                case WARNING:
+                case MANDATORY_WARNING:
+                    level = Project.MSG_WARN;
+                    break;
+                default:
+                    level = Project.MSG_VERBOSE;
+                    break;
+            }
+
+            final StringBuilder message = new StringBuilder();
+            if ( diagnostic.getSource() != null ) {
+                message.append( diagnostic.getSource().toUri().getPath() );
+                if ( diagnostic.getLineNumber() != Diagnostic.NOPOS )
+                    message.append( ':' ).append( diagnostic.getLineNumber() );
+                message.append( ": " );
+            }
+            message.append( diagnostic.getMessage( null ) );
+            CompilerEngine.this.project.log( message.toString(), level );
+        }
+    }
+
+    @Override
+    public void buildFinished( final BuildEvent event ) {
+        close();
+    }
+
+    @Override
+    public void buildStarted( final BuildEvent event ) {
+    }
+
+    @Override
+    public void targetStarted( final BuildEvent event ) {
+    }
+
+    @Override
+    public void targetFinished( final BuildEvent event ) {
+    }
+
+    @Override
+    public void taskStarted( final BuildEvent event ) {
+    }
+
+    @Override
+    public void taskFinished( final BuildEvent event ) {
+    }
+
+    @Override
+    public void messageLogged( final BuildEvent event ) {
+    }
+}
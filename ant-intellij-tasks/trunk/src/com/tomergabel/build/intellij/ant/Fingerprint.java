@@ -0,0 +1,152 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Accumulates a fingerprint of a set of build inputs, used to determine whether build outputs are up to date.
+ * <p/>
+ * Files are fingerprinted by their path, size and modification time rather than by their content, which is accurate
+ * for all practical purposes and does not require reading the files.
+ */
+class Fingerprint {
+    private final StringBuilder data = new StringBuilder();
+
+    /**
+     * Adds an arbitrary value to the fingerprint.
+     *
+     * @param value The value to add.
+     * @return This fingerprint.
+     */
+    Fingerprint add( final Object value ) {
+        this.data.append( value ).append( '\n' );
+        return this;
+    }
+
+    /**
+     * Adds a file to the fingerprint. If the file does not exist, only its path is added.
+     *
+     * @param file The file to add.
+     * @return This fingerprint.
+     * @throws IllegalArgumentException The file cannot be null.
+     */
+    Fingerprint addFile( final File file ) throws IllegalArgumentException {
+        if ( file == null )
+            throw new IllegalArgumentException( "The file cannot be null." );
+        this.data.append( file.getAbsolutePath() );
+        if ( file.isFile() )
+            this.data.append( '@' ).append( file.length() ).append( '/' ).append( file.lastModified() );
+        this.data.append( '\n' );
+        return this;
+    }
+
+    /**
+     * Adds all files in the specified directory, recursively, to the fingerprint. If the directory does not exist,
+     * only its path is added.
+     *
+     * @param directory The directory to add.
+     * @return This fingerprint.
+     * @throws IllegalArgumentException The directory cannot be null.
+     */
+    Fingerprint addTree( final File directory ) throws IllegalArgumentException {
+        if ( directory == null )
+            throw new IllegalArgumentException( "The directory cannot be null." );
+        this.data.append( directory.getAbsolutePath() ).append( '\n' );
+        addTree( directory, "" );
+        return this;
+    }
+
+    private void addTree( final File directory, final String prefix ) {
+        final File[] children = directory.listFiles();
+        if ( children == null )
+            return;
+        Arrays.sort( children );
+        for ( final File child : children )
+            if ( child.isDirectory() )
+                addTree( child, prefix + child.getName() + '/' );
+            else
+                this.data.append( prefix ).append( child.getName() ).append( '@' ).append( child.length() )
+                        .append( '/' ).append( child.lastModified() ).append( '\n' );
+    }
+
+    /**
+     * Adds a classpath entry to the fingerprint. Directories compiled by the {@link IncrementalCompiler} are
+     * fingerprinted by the API of their classes; other directories are fingerprinted by their content.
+     *
+     * @param entry The classpath entry to add.
+     * @return This fingerprint.
+     * @throws IllegalArgumentException The classpath entry cannot be null.
+     */
+    Fingerprint addClasspathEntry( final File entry ) throws IllegalArgumentException {
+        if ( entry == null )
+            throw new IllegalArgumentException( "The classpath entry cannot be null." );
+        if ( !entry.isDirectory() )
+            return addFile( entry );
+
+        final IncrementalCompiler.State state = IncrementalCompiler.load( entry );
+        if ( state == null )
+            return addTree( entry );
+        add( entry.getAbsolutePath() );
+        for ( final Map.Entry<String, String> api : new TreeMap<String, String>( state.api ).entrySet() )
+            this.data.append( api.getKey() ).append( '=' ).append( api.getValue() ).append( '\n' );
+        return this;
+    }
+
+    /**
+     * Returns the fingerprint as a hexadecimal digest.
+     *
+     * @return The fingerprint.
+     */
+    @Override
+    public String toString() {
+        return digest( this.data.toString() );
+    }
+
+    /**
+     * Computes a hexadecimal SHA-1 digest of the specified string.
+     *
+     * @param data The string to digest.
+     * @return The digest of the string.
+     */
+    static String digest( final String data ) {
+        try {
+            final byte[] hash = MessageDigest.getInstance( "SHA-1" ).digest( data.getBytes( "UTF-8" ) );
+            final StringBuilder sb = new StringBuilder( hash.length * 2 );
+            for ( final byte b : hash )
+                sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+            return sb.toString();
+        } catch ( NoSuchAlgorithmException e ) {
+            // Safety net, should never happen
+            throw new IllegalStateException( e );
+        } catch ( UnsupportedEncodingException e ) {
+            // Safety net, should never happen
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,642 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compiles a set of source directories incrementally, based on build state persisted in the target directory.
+ * <p/>
+ * The build state records the timestamp and size of each source file, the class files generated from it and the
+ * classes those class files reference, as well as a fingerprint of the classpath and compiler options. On subsequent
+ * compilations only new and changed sources are recompiled, along with every source which (transitively) references a
+ * class generated from a changed or removed source. Class files generated from removed sources are deleted. If the
+ * classpath or compiler options change, or no valid build state is found, all sources are recompiled.
+ * <p/>
+ * Compile-time constants are inlined by the compiler, and javac 6 through 8 leave no reference to the class declaring
+ * an inlined constant. Reference tracking therefore cannot find the sources which use a constant; instead, if the
+ * {@link ClassFile#getConstantsFingerprint() constants} of a recompiled or removed class changed, all sources are
+ * recompiled. Likewise, if the constants of an incrementally-compiled classpath directory (see below) changed, all
+ * sources are recompiled.
+ * <p/>
+ * Classpath directories which contain a build state (i.e. the output directories of other incrementally-compiled
+ * modules) are tracked by the {@link ClassFile#getApiFingerprint() API fingerprints} of their classes: when a class
+ * in such a directory changes, only the sources which reference it are recompiled, and only if its API has actually
+ * changed. Changes to method bodies in a dependee module therefore do not cause dependant modules to be recompiled.
+ * The fingerprint of a class includes the fingerprints of its supertypes, so that API changes propagate through
+ * inheritance hierarchies spanning several modules. Other classpath directories are fingerprinted by a scan of their
+ * contents.
+ * <p/>
+ * Build states are read from classpath directories as well as from the target directory, and are therefore
+ * deserialized through an allow-list of the state classes and the JDK types they are built from; anything else is
+ * treated as a missing build state.
+ */
+class IncrementalCompiler {
+    /**
+     * The name of the build state file in the target directory.
+     */
+    static final String STATE_FILE = ".ant-intellij-tasks.state";
+
+    private final Project project;
+    private final CompilerEngine engine;
+
+    /**
+     * Creates a new incremental compiler.
+     *
+     * @param project The Ant project.
+     * @param engine  The compilation engine.
+     * @throws IllegalArgumentException <ul><li>The project cannot be null.</li><li>The compilation engine cannot be
+     *                                  null.</li></ul>
+     */
+    IncrementalCompiler( final Project project, final CompilerEngine engine ) throws IllegalArgumentException {
+        if ( project == null )
+            throw new IllegalArgumentException( "The project cannot be null." );
+        if ( engine == null )
+            throw new IllegalArgumentException( "The compilation engine cannot be null." );
+        this.project = project;
+        this.engine = engine;
+    }
+
+    /**
+     * The JDK classes which may appear in a serialized build state, in addition to the state classes themselves.
+     */
+    private static final Set<String> allowedClasses = new HashSet<String>( Arrays.asList(
+            "java.lang.String", "java.lang.Number", "java.lang.Long", "java.lang.Integer", "java.io.File",
+            "java.util.ArrayList", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.HashMap",
+            "java.util.LinkedHashMap" ) );
+
+    /**
+     * An object input stream which only resolves the build state classes and the JDK types listed in {@link
+     * #allowedClasses}.
+     */
+    static class StateInputStream extends ObjectInputStream {
+        StateInputStream( final InputStream in ) throws IOException {
+            super( in );
+        }
+
+        @Override
+        protected Class<?> resolveClass( final ObjectStreamClass desc ) throws IOException, ClassNotFoundException {
+            final String name = desc.getName();
+            if ( !name.startsWith( IncrementalCompiler.class.getName() + "$" ) && !allowedClasses.contains( name ) )
+                throw new InvalidClassException( name, "Class not allowed in a build state." );
+            return super.resolveClass( desc );
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass( final String[] interfaces ) throws IOException {
+            throw new InvalidClassException( "Proxy classes are not allowed in a build state." );
+        }
+    }
+
+    /**
+     * Persistent build state for a single target directory.
+     */
+    static class State implements Serializable {
+        private static final long serialVersionUID = 4L;
+
+        String fingerprint;
+        final Map<File, SourceEntry> sources = new HashMap<File, SourceEntry>();
+
+        /**
+         * The API fingerprints of all exported classes in the target directory, by class name.
+         */
+        final Map<String, String> api = new HashMap<String, String>();
+
+        /**
+         * The API fingerprints of the classpath directories at the time of the last compilation, by directory.
+         */
+        final Map<File, Map<String, String>> dependencies = new HashMap<File, Map<String, String>>();
+
+        /**
+         * The constants fingerprints of the classpath directories at the time of the last compilation, by directory.
+         */
+        final Map<File, String> dependencyConstants = new HashMap<File, String>();
+
+        /**
+         * The constants fingerprints of the classes invalidated since the last successful compilation, by class name.
+         * These are kept until the compilation succeeds, so that a failed compilation does not lose constant changes.
+         */
+        final Map<String, String> constants = new HashMap<String, String>();
+    }
+
+    /**
+     * Build state for a single generated class.
+     */
+    static class ClassEntry implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        final String fingerprint;
+        final String constants;
+        final List<String> supertypes;
+
+        ClassEntry( final ClassFile classFile ) {
+            this.fingerprint = classFile.getApiFingerprint();
+            this.constants = classFile.getConstantsFingerprint();
+            this.supertypes = classFile.getSupertypes();
+        }
+    }
+
+    /**
+     * Build state for a single source file.
+     */
+    static class SourceEntry implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        final long lastModified;
+        final long length;
+        final Map<String, ClassEntry> classes;
+        final Collection<String> references;
+
+        SourceEntry( final File source, final Map<String, ClassEntry> classes, final Collection<String> references ) {
+            this.lastModified = source.lastModified();
+            this.length = source.length();
+            this.classes = classes;
+            this.references = references;
+        }
+
+        boolean isModified( final File source ) {
+            return source.lastModified() != this.lastModified || source.length() != this.length;
+        }
+    }
+
+    /**
+     * Compiles all new, changed and affected sources in the specified source directories to the target directory.
+     *
+     * @param sourceDirectories The source directories. Directories which do not exist are ignored.
+     * @param to                The target directory.
+     * @param classpath         The compilation classpath.
+     * @param options           Compiler options (e.g. <code>-g</code>).
+     * @return The number of source files compiled.
+     * @throws BuildException           An error has occurred during the compilation.
+     * @throws IllegalArgumentException <ul><li>The list of source directories cannot be null.</li><li>The target
+     *                                  directory cannot be null.</li><li>The classpath cannot be null.</li><li>The
+     *                                  compiler options cannot be null.</li></ul>
+     */
+    int compile( final Iterable<File> sourceDirectories, final File to, final Iterable<File> classpath,
+                 final List<String> options ) throws BuildException, IllegalArgumentException {
+        if ( sourceDirectories == null )
+            throw new IllegalArgumentException( "The list of source directories cannot be null." );
+        if ( to == null )
+            throw new IllegalArgumentException( "The target directory cannot be null." );
+        if ( classpath == null )
+            throw new IllegalArgumentException( "The classpath cannot be null." );
+        if ( options == null )
+            throw new IllegalArgumentException( "The compiler options cannot be null." );
+
+        // Scan sources
+        final List<File> roots = new ArrayList<File>();
+        final Set<File> sources = new LinkedHashSet<File>();
+        for ( final File directory : sourceDirectories )
+            if ( directory.isDirectory() ) {
+                roots.add( directory );
+                collectSources( directory, sources );
+            }
+
+        // The fingerprint covers the options actually passed to the compiler, including the Ant source/target levels
+        final List<String> effective = this.engine.effectiveOptions( options );
+        final Map<File, Map<String, String>> dependencies = new HashMap<File, Map<String, String>>();
+        final Map<File, String> dependencyConstants = new HashMap<File, String>();
+        final String fingerprint = fingerprint( to, classpath, effective, dependencies, dependencyConstants );
+        State state = load( to );
+        final Set<File> stale = new LinkedHashSet<File>();
+        final Set<File> removed = new HashSet<File>();
+        boolean upstreamChanged = false;
+        if ( state == null || !fingerprint.equals( state.fingerprint ) ) {
+            log( state == null ? "No build state found in %s, compiling all sources"
+                    : "Classpath or compiler options changed for %s, compiling all sources", to );
+            if ( state != null )
+                removed.addAll( state.sources.keySet() );
+            stale.addAll( sources );
+        } else {
+            // Find new, changed and removed sources
+            for ( final File source : sources ) {
+                final SourceEntry entry = state.sources.get( source );
+                if ( entry == null || entry.isModified( source ) || !exists( to, entry.classes.keySet() ) )
+                    stale.add( source );
+            }
+            for ( final File source : state.sources.keySet() )
+                if ( !sources.contains( source ) )
+                    removed.add( source );
+
+            // Find classpath classes whose API has changed
+            final Set<String> affected = new HashSet<String>();
+            for ( final Map.Entry<File, Map<String, String>> dependency : dependencies.entrySet() )
+                affected.addAll( changes( state.dependencies.get( dependency.getKey() ), dependency.getValue() ) );
+            upstreamChanged = !affected.isEmpty();
+            if ( upstreamChanged )
+                log( "API of %d classpath class(es) changed for %s", affected.size(), to );
+
+            // Inlined constants leave no reference behind, so a constant change affects every source
+            if ( !dependencyConstants.equals( state.dependencyConstants ) ) {
+                log( "Classpath constants changed for %s, compiling all sources", to );
+                upstreamChanged = true;
+                stale.addAll( sources );
+            }
+
+            // Find sources which depend on the affected classes
+            for ( final File source : stale )
+                if ( state.sources.containsKey( source ) )
+                    affected.addAll( state.sources.get( source ).classes.keySet() );
+            for ( final File source : removed )
+                affected.addAll( state.sources.get( source ).classes.keySet() );
+            boolean changed = !affected.isEmpty();
+            while ( changed ) {
+                changed = false;
+                for ( final Map.Entry<File, SourceEntry> entry : state.sources.entrySet() )
+                    if ( sources.contains( entry.getKey() ) && !stale.contains( entry.getKey() ) &&
+                            !Collections.disjoint( entry.getValue().references, affected ) ) {
+                        stale.add( entry.getKey() );
+                        affected.addAll( entry.getValue().classes.keySet() );
+                        changed = true;
+                    }
+            }
+        }
+
+        if ( stale.isEmpty() && removed.isEmpty() ) {
+            log( "All sources are up to date in %s", to );
+            if ( upstreamChanged ) {
+                // None of the changed classes are referenced, but remember their API to avoid rechecking
+                state.dependencies.clear();
+                state.dependencies.putAll( dependencies );
+                state.dependencyConstants.clear();
+                state.dependencyConstants.putAll( dependencyConstants );
+                store( to, state );
+            }
+            return 0;
+        }
+
+        // Delete obsolete class files and persist the remaining state first, so that a failed compilation
+        // leaves a consistent state behind
+        if ( state == null )
+            state = new State();
+        state.fingerprint = fingerprint;
+        state.dependencies.clear();
+        state.dependencies.putAll( dependencies );
+        state.dependencyConstants.clear();
+        state.dependencyConstants.putAll( dependencyConstants );
+        final List<File> obsolete = new ArrayList<File>( stale.size() + removed.size() );
+        obsolete.addAll( stale );
+        obsolete.addAll( removed );
+        invalidate( state, obsolete, to );
+        log( "%d stale and %d removed source file(s) in %s", stale.size(), removed.size(), to );
+        to.mkdirs();
+        updateApi( state );
+        store( to, state );
+
+        // Compile and record the generated classes and their references
+        final Set<File> compiled = new HashSet<File>();
+        if ( !stale.isEmpty() )
+            compiled.addAll( compileSources( stale, roots, to, classpath, options, sources, state ) );
+
+        // Inlined constants leave no reference behind, so a constant change affects every source
+        int count = stale.size();
+        if ( constantsChanged( state ) ) {
+            final Set<File> remaining = new LinkedHashSet<File>( sources );
+            remaining.removeAll( compiled );
+            if ( !remaining.isEmpty() ) {
+                log( "Constants changed in %s, recompiling %d remaining source file(s)", to, remaining.size() );
+                invalidate( state, remaining, to );
+                updateApi( state );
+                store( to, state );
+                compileSources( remaining, roots, to, classpath, options, sources, state );
+                count += remaining.size();
+            }
+        }
+        state.constants.clear();
+        updateApi( state );
+        store( to, state );
+        return count;
+    }
+
+    /**
+     * Removes the specified sources from the build state and deletes their class files. The constants fingerprints of
+     * the removed classes are retained in the build state until the next successful compilation.
+     */
+    private static void invalidate( final State state, final Collection<File> sources, final File to ) {
+        for ( final File source : sources ) {
+            final SourceEntry entry = state.sources.remove( source );
+            if ( entry != null )
+                for ( final Map.Entry<String, ClassEntry> classEntry : entry.classes.entrySet() ) {
+                    if ( !state.constants.containsKey( classEntry.getKey() ) )
+                        state.constants.put( classEntry.getKey(), classEntry.getValue().constants );
+                    //noinspection ResultOfMethodCallIgnored
+                    classFile( to, classEntry.getKey() ).delete();
+                }
+        }
+    }
+
+    /**
+     * Determines whether any of the invalidated classes had constants which are no longer present with the same values.
+     */
+    private static boolean constantsChanged( final State state ) {
+        final Map<String, String> current = new HashMap<String, String>();
+        for ( final SourceEntry entry : state.sources.values() )
+            for ( final Map.Entry<String, ClassEntry> classEntry : entry.classes.entrySet() )
+                current.put( classEntry.getKey(), classEntry.getValue().constants );
+        for ( final Map.Entry<String, String> entry : state.constants.entrySet() )
+            if ( entry.getValue() != null && !entry.getValue().equals( current.get( entry.getKey() ) ) )
+                return true;
+        return false;
+    }
+
+    /**
+     * Compiles the specified sources and records the generated classes and their references in the build state.
+     *
+     * @return The sources compiled, including sources compiled implicitly by the compiler.
+     */
+    private Set<File> compileSources( final Set<File> stale, final List<File> roots, final File to,
+                                      final Iterable<File> classpath, final List<String> options,
+                                      final Set<File> sources, final State state ) throws BuildException {
+        final Map<File, Collection<File>> outputs = new HashMap<File, Collection<File>>();
+        if ( !this.engine.compile( stale, roots, to, classpath, options, outputs ) )
+            throw new BuildException( "Compile failed; see the compiler error output for details." );
+        final String prefix = CompilerEngine.normalize( to ).getPath() + File.separator;
+        final Set<File> compiled = new HashSet<File>( stale );
+        compiled.addAll( outputs.keySet() );     // Sources compiled implicitly by the compiler
+        compiled.retainAll( sources );
+        for ( final File source : compiled ) {
+            final Map<String, ClassEntry> classes = new HashMap<String, ClassEntry>();
+            final Set<String> references = new HashSet<String>();
+            final Collection<File> files = outputs.get( source );
+            for ( final File file : files != null ? files : Collections.<File>emptyList() ) {
+                final String path = file.getPath();
+                if ( !path.startsWith( prefix ) || !path.endsWith( ".class" ) )
+                    continue;
+                final ClassFile classFile;
+                try {
+                    classFile = ClassFile.read( file );
+                } catch ( IOException e ) {
+                    throw new BuildException( "Cannot read generated class file \"" + file + "\".", e );
+                }
+                classes.put( classFile.getName(), new ClassEntry( classFile ) );
+                references.addAll( classFile.getReferences() );
+            }
+            references.removeAll( classes.keySet() );
+            state.sources.put( source, new SourceEntry( source, classes, references ) );
+        }
+        return compiled;
+    }
+
+    /**
+     * Determines whether the specified target directory contains up-to-date classes for the specified source
+     * directories, i.e. whether it was compiled incrementally from exactly the current set of sources, none of which
+     * changed since, and neither the API nor the constants of the incrementally-compiled classpath directories it was
+     * compiled against have changed.
+     * <p/>
+     * Unlike {@link #compile(Iterable, File, Iterable, List)}, this check does not consider the compiler options or
+     * changes to other classpath entries (such as library JARs).
+     *
+     * @param sourceDirectories The source directories. Directories which do not exist are ignored.
+     * @param to                The target directory.
+     * @return {@literal true} if the target directory is up to date, {@literal false} otherwise.
+     * @throws IllegalArgumentException <ul><li>The list of source directories cannot be null.</li><li>The target
+     *                                  directory cannot be null.</li></ul>
+     */
+    static boolean isUpToDate( final Iterable<File> sourceDirectories, final File to )
+            throws IllegalArgumentException {
+        if ( sourceDirectories == null )
+            throw new IllegalArgumentException( "The list of source directories cannot be null." );
+        if ( to == null )
+            throw new IllegalArgumentException( "The target directory cannot be null." );
+
+        final State state = load( to );
+        if ( state == null )
+            return false;
+
+        final Set<File> sources = new HashSet<File>();
+        for ( final File directory : sourceDirectories )
+            if ( directory.isDirectory() )
+                collectSources( directory, sources );
+        if ( !sources.equals( state.sources.keySet() ) )
+            return false;
+        for ( final File source : sources ) {
+            final SourceEntry entry = state.sources.get( source );
+            if ( entry.isModified( source ) || !exists( to, entry.classes.keySet() ) )
+                return false;
+        }
+
+        for ( final Map.Entry<File, Map<String, String>> dependency : state.dependencies.entrySet() ) {
+            final State upstream = load( dependency.getKey() );
+            if ( upstream == null || !upstream.api.equals( dependency.getValue() ) ||
+                    !constants( upstream ).equals( state.dependencyConstants.get( dependency.getKey() ) ) )
+                return false;
+        }
+        return true;
+    }
+
+    private static void collectSources( final File directory, final Set<File> sources ) {
+        final File[] children = directory.listFiles();
+        if ( children == null )
+            return;
+        for ( final File child : children )
+            if ( child.isDirectory() )
+                collectSources( child, sources );
+            else if ( child.getName().endsWith( ".java" ) )
+                sources.add( CompilerEngine.normalize( child ) );
+    }
+
+    private static File classFile( final File to, final String name ) {
+        return new File( to, name.replace( '/', File.separatorChar ) + ".class" );
+    }
+
+    private static boolean exists( final File to, final Collection<String> classes ) {
+        for ( final String name : classes )
+            if ( !classFile( to, name ).isFile() )
+                return false;
+        return true;
+    }
+
+    private static Set<String> changes( final Map<String, String> previous, final Map<String, String> current ) {
+        final Set<String> changes = new HashSet<String>();
+        if ( previous == null ) {
+            changes.addAll( current.keySet() );
+            return changes;
+        }
+        for ( final Map.Entry<String, String> entry : current.entrySet() )
+            if ( !entry.getValue().equals( previous.get( entry.getKey() ) ) )
+                changes.add( entry.getKey() );
+        for ( final String name : previous.keySet() )
+            if ( !current.containsKey( name ) )
+                changes.add( name );
+        return changes;
+    }
+
+    /**
+     * Recomputes the API fingerprints of the exported classes in the target directory. The fingerprint of each class
+     * is combined with the fingerprints of its supertypes, as found in the target directory or in the classpath
+     * directories.
+     */
+    private static void updateApi( final State state ) {
+        final Map<String, ClassEntry> classes = new HashMap<String, ClassEntry>();
+        for ( final SourceEntry entry : state.sources.values() )
+            classes.putAll( entry.classes );
+        final Map<String, String> upstream = new HashMap<String, String>();
+        for ( final Map<String, String> api : state.dependencies.values() )
+            upstream.putAll( api );
+
+        final Map<String, String> combined = new HashMap<String, String>();
+        state.api.clear();
+        for ( final Map.Entry<String, ClassEntry> entry : classes.entrySet() )
+            if ( entry.getValue().fingerprint != null )
+                state.api.put( entry.getKey(), combine( entry.getKey(), classes, upstream, combined ) );
+    }
+
+    private static String combine( final String name, final Map<String, ClassEntry> classes,
+                                   final Map<String, String> upstream, final Map<String, String> combined ) {
+        if ( combined.containsKey( name ) )
+            return combined.get( name );
+        final ClassEntry entry = classes.get( name );
+        if ( entry == null )
+            return upstream.get( name );
+
+        combined.put( name, null );     // Guards against (invalid) cyclic inheritance
+        final StringBuilder fingerprint = new StringBuilder( String.valueOf( entry.fingerprint ) );
+        for ( final String supertype : entry.supertypes )
+            fingerprint.append( ' ' ).append( combine( supertype, classes, upstream, combined ) );
+        final String result = entry.supertypes.isEmpty() ? entry.fingerprint
+                : Fingerprint.digest( fingerprint.toString() );
+        combined.put( name, result );
+        return result;
+    }
+
+    /**
+     * Computes a fingerprint of the constants of all classes in the target directory of the specified build state.
+     */
+    private static String constants( final State state ) {
+        final SortedMap<String, String> constants = new TreeMap<String, String>();
+        for ( final SourceEntry entry : state.sources.values() )
+            for ( final Map.Entry<String, ClassEntry> classEntry : entry.classes.entrySet() )
+                if ( classEntry.getValue().constants != null )
+                    constants.put( classEntry.getKey(), classEntry.getValue().constants );
+        return Fingerprint.digest( constants.toString() );
+    }
+
+    private static String fingerprint( final File to, final Iterable<File> classpath, final List<String> options,
+                                       final Map<File, Map<String, String>> dependencies,
+                                       final Map<File, String> dependencyConstants ) {
+        final StringBuilder fingerprint = new StringBuilder();
+        for ( final String option : options )
+            fingerprint.append( option ).append( ' ' );
+        final File target = CompilerEngine.normalize( to );
+        for ( final File entry : classpath ) {
+            // The target directory is tracked by the build state itself
+            if ( CompilerEngine.normalize( entry ).equals( target ) )
+                continue;
+            fingerprint.append( File.pathSeparatorChar ).append( entry.getAbsolutePath() ).append( '@' );
+            if ( entry.isFile() )
+                fingerprint.append( entry.length() ).append( '/' ).append( entry.lastModified() );
+            else if ( entry.isDirectory() ) {
+                final State state = load( entry );
+                if ( state != null ) {
+                    // Tracked by class, see above
+                    fingerprint.append( "api" );
+                    dependencies.put( CompilerEngine.normalize( entry ), state.api );
+                    dependencyConstants.put( CompilerEngine.normalize( entry ), constants( state ) );
+                } else {
+                    final long[] stamp = new long[2];
+                    scan( entry, stamp );
+                    fingerprint.append( stamp[ 0 ] ).append( '/' ).append( stamp[ 1 ] );
+                }
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    private static void scan( final File directory, final long[] stamp ) {
+        final File[] children = directory.listFiles();
+        if ( children == null )
+            return;
+        for ( final File child : children )
+            if ( child.isDirectory() )
+                scan( child, stamp );
+            else {
+                stamp[ 0 ]++;
+                stamp[ 1 ] = Math.max( stamp[ 1 ], child.lastModified() );
+            }
+    }
+
+    /**
+     * Loads the build state from the specified target directory.
+     *
+     * @param to The target directory.
+     * @return The build state, or {@literal null} if the directory does not contain a valid build state.
+     */
+    static State load( final File to ) {
+        final File file = new File( to, STATE_FILE );
+        if ( !file.isFile() )
+            return null;
+        try {
+            final ObjectInputStream in =
+                    new StateInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try {
+                final Object state = in.readObject();
+                return state instanceof State ? (State) state : null;
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // Corrupt or incompatible state, compile from scratch
+            return null;
+        } catch ( ClassNotFoundException e ) {
+            return null;
+        } catch ( RuntimeException e ) {
+            // Malformed stream (e.g. a field of the wrong type), compile from scratch
+            return null;
+        }
+    }
+
+    private static void store( final File to, final State state ) throws BuildException {
+        final File file = new File( to, STATE_FILE );
+        File temp = null;
+        try {
+            // Write to a temporary file first so that an interrupted build never leaves a partial state behind
+            temp = File.createTempFile( STATE_FILE, ".tmp", to );
+            final ObjectOutputStream out =
+                    new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            try {
+                out.writeObject( state );
+            } finally {
+                out.close();
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            if ( !temp.renameTo( file ) )
+                throw new IOException( "Cannot rename \"" + temp + "\" to \"" + file + "\"." );
+            temp = null;
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot store build state in \"" + to + "\".", e );
+        } finally {
+            if ( temp != null )
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+        }
+    }
+
+    private void log( final String message, final Object... args ) {
+        this.project.log( String.format( message, args ), Project.MSG_VERBOSE );
+    }
+}
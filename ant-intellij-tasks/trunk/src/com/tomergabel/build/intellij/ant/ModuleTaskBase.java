@@ -23,6 +23,7 @@ package com.tomergabel.build.intellij.ant;
 
 import com.tomergabel.build.intellij.model.*;
 import com.tomergabel.build.intellij.ant.prototype.ModuleReceiver;
+import com.tomergabel.util.ConcurrentLazy;
 import com.tomergabel.util.Lazy;
 import com.tomergabel.util.LazyInitializationException;
 import org.apache.tools.ant.BuildException;
@@ -40,7 +41,7 @@ public abstract class ModuleTaskBase extends ProjectTaskBase implements ModuleRe
         }
     };
 
-    private final Lazy<ModuleResolver> moduleResolver = new Lazy<ModuleResolver>() {
+    private final Lazy<ModuleResolver> moduleResolver = new ConcurrentLazy<ModuleResolver>() {
         @Override
         public ModuleResolver call() throws Exception {
             final ProjectResolver projectResolver = ModuleTaskBase.this.projectResolver();
@@ -80,7 +81,11 @@ public abstract class ModuleTaskBase extends ProjectTaskBase implements ModuleRe
         assertNotExecuted();
         this.module = new Lazy<Module>() {
             @Override
-            public Module call() throws IOException, ParseException {
+            public Module call() throws IOException, ParseException, ResolutionException {
+                // Prefer the (shared) instance cached by the project resolver, if available
+                final ProjectResolver projectResolver = projectResolver();
+                if ( projectResolver != null && projectResolver.getModuleDescriptors().contains( moduleDescriptor ) )
+                    return projectResolver.getModule( moduleDescriptor );
                 return Module.parse( moduleDescriptor, new WarnHandler( "module" ) );
             }
         };
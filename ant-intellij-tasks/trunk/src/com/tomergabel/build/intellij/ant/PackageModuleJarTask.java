@@ -26,13 +26,9 @@ import com.tomergabel.build.intellij.model.PackagingContainer;
 import com.tomergabel.build.intellij.model.ResolutionException;
 import com.tomergabel.util.UriUtils;
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.taskdefs.Delete;
-import org.apache.tools.ant.taskdefs.Jar;
-import org.apache.tools.ant.taskdefs.Manifest;
-import org.apache.tools.ant.taskdefs.ManifestException;
-import org.apache.tools.ant.types.FileSet;
 
 import java.io.File;
+import java.io.IOException;
 
 public class PackageModuleJarTask extends PackageTaskBase {
     protected File targetFile;
@@ -53,57 +49,44 @@ public class PackageModuleJarTask extends PackageTaskBase {
         final Module.JarSettings settings = module().getJarSettings();
         assert null != settings;
 
-        // Generate temporary directory
-        final File tempDir;
+        // Resolve destination file
+        final File target;
         try {
-            tempDir = getTemporaryDirectory( "jar" );
+            target = this.targetFile != null ? this.targetFile
+                    : UriUtils.getFile( resolver().resolveUriString( settings.getJarUrl() ) );
         } catch ( ResolutionException e ) {
-            throw new BuildException( "Cannot create temporary target directory.", e );
+            throw new BuildException( e );
         }
 
-        // Build target
-        packageContainerElements( tempDir );
-
-        // Generate and apply manifest
-        final Jar jar = (Jar) getProject().createTask( "jar" );
-        try {
-            jar.addConfiguredManifest( generateManifest( settings.getMainClass() ) );
-        } catch ( ManifestException e ) {
-            throw new BuildException( "Failed to generate JAR manifest.", e );
+        // Skip packaging if nothing changed since the JAR was last packaged
+        final Fingerprint fingerprint =
+                new Fingerprint().add( target.getAbsolutePath() ).add( settings.getMainClass() );
+        fingerprintSettings( fingerprint );
+        fingerprintContainerElements( fingerprint );
+        if ( isUpToDate( "jar", fingerprint, target ) ) {
+            logInfo( "JAR package for module %s is up to date", module().getName() );
+            return;
         }
 
-        // Set destination file
+        // Write the JAR directly, deleting partial output on failure
+        logInfo( "Packaging module %s to %s", module().getName(), target );
+        boolean packaged = false;
         try {
-            final File target = this.targetFile != null ? this.targetFile
-                    : UriUtils.getFile( resolver().resolveUriString( settings.getJarUrl() ) );
-            target.getParentFile().mkdirs();     // Ensure target directory exists
-            jar.setDestFile( target );
-        } catch ( ResolutionException e ) {
-            throw new BuildException( e );
+            final PackageWriter writer = createArchiveWriter( target, generateManifest( settings.getMainClass() ) );
+            try {
+                packageContainerElements( writer );
+            } finally {
+                writer.close();
+            }
+            packaged = true;
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot write JAR package \"" + target + "\".", e );
+        } finally {
+            if ( !packaged )
+                //noinspection ResultOfMethodCallIgnored
+                target.delete();
         }
-        jar.getDestFile().delete();
-
-        // Add package output to the JAR task
-        final FileSet fs = (FileSet) getProject().createDataType( "fileset" );
-        fs.setDir( tempDir );
-        fs.setIncludes( "**/*" );
-        jar.add( fs );
-        jar.perform();
-
-        // Delete temporary directory
-        logVerbose( "Deleting temporary directory " + tempDir );
-        final Delete delete = (Delete) getProject().createTask( "delete" );
-        delete.setDir( tempDir );
-        delete.perform();
-    }
-
-    protected Manifest generateManifest( final String mainClass ) throws ManifestException {
-        final Manifest manifest = new Manifest();
-        manifest.addConfiguredAttribute( new Manifest.Attribute( "Manifest-Version", "1.0" ) );
-        manifest.addConfiguredAttribute( new Manifest.Attribute( "Created-By", "ant-intellij-tasks" ) );
-        if ( mainClass != null )
-            manifest.addConfiguredAttribute( new Manifest.Attribute( "Main-Class", mainClass ) );
-        return manifest;
+        recordUpToDate( "jar", fingerprint, target );
     }
 
     @Override
@@ -24,25 +24,110 @@ package com.tomergabel.build.intellij.ant;
 import com.tomergabel.build.intellij.model.*;
 import static com.tomergabel.util.CollectionUtils.join;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Delete;
 import org.apache.tools.ant.types.ResourceCollection;
 import org.apache.tools.ant.types.resources.FileResource;
 
-import java.io.File;
+import java.io.*;
 import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
 
 public abstract class PackageTaskBase extends ModuleTaskBase {
-    protected void packageContainerElements( final File to ) throws BuildException {
-        if ( to == null )
-            throw new IllegalArgumentException( "The target directory cannot be null." );
-        if ( to.exists() && !to.isDirectory() )
-            throw new BuildException( "Target path \"" + to + "\" already exists but is not a directory." );
+    protected static final String LIST_SEPARATOR = ",";
+    protected int threads = Runtime.getRuntime().availableProcessors();
+    protected Set<String> storedExtensions = ParallelZipWriter.DEFAULT_STORED_EXTENSIONS;
+    protected boolean reuseOutput = false;
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Sets the number of threads used to compress archive entries.
+     *
+     * @param threads The number of compression threads, or 0 to use the number of available processors.
+     * @throws IllegalArgumentException The thread count cannot be negative.
+     */
+    public void setThreads( final int threads ) throws IllegalArgumentException {
+        if ( threads < 0 )
+            throw new IllegalArgumentException( "The thread count cannot be negative." );
+
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the extensions of archive entries which are stored as-is rather than deflated, typically because they are
+     * already compressed (e.g. nested JARs or images). Defaults to
+     * {@link ParallelZipWriter#DEFAULT_STORED_EXTENSIONS common compressed formats}.
+     *
+     * @param extensions A comma-separated list of extensions (e.g. <code>jar,png</code>), or an empty string to
+     *                   deflate all entries.
+     * @throws IllegalArgumentException The extension list cannot be null.
+     */
+    public void setStore( final String extensions ) throws IllegalArgumentException {
+        if ( extensions == null )
+            throw new IllegalArgumentException( "The extension list cannot be null." );
+
+        final Set<String> set = new HashSet<String>();
+        for ( final String extension : extensions.split( LIST_SEPARATOR ) ) {
+            final String trimmed = extension.trim();
+            if ( trimmed.length() > 0 )
+                set.add( ( trimmed.startsWith( "." ) ? trimmed.substring( 1 ) : trimmed ).toLowerCase(
+                        Locale.ENGLISH ) );
+        }
+        this.storedExtensions = set;
+    }
+
+    public boolean isReuseOutput() {
+        return this.reuseOutput;
+    }
+
+    /**
+     * Sets whether dependee modules are packaged from their compiled output directories. If set, the classes of a
+     * dependee module whose output directory is up to date (i.e. it was compiled incrementally, e.g. by
+     * {@link CompileModuleTask}, and none of its sources changed since) are packaged from that directory instead of
+     * being compiled again; resources are still packaged from the module sources. Modules with no up-to-date output
+     * are compiled as usual.
+     * <p/>
+     * Output reuse is disabled by default, since the reused classes may have been compiled with different options
+     * (e.g. with debug information) than those used when packaging.
+     *
+     * @param reuseOutput {@literal true} to reuse up-to-date module output, {@literal false} (the default) to always
+     *                    compile.
+     */
+    public void setReuseOutput( final boolean reuseOutput ) {
+        this.reuseOutput = reuseOutput;
+    }
+
+    /**
+     * Creates a package writer for an archive, using the compression settings of this task.
+     *
+     * @param archive  The archive file. The file is overwritten if it already exists.
+     * @param manifest The archive manifest, or {@literal null} for no manifest.
+     * @return The package writer.
+     * @throws BuildException The archive cannot be created.
+     */
+    protected PackageWriter createArchiveWriter( final File archive, final Manifest manifest ) throws BuildException {
+        return PackageWriter.forArchive( this, archive, manifest, this.threads, this.storedExtensions );
+    }
+
+    /**
+     * Writes all packaging container elements to the specified package writer.
+     *
+     * @param writer The package writer.
+     * @throws BuildException An error has occurred while building or packaging a container element.
+     */
+    protected void packageContainerElements( final PackageWriter writer ) throws BuildException {
+        if ( writer == null )
+            throw new IllegalArgumentException( "The package writer cannot be null." );
 
         try {
             // Resolve dependencies
             final Map<Module, PackagingContainer.ContainerElement> modules = new HashMap<Module, PackagingContainer.ContainerElement>();
             final List<PackagingContainer.ContainerElement> libraries = new ArrayList<PackagingContainer.ContainerElement>();
 
-            logVerbose( "Packaging container elements of module \"%s\" to \"%s\"...", module().getName(), to );
+            logVerbose( "Packaging container elements of module \"%s\"...", module().getName() );
             for ( final PackagingContainer.ContainerElement element : resolvePackagingContainer().getElements() )
                 if ( element.getDependency() instanceof LibraryDependency )
                     libraries.add( element );
@@ -63,19 +148,20 @@ public abstract class PackageTaskBase extends ModuleTaskBase {
             final Collection<Module> buildOrder = projectResolver().resolveModuleBuildOrder( modules.keySet() );
             logDebug( "Resolved build order: %s", join( buildOrder, ResolutionModes.names.mapper ) );
 
-            // Copy libraries
-            logVerbose( "Copying libraries to module \"%s\" output directory...", module().getName() );
+            // Package libraries
+            logVerbose( "Packaging libraries for module \"%s\"...", module().getName() );
             for ( final PackagingContainer.ContainerElement element : libraries )
-                handleLibraryContainerElement( (LibraryDependency) element.getDependency(), getTarget( to, element ),
-                        element.getMethod() );
+                handleLibraryContainerElement( (LibraryDependency) element.getDependency(), writer,
+                        getPrefix( element ), element.getMethod() );
 
             // Build modules
             logVerbose( "Building and packaging dependencies for module \"%s\"...", module().getName() );
             for ( final Module module : buildOrder ) {
                 final PackagingContainer.ContainerElement element = modules.get( module );
                 assert element != null;
-                handleModuleContainerElement( projectResolver().getModuleResolver( module ), getTarget( to, element ),
-                        element.getMethod() );
+                logVerbose( "Resolving %s, method=%s", element, element.getMethod() );
+                handleModuleContainerElement( projectResolver().getModuleResolver( module ), writer,
+                        element.getTargetUri(), element.getMethod() );
             }
         } catch ( ResolutionException e ) {
             throw new BuildException(
@@ -83,20 +169,279 @@ public abstract class PackageTaskBase extends ModuleTaskBase {
         }
     }
 
-    private void handleModuleContainerElement( final ModuleResolver dependency, final File target,
-                                               final PackagingMethod method )
+    /**
+     * Compiles the specified source directories of a module and writes the resulting classes, along with the resources
+     * in the source directories, to the specified package writer.
+     * <p/>
+     * When the in-process {@link CompilerEngine} is available, classes are compiled in memory and written directly to
+     * the package; otherwise they are compiled to a temporary directory with the <code>javac</code> task.
+     *
+     * @param module     The module.
+     * @param sourceUrls The source directory URLs. Each URL <em>must</em> be one of the module's source URLs.
+     * @param writer     The package writer.
+     * @param prefix     The path prefix, either empty or ending with a slash.
+     * @throws ResolutionException An error has occurred while resolving the module sources.
+     * @throws BuildException      An error has occurred during compilation or packaging.
+     */
+    protected void packageModuleSources( final ModuleResolver module, final Collection<String> sourceUrls,
+                                         final PackageWriter writer, final String prefix )
+            throws ResolutionException, BuildException {
+        final Collection<File> sourceDirectories = module.resolveUriFiles( sourceUrls );
+        final CompilerEngine engine = CompilerEngine.forProject( getProject() );
+        if ( engine != null ) {
+            final List<File> classpath = new ArrayList<File>();
+            for ( final String entry : ant().buildModuleClasspath( module, SourceFilter.source ).list() )
+                classpath.add( new File( entry ) );
+            final Map<String, byte[]> classes =
+                    engine.compileToMemory( sourceDirectories, classpath, Collections.singleton( "-g:none" ) );
+            if ( classes == null )
+                throw new BuildException( "Compile failed; see the compiler error output for details." );
+            for ( final Map.Entry<String, byte[]> entry : classes.entrySet() )
+                writer.addData( prefix + entry.getKey(), entry.getValue() );
+        } else {
+            final File classes = getTemporaryDirectory( "classes:" + module.getModule().getName() );
+            try {
+                ant().compile( sourceDirectories, classes, ant().buildModuleClasspath( module, SourceFilter.source ) );
+                writer.addTree( prefix, classes );
+            } finally {
+                final Delete delete = (Delete) getProject().createTask( "delete" );
+                delete.setDir( classes );
+                delete.perform();
+            }
+        }
+
+        for ( final String sourceUrl : sourceUrls )
+            writer.addResources( prefix, ant().resolveModuleResources( module, sourceUrl ) );
+    }
+
+    /**
+     * Generates a package manifest.
+     *
+     * @param mainClass The main class, or {@literal null} if none is specified.
+     * @return The manifest.
+     */
+    protected static Manifest generateManifest( final String mainClass ) {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Created-By", "ant-intellij-tasks" );
+        if ( mainClass != null )
+            attributes.put( Attributes.Name.MAIN_CLASS, mainClass );
+        return manifest;
+    }
+
+    /**
+     * Writes the classes and resources of a dependee module to the specified package writer. If
+     * {@link #setReuseOutput(boolean) output reuse} is enabled and the module's output directory is up to date, the
+     * classes in it are packaged as-is; otherwise the module is compiled. Resources are always packaged from the
+     * module sources, so that resources since removed from the sources are not packaged from the output directory.
+     *
+     * @param module The module.
+     * @param writer The package writer.
+     * @param prefix The path prefix, either empty or ending with a slash.
+     * @throws ResolutionException An error has occurred while resolving the module sources or output.
+     * @throws BuildException      An error has occurred during compilation or packaging.
+     */
+    protected void packageModule( final ModuleResolver module, final PackageWriter writer, final String prefix )
+            throws ResolutionException, BuildException {
+        if ( this.reuseOutput ) {
+            final File output = module.resolveModuleOutput( false );
+            if ( IncrementalCompiler.isUpToDate( module.resolveUriFiles( module.getModule().getSourceUrls() ),
+                    output ) ) {
+                logVerbose( "Reusing compiled output of module \"%s\" from \"%s\"", module.getModule().getName(),
+                        output );
+                writer.addTree( prefix, output, new FileFilter() {
+                    public boolean accept( final File file ) {
+                        return file.isDirectory() || file.getName().endsWith( ".class" );
+                    }
+                } );
+                for ( final String sourceUrl : module.getModule().getSourceUrls() )
+                    writer.addResources( prefix, ant().resolveModuleResources( module, sourceUrl ) );
+                return;
+            }
+            logVerbose( "Output of module \"%s\" is not up to date, compiling", module.getModule().getName() );
+        }
+        packageModuleSources( module, module.getModule().getSourceUrls(), writer, prefix );
+    }
+
+    /**
+     * Adds the settings of this task which affect the package output to the specified fingerprint, so that the package
+     * is rebuilt when they change.
+     *
+     * @param fingerprint The fingerprint to which the settings are added.
+     */
+    protected void fingerprintSettings( final Fingerprint fingerprint ) {
+        if ( fingerprint == null )
+            throw new IllegalArgumentException( "The fingerprint cannot be null." );
+
+        // Stored extensions are unordered, so they are sorted
+        fingerprint.add( "threads " + this.threads ).add( "store " + new TreeSet<String>( this.storedExtensions ) )
+                .add( "reuseOutput " + this.reuseOutput );
+    }
+
+    /**
+     * Adds the inputs of all packaging container elements to the specified fingerprint: the packaging instructions
+     * themselves, the resolved library files, and the sources and compilation classpath of each packaged module.
+     *
+     * @param fingerprint The fingerprint to which the inputs are added.
+     * @throws BuildException An error has occurred while resolving the packaging container.
+     */
+    protected void fingerprintContainerElements( final Fingerprint fingerprint ) throws BuildException {
+        if ( fingerprint == null )
+            throw new IllegalArgumentException( "The fingerprint cannot be null." );
+
+        try {
+            // Container elements are unordered, so their fingerprints are sorted
+            final SortedMap<String, Fingerprint> elements = new TreeMap<String, Fingerprint>();
+            for ( final PackagingContainer.ContainerElement element : resolvePackagingContainer().getElements() ) {
+                final Fingerprint inputs = new Fingerprint();
+                final String key;
+                if ( element.getDependency() instanceof ModuleDependency ) {
+                    final String moduleName = ( (ModuleDependency) element.getDependency() ).name;
+                    key = "module " + moduleName + " " + element.getMethod() + " " + element.getTargetUri();
+                    final Module dependee;
+                    try {
+                        dependee = projectResolver().getModule( moduleName );
+                    } catch ( ResolutionException e ) {
+                        // Reported when packaging
+                        elements.put( key, inputs );
+                        continue;
+                    }
+                    fingerprintModuleSources( projectResolver().getModuleResolver( dependee ),
+                            dependee.getSourceUrls(), inputs );
+                } else {
+                    final Collection<String> classpath =
+                            element.getDependency().resolveClasspath( resolver(), true, false );
+                    key = "library " + classpath + " " + element.getMethod() + " " + element.getTargetUri();
+                    for ( final String entry : classpath )
+                        inputs.addFile( new File( entry ) );
+                }
+                elements.put( key, inputs );
+            }
+            for ( final Map.Entry<String, Fingerprint> element : elements.entrySet() )
+                fingerprint.add( element.getKey() ).add( element.getValue() );
+        } catch ( ResolutionException e ) {
+            throw new BuildException(
+                    "Failed to resolve packaging instructions for module \"" + module().getName() + "\"", e );
+        }
+    }
+
+    /**
+     * Adds the specified source directories of a module, along with the module's compilation classpath, to the
+     * specified fingerprint.
+     *
+     * @param module      The module.
+     * @param sourceUrls  The source directory URLs.
+     * @param fingerprint The fingerprint to which the inputs are added.
+     * @throws ResolutionException An error has occurred while resolving a source directory.
+     */
+    protected void fingerprintModuleSources( final ModuleResolver module, final Iterable<String> sourceUrls,
+                                             final Fingerprint fingerprint ) throws ResolutionException {
+        for ( final String sourceUrl : sourceUrls )
+            fingerprint.addTree( module.resolveUriFile( sourceUrl ) );
+        for ( final String entry : ant().buildModuleClasspath( module, SourceFilter.source ).list() )
+            fingerprint.addClasspathEntry( new File( entry ) );
+    }
+
+    /**
+     * Determines whether the specified package targets are up to date, i.e. whether they were last packaged from
+     * inputs with the specified fingerprint and have not been modified or removed since. The fingerprint is recorded
+     * in a hidden file next to the first target, so each target path has its own record.
+     *
+     * @param buildTypeKey The package type (e.g. <code>jar</code>).
+     * @param fingerprint  The fingerprint of the package inputs.
+     * @param targets      The package targets (files or directories).
+     * @return {@literal true} if the targets are up to date, {@literal false} otherwise.
+     */
+    protected boolean isUpToDate( final String buildTypeKey, final Fingerprint fingerprint, final File... targets ) {
+        final Properties record = new Properties();
+        try {
+            final InputStream in =
+                    new BufferedInputStream( new FileInputStream( getRecordFile( buildTypeKey, targets ) ) );
+            try {
+                record.load( in );
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // No (readable) record, assume the targets are out of date
+            return false;
+        }
+        return record.equals( createRecord( fingerprint, targets ) );
+    }
+
+    /**
+     * Records the fingerprint from which the specified package targets were packaged, for later use by
+     * {@link #isUpToDate(String, Fingerprint, File...)}. Failures are logged and otherwise ignored.
+     *
+     * @param buildTypeKey The package type (e.g. <code>jar</code>).
+     * @param fingerprint  The fingerprint of the package inputs.
+     * @param targets      The package targets (files or directories).
+     */
+    protected void recordUpToDate( final String buildTypeKey, final Fingerprint fingerprint, final File... targets ) {
+        final File file = getRecordFile( buildTypeKey, targets );
+        try {
+            final OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+            try {
+                createRecord( fingerprint, targets ).store( out, null );
+            } finally {
+                out.close();
+            }
+        } catch ( IOException e ) {
+            logWarn( e, "Cannot record package fingerprint to \"%s\"", file );
+        }
+    }
+
+    private static Properties createRecord( final Fingerprint fingerprint, final File... targets ) {
+        final Properties record = new Properties();
+        record.setProperty( "fingerprint", fingerprint.toString() );
+        for ( int i = 0; i < targets.length; i++ )
+            record.setProperty( "target." + i, targets[ i ].getAbsolutePath() + ( targets[ i ].isDirectory() ? "@dir"
+                    : targets[ i ].isFile() ? "@" + targets[ i ].length() + "/" + targets[ i ].lastModified() : "" ) );
+        return record;
+    }
+
+    static File getRecordFile( final String buildTypeKey, final File... targets ) {
+        if ( targets.length == 0 )
+            throw new IllegalArgumentException( "At least one package target must be specified." );
+        final File target = targets[ 0 ].getAbsoluteFile();
+        return new File( target.getParentFile(), "." + target.getName() + "." + buildTypeKey + ".fingerprint" );
+    }
+
+    private void handleModuleContainerElement( final ModuleResolver dependency, final PackageWriter writer,
+                                               final String targetUri, final PackagingMethod method )
             throws ResolutionException {
         switch ( method ) {
             case COPY:
-                logVerbose( "Packaging dependee module \"%s\" to \"%s\"...", dependency.getModule().getName(), target );
-                ant().compile( dependency.resolveUriFiles( dependency.getModule().getSourceUrls() ), target,
-                        ant().buildModuleClasspath( dependency, SourceFilter.source ) );
-                ant().copy( ant().resolveModuleResources( dependency ), target );
+                final String prefix = toPrefix( targetUri );
+                logVerbose( "Packaging dependee module \"%s\" to \"/%s\"...", dependency.getModule().getName(),
+                        prefix );
+                packageModule( dependency, writer, prefix );
                 break;
 
             case JAR:
-                // TODO refactor and implement
-                throw new BuildException( "JAR packaging method is not currently supported." );
+                // The target URI is the path of the nested JAR within the package
+                final String path = AntUtils.stripPreceedingSlash( targetUri );
+                if ( path == null || path.length() == 0 || path.endsWith( "/" ) )
+                    throw new BuildException( "Module \"" + dependency.getModule().getName() +
+                            "\" is packaged as a JAR but no JAR path was specified." );
+                logVerbose( "Packaging dependee module \"%s\" as JAR \"/%s\"...", dependency.getModule().getName(),
+                        path );
+                final ByteArrayOutputStream jar = new ByteArrayOutputStream();
+                final PackageWriter nested = PackageWriter.forArchive( this, jar, generateManifest( null ),
+                        this.threads, this.storedExtensions );
+                try {
+                    try {
+                        packageModule( dependency, nested, "" );
+                    } finally {
+                        nested.close();
+                    }
+                } catch ( IOException e ) {
+                    throw new BuildException( "Cannot package module \"" + dependency.getModule().getName() +
+                            "\" as a JAR.", e );
+                }
+                writer.addData( path, jar.toByteArray() );
+                break;
 
             default:
                 throw new BuildException(
@@ -104,20 +449,30 @@ public abstract class PackageTaskBase extends ModuleTaskBase {
         }
     }
 
-    private File getTarget( final File to, final PackagingContainer.ContainerElement element ) {
-        final String prefix = AntUtils.stripPreceedingSlash( element.getTargetUri() );
-        logVerbose( "Resolving %s, method=%s", element, element.getMethod(), prefix );
-        final File target = new File( to, prefix );
-        target.mkdirs();
-        return target;
+    private String getPrefix( final PackagingContainer.ContainerElement element ) {
+        logVerbose( "Resolving %s, method=%s", element, element.getMethod() );
+        return toPrefix( element.getTargetUri() );
+    }
+
+    /**
+     * Converts a target URI (e.g. <code>/WEB-INF/lib</code>) to a package path prefix (e.g. <code>WEB-INF/lib/</code>).
+     *
+     * @param targetUri The target URI, or {@literal null} for the package root.
+     * @return The path prefix, either empty or ending with a slash.
+     */
+    static String toPrefix( final String targetUri ) {
+        if ( targetUri == null )
+            return "";
+        final String prefix = AntUtils.stripPreceedingSlash( targetUri );
+        return prefix.length() == 0 || prefix.endsWith( "/" ) ? prefix : prefix + "/";
     }
 
-    private void handleLibraryContainerElement( final LibraryDependency library, final File target,
-                                                final PackagingMethod method )
+    private void handleLibraryContainerElement( final LibraryDependency library, final PackageWriter writer,
+                                                final String prefix, final PackagingMethod method )
             throws ResolutionException {
         switch ( method ) {
             case COPY:
-                ant().copy( resolveDependencyClasspath( library ), target );
+                writer.addResources( prefix, resolveDependencyClasspath( library ) );
                 break;
 
             case JAR:
@@ -149,9 +504,13 @@ public abstract class PackageTaskBase extends ModuleTaskBase {
     static final File tempDir = new File( System.getProperty( "java.io.tmpdir" ) );
 
     protected File getTemporaryDirectory( final String buildTypeKey ) throws ResolutionException {
-        final String key = buildTypeKey + ":" + module().getName();
-        final File target = new File( tempDir, "idea-" + Integer.toHexString( key.hashCode() ) );
+        final File target = new File( tempDir, getTemporaryName( buildTypeKey ) );
         target.mkdirs();
         return target;
     }
+
+    private String getTemporaryName( final String buildTypeKey ) {
+        final String key = buildTypeKey + ":" + module().getName();
+        return "idea-" + Integer.toHexString( key.hashCode() );
+    }
 }
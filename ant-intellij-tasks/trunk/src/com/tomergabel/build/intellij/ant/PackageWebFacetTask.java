@@ -25,16 +25,33 @@ import com.tomergabel.build.intellij.model.PackageFacetBase;
 import com.tomergabel.build.intellij.model.ResolutionException;
 import com.tomergabel.build.intellij.model.WebFacet;
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.taskdefs.Copy;
-import org.apache.tools.ant.taskdefs.Delete;
-import org.apache.tools.ant.taskdefs.War;
-import org.apache.tools.ant.types.FileSet;
-import org.apache.tools.ant.types.Path;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.*;
 
 public class PackageWebFacetTask extends PackageFacetTaskBase<WebFacet> {
+    /**
+     * Specifies how the exploded output directory is written.
+     */
+    public enum ExplodeMode {
+        /**
+         * All entries are written to the directory; other files in the directory are left as-is.
+         */
+        copy,
+        /**
+         * Only changed entries are written, and files which are no longer part of the package are deleted.
+         */
+        sync,
+        /**
+         * As with <code>sync</code>, but changed files are hard-linked to their sources (e.g. module output
+         * directories and library JARs) rather than copied, where supported.
+         */
+        link
+    }
+
     protected File targetFile;
+    protected ExplodeMode explodeMode = ExplodeMode.copy;
 
     public File getTargetFile() {
         return this.targetFile;
@@ -44,6 +61,25 @@ public class PackageWebFacetTask extends PackageFacetTaskBase<WebFacet> {
         this.targetFile = targetFile;
     }
 
+    public ExplodeMode getExplodeMode() {
+        return this.explodeMode;
+    }
+
+    /**
+     * Sets how the exploded output directory is written. Note that in the <code>sync</code> and <code>link</code>
+     * modes, the exploded directory is owned by this task: any file in it which is not part of the package is
+     * deleted.
+     *
+     * @param explodeMode The exploded output mode.
+     * @throws IllegalArgumentException The exploded output mode cannot be null.
+     */
+    public void setExplodeMode( final ExplodeMode explodeMode ) throws IllegalArgumentException {
+        if ( explodeMode == null )
+            throw new IllegalArgumentException( "The exploded output mode cannot be null." );
+
+        this.explodeMode = explodeMode;
+    }
+
     @Override
     protected Class<WebFacet> getFacetClass() {
         return WebFacet.class;
@@ -62,97 +98,142 @@ public class PackageWebFacetTask extends PackageFacetTaskBase<WebFacet> {
         if ( !facet.isExplodeEnabled() && !facet.isTargetEnabled() )
             return;
 
-        // Generate temporary directory
-        final File tempDir;
-        try {
-            tempDir = getTemporaryDirectory( "war" );
-        } catch ( ResolutionException e ) {
-            throw new BuildException( "Cannot create temporary target directory.", e );
-        }
-
-        packageWar( facet, tempDir );
-        final FileSet fs = (FileSet) getProject().createDataType( "fileset" );
-        fs.setDir( tempDir );
-        fs.setIncludes( "**/*" );
-
+        // Resolve targets
         final File webDescriptor;
         try {
             webDescriptor = resolver().resolveUriFile( facet.getWebDescriptorUrl() );
         } catch ( ResolutionException e ) {
             throw new BuildException( "Cannot resolve web descriptor file (web.xml) URL.", e );
         }
-
-        if ( facet.isTargetEnabled() ) {
-            final War war = (War) getProject().createTask( "war" );
+        File warTarget = null;
+        if ( facet.isTargetEnabled() )
             try {
-                final File target =
-                        this.targetFile != null ? this.targetFile : resolver().resolveUriFile( facet.getTargetUrl() );
-                war.setDestFile( target );
-                logVerbose( "Deleting package target %s", war.getDestFile() );
-                target.delete();
-                target.getParentFile().mkdirs();
+                warTarget = this.targetFile != null ? this.targetFile
+                        : resolver().resolveUriFile( facet.getTargetUrl() );
             } catch ( ResolutionException e ) {
                 throw new BuildException( "Cannot resolve WAR output URL.", e );
             }
-            war.setWebxml( webDescriptor );
-            war.add( fs );
-            logInfo( "Packaging module %s to %s", module().getName(), war.getDestFile() );
-            war.perform();
-        }
-
-        if ( facet.isExplodeEnabled() ) {
-            final File explodeTarget;
+        File explodeTarget = null;
+        if ( facet.isExplodeEnabled() )
             try {
                 explodeTarget = resolver().resolveUriFile( facet.getExplodedUrl() );
             } catch ( ResolutionException e ) {
                 throw new BuildException( "Cannot resolve exploded WAR target URL.", e );
             }
 
+        // Skip packaging if nothing changed since the targets were last packaged
+        final File[] targets = warTarget == null ? new File[] { explodeTarget }
+                : explodeTarget == null ? new File[] { warTarget } : new File[] { warTarget, explodeTarget };
+        final Fingerprint fingerprint = new Fingerprint();
+        for ( final File target : targets )
+            fingerprint.add( target.getAbsolutePath() );
+        fingerprintSettings( fingerprint );
+        fingerprintWar( facet, webDescriptor, fingerprint );
+        if ( isUpToDate( "war", fingerprint, targets ) ) {
+            logInfo( "WAR package for module %s is up to date", module().getName() );
+            return;
+        }
+
+        // Write the WAR and/or exploded output directly, reading each input only once
+        PackageWriter writer = null;
+        if ( warTarget != null ) {
+            logInfo( "Packaging module %s to %s", module().getName(), warTarget );
+            writer = createArchiveWriter( warTarget, generateManifest( null ) );
+        }
+        if ( explodeTarget != null ) {
             logInfo( "Copying module %s exploded output to %s", module().getName(), explodeTarget );
-            ant().move( fs, explodeTarget );
-            final Copy copy = (Copy) getProject().createTask( "copy" );
-            final Path rc = (Path) getProject().createDataType( "path" );
-            rc.setPath( webDescriptor.getAbsolutePath() );
-            copy.add( rc );
-            final File target = new File( explodeTarget, "WEB-INF/web.xml" );
-            target.getParentFile().mkdirs();
-            copy.setTofile( target );
-            copy.perform();
-        } else {
-            logVerbose( "Deleting temporary directory " + tempDir );
-            final Delete delete = (Delete) getProject().createTask( "delete" );
-            delete.setDir( tempDir );
-            delete.perform();
+            final PackageWriter exploded = this.explodeMode == ExplodeMode.copy
+                    ? PackageWriter.forDirectory( this, explodeTarget )
+                    : PackageWriter.forSyncedDirectory( this, explodeTarget, this.explodeMode == ExplodeMode.link );
+            writer = writer != null ? PackageWriter.combine( this, writer, exploded ) : exploded;
         }
+        assert writer != null;
+
+        boolean packaged = false;
+        try {
+            try {
+                writer.addFile( "WEB-INF/web.xml", webDescriptor );
+                packageWar( facet, writer );
+            } finally {
+                writer.close();
+            }
+            packaged = true;
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot write WAR package for module \"" + module().getName() + "\".", e );
+        } finally {
+            if ( !packaged && warTarget != null )
+                //noinspection ResultOfMethodCallIgnored
+                warTarget.delete();
+        }
+        recordUpToDate( "war", fingerprint, targets );
+    }
+
+    @Override
+    protected void fingerprintSettings( final Fingerprint fingerprint ) {
+        super.fingerprintSettings( fingerprint );
+        fingerprint.add( "explodeMode " + this.explodeMode );
+    }
+
+    /**
+     * Adds the inputs of the web facet package to the specified fingerprint: the packaging container, the facet's
+     * source roots and web roots, and the web descriptor.
+     *
+     * @param facet         The web facet.
+     * @param webDescriptor The web descriptor file.
+     * @param fingerprint   The fingerprint to which the inputs are added.
+     * @throws BuildException An error has occurred while resolving the package inputs.
+     */
+    protected void fingerprintWar( final WebFacet facet, final File webDescriptor, final Fingerprint fingerprint )
+            throws BuildException {
+        fingerprintContainerElements( fingerprint );
+        try {
+            // Roots are unordered, so they are sorted
+            final SortedSet<String> sourceUrls = new TreeSet<String>();
+            final SortedSet<String> sourceRoots = new TreeSet<String>();
+            for ( final PackageFacetBase.Root source : facet.getSourceRoots() ) {
+                sourceRoots.add( source.getUrl() + " " + source.getTargetUri() );
+                sourceUrls.add( source.getUrl() );
+            }
+            fingerprint.add( sourceRoots );
+            fingerprintModuleSources( resolver(), sourceUrls, fingerprint );
+
+            final SortedMap<String, File> webRoots = new TreeMap<String, File>();
+            for ( final PackageFacetBase.Root webRoot : facet.getWebRoots() )
+                webRoots.put( webRoot.getUrl() + " " + webRoot.getTargetUri(),
+                        resolver().resolveUriFile( webRoot.getUrl() ) );
+            for ( final Map.Entry<String, File> webRoot : webRoots.entrySet() )
+                fingerprint.add( webRoot.getKey() ).addTree( webRoot.getValue() );
+        } catch ( ResolutionException e ) {
+            throw new BuildException( e );
+        }
+        fingerprint.addFile( webDescriptor );
     }
 
-    protected void packageWar( final WebFacet facet, final File tempDir ) throws BuildException {
+    /**
+     * Writes the contents of the web facet package, other than the web descriptor, to the specified package writer.
+     *
+     * @param facet  The web facet.
+     * @param writer The package writer.
+     * @throws BuildException An error has occurred while building or packaging the web facet.
+     */
+    protected void packageWar( final WebFacet facet, final PackageWriter writer ) throws BuildException {
         if ( facet == null )
             throw new IllegalArgumentException( "The web facet cannot be null." );
+        if ( writer == null )
+            throw new IllegalArgumentException( "The package writer cannot be null." );
 
         // Add packaging container
-        packageContainerElements( tempDir );
+        packageContainerElements( writer );
 
         try {
             // Add source roots
-            for ( final PackageFacetBase.Root source : facet.getSourceRoots() ) {
-                final File target = source.getTargetUri() != null ? new File( tempDir,
-                        AntUtils.stripPreceedingSlash( source.getTargetUri() ) )
-                        : new File( tempDir, "WEB-INF/classes" );
-                final File sourceDir = resolver().resolveUriFile( source.getUrl() );
-                ant().compile( sourceDir, target, ant().buildModuleClasspath( resolver(), SourceFilter.source ) );
-                ant().copy( ant().resolveModuleResources( resolver(), source.getUrl() ), target );
-            }
+            for ( final PackageFacetBase.Root source : facet.getSourceRoots() )
+                packageModuleSources( resolver(), Collections.singleton( source.getUrl() ), writer,
+                        source.getTargetUri() != null ? toPrefix( source.getTargetUri() ) : "WEB-INF/classes/" );
 
             // Add web roots
-            for ( final PackageFacetBase.Root webRoot : facet.getWebRoots() ) {
-                final File target = webRoot.getTargetUri() != null ? new File( tempDir,
-                        AntUtils.stripPreceedingSlash( webRoot.getTargetUri() ) ) : tempDir;
-                final FileSet fs = (FileSet) getProject().createDataType( "fileset" );
-                fs.setDir( resolver().resolveUriFile( webRoot.getUrl() ) );
-                fs.setIncludes( "**/*" );
-                ant().copy( fs, target );
-            }
+            for ( final PackageFacetBase.Root webRoot : facet.getWebRoots() )
+                writer.addTree( toPrefix( webRoot.getTargetUri() ), resolver().resolveUriFile( webRoot.getUrl() ) );
         } catch ( ResolutionException e ) {
             throw new BuildException( e );
         }
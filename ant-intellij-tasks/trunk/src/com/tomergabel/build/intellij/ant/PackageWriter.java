@@ -0,0 +1,651 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileResource;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.jar.Manifest;
+
+/**
+ * Writes package entries directly to their destination, either an archive (JAR or WAR) or a directory (e.g. an
+ * exploded WAR), without staging them in a temporary directory first.
+ * <p/>
+ * Entry paths are relative to the package root and use forward slashes. Each path may only be written once: if the
+ * same path is added again (e.g. a web root and a module both contain the same resource), the first entry is kept and
+ * a warning is logged.
+ */
+abstract class PackageWriter implements Closeable {
+    /**
+     * The modification time of entries generated in memory (e.g. compiled classes or the manifest), which have no
+     * source file. A fixed time keeps archives independent of when they were built; it predates the earliest time a
+     * ZIP entry can represent, so it is stored as January 1st, 1980. Files written to a directory keep the time at
+     * which they were written instead.
+     */
+    static final long GENERATED_ENTRY_TIME = 0;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Set<String> entries = new HashSet<String>();
+    private final TaskBase task;
+
+    protected PackageWriter( final TaskBase task ) {
+        if ( task == null )
+            throw new IllegalArgumentException( "The task cannot be null." );
+        this.task = task;
+    }
+
+    /**
+     * Creates a writer which writes a JAR (or WAR) archive, compressing entries on all available processors and
+     * storing entries with the {@link ParallelZipWriter#DEFAULT_STORED_EXTENSIONS default stored extensions}.
+     *
+     * @param task     The task on behalf of which the package is written, used for logging.
+     * @param archive  The archive file. The file is overwritten if it already exists.
+     * @param manifest The archive manifest, or {@literal null} for no manifest.
+     * @return The package writer.
+     * @throws BuildException The archive cannot be created.
+     */
+    static PackageWriter forArchive( final TaskBase task, final File archive, final Manifest manifest )
+            throws BuildException {
+        return forArchive( task, archive, manifest, Runtime.getRuntime().availableProcessors(),
+                ParallelZipWriter.DEFAULT_STORED_EXTENSIONS );
+    }
+
+    /**
+     * Creates a writer which writes a JAR (or WAR) archive.
+     *
+     * @param task             The task on behalf of which the package is written, used for logging.
+     * @param archive          The archive file. The file is overwritten if it already exists.
+     * @param manifest         The archive manifest, or {@literal null} for no manifest.
+     * @param threads          The number of compression threads.
+     * @param storedExtensions The (lowercase) extensions of entries which are stored rather than deflated.
+     * @return The package writer.
+     * @throws BuildException The archive cannot be created.
+     * @see ParallelZipWriter
+     */
+    static PackageWriter forArchive( final TaskBase task, final File archive, final Manifest manifest,
+                                     final int threads, final Set<String> storedExtensions )
+            throws BuildException {
+        if ( archive == null )
+            throw new IllegalArgumentException( "The archive file cannot be null." );
+
+        archive.getParentFile().mkdirs();
+        final OutputStream out;
+        try {
+            out = new BufferedOutputStream( new FileOutputStream( archive ), BUFFER_SIZE );
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot create archive \"" + archive + "\".", e );
+        }
+        return new ArchiveWriter( task, out, "archive \"" + archive + "\"", manifest, threads, storedExtensions );
+    }
+
+    /**
+     * Creates a writer which writes a JAR archive to a stream, e.g. for a JAR nested in another package.
+     *
+     * @param task             The task on behalf of which the package is written, used for logging.
+     * @param out              The stream to which the archive is written. The stream is closed when the writer is
+     *                         closed.
+     * @param manifest         The archive manifest, or {@literal null} for no manifest.
+     * @param threads          The number of compression threads.
+     * @param storedExtensions The (lowercase) extensions of entries which are stored rather than deflated.
+     * @return The package writer.
+     * @throws BuildException The archive cannot be created.
+     */
+    static PackageWriter forArchive( final TaskBase task, final OutputStream out, final Manifest manifest,
+                                     final int threads, final Set<String> storedExtensions )
+            throws BuildException {
+        if ( out == null )
+            throw new IllegalArgumentException( "The output stream cannot be null." );
+        return new ArchiveWriter( task, out, "nested archive", manifest, threads, storedExtensions );
+    }
+
+    /**
+     * Creates a writer which writes to a directory. Existing files in the directory are overwritten.
+     *
+     * @param task      The task on behalf of which the package is written, used for logging.
+     * @param directory The target directory.
+     * @return The package writer.
+     */
+    static PackageWriter forDirectory( final TaskBase task, final File directory ) {
+        return new DirectoryWriter( task, directory, false, false );
+    }
+
+    /**
+     * Creates a writer which synchronizes a directory with the package contents: only entries which differ from the
+     * existing files are written, and files which are not part of the package are deleted when the writer is closed.
+     * A file entry is considered unchanged if the existing file has the same size and modification time as the source
+     * file; an in-memory entry is considered unchanged if the existing file has the same content.
+     * <p/>
+     * If linking is requested, changed file entries are hard-linked to their source files instead of being copied.
+     * Linking requires Java 7 or later and a target directory on the same file system as the source file; whenever a
+     * file cannot be linked, it is copied instead. Note that a linked file shares its content with the source file, so
+     * it must not be modified in place.
+     *
+     * @param task      The task on behalf of which the package is written, used for logging.
+     * @param directory The target directory.
+     * @param link      {@literal true} to hard-link file entries, {@literal false} to copy them.
+     * @return The package writer.
+     */
+    static PackageWriter forSyncedDirectory( final TaskBase task, final File directory, final boolean link ) {
+        return new DirectoryWriter( task, directory, true, link );
+    }
+
+    /**
+     * Creates a writer which writes each entry to both of the specified writers.
+     *
+     * @param task  The task on behalf of which the package is written, used for logging.
+     * @param first The first writer.
+     * @param other The other writer.
+     * @return The package writer.
+     */
+    static PackageWriter combine( final TaskBase task, final PackageWriter first, final PackageWriter other ) {
+        return new CombinedWriter( task, first, other );
+    }
+
+    /**
+     * Writes an entry from a file.
+     *
+     * @param path The entry path.
+     * @param file The file.
+     * @throws BuildException The entry cannot be written.
+     */
+    void addFile( final String path, final File file ) throws BuildException {
+        if ( file == null )
+            throw new IllegalArgumentException( "The file cannot be null." );
+        if ( !claim( path ) )
+            return;
+        try {
+            writeFile( path, file );
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot package \"" + file + "\" as \"" + path + "\".", e );
+        }
+    }
+
+    /**
+     * Writes an entry from an in-memory buffer.
+     *
+     * @param path The entry path.
+     * @param data The entry data.
+     * @throws BuildException The entry cannot be written.
+     */
+    void addData( final String path, final byte[] data ) throws BuildException {
+        if ( data == null )
+            throw new IllegalArgumentException( "The entry data cannot be null." );
+        if ( !claim( path ) )
+            return;
+        try {
+            writeData( path, data );
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot package \"" + path + "\".", e );
+        }
+    }
+
+    /**
+     * Writes an entry for each resource in the specified collection. Each resource is written under the specified
+     * prefix, according to its name (e.g. relative to the base directory of a file set).
+     *
+     * @param prefix    The path prefix, either empty or ending with a slash.
+     * @param resources The resources.
+     * @throws BuildException A resource cannot be written.
+     */
+    void addResources( final String prefix, final ResourceCollection resources ) throws BuildException {
+        if ( prefix == null )
+            throw new IllegalArgumentException( "The path prefix cannot be null." );
+        if ( resources == null )
+            throw new IllegalArgumentException( "The resource collection cannot be null." );
+
+        for ( final Iterator i = resources.iterator(); i.hasNext(); ) {
+            final Resource resource = (Resource) i.next();
+            if ( resource.isDirectory() || !resource.isExists() )
+                continue;
+            final String path = prefix + resource.getName().replace( File.separatorChar, '/' );
+            if ( !claim( path ) )
+                continue;
+            try {
+                if ( resource instanceof FileResource ) {
+                    writeFile( path, ( (FileResource) resource ).getFile() );
+                    continue;
+                }
+                final InputStream in = resource.getInputStream();
+                try {
+                    write( path, in, resource.getLastModified() );
+                } finally {
+                    in.close();
+                }
+            } catch ( IOException e ) {
+                throw new BuildException( "Cannot package \"" + resource + "\" as \"" + path + "\".", e );
+            }
+        }
+    }
+
+    /**
+     * Writes all files in the specified directory, recursively, under the specified prefix.
+     *
+     * @param prefix    The path prefix, either empty or ending with a slash.
+     * @param directory The directory.
+     * @throws BuildException A file cannot be written.
+     */
+    void addTree( final String prefix, final File directory ) throws BuildException {
+        addTree( prefix, directory, null );
+    }
+
+    /**
+     * Writes all files in the specified directory which are accepted by the specified filter, recursively, under the
+     * specified prefix. Files are written in order of their names, so the package does not depend on the order in
+     * which the file system lists them.
+     *
+     * @param prefix    The path prefix, either empty or ending with a slash.
+     * @param directory The directory.
+     * @param filter    The filter applied to files and subdirectories, or {@literal null} to write all files.
+     * @throws BuildException A file cannot be written.
+     */
+    void addTree( final String prefix, final File directory, final FileFilter filter ) throws BuildException {
+        if ( prefix == null )
+            throw new IllegalArgumentException( "The path prefix cannot be null." );
+        if ( directory == null )
+            throw new IllegalArgumentException( "The directory cannot be null." );
+
+        final File[] children = filter != null ? directory.listFiles( filter ) : directory.listFiles();
+        if ( children == null )
+            return;
+        Arrays.sort( children );
+        for ( final File child : children )
+            if ( child.isDirectory() )
+                addTree( prefix + child.getName() + '/', child, filter );
+            else
+                addFile( prefix + child.getName(), child );
+    }
+
+    protected TaskBase getTask() {
+        return this.task;
+    }
+
+    /**
+     * Claims the specified entry path.
+     *
+     * @param path The entry path.
+     * @return {@literal true} if the path was not written before, {@literal false} if it is a duplicate.
+     */
+    protected final boolean claim( final String path ) {
+        if ( path == null || path.length() == 0 )
+            throw new IllegalArgumentException( "The entry path cannot be null or empty." );
+        if ( this.entries.add( path ) )
+            return true;
+        this.task.logWarn( "Duplicate package entry \"%s\" skipped", path );
+        return false;
+    }
+
+    /**
+     * Writes an entry from a file. The default implementation copies the file content to the entry.
+     *
+     * @param path The entry path.
+     * @param file The file.
+     * @throws IOException An error has occurred while writing the entry.
+     */
+    protected void writeFile( final String path, final File file ) throws IOException {
+        final InputStream in = new FileInputStream( file );
+        try {
+            write( path, in, file.lastModified() );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes an entry from an in-memory buffer. The default implementation copies the data to the entry.
+     *
+     * @param path The entry path.
+     * @param data The entry data.
+     * @throws IOException An error has occurred while writing the entry.
+     */
+    protected void writeData( final String path, final byte[] data ) throws IOException {
+        write( path, new ByteArrayInputStream( data ), GENERATED_ENTRY_TIME );
+    }
+
+    private void write( final String path, final InputStream in, final long lastModified ) throws IOException {
+        final OutputStream out = openEntry( path, lastModified );
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ( ( read = in.read( buffer ) ) >= 0 )
+                out.write( buffer, 0, read );
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Opens an entry for writing. Each path is opened at most once, and each entry is closed before the next one is
+     * opened.
+     *
+     * @param path         The entry path.
+     * @param lastModified The entry modification time.
+     * @return A stream to which the entry content is written. Closing the stream completes the entry.
+     * @throws IOException An error has occurred while opening the entry.
+     */
+    protected abstract OutputStream openEntry( final String path, final long lastModified ) throws IOException;
+
+    /**
+     * Writes ZIP-based archives (JAR and WAR files). Entries are compressed concurrently by a
+     * {@link ParallelZipWriter}, which reads file entries from their files as needed; only entries which are not read
+     * from a file (e.g. resources from other kinds of resource collections) are buffered in memory.
+     */
+    private static class ArchiveWriter extends PackageWriter {
+        private final Set<String> directories = new HashSet<String>();
+        private final ParallelZipWriter out;
+
+        ArchiveWriter( final TaskBase task, final OutputStream out, final String description, final Manifest manifest,
+                       final int threads, final Set<String> storedExtensions ) throws BuildException {
+            super( task );
+            this.out = new ParallelZipWriter( out, threads, storedExtensions );
+            if ( manifest != null )
+                try {
+                    // The manifest must be the first entry (after its directory) in a JAR
+                    claim( "META-INF/MANIFEST.MF" );
+                    final OutputStream entry = openEntry( "META-INF/MANIFEST.MF", GENERATED_ENTRY_TIME );
+                    try {
+                        manifest.write( entry );
+                    } finally {
+                        entry.close();
+                    }
+                } catch ( IOException e ) {
+                    try {
+                        this.out.close();
+                    } catch ( IOException ignored ) {
+                        // Nothing we can do, ignore
+                    }
+                    throw new BuildException( "Cannot write manifest to " + description + ".", e );
+                }
+        }
+
+        @Override
+        protected void writeFile( final String path, final File file ) throws IOException {
+            final long lastModified = file.lastModified();
+            addDirectories( path, lastModified );
+            this.out.addFile( path, file, lastModified );
+        }
+
+        @Override
+        protected void writeData( final String path, final byte[] data ) throws IOException {
+            addDirectories( path, GENERATED_ENTRY_TIME );
+            this.out.addFile( path, data, GENERATED_ENTRY_TIME );
+        }
+
+        /**
+         * Adds entries for the parent directories of the specified path, as expected by some tools.
+         */
+        private void addDirectories( final String path, final long lastModified ) throws IOException {
+            for ( int i = path.indexOf( '/' ); i >= 0; i = path.indexOf( '/', i + 1 ) ) {
+                final String directory = path.substring( 0, i + 1 );
+                if ( this.directories.add( directory ) )
+                    this.out.addDirectory( directory, lastModified );
+            }
+        }
+
+        @Override
+        protected OutputStream openEntry( final String path, final long lastModified ) throws IOException {
+            addDirectories( path, lastModified );
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    ArchiveWriter.this.out.addFile( path, toByteArray(), lastModified );
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Writes entries as files in a directory, optionally synchronizing the directory with the package.
+     */
+    private static class DirectoryWriter extends PackageWriter {
+        private static final Method TO_PATH;
+        private static final Method CREATE_LINK;
+
+        /** Static c'tor */
+        static {
+            // java.nio.file is only available on Java 7 and later
+            Method toPath = null;
+            Method createLink = null;
+            try {
+                final Class<?> path = Class.forName( "java.nio.file.Path" );
+                toPath = File.class.getMethod( "toPath" );
+                createLink = Class.forName( "java.nio.file.Files" ).getMethod( "createLink", path, path );
+            } catch ( ClassNotFoundException e ) {
+                // Linking not supported
+            } catch ( NoSuchMethodException e ) {
+                // Linking not supported
+            }
+            TO_PATH = toPath;
+            CREATE_LINK = createLink;
+        }
+
+        private final File directory;
+        private final boolean sync;
+        private final boolean link;
+        private final Set<String> paths = new HashSet<String>();
+        private int unchanged;
+        private int linked;
+
+        DirectoryWriter( final TaskBase task, final File directory, final boolean sync, final boolean link ) {
+            super( task );
+            if ( directory == null )
+                throw new IllegalArgumentException( "The target directory cannot be null." );
+            this.directory = directory;
+            this.sync = sync;
+            this.link = link;
+        }
+
+        @Override
+        protected void writeFile( final String path, final File file ) throws IOException {
+            if ( this.sync ) {
+                this.paths.add( path );
+                final File target = new File( this.directory, path );
+                if ( target.isFile() && target.length() == file.length() &&
+                        target.lastModified() == file.lastModified() ) {
+                    this.unchanged++;
+                    return;
+                }
+                if ( this.link && link( file, target ) ) {
+                    this.linked++;
+                    return;
+                }
+            }
+            super.writeFile( path, file );
+        }
+
+        @Override
+        protected void writeData( final String path, final byte[] data ) throws IOException {
+            if ( this.sync ) {
+                this.paths.add( path );
+                if ( hasContent( new File( this.directory, path ), data ) ) {
+                    this.unchanged++;
+                    return;
+                }
+            }
+            super.writeData( path, data );
+        }
+
+        private boolean link( final File source, final File target ) {
+            if ( CREATE_LINK == null )
+                return false;
+            target.getParentFile().mkdirs();
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+            try {
+                CREATE_LINK.invoke( null, TO_PATH.invoke( target ), TO_PATH.invoke( source.getAbsoluteFile() ) );
+                return true;
+            } catch ( IllegalAccessException e ) {
+                // Safety net, should never happen
+                throw new IllegalStateException( e );
+            } catch ( InvocationTargetException e ) {
+                // E.g. the source and target are on different file systems, copy instead
+                getTask().logVerbose( "Cannot link \"%s\" to \"%s\", copying instead: %s", target, source,
+                        e.getCause() );
+                return false;
+            }
+        }
+
+        private static boolean hasContent( final File file, final byte[] data ) throws IOException {
+            if ( !file.isFile() || file.length() != data.length )
+                return false;
+            final DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+            try {
+                final byte[] content = new byte[data.length];
+                in.readFully( content );
+                return Arrays.equals( content, data );
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        protected OutputStream openEntry( final String path, final long lastModified ) throws IOException {
+            if ( this.sync )
+                this.paths.add( path );
+            final File file = new File( this.directory, path );
+            file.getParentFile().mkdirs();
+
+            // Never write through an existing file, which may be a link to a source file
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return new FileOutputStream( file ) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if ( lastModified != GENERATED_ENTRY_TIME )
+                        //noinspection ResultOfMethodCallIgnored
+                        file.setLastModified( lastModified );
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if ( !this.sync )
+                return;
+            final int removed = removeStale( this.directory, "" );
+            getTask().logVerbose( "Synchronized \"%s\": %d file(s) written, %d linked, %d unchanged, %d removed",
+                    this.directory, this.paths.size() - this.unchanged - this.linked, this.linked, this.unchanged,
+                    removed );
+        }
+
+        /**
+         * Deletes all files in the specified directory which were not written, along with directories left empty.
+         */
+        private int removeStale( final File directory, final String prefix ) {
+            final File[] children = directory.listFiles();
+            if ( children == null )
+                return 0;
+            int removed = 0;
+            for ( final File child : children )
+                if ( child.isDirectory() ) {
+                    removed += removeStale( child, prefix + child.getName() + '/' );
+                    final String[] remaining = child.list();
+                    if ( remaining != null && remaining.length == 0 )
+                        //noinspection ResultOfMethodCallIgnored
+                        child.delete();
+                } else if ( !this.paths.contains( prefix + child.getName() ) && child.delete() )
+                    removed++;
+            return removed;
+        }
+    }
+
+    /**
+     * Writes each entry to two writers at once, reading the entry content only once.
+     */
+    private static class CombinedWriter extends PackageWriter {
+        private final PackageWriter first;
+        private final PackageWriter other;
+
+        CombinedWriter( final TaskBase task, final PackageWriter first, final PackageWriter other ) {
+            super( task );
+            if ( first == null || other == null )
+                throw new IllegalArgumentException( "The combined writers cannot be null." );
+            this.first = first;
+            this.other = other;
+        }
+
+        @Override
+        protected void writeFile( final String path, final File file ) throws IOException {
+            // Let each writer handle files on its own, e.g. to link rather than copy them
+            this.first.writeFile( path, file );
+            this.other.writeFile( path, file );
+        }
+
+        @Override
+        protected void writeData( final String path, final byte[] data ) throws IOException {
+            this.first.writeData( path, data );
+            this.other.writeData( path, data );
+        }
+
+        @Override
+        protected OutputStream openEntry( final String path, final long lastModified ) throws IOException {
+            final OutputStream first = this.first.openEntry( path, lastModified );
+            final OutputStream other = this.other.openEntry( path, lastModified );
+            return new OutputStream() {
+                @Override
+                public void write( final int b ) throws IOException {
+                    first.write( b );
+                    other.write( b );
+                }
+
+                @Override
+                public void write( final byte[] b, final int off, final int len ) throws IOException {
+                    first.write( b, off, len );
+                    other.write( b, off, len );
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        first.close();
+                    } finally {
+                        other.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.first.close();
+            } finally {
+                this.other.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Writes a ZIP archive (e.g. a JAR or WAR file), compressing entries concurrently.
+ * <p/>
+ * Entries are deflated on a pool of worker threads, but are always written to the archive in the order in which they
+ * were added, so the resulting archive does not depend on thread scheduling. Both the number of entries awaiting
+ * compression and the amount of entry data they hold are bounded. Entries whose names end with one of the configured
+ * <em>stored</em> extensions (typically already-compressed files such as nested JARs or images) are stored as-is
+ * rather than deflated, as is any entry which deflating would not make smaller.
+ * <p/>
+ * Entries added from files are never buffered as a whole unless they are small: stored files are copied straight from
+ * the file when they are written, and large files are deflated as they are written.
+ * <p/>
+ * The ZIP64 extensions are not supported; writing more than 65535 entries or more than 4GB fails.
+ */
+class ParallelZipWriter implements Closeable {
+    /**
+     * The extensions of entries which are stored (not deflated) by default.
+     */
+    static final Set<String> DEFAULT_STORED_EXTENSIONS = Collections.unmodifiableSet( new HashSet<String>(
+            Arrays.asList( "jar", "war", "ear", "zip", "gz", "tgz", "bz2", "7z", "png", "jpg", "jpeg", "gif" ) ) );
+
+    /**
+     * Files larger than this are deflated as they are written rather than buffered in memory.
+     */
+    static final long STREAMING_THRESHOLD = 1024 * 1024;
+
+    private static final int PENDING_PER_THREAD = 4;
+    private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final long MAX_OFFSET = 0xffffffffL;
+    private static final int MAX_ENTRIES = 0xffff;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Set<String> storedExtensions;
+    private final Deque<PendingEntry> pending = new ArrayDeque<PendingEntry>();
+    private final List<Entry> written = new ArrayList<Entry>();
+    private long pendingBytes;
+    private long offset;
+
+    /**
+     * Creates a new ZIP writer.
+     *
+     * @param out              The stream to which the archive is written.
+     * @param threads          The number of compression threads; with a single thread, entries are compressed on
+     *                         the calling thread.
+     * @param storedExtensions The (lowercase) extensions of entries which are stored rather than deflated.
+     * @throws IllegalArgumentException <ul><li>The output stream cannot be null.</li><li>The thread count must be
+     *                                  positive.</li><li>The stored extension set cannot be null.</li></ul>
+     */
+    ParallelZipWriter( final OutputStream out, final int threads, final Set<String> storedExtensions )
+            throws IllegalArgumentException {
+        if ( out == null )
+            throw new IllegalArgumentException( "The output stream cannot be null." );
+        if ( threads < 1 )
+            throw new IllegalArgumentException( "The thread count must be positive." );
+        if ( storedExtensions == null )
+            throw new IllegalArgumentException( "The stored extension set cannot be null." );
+
+        this.out = out;
+        this.storedExtensions = storedExtensions;
+        this.maxPending = threads * PENDING_PER_THREAD;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool( threads, new ThreadFactory() {
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread( r, "ant-intellij-tasks-deflater" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } ) : null;
+    }
+
+    /**
+     * Adds a directory entry.
+     *
+     * @param path         The directory path, ending with a slash.
+     * @param lastModified The directory modification time.
+     * @throws IOException An error has occurred while writing the archive.
+     */
+    void addDirectory( final String path, final long lastModified ) throws IOException {
+        enqueue( new Callable<Entry>() {
+            public Entry call() {
+                return new Entry( path, lastModified, ZipEntry.STORED, new byte[0], 0, 0 );
+            }
+        }, 0, false );
+    }
+
+    /**
+     * Adds a file entry. The entry is compressed asynchronously and written once all previously added entries have
+     * been written.
+     *
+     * @param path         The entry path.
+     * @param data         The entry data. The array must not be modified after it is passed to this method.
+     * @param lastModified The entry modification time.
+     * @throws IOException An error has occurred while writing the archive.
+     */
+    void addFile( final String path, final byte[] data, final long lastModified ) throws IOException {
+        enqueue( new Callable<Entry>() {
+            public Entry call() {
+                return compress( path, data, lastModified );
+            }
+        }, data.length, this.executor != null );
+    }
+
+    /**
+     * Adds a file entry from the specified file. Stored entries are copied from the file when they are written, and
+     * only their checksum is computed in advance; files larger than the {@link #STREAMING_THRESHOLD streaming
+     * threshold} are deflated as they are written. Other files are read and compressed asynchronously.
+     * <p/>
+     * The file must not be modified until the writer is closed.
+     *
+     * @param path         The entry path.
+     * @param file         The file.
+     * @param lastModified The entry modification time.
+     * @throws IOException An error has occurred while writing the archive.
+     */
+    void addFile( final String path, final File file, final long lastModified ) throws IOException {
+        final long length = file.length();
+        if ( isStored( path ) )
+            enqueue( new Callable<Entry>() {
+                public Entry call() throws IOException {
+                    return new Entry( path, lastModified, ZipEntry.STORED, file, length, checksum( file, length ) );
+                }
+            }, 0, this.executor != null );
+        else if ( length > STREAMING_THRESHOLD )
+            enqueue( new Callable<Entry>() {
+                public Entry call() {
+                    return new Entry( path, lastModified, ZipEntry.DEFLATED, file, length, 0 );
+                }
+            }, 0, false );
+        else
+            enqueue( new Callable<Entry>() {
+                public Entry call() throws IOException {
+                    return compress( path, read( file, (int) length ), lastModified );
+                }
+            }, length, this.executor != null );
+    }
+
+    private void enqueue( final Callable<Entry> callable, final long size, final boolean async )
+            throws IOException {
+        final PendingEntry entry = new PendingEntry( callable, size );
+        if ( async )
+            this.executor.execute( entry );
+        else
+            entry.run();
+        this.pending.addLast( entry );
+        this.pendingBytes += size;
+
+        // Write completed entries in order, blocking only if too many entries or too much data are pending
+        while ( !this.pending.isEmpty() && ( this.pending.size() > this.maxPending ||
+                this.pendingBytes > MAX_PENDING_BYTES || this.pending.peekFirst().isDone() ) )
+            write( this.pending.removeFirst() );
+    }
+
+    private static byte[] read( final File file, final int length ) throws IOException {
+        final DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try {
+            final byte[] data = new byte[length];
+            in.readFully( data );
+            if ( in.read() >= 0 )
+                throw new IOException( "File \"" + file + "\" was modified while being packaged." );
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long checksum( final File file, final long length ) throws IOException {
+        final CRC32 crc = new CRC32();
+        if ( copy( file, null, crc ) != length )
+            throw new IOException( "File \"" + file + "\" was modified while being packaged." );
+        return crc.getValue();
+    }
+
+    /**
+     * Copies the content of the specified file to the specified stream (if any), updating the specified checksum.
+     *
+     * @return The number of bytes read.
+     */
+    private static long copy( final File file, final OutputStream out, final Checksum checksum ) throws IOException {
+        final InputStream in = new FileInputStream( file );
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ( ( read = in.read( buffer ) ) >= 0 ) {
+                checksum.update( buffer, 0, read );
+                if ( out != null )
+                    out.write( buffer, 0, read );
+                total += read;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+    private Entry compress( final String path, final byte[] data, final long lastModified ) {
+        final CRC32 crc = new CRC32();
+        crc.update( data );
+        if ( data.length > 0 && !isStored( path ) ) {
+            final Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+            try {
+                deflater.setInput( data );
+                deflater.finish();
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream( data.length / 2 + 64 );
+                final byte[] buffer = new byte[8192];
+                while ( !deflater.finished() ) {
+                    final int length = deflater.deflate( buffer );
+                    compressed.write( buffer, 0, length );
+                }
+                if ( compressed.size() < data.length )
+                    return new Entry( path, lastModified, ZipEntry.DEFLATED, compressed.toByteArray(), data.length,
+                            crc.getValue() );
+            } finally {
+                deflater.end();
+            }
+        }
+        return new Entry( path, lastModified, ZipEntry.STORED, data, data.length, crc.getValue() );
+    }
+
+    private boolean isStored( final String path ) {
+        final int dot = path.lastIndexOf( '.' );
+        return dot >= 0 && dot > path.lastIndexOf( '/' ) &&
+                this.storedExtensions.contains( path.substring( dot + 1 ).toLowerCase( Locale.ENGLISH ) );
+    }
+
+    private void write( final PendingEntry pending ) throws IOException {
+        this.pendingBytes -= pending.size;
+        final Entry entry;
+        try {
+            entry = pending.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while compressing archive entries." );
+        } catch ( ExecutionException e ) {
+            throw (IOException) new IOException( "Failed to compress archive entry." ).initCause( e.getCause() );
+        }
+
+        if ( this.written.size() >= MAX_ENTRIES )
+            throw new IOException( "The archive cannot contain more than " + MAX_ENTRIES + " entries." );
+        entry.offset = this.offset;
+        writeInt( 0x04034b50 );
+        writeShort( 20 );                       // Version needed to extract
+        writeShort( entry.flags );
+        writeShort( entry.method );
+        writeInt( entry.dosTime );
+        writeInt( (int) entry.crc );
+        writeInt( (int) entry.compressedSize );
+        writeInt( (int) entry.size );
+        writeShort( entry.name.length );
+        writeShort( 0 );                        // Extra field length
+        writeBytes( entry.name );
+        if ( entry.source == null )
+            writeBytes( entry.data );
+        else if ( entry.method == ZipEntry.STORED )
+            writeStored( entry );
+        else
+            writeDeflated( entry );
+        if ( this.offset > MAX_OFFSET )
+            throw new IOException( "The archive cannot be larger than 4GB." );
+
+        // Only the header is needed for the central directory
+        entry.data = null;
+        this.written.add( entry );
+    }
+
+    private void writeStored( final Entry entry ) throws IOException {
+        final CRC32 crc = new CRC32();
+        final long size = copy( entry.source, this.out, crc );
+        this.offset += size;
+        if ( size != entry.size || crc.getValue() != entry.crc )
+            throw new IOException( "File \"" + entry.source + "\" was modified while being packaged." );
+    }
+
+    private void writeDeflated( final Entry entry ) throws IOException {
+        // The checksum and sizes are only known once the entry is written, so they follow it in a data descriptor
+        final CRC32 crc = new CRC32();
+        final CountingOutputStream counter = new CountingOutputStream( this.out );
+        final Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+        try {
+            final DeflaterOutputStream deflated = new DeflaterOutputStream( counter, deflater, BUFFER_SIZE );
+            entry.size = copy( entry.source, deflated, crc );
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        if ( entry.size > MAX_OFFSET )
+            throw new IOException( "Archive entries cannot be larger than 4GB." );
+        this.offset += counter.count;
+        entry.crc = crc.getValue();
+        entry.compressedSize = counter.count;
+        writeInt( 0x08074b50 );
+        writeInt( (int) entry.crc );
+        writeInt( (int) entry.compressedSize );
+        writeInt( (int) entry.size );
+    }
+
+    /**
+     * Writes all pending entries and the central directory, and closes the underlying stream and the compression
+     * threads.
+     *
+     * @throws IOException An error has occurred while writing the archive.
+     */
+    public void close() throws IOException {
+        try {
+            while ( !this.pending.isEmpty() )
+                write( this.pending.removeFirst() );
+
+            final long directoryOffset = this.offset;
+            for ( final Entry entry : this.written ) {
+                writeInt( 0x02014b50 );
+                writeShort( 20 );               // Version made by
+                writeShort( 20 );               // Version needed to extract
+                writeShort( entry.flags );
+                writeShort( entry.method );
+                writeInt( entry.dosTime );
+                writeInt( (int) entry.crc );
+                writeInt( (int) entry.compressedSize );
+                writeInt( (int) entry.size );
+                writeShort( entry.name.length );
+                writeShort( 0 );                // Extra field length
+                writeShort( 0 );                // Comment length
+                writeShort( 0 );                // Disk number
+                writeShort( 0 );                // Internal attributes
+                writeInt( entry.directory ? 0x10 : 0 );
+                writeInt( (int) entry.offset );
+                writeBytes( entry.name );
+            }
+            final long directorySize = this.offset - directoryOffset;
+            if ( this.offset > MAX_OFFSET )
+                throw new IOException( "The archive cannot be larger than 4GB." );
+
+            writeInt( 0x06054b50 );
+            writeShort( 0 );                    // Disk number
+            writeShort( 0 );                    // Central directory disk number
+            writeShort( this.written.size() );
+            writeShort( this.written.size() );
+            writeInt( (int) directorySize );
+            writeInt( (int) directoryOffset );
+            writeShort( 0 );                    // Comment length
+        } finally {
+            if ( this.executor != null )
+                this.executor.shutdownNow();
+            this.out.close();
+        }
+    }
+
+    private void writeShort( final int value ) throws IOException {
+        this.out.write( value & 0xff );
+        this.out.write( ( value >>> 8 ) & 0xff );
+        this.offset += 2;
+    }
+
+    private void writeInt( final int value ) throws IOException {
+        writeShort( value & 0xffff );
+        writeShort( ( value >>> 16 ) & 0xffff );
+    }
+
+    private void writeBytes( final byte[] bytes ) throws IOException {
+        this.out.write( bytes );
+        this.offset += bytes.length;
+    }
+
+    private static int toDosTime( final long time ) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis( time );
+        final int year = calendar.get( Calendar.YEAR );
+        if ( year < 1980 )
+            return ( 1 << 21 ) | ( 1 << 16 );   // January 1st, 1980
+        return ( year - 1980 ) << 25 | ( calendar.get( Calendar.MONTH ) + 1 ) << 21 |
+                calendar.get( Calendar.DAY_OF_MONTH ) << 16 | calendar.get( Calendar.HOUR_OF_DAY ) << 11 |
+                calendar.get( Calendar.MINUTE ) << 5 | calendar.get( Calendar.SECOND ) >> 1;
+    }
+
+    /**
+     * An entry awaiting compression, along with the amount of entry data it holds.
+     */
+    private static class PendingEntry extends FutureTask<Entry> {
+        final long size;
+
+        PendingEntry( final Callable<Entry> callable, final long size ) {
+            super( callable );
+            this.size = size;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream( final OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( final int b ) throws IOException {
+            this.out.write( b );
+            this.count++;
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            this.out.write( b, off, len );
+            this.count += len;
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream is closed by the writer
+        }
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final boolean directory;
+        final int dosTime;
+        final int method;
+        final int flags;
+        final File source;
+        byte[] data;
+        long size;
+        long crc;
+        long compressedSize;
+        long offset;
+
+        /**
+         * Creates an entry with in-memory data, which is written as-is.
+         */
+        Entry( final String path, final long lastModified, final int method, final byte[] data, final long size,
+               final long crc ) {
+            this( path, lastModified, method, data, null, data.length, size, crc );
+        }
+
+        /**
+         * Creates an entry whose data is read from a file when it is written. Deflated entries are compressed as they
+         * are written, so their checksum and compressed size are only known then.
+         */
+        Entry( final String path, final long lastModified, final int method, final File source, final long size,
+               final long crc ) {
+            this( path, lastModified, method, null, source, method == ZipEntry.STORED ? size : 0, size, crc );
+        }
+
+        private Entry( final String path, final long lastModified, final int method, final byte[] data,
+                       final File source, final long compressedSize, final long size, final long crc ) {
+            try {
+                this.name = path.getBytes( "UTF-8" );
+            } catch ( UnsupportedEncodingException e ) {
+                // Safety net, should never happen
+                throw new IllegalStateException( e );
+            }
+            this.directory = path.endsWith( "/" );
+            this.dosTime = toDosTime( lastModified );
+            this.method = method;
+            this.flags = source != null && method == ZipEntry.DEFLATED ? UTF8_FLAG | DATA_DESCRIPTOR_FLAG : UTF8_FLAG;
+            this.data = data;
+            this.source = source;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+}
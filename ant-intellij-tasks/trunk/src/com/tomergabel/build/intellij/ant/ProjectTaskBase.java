@@ -22,10 +22,14 @@
 package com.tomergabel.build.intellij.ant;
 
 import com.tomergabel.build.intellij.model.IntelliJParserBase;
+import com.tomergabel.build.intellij.model.ModelCache;
 import com.tomergabel.build.intellij.model.ParseException;
 import com.tomergabel.build.intellij.model.Project;
 import com.tomergabel.build.intellij.model.ProjectResolver;
+import com.tomergabel.build.intellij.model.ProjectResolverRegistry;
+import com.tomergabel.build.intellij.model.ResolutionException;
 import com.tomergabel.build.intellij.ant.prototype.ProjectReceiver;
+import com.tomergabel.util.ConcurrentLazy;
 import com.tomergabel.util.Lazy;
 import com.tomergabel.util.LazyInitializationException;
 import org.apache.tools.ant.BuildException;
@@ -34,6 +38,7 @@ import org.w3c.dom.Node;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.Callable;
 
 /**
  * A base task which provides a convenient way for subtasks to access a project file.
@@ -51,13 +56,9 @@ import java.net.URI;
 public abstract class ProjectTaskBase extends TaskBase implements ProjectReceiver {
     private Lazy<Project> project = Lazy.from( null );
 
-    private final Lazy<ProjectResolver> projectResolver = new Lazy<ProjectResolver>() {
-        @Override
-        public ProjectResolver call() throws Exception {
-            final Project project = ProjectTaskBase.this.project.get();
-            return project != null ? new ProjectResolver( project ) : null;
-        }
-    };
+    private Lazy<ProjectResolver> projectResolver = Lazy.from( null );
+    private boolean parallelPreload = false;
+    private boolean preloaded = false;
 
     // Ant-facing properties
 
@@ -67,21 +68,48 @@ public abstract class ProjectTaskBase extends TaskBase implements ProjectReceive
         setProjectDescriptor( projectFile.toURI() );
     }
 
+    /**
+     * Specifies whether all module descriptors in the project should be loaded in parallel (on a thread pool sized to
+     * the number of available processors) before the task executes. This is typically beneficial for project-wide
+     * tasks on large projects with a cold {@link ModelCache model cache}.
+     *
+     * @param parallelPreload {@literal true} to preload modules in parallel, {@literal false} (the default) to load
+     *                        modules on demand.
+     */
+    public void setParallelPreload( final boolean parallelPreload ) {
+        assertNotExecuted();
+        this.parallelPreload = parallelPreload;
+    }
+
     // Code-facing properties
 
     @Override
     public void setProject( final Project project ) {
         assertNotExecuted();
         this.project = Lazy.from( project );
+        this.projectResolver = ConcurrentLazy.nullable( new Callable<ProjectResolver>() {
+            @Override
+            public ProjectResolver call() throws ResolutionException {
+                return project != null ? new ProjectResolver( project ) : null;
+            }
+        } );
     }
 
     @Override
     public void setProjectDescriptor( final URI projectDescriptor ) {
         assertNotExecuted();
+        // Projects specified by descriptor are shared across tasks via the registry, so that the
+        // project and module descriptors are only parsed once per build
+        this.projectResolver = new ConcurrentLazy<ProjectResolver>() {
+            @Override
+            public ProjectResolver call() throws IOException, ParseException, ResolutionException {
+                return ProjectResolverRegistry.get( projectDescriptor, new WarnHandler( "project" ) );
+            }
+        };
         this.project = new Lazy<Project>() {
             @Override
-            public Project call() throws IOException, ParseException {
-                return Project.parse( projectDescriptor, new WarnHandler( "project" ) );
+            public Project call() throws LazyInitializationException {
+                return ProjectTaskBase.this.projectResolver.get().getProject();
             }
         };
     }
@@ -90,16 +118,37 @@ public abstract class ProjectTaskBase extends TaskBase implements ProjectReceive
         try {
             return this.project.get();
         } catch ( LazyInitializationException e ) {
-            throw new BuildException( e.getCause() );
+            throw new BuildException( rootCause( e ) );
         }
     }
 
     protected ProjectResolver projectResolver() {
+        final ProjectResolver resolver;
         try {
-            return this.projectResolver.get();
+            resolver = this.projectResolver.get();
         } catch ( LazyInitializationException e ) {
-            throw new BuildException( e.getCause() );
+            throw new BuildException( rootCause( e ) );
         }
+
+        if ( resolver != null && this.parallelPreload && !this.preloaded ) {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            logVerbose( "Preloading project modules using %d threads", threads );
+            try {
+                resolver.preloadModules( threads );
+            } catch ( ResolutionException e ) {
+                throw new BuildException( e );
+            }
+            this.preloaded = true;
+        }
+        return resolver;
+    }
+
+    private static Throwable rootCause( final LazyInitializationException e ) {
+        // Unwrap nested lazy initializers (the project is loaded via the project resolver)
+        Throwable cause = e.getCause();
+        while ( cause instanceof LazyInitializationException )
+            cause = cause.getCause();
+        return cause;
     }
 
     class WarnHandler implements IntelliJParserBase.Handler {
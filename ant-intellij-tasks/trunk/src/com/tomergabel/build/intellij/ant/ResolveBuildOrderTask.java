@@ -22,21 +22,42 @@
 package com.tomergabel.build.intellij.ant;
 
 import com.tomergabel.build.intellij.model.Module;
+import com.tomergabel.build.intellij.model.ModuleDependencyGraph;
 import com.tomergabel.build.intellij.model.ResolutionException;
 import static com.tomergabel.util.CollectionUtils.join;
 import static com.tomergabel.util.CollectionUtils.map;
+import com.tomergabel.util.Mapper;
 import org.apache.tools.ant.BuildException;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 
 public class ResolveBuildOrderTask extends ProjectTaskBase {
+    /**
+     * Determines how the build order is published.
+     */
+    public enum Layout {
+        /**
+         * The build order is published as a single list.
+         */
+        sequential,
+        /**
+         * In addition to the single list, modules are grouped into build levels, all modules within which are
+         * independent of each other; the number of levels is published in <code><em>property</em>.levels</code>, and
+         * each level in <code><em>property</em>.level.<em>n</em></code> (starting from 1).
+         */
+        levels
+    }
+
     protected static final String LIST_SEPARATOR = ",";
     protected String property;
     protected Collection<String> modules;
     protected ResolutionModes inputMode = ResolutionModes.names;
     protected ResolutionModes outputMode = null;
+    protected Layout layout = Layout.sequential;
+    protected boolean criticalPath = false;
 
     public ResolutionModes getInputMode() {
         return this.inputMode;
@@ -60,6 +81,32 @@ public class ResolveBuildOrderTask extends ProjectTaskBase {
         this.outputMode = outputMode;
     }
 
+    public Layout getLayout() {
+        return this.layout;
+    }
+
+    public void setLayout( final Layout layout ) {
+        if ( layout == null )
+            throw new IllegalArgumentException( "The layout cannot be null." );
+
+        this.layout = layout;
+    }
+
+    public boolean isCriticalPath() {
+        return this.criticalPath;
+    }
+
+    /**
+     * Specifies whether the critical path (the longest chain of dependent modules) should be published. If set, the
+     * critical path is published in <code><em>property</em>.critical-path</code> and its length in
+     * <code><em>property</em>.critical-path.length</code>.
+     *
+     * @param criticalPath {@literal true} to publish the critical path.
+     */
+    public void setCriticalPath( final boolean criticalPath ) {
+        this.criticalPath = criticalPath;
+    }
+
     public String getProperty() {
         return this.property;
     }
@@ -121,10 +168,37 @@ public class ResolveBuildOrderTask extends ProjectTaskBase {
         }
 
         // Set the target property
-        final String value = join(
-                map( buildOrder, ( this.outputMode == null ? this.inputMode : this.outputMode ).mapper ),
-                LIST_SEPARATOR );
+        final Mapper<Module, ?> mapper = ( this.outputMode == null ? this.inputMode : this.outputMode ).mapper;
+        final String value = join( map( buildOrder, mapper ), LIST_SEPARATOR );
         getProject().setProperty( this.property, value );
         logVerbose( "Resolved build order: %s", value );
+
+        if ( this.layout == Layout.sequential && !this.criticalPath )
+            return;
+
+        final ModuleDependencyGraph graph;
+        try {
+            graph = projectResolver().resolveModuleDependencyGraph( buildOrder );
+        } catch ( ResolutionException e ) {
+            throw new BuildException( e );
+        }
+
+        // Set build level properties
+        if ( this.layout == Layout.levels ) {
+            final List<List<Module>> levels = graph.getBuildLevels( buildOrder );
+            getProject().setProperty( this.property + ".levels", String.valueOf( levels.size() ) );
+            for ( int i = 0; i < levels.size(); ++i ) {
+                final String level = join( map( levels.get( i ), mapper ), LIST_SEPARATOR );
+                getProject().setProperty( this.property + ".level." + ( i + 1 ), level );
+                logVerbose( "Build level %d: %s", i + 1, level );
+            }
+        }
+
+        // Set critical path properties
+        if ( this.criticalPath ) {
+            final List<Module> path = graph.getCriticalPath( buildOrder );
+            getProject().setProperty( this.property + ".critical-path", join( map( path, mapper ), LIST_SEPARATOR ) );
+            getProject().setProperty( this.property + ".critical-path.length", String.valueOf( path.size() ) );
+        }
     }
 }
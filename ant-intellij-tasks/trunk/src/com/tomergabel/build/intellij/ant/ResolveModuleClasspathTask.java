@@ -21,11 +21,39 @@
 
 package com.tomergabel.build.intellij.ant;
 
+import com.tomergabel.build.intellij.model.ClasspathEntry;
+import com.tomergabel.build.intellij.model.ResolutionException;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.Path;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 public class ResolveModuleClasspathTask extends ModuleTaskBase {
     protected String pathId;
     protected SourceFilter filter = SourceFilter.source;
+    protected Output output = Output.path;
+    protected File destDir;
+
+    /**
+     * Specifies how the resolved classpath is returned.
+     */
+    public enum Output {
+        /**
+         * The path contains every classpath entry.
+         */
+        path,
+        /**
+         * The classpath entries are written to the <code>Class-Path</code> attribute of a manifest-only "pathing"
+         * JAR, and the path contains only that JAR. This keeps the command lines of forked compilers and test runners
+         * short regardless of the size of the classpath.
+         */
+        jar
+    }
 
     public void setPathId( final String pathId ) {
         this.pathId = pathId;
@@ -41,12 +69,143 @@ public class ResolveModuleClasspathTask extends ModuleTaskBase {
         this.filter = filter;
     }
 
+    public Output getOutput() {
+        return this.output;
+    }
+
+    public void setOutput( final Output output ) {
+        if ( output == null )
+            throw new IllegalArgumentException( "The output mode cannot be null." );
+        this.output = output;
+    }
+
+    public File getDestDir() {
+        return this.destDir;
+    }
+
+    /**
+     * Sets the directory in which pathing JARs are generated. Defaults to the module's output directory, or to its test
+     * output directory if the filter includes test sources.
+     *
+     * @param destDir The pathing JAR directory.
+     */
+    public void setDestDir( final File destDir ) {
+        this.destDir = destDir;
+    }
+
     @Override
     public void executeTask() throws BuildException {
         if ( this.pathId == null )
             throw new BuildException( "Target path ID (attribute 'pathId') not specified." );
 
         logVerbose( "Resolving classpath for module '%s', filter=%s", module().getName(), this.filter );
-        getProject().addReference( this.pathId, ant().buildModuleClasspath( resolver(), this.filter ) );
+        switch ( this.output ) {
+            case path:
+                getProject().addReference( this.pathId, ant().buildModuleClasspath( resolver(), this.filter ) );
+                break;
+
+            case jar:
+                final Path path = (Path) getProject().createDataType( "path" );
+                assert path != null;
+                path.setLocation( buildPathingJar() );
+                getProject().addReference( this.pathId, path );
+                break;
+
+            default:
+                throw new BuildException( "Unknown output mode '" + this.output + "'" );
+        }
+    }
+
+    /**
+     * Generates the pathing JAR for the module and filter, unless a JAR with an identical classpath already exists.
+     *
+     * @return The pathing JAR.
+     * @throws BuildException An error has occurred while resolving the classpath or writing the JAR.
+     */
+    private File buildPathingJar() throws BuildException {
+        final Collection<ClasspathEntry> entries;
+        final File directory;
+        try {
+            entries = resolver().resolveModuleClasspathEntries(
+                    this.filter == SourceFilter.source || this.filter == SourceFilter.both,
+                    this.filter == SourceFilter.test || this.filter == SourceFilter.both );
+            directory = this.destDir != null ? this.destDir : resolver().resolveModuleOutput(
+                    this.filter == SourceFilter.test || this.filter == SourceFilter.both );
+        } catch ( ResolutionException e ) {
+            throw new BuildException( "Cannot resolve module classpath for module \"" + module().getName() + "\".",
+                    e );
+        }
+
+        final String classPath = generateClassPath( entries );
+        final File jar = new File( directory, module().getName() + "-" + this.filter + "-classpath.jar" );
+        if ( classPath.equals( readClassPath( jar ) ) ) {
+            logVerbose( "Pathing JAR %s is up to date", jar );
+            return jar;
+        }
+
+        logInfo( "Generating pathing JAR %s (%d entries)", jar, entries.size() );
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        manifest.getMainAttributes().put( Attributes.Name.CLASS_PATH, classPath );
+        File temp = null;
+        try {
+            if ( !directory.isDirectory() && !directory.mkdirs() )
+                throw new BuildException( "Cannot create pathing JAR directory " + directory );
+
+            // Write to a temporary file first so that an interrupted build never leaves a truncated JAR behind
+            temp = File.createTempFile( jar.getName(), ".tmp", directory );
+            new JarOutputStream( new FileOutputStream( temp ), manifest ).close();
+            if ( jar.exists() && !jar.delete() || !temp.renameTo( jar ) )
+                throw new BuildException( "Cannot replace pathing JAR " + jar );
+            temp = null;
+        } catch ( IOException e ) {
+            throw new BuildException( "Cannot write pathing JAR " + jar, e );
+        } finally {
+            if ( temp != null )
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+        }
+        return jar;
+    }
+
+    /**
+     * Generates a <code>Class-Path</code> manifest attribute value for the specified entries. Entries are specified
+     * as absolute file URLs; directories (including output directories which do not exist yet) must end with a
+     * slash, or they are treated as JARs by the class loader.
+     */
+    static String generateClassPath( final Collection<ClasspathEntry> entries ) {
+        final StringBuilder classPath = new StringBuilder();
+        for ( final ClasspathEntry entry : entries ) {
+            final File file = entry.getFile().getAbsoluteFile();
+            String url = file.toURI().toString();
+            final String name = file.getName().toLowerCase();
+            if ( !url.endsWith( "/" ) && !file.isFile() && !name.endsWith( ".jar" ) && !name.endsWith( ".zip" ) )
+                url += "/";
+            if ( classPath.length() > 0 )
+                classPath.append( ' ' );
+            classPath.append( url );
+        }
+        return classPath.toString();
+    }
+
+    /**
+     * Returns the <code>Class-Path</code> attribute of the specified pathing JAR, or <code>null</code> if the JAR does
+     * not exist or cannot be read.
+     */
+    private static String readClassPath( final File jar ) {
+        if ( !jar.isFile() )
+            return null;
+        try {
+            final JarFile file = new JarFile( jar );
+            try {
+                final Manifest manifest = file.getManifest();
+                return manifest != null ? manifest.getMainAttributes().getValue( Attributes.Name.CLASS_PATH ) : null;
+            } finally {
+                file.close();
+            }
+        } catch ( IOException e ) {
+            // Unreadable JAR, regenerate
+            return null;
+        }
     }
 }
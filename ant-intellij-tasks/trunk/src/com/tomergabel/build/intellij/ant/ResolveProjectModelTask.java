@@ -0,0 +1,184 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import com.tomergabel.build.intellij.model.Module;
+import com.tomergabel.build.intellij.model.ModuleResolver;
+import com.tomergabel.build.intellij.model.ResolutionException;
+import static com.tomergabel.util.CollectionUtils.join;
+import static com.tomergabel.util.CollectionUtils.map;
+import com.tomergabel.util.UriUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.Path;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Resolves the entire project model in a single pass and publishes the results as Ant properties and references.
+ * <p/>
+ * This replaces a series of per-module resolution tasks (output, source directories, classpath and resources) with a
+ * single resolution per project. All values are published under the configured prefix (<code>idea</code> by default):
+ * <ul>
+ * <li><code><em>prefix</em>.build-order</code> and <code><em>prefix</em>.build-order.descriptors</code>: The
+ * project build order, as comma-separated lists of module names and module file locations respectively;</li>
+ * <li><code><em>prefix</em>.<em>module</em>.descriptor</code>: The location of the module file;</li>
+ * <li><code><em>prefix</em>.<em>module</em>.output.<em>source|test</em></code>: The module output directories;</li>
+ * <li><code><em>prefix</em>.<em>module</em>.sourcedirs.<em>source|test</em></code>: The module source directories,
+ * as a comma-separated list;</li>
+ * <li><code><em>prefix</em>.<em>module</em>.sources.<em>source|test</em></code> (reference): The module source
+ * directories, as a path;</li>
+ * <li><code><em>prefix</em>.<em>module</em>.classpath.<em>source|test|both</em></code> (reference): The module
+ * classpath;</li>
+ * <li><code><em>prefix</em>.<em>module</em>.resources.<em>source|test</em></code> (reference): The module
+ * resources.</li>
+ * </ul>
+ * The set of modules can be restricted via the <code>modules</code> attribute (a comma-separated list of module
+ * names or module file locations, as determined by the <code>inputMode</code> attribute). Values which cannot be
+ * resolved for a particular module (for example, the output directory of a module which specifies none) are logged
+ * and omitted, leaving it to the consumer to decide whether this is an error.
+ */
+public class ResolveProjectModelTask extends ProjectTaskBase {
+    protected static final String LIST_SEPARATOR = ",";
+    protected String prefix = "idea";
+    protected Collection<String> modules;
+    protected ResolutionModes inputMode = ResolutionModes.names;
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    public void setPrefix( final String prefix ) {
+        if ( prefix == null )
+            throw new IllegalArgumentException( "The prefix cannot be null." );
+
+        this.prefix = prefix;
+    }
+
+    public ResolutionModes getInputMode() {
+        return this.inputMode;
+    }
+
+    public void setInputMode( final ResolutionModes inputMode ) throws IllegalArgumentException {
+        if ( inputMode == null )
+            throw new IllegalArgumentException( "Mode value cannot be null." );
+
+        this.inputMode = inputMode;
+    }
+
+    public void setModules( final String modules ) {
+        if ( modules == null )
+            throw new IllegalArgumentException( "The name list cannot be null." );
+
+        final String[] split = modules.split( LIST_SEPARATOR );
+        final Collection<String> list = new HashSet<String>( split.length );
+        for ( final String module : split )
+            if ( module.length() > 0 )
+                list.add( module );
+        this.modules = list.size() > 0 ? list : null;
+    }
+
+    @Override
+    protected void executeTask() throws BuildException {
+        assertProjectSpecified();
+
+        // Resolve build order
+        logVerbose( "Resolving project model for project \"%s\"", project().getName() );
+        final Collection<Module> buildOrder;
+        try {
+            if ( this.modules == null )
+                buildOrder = projectResolver().resolveModuleBuildOrder();
+            else
+                switch ( this.inputMode ) {
+                    case names:
+                        buildOrder = projectResolver().resolveModuleBuildOrderByName( this.modules );
+                        break;
+
+                    case descriptors:
+                        final Collection<Module> modules = new HashSet<Module>();
+                        for ( final String descriptor : this.modules )
+                            modules.add( projectResolver().getModule(
+                                    projectResolver().resolveUriString( descriptor ) ) );
+                        buildOrder = projectResolver().resolveModuleBuildOrder( modules );
+                        break;
+
+                    default:
+                        // Safety net, should never happen
+                        throw new IllegalStateException( "Unknown input mode '" + this.inputMode + "'" );
+                }
+        } catch ( ResolutionException e ) {
+            throw new BuildException( e );
+        }
+        getProject().setProperty( this.prefix + ".build-order",
+                join( map( buildOrder, ResolutionModes.names.mapper ), LIST_SEPARATOR ) );
+        getProject().setProperty( this.prefix + ".build-order.descriptors",
+                join( map( buildOrder, ResolutionModes.descriptors.mapper ), LIST_SEPARATOR ) );
+
+        // Publish module paths
+        for ( final Module module : buildOrder ) {
+            final ModuleResolver resolver;
+            try {
+                resolver = projectResolver().getModuleResolver( module );
+            } catch ( ResolutionException e ) {
+                throw new BuildException( e );
+            }
+            publishModule( resolver );
+        }
+    }
+
+    private void publishModule( final ModuleResolver resolver ) throws BuildException {
+        final Module module = resolver.getModule();
+        final String base = this.prefix + "." + module.getName() + ".";
+        logVerbose( "Publishing model for module \"%s\" under \"%s\"", module.getName(), base );
+
+        getProject().setProperty( base + "descriptor", UriUtils.getPath( module.getModuleDescriptor() ) );
+
+        // Output directories
+        for ( final boolean test : new boolean[] { false, true } ) {
+            final String property = base + "output." + ( test ? SourceFilter.test : SourceFilter.source );
+            try {
+                getProject().setProperty( property, resolver.resolveModuleOutputPath( test ) );
+            } catch ( ResolutionException e ) {
+                logVerbose( "Cannot resolve %s, skipping: %s", property, e.getMessage() );
+            }
+        }
+
+        // Source directories and resources
+        for ( final SourceFilter filter : new SourceFilter[] { SourceFilter.source, SourceFilter.test } ) {
+            final Path sources = ant().buildModuleSourcePath( resolver, filter );
+            getProject().addReference( base + "sources." + filter, sources );
+            getProject().setProperty( base + "sourcedirs." + filter, join( LIST_SEPARATOR, sources.list() ) );
+            getProject().addReference( base + "resources." + filter,
+                    ant().buildModuleResourcePath( resolver, filter ) );
+        }
+
+        // Classpaths
+        for ( final SourceFilter filter : SourceFilter.values() ) {
+            final String reference = base + "classpath." + filter;
+            try {
+                getProject().addReference( reference, ant().buildModuleClasspath( resolver, filter ) );
+            } catch ( BuildException e ) {
+                logVerbose( "Cannot resolve %s, skipping: %s", reference, e.getMessage() );
+            }
+        }
+    }
+}
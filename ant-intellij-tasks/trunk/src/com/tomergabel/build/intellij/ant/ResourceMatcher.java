@@ -0,0 +1,360 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import com.tomergabel.build.intellij.model.Project;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileResource;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Selects the resource files in a module source directory according to the project's resource extensions and
+ * wildcard patterns.
+ * <p/>
+ * This is equivalent to a {@link org.apache.tools.ant.types.FileSet} with an <code>**&#x2f;*.ext</code> include for
+ * every extension and an <code>**&#x2f;pattern</code> include for every wildcard pattern (and Ant's default
+ * excludes), but rather than testing every file against every pattern, the patterns are compiled once per project:
+ * extensions are matched in a single pass over the file name by a suffix trie, and wildcard patterns are compiled to
+ * file name matchers. Default excludes of the form <code>**&#x2f;name&#x2f;**</code> prune whole directories from the
+ * walk. Patterns which span directories fall back to Ant's own path matching. Each source directory is walked once,
+ * lazily, when its resources are first requested. As with a file set, if no extensions or patterns are specified, all
+ * files are selected.
+ * <p/>
+ * This class is immutable and thread-safe.
+ */
+final class ResourceMatcher {
+    private static final Map<Project, ResourceMatcher> matchers =
+            Collections.synchronizedMap( new WeakHashMap<Project, ResourceMatcher>() );
+
+    /**
+     * The resource extensions, as a trie of their reversed <code>.ext</code> suffixes.
+     */
+    private final SuffixNode extensions = new SuffixNode();
+    private final List<Glob> nameIncludes = new ArrayList<Glob>();
+    private final List<String> pathIncludes = new ArrayList<String>();
+    private final List<Glob> directoryExcludes = new ArrayList<Glob>();
+    private final List<Glob> nameExcludes = new ArrayList<Glob>();
+    private final List<String> pathExcludes = new ArrayList<String>();
+    private final boolean includeAll;
+
+    /**
+     * Returns the (shared) resource matcher for the specified project.
+     *
+     * @param project The project.
+     * @return The project's {@link ResourceMatcher}.
+     * @throws IllegalArgumentException The project cannot be null.
+     */
+    static ResourceMatcher forProject( final Project project ) throws IllegalArgumentException {
+        if ( project == null )
+            throw new IllegalArgumentException( "The project cannot be null." );
+
+        ResourceMatcher matcher = matchers.get( project );
+        if ( matcher == null ) {
+            matcher = new ResourceMatcher( project.getResourceExtensions(), project.getResourceWildcardPatterns() );
+            matchers.put( project, matcher );
+        }
+        return matcher;
+    }
+
+    /**
+     * Compiles a resource matcher.
+     *
+     * @param extensions The resource extensions (without the preceding dot).
+     * @param patterns   The resource wildcard patterns.
+     * @throws IllegalArgumentException <ul><li>The extension collection cannot be null.</li><li>The pattern collection
+     *                                  cannot be null.</li></ul>
+     */
+    ResourceMatcher( final Collection<String> extensions, final Collection<String> patterns )
+            throws IllegalArgumentException {
+        if ( extensions == null )
+            throw new IllegalArgumentException( "The extension collection cannot be null." );
+        if ( patterns == null )
+            throw new IllegalArgumentException( "The pattern collection cannot be null." );
+
+        for ( final String extension : extensions )
+            if ( Glob.isLiteral( extension ) )
+                this.extensions.add( "." + extension );
+            else
+                include( "*." + extension );
+        for ( final String pattern : patterns )
+            include( pattern );
+        this.includeAll = extensions.isEmpty() && patterns.isEmpty();
+
+        for ( final String pattern : DirectoryScanner.getDefaultExcludes() ) {
+            final String normalized = normalize( pattern );
+            final String name = normalized.startsWith( "**/" ) ? normalized.substring( 3 ) : null;
+            if ( name != null && name.endsWith( "/**" ) && name.indexOf( '/' ) == name.length() - 3 ) {
+                // Excludes the directory and everything under it, which includes files with the same name
+                final Glob glob = new Glob( name.substring( 0, name.length() - 3 ) );
+                this.directoryExcludes.add( glob );
+                this.nameExcludes.add( glob );
+            } else if ( name != null && name.indexOf( '/' ) < 0 && name.indexOf( "**" ) < 0 )
+                this.nameExcludes.add( new Glob( name ) );
+            else
+                this.pathExcludes.add( normalized.replace( '/', File.separatorChar ) );
+        }
+    }
+
+    private void include( final String pattern ) {
+        final String normalized = normalize( pattern );
+        if ( normalized.indexOf( '/' ) < 0 && normalized.indexOf( "**" ) < 0 )
+            this.nameIncludes.add( new Glob( normalized ) );
+        else
+            this.pathIncludes.add( ( "**/" + normalized ).replace( '/', File.separatorChar ) );
+    }
+
+    /**
+     * Normalizes a pattern the way {@link DirectoryScanner} does: separators are converted to slashes, and a trailing
+     * slash matches everything under the directory.
+     */
+    private static String normalize( final String pattern ) {
+        final String normalized = pattern.replace( '\\', '/' );
+        return normalized.endsWith( "/" ) ? normalized + "**" : normalized;
+    }
+
+    /**
+     * Determines whether the specified file is a resource.
+     *
+     * @param path The file's path, relative to the source directory.
+     * @param name The file name (i.e. the last element of the path).
+     * @return {@literal true} if the file is a resource, {@literal false} otherwise.
+     */
+    boolean matches( final String path, final String name ) {
+        return isIncluded( path, name ) && !isExcluded( path, name );
+    }
+
+    private boolean isIncluded( final String path, final String name ) {
+        if ( this.includeAll || this.extensions.matches( name ) )
+            return true;
+        for ( final Glob glob : this.nameIncludes )
+            if ( glob.matches( name ) )
+                return true;
+        for ( final String pattern : this.pathIncludes )
+            if ( SelectorUtils.matchPath( pattern, path ) )
+                return true;
+        return false;
+    }
+
+    private boolean isExcluded( final String path, final String name ) {
+        for ( final Glob glob : this.nameExcludes )
+            if ( glob.matches( name ) )
+                return true;
+        for ( final String pattern : this.pathExcludes )
+            if ( SelectorUtils.matchPath( pattern, path ) )
+                return true;
+        return false;
+    }
+
+    private boolean isPruned( final String name ) {
+        for ( final Glob glob : this.directoryExcludes )
+            if ( glob.matches( name ) )
+                return true;
+        return false;
+    }
+
+    /**
+     * Selects the resources in the specified source directory. The directory is only walked when the returned
+     * collection is first accessed, and the results are retained thereafter.
+     *
+     * @param root The source directory.
+     * @return A {@link ResourceCollection} of the matching {@link FileResource file resources}, named relative to
+     *         the source directory.
+     * @throws IllegalArgumentException The source directory cannot be null.
+     */
+    ResourceCollection select( final File root ) throws IllegalArgumentException {
+        if ( root == null )
+            throw new IllegalArgumentException( "The source directory cannot be null." );
+
+        return new ResourceCollection() {
+            private List<Resource> resources;
+
+            private synchronized List<Resource> resources() throws BuildException {
+                if ( this.resources == null )
+                    this.resources = walk( root );
+                return this.resources;
+            }
+
+            @Override
+            public Iterator iterator() {
+                return resources().iterator();
+            }
+
+            @Override
+            public int size() {
+                return resources().size();
+            }
+
+            @Override
+            public boolean isFilesystemOnly() {
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return root.getPath();
+            }
+        };
+    }
+
+    private List<Resource> walk( final File root ) throws BuildException {
+        if ( !root.isDirectory() )
+            throw new BuildException( "Source directory \"" + root + "\" does not exist or is not a directory." );
+
+        final List<Resource> resources = new ArrayList<Resource>();
+        final Deque<File> directories = new ArrayDeque<File>();
+        final Deque<String> prefixes = new ArrayDeque<String>();
+        directories.push( root );
+        prefixes.push( "" );
+        while ( !directories.isEmpty() ) {
+            final File directory = directories.pop();
+            final String prefix = prefixes.pop();
+            final File[] children = directory.listFiles();
+            if ( children == null )
+                continue;
+
+            // Children are sorted so that resources are selected in the same order on every file system; directories
+            // are pushed in reverse, so they are walked in order as well
+            Arrays.sort( children );
+            for ( int i = children.length - 1; i >= 0; i-- ) {
+                final String name = children[ i ].getName();
+                if ( children[ i ].isDirectory() && !isPruned( name ) ) {
+                    directories.push( children[ i ] );
+                    prefixes.push( prefix + name + File.separatorChar );
+                }
+            }
+            for ( final File child : children ) {
+                final String name = child.getName();
+                final String path = prefix + name;
+                if ( !child.isDirectory() && matches( path, name ) )
+                    resources.add( new FileResource( root, path ) );
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * A trie of reversed suffixes, matched against a string from its last character backwards.
+     */
+    private static class SuffixNode {
+        private char[] keys = new char[ 0 ];
+        private SuffixNode[] children = new SuffixNode[ 0 ];
+        private boolean terminal;
+
+        void add( final String suffix ) {
+            SuffixNode node = this;
+            for ( int i = suffix.length() - 1; i >= 0; i-- ) {
+                SuffixNode child = node.child( suffix.charAt( i ) );
+                if ( child == null ) {
+                    child = new SuffixNode();
+                    node.keys = Arrays.copyOf( node.keys, node.keys.length + 1 );
+                    node.children = Arrays.copyOf( node.children, node.children.length + 1 );
+                    node.keys[ node.keys.length - 1 ] = suffix.charAt( i );
+                    node.children[ node.children.length - 1 ] = child;
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        boolean matches( final String string ) {
+            SuffixNode node = this;
+            for ( int i = string.length() - 1; i >= 0; i-- ) {
+                node = node.child( string.charAt( i ) );
+                if ( node == null )
+                    return false;
+                if ( node.terminal )
+                    return true;
+            }
+            return false;
+        }
+
+        private SuffixNode child( final char key ) {
+            for ( int i = 0; i < this.keys.length; i++ )
+                if ( this.keys[ i ] == key )
+                    return this.children[ i ];
+            return null;
+        }
+    }
+
+    /**
+     * A compiled single-segment Ant wildcard pattern, where <code>*</code> matches zero or more characters and
+     * <code>?</code> matches exactly one.
+     */
+    private static class Glob {
+        private final String text;
+        private final char[] pattern;
+        private final boolean literal;
+        /**
+         * The pattern's minimal match length, used to reject short names without scanning them.
+         */
+        private final int minimumLength;
+
+        Glob( final String pattern ) {
+            this.text = pattern;
+            this.pattern = pattern.toCharArray();
+            this.literal = isLiteral( pattern );
+            int length = 0;
+            for ( final char c : this.pattern )
+                if ( c != '*' )
+                    length++;
+            this.minimumLength = length;
+        }
+
+        static boolean isLiteral( final String pattern ) {
+            return pattern.indexOf( '*' ) < 0 && pattern.indexOf( '?' ) < 0 && pattern.indexOf( '/' ) < 0 &&
+                    pattern.indexOf( '\\' ) < 0;
+        }
+
+        boolean matches( final String name ) {
+            if ( name.length() < this.minimumLength )
+                return false;
+            if ( this.literal )
+                return name.equals( this.text );
+
+            // Greedy matching, backtracking to the most recent star on a mismatch
+            int p = 0, n = 0, star = -1, mark = 0;
+            while ( n < name.length() ) {
+                if ( p < this.pattern.length && ( this.pattern[ p ] == '?' || this.pattern[ p ] == name.charAt( n ) ) &&
+                        this.pattern[ p ] != '*' ) {
+                    p++;
+                    n++;
+                } else if ( p < this.pattern.length && this.pattern[ p ] == '*' ) {
+                    star = p++;
+                    mark = n;
+                } else if ( star >= 0 ) {
+                    p = star + 1;
+                    n = ++mark;
+                } else
+                    return false;
+            }
+            while ( p < this.pattern.length && this.pattern[ p ] == '*' )
+                p++;
+            return p == this.pattern.length;
+        }
+    }
+}
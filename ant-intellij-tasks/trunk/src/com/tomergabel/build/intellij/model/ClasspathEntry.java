@@ -0,0 +1,180 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A resolved classpath entry (a JAR, class directory or module output directory).
+ * <p/>
+ * Entries are interned: equal paths always map to the same canonical instance, regardless of the module or library
+ * through which they were resolved, so that large projects share a single instance (and a single path string) per
+ * JAR. Hash codes are precomputed, and equality checks of interned instances reduce to a reference comparison. The
+ * intern table only holds weak references, so entries which are no longer part of any resolved classpath are
+ * reclaimed. This class is immutable and thread-safe.
+ */
+public final class ClasspathEntry {
+    private static final ConcurrentMap<String, EntryReference> entries =
+            new ConcurrentHashMap<String, EntryReference>();
+    private static final ReferenceQueue<ClasspathEntry> reclaimed = new ReferenceQueue<ClasspathEntry>();
+
+    private final String path;
+    private final File file;
+    private final int hash;
+
+    /**
+     * Private c'tor, use {@link #of(String)}.
+     */
+    private ClasspathEntry( final String path ) {
+        this.path = path;
+        this.file = new File( path );
+        this.hash = path.hashCode();
+    }
+
+    /**
+     * Returns the canonical entry for the specified path.
+     *
+     * @param path The entry's file system path.
+     * @return The interned {@link ClasspathEntry} instance.
+     * @throws IllegalArgumentException The path cannot be null.
+     */
+    public static ClasspathEntry of( final String path ) throws IllegalArgumentException {
+        if ( path == null )
+            throw new IllegalArgumentException( "The path cannot be null." );
+
+        expungeReclaimed();
+        while ( true ) {
+            final EntryReference reference = entries.get( path );
+            final ClasspathEntry entry = reference != null ? reference.get() : null;
+            if ( entry != null )
+                return entry;
+
+            // Either no entry was interned, or it was reclaimed; retry if another thread interned one meanwhile
+            final ClasspathEntry created = new ClasspathEntry( path );
+            final EntryReference createdReference = new EntryReference( created );
+            if ( reference == null ? entries.putIfAbsent( path, createdReference ) == null
+                    : entries.replace( path, reference, createdReference ) )
+                return created;
+        }
+    }
+
+    private static void expungeReclaimed() {
+        EntryReference reference;
+        while ( ( reference = (EntryReference) reclaimed.poll() ) != null )
+            entries.remove( reference.path, reference );
+    }
+
+    /**
+     * Returns the number of entries in the intern table, including entries which were reclaimed but not yet removed.
+     */
+    static int internedCount() {
+        expungeReclaimed();
+        return entries.size();
+    }
+
+    /**
+     * Returns a read-only view of the paths of the specified entries. The view is backed by the specified collection
+     * and does not copy it.
+     *
+     * @param entries The classpath entries.
+     * @return A collection of the entries' paths.
+     * @throws IllegalArgumentException The entry collection cannot be null.
+     */
+    public static Collection<String> paths( final Collection<ClasspathEntry> entries )
+            throws IllegalArgumentException {
+        if ( entries == null )
+            throw new IllegalArgumentException( "The entry collection cannot be null." );
+
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<ClasspathEntry> iterator = entries.iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return iterator.next().path;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    @Override
+    public boolean equals( final Object o ) {
+        if ( this == o )
+            return true;
+        if ( o == null || getClass() != o.getClass() )
+            return false;
+
+        final ClasspathEntry that = (ClasspathEntry) o;
+        return this.hash == that.hash && this.path.equals( that.path );
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+
+    private static class EntryReference extends WeakReference<ClasspathEntry> {
+        final String path;
+
+        EntryReference( final ClasspathEntry entry ) {
+            super( entry, reclaimed );
+            this.path = entry.path;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import java.util.*;
+
+/**
+ * A memoizing transitive classpath engine for the modules of a single project.
+ * <p/>
+ * Every resolved classpath entry (library JARs, class directories and module output directories) is assigned a dense
+ * integer ID, and each module's classpath is computed once per source/test combination as a {@link BitSet} over these
+ * IDs. Module dependencies are resolved by OR-ing the dependee's (memoized) classpath, rather than by re-resolving and
+ * re-hashing the dependee's entire dependency tree. Library dependencies are resolved once per module, against the
+ * module's own resolver. Entries are {@link ClasspathEntry interned}, so equal JARs referenced by different modules
+ * share a single ID and instance.
+ * <p/>
+ * Results are keyed on the state they are derived from. The module model is immutable for the lifetime of the owning
+ * {@link ProjectResolver}, and {@link ProjectResolverRegistry} replaces the resolver (and with it the index) when a
+ * descriptor changes. JAR directory listings are tracked by the {@link JarDirectoryIndex#generation() generation} of
+ * the {@link JarDirectoryIndex}: when it changes, all memoized classpaths are discarded. Listings are revalidated
+ * whenever a shared resolver is obtained from the registry; other callers may revalidate them by discarding the index
+ * through {@link ProjectResolver#clearClasspathCache()}. This class is thread-safe.
+ */
+final class ClasspathIndex {
+    private final ProjectResolver projectResolver;
+
+    /**
+     * The memoized classpath of a module for a single source/test combination.
+     */
+    private static final class Slot {
+        BitSet bits;
+        Collection<ClasspathEntry> entries;
+        Collection<String> paths;
+    }
+
+    /**
+     * The memoized library entries and classpaths of a module.
+     */
+    private static final class ModuleClasspaths {
+        BitSet libraries;
+        /**
+         * Indexed by {@link ClasspathIndex#slot(boolean, boolean)}.
+         */
+        final Slot[] slots = { new Slot(), new Slot(), new Slot(), new Slot() };
+    }
+
+    /**
+     * Maps entry IDs to their respective classpath entries.
+     */
+    private final List<ClasspathEntry> entries = new ArrayList<ClasspathEntry>();
+    /**
+     * Maps classpath entries to their respective IDs.
+     */
+    private final Map<ClasspathEntry, Integer> entryIds = new HashMap<ClasspathEntry, Integer>();
+    /**
+     * Maps modules to their respective IDs.
+     */
+    private final Map<Module, Integer> moduleIds = new HashMap<Module, Integer>();
+    /**
+     * The memoized classpaths for each module, indexed by module ID.
+     */
+    private final List<ModuleClasspaths> classpaths = new ArrayList<ModuleClasspaths>();
+    /**
+     * Module/slot combinations currently being resolved, used to detect circular dependencies.
+     */
+    private final Set<Integer> inProgress = new HashSet<Integer>();
+    /**
+     * The {@link JarDirectoryIndex} generation the memoized classpaths were resolved against.
+     */
+    private long generation = JarDirectoryIndex.generation();
+
+    ClasspathIndex( final ProjectResolver projectResolver ) throws IllegalArgumentException {
+        if ( projectResolver == null )
+            throw new IllegalArgumentException( "The project resolver cannot be null." );
+        this.projectResolver = projectResolver;
+    }
+
+    /**
+     * Resolves the transitive classpath of the specified module.
+     *
+     * @param resolver       The module resolver.
+     * @param includeSources Include the source (production) classpath.
+     * @param includeTests   Include the test classpath.
+     * @return The resolved classpath entries.
+     * @throws IllegalArgumentException The module resolver cannot be null.
+     * @throws ResolutionException      An error has occurred while resolving the classpath.
+     */
+    synchronized Collection<String> resolveModuleClasspath( final ModuleResolver resolver, final boolean includeSources,
+                                                            final boolean includeTests )
+            throws IllegalArgumentException, ResolutionException {
+        final Slot slot = resolveSlot( resolver, includeSources, includeTests );
+        if ( slot.paths == null )
+            slot.paths = ClasspathEntry.paths( slot.entries );
+        return slot.paths;
+    }
+
+    /**
+     * Resolves the transitive classpath of the specified module.
+     *
+     * @param resolver       The module resolver.
+     * @param includeSources Include the source (production) classpath.
+     * @param includeTests   Include the test classpath.
+     * @return The resolved (interned) classpath entries.
+     * @throws IllegalArgumentException The module resolver cannot be null.
+     * @throws ResolutionException      An error has occurred while resolving the classpath.
+     */
+    synchronized Collection<ClasspathEntry> resolveModuleClasspathEntries( final ModuleResolver resolver,
+                                                                           final boolean includeSources,
+                                                                           final boolean includeTests )
+            throws IllegalArgumentException, ResolutionException {
+        return resolveSlot( resolver, includeSources, includeTests ).entries;
+    }
+
+    /**
+     * Resolves the memoized classpath of the specified module, discarding all memoized classpaths first if the JAR
+     * directory listings have changed since they were resolved.
+     */
+    private Slot resolveSlot( final ModuleResolver resolver, final boolean includeSources, final boolean includeTests )
+            throws IllegalArgumentException, ResolutionException {
+        if ( resolver == null )
+            throw new IllegalArgumentException( "The module resolver cannot be null." );
+
+        final long current = JarDirectoryIndex.generation();
+        if ( current != this.generation ) {
+            this.entries.clear();
+            this.entryIds.clear();
+            this.moduleIds.clear();
+            this.classpaths.clear();
+            this.generation = current;
+        }
+
+        final int module = resolve( resolver, includeSources, includeTests );
+        final Slot slot = this.classpaths.get( module ).slots[ slot( includeSources, includeTests ) ];
+        if ( slot.entries == null ) {
+            final List<ClasspathEntry> classpath = new ArrayList<ClasspathEntry>( slot.bits.cardinality() );
+            for ( int i = slot.bits.nextSetBit( 0 ); i >= 0; i = slot.bits.nextSetBit( i + 1 ) )
+                classpath.add( this.entries.get( i ) );
+            slot.entries = Collections.unmodifiableCollection( classpath );
+        }
+        return slot;
+    }
+
+    /**
+     * Resolves the classpath bitset for the specified module and returns the module ID.
+     */
+    private int resolve( final ModuleResolver resolver, final boolean includeSources, final boolean includeTests )
+            throws ResolutionException {
+        final Module module = resolver.getModule();
+        final int id = moduleId( module );
+        final int slot = slot( includeSources, includeTests );
+        if ( this.classpaths.get( id ).slots[ slot ].bits != null )
+            return id;
+
+        final int key = id * 4 + slot;
+        if ( !this.inProgress.add( key ) )
+            throw new ResolutionException(
+                    "Circular dependency detected while resolving classpath for module \"" + module.getName() + "\"" );
+        try {
+            final BitSet classpath = new BitSet();
+            classpath.or( resolveLibraries( resolver, id ) );
+            for ( final Dependency dependency : module.getDependencies() ) {
+                if ( !( dependency instanceof ModuleDependency ) )
+                    continue;
+
+                // A module dependency contributes its own classpath, plus its compile output
+                final ModuleResolver dependee =
+                        this.projectResolver.getModuleResolver( ( (ModuleDependency) dependency ).name );
+                final int dependeeId = resolve( dependee, includeSources, includeTests );
+                classpath.or( this.classpaths.get( dependeeId ).slots[ slot ].bits );
+                addOutputs( dependee, includeSources, includeTests, classpath );
+            }
+            addOutputs( resolver, includeSources, includeTests, classpath );
+
+            this.classpaths.get( id ).slots[ slot ].bits = classpath;
+            return id;
+        } finally {
+            this.inProgress.remove( key );
+        }
+    }
+
+    private BitSet resolveLibraries( final ModuleResolver resolver, final int id ) throws ResolutionException {
+        final ModuleClasspaths classpaths = this.classpaths.get( id );
+        if ( classpaths.libraries == null ) {
+            final BitSet bits = new BitSet();
+            for ( final Dependency dependency : resolver.getModule().getDependencies() )
+                if ( dependency instanceof LibraryDependency )
+                    for ( final ClasspathEntry entry :
+                            ( (LibraryDependency) dependency ).resolveClasspathEntries( resolver ) )
+                        bits.set( entryId( entry ) );
+                else if ( !( dependency instanceof ModuleDependency ) )
+                    for ( final String entry : dependency.resolveClasspath( resolver, true, true ) )
+                        bits.set( entryId( ClasspathEntry.of( entry ) ) );
+            classpaths.libraries = bits;
+        }
+        return classpaths.libraries;
+    }
+
+    private void addOutputs( final ModuleResolver resolver, final boolean includeSources, final boolean includeTests,
+                             final BitSet classpath ) throws ResolutionException {
+        if ( includeSources )
+            classpath.set( entryId( resolver.resolveModuleOutputEntry( false ) ) );
+        if ( includeTests )
+            classpath.set( entryId( resolver.resolveModuleOutputEntry( true ) ) );
+    }
+
+    private int moduleId( final Module module ) {
+        Integer id = this.moduleIds.get( module );
+        if ( id == null ) {
+            id = this.moduleIds.size();
+            this.moduleIds.put( module, id );
+            this.classpaths.add( new ModuleClasspaths() );
+        }
+        return id;
+    }
+
+    private int entryId( final ClasspathEntry entry ) {
+        Integer id = this.entryIds.get( entry );
+        if ( id == null ) {
+            id = this.entries.size();
+            this.entries.add( entry );
+            this.entryIds.put( entry, id );
+        }
+        return id;
+    }
+
+    private static int slot( final boolean includeSources, final boolean includeTests ) {
+        return ( includeSources ? 1 : 0 ) | ( includeTests ? 2 : 0 );
+    }
+}
@@ -21,12 +21,13 @@
 
 package com.tomergabel.build.intellij.model;
 
+import java.io.Serializable;
 import java.util.Collection;
 
 /**
  * An abstract class providing a common base object for dependencies within an IntelliJ IDEA project.
  */
-public interface Dependency {
+public interface Dependency extends Serializable {
     /**
      * Resolves the entries this dependency contributes to a dependent module's classpath.
      *
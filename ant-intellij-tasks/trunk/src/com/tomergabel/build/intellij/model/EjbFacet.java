@@ -26,12 +26,20 @@ import org.w3c.dom.Node;
 import java.util.Collection;
 
 public class EjbFacet extends PackageFacetBase {
+    private static final long serialVersionUID = 1L;
+
     private final Collection<Root> ejbRoots;
 
     public Collection<Root> getEjbRoots() {
         return this.ejbRoots;
     }
 
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        precompile( "configuration/ejbRoots/root" );
+    }
+
     public EjbFacet( final Node facetNode ) throws IllegalArgumentException, ParseException {
         super( facetNode );
 
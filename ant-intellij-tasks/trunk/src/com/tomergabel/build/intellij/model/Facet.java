@@ -32,6 +32,8 @@ import java.util.Map;
  * A base parser class for all module facets.
  */
 public abstract class Facet extends ParserBase {
+    private static final long serialVersionUID = 1L;
+
     /**
      * Creats and returns a new instance of {@link Facet}.
      *
@@ -21,11 +21,26 @@
 
 package com.tomergabel.build.intellij.model;
 
+import com.tomergabel.util.XmlUtils;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -37,10 +52,62 @@ import java.util.Map;
  * This class provides a common codebase for parsing these components and handling errors. Implementors register
  * component {@link Handler handlers} via {@link #registerComponentHandler(String, Handler)}, typically at construction
  * time, and can specify a default handler for unrecognized sections via a constructor argument. A call to {@link
- * #processComponents(org.w3c.dom.Document)} will then process the file, delegating the task of parsing component
+ * #processDocument(byte[], java.net.URI)} will then process the file, delegating the task of parsing component
  * elements to their respective handlers.
+ * <p/>
+ * Documents are processed in a single pass with a StAX stream reader: each component is read into a small DOM fragment
+ * which is handed to its handler and then discarded, and components registered with {@link #ignoreHandler} are skipped
+ * without being read at all. This avoids building a DOM tree of the entire file: the tree held at any one time is
+ * bounded by the largest handled component. The raw file content is still read into memory in full, as it is needed
+ * to validate {@link ModelCache} entries. The full-DOM backend can be selected instead by setting the
+ * <tt>{@value #PARSER_PROPERTY}</tt> system property to <tt>dom</tt>, and is used automatically if no StAX
+ * implementation is available.
+ * <p/>
+ * Handlers are not persisted when a parsed file is stored in the {@link ModelCache}. Components which were delegated to
+ * the default handler are recorded instead, and are replayed against the caller's default handler via {@link
+ * #replayUnhandledComponents(Handler)} when the file is loaded from cache.
  */
 public abstract class IntelliJParserBase extends ParserBase {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The system property used to select the parser backend (<tt>stax</tt> or <tt>dom</tt>).
+     */
+    public static final String PARSER_PROPERTY = "ant-intellij-tasks.parser";
+
+    /**
+     * A StAX input factory, or {@literal null} if no StAX implementation is available.
+     */
+    private static final XMLInputFactory inputFactory;
+
+    /** Static c'tor */
+    static {
+        XMLInputFactory factory;
+        try {
+            factory = XMLInputFactory.newInstance();
+            factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, false );
+            factory.setProperty( XMLInputFactory.IS_COALESCING, true );
+        } catch ( Exception e ) {
+            // No usable StAX implementation, fall back to DOM
+            factory = null;
+        } catch ( Error e ) {
+            // FactoryConfigurationError, fall back to DOM
+            factory = null;
+        }
+        inputFactory = factory;
+    }
+
+    /**
+     * Determines whether documents are processed with the streaming (StAX) backend. The <tt>{@value
+     * #PARSER_PROPERTY}</tt> system property is consulted on every call, so the backend can be switched between parses.
+     *
+     * @return {@literal true} if the streaming backend is selected and available, {@literal false} if documents are
+     *         parsed into a full DOM.
+     */
+    static boolean isStreaming() {
+        return inputFactory != null && !"dom".equalsIgnoreCase( System.getProperty( PARSER_PROPERTY ) );
+    }
+
     /**
      * A {@link Handler} which simply ignores the specified component. Typically used to avoid warnings or throws on
      * unneeded or unsupported components.
@@ -106,15 +173,20 @@ public abstract class IntelliJParserBase extends ParserBase {
     /**
      * Maps property names to their respective values.
      */
-    private Map<String, String> propertyCache;
+    private transient volatile Map<String, String> propertyCache;
     /**
      * Maps component names to their respective handlers.
      */
-    private final Map<String, Handler> handlerMap = new HashMap<String, Handler>();
+    private final transient Map<String, Handler> handlerMap = new HashMap<String, Handler>();
     /**
      * The default handler.
      */
-    private final Handler defaultHandler;
+    private final transient Handler defaultHandler;
+    /**
+     * The XML representation of components delegated to the default handler, recorded for replay if the model cache is
+     * enabled.
+     */
+    private final List<String> unhandledComponents = new ArrayList<String>();
     /**
      * The root node name (e.g. "project" for project files).
      */
@@ -169,6 +241,55 @@ public abstract class IntelliJParserBase extends ParserBase {
         this.handlerMap.put( componentName, handler );
     }
 
+    /**
+     * Processes the root element of this IDEA metadata file. This is called before any component is processed, and the
+     * element passed in is only guaranteed to contain the root element's attributes (not its children).
+     * <p/>
+     * The default implementation does nothing.
+     *
+     * @param root The root element.
+     * @throws ParseException An error has occurred while processing the root element.
+     */
+    protected void processRootElement( final Element root ) throws ParseException {
+    }
+
+    /**
+     * Parses and processes this IDEA metadata file: the root element is handed to {@link #processRootElement(Element)},
+     * after which all components are processed.
+     *
+     * @param content    The content of the IDEA metadata file.
+     * @param descriptor The IDEA metadata file URI, used to resolve relative references.
+     * @throws IllegalArgumentException <ul><li>The content cannot be null.</li><li>The descriptor URI cannot be
+     *                                  null.</li></ul>
+     * @throws ParseException           An error has occurred during parsing.
+     */
+    protected final void processDocument( final byte[] content, final URI descriptor )
+            throws IllegalArgumentException, ParseException {
+        if ( content == null )
+            throw new IllegalArgumentException( "The content cannot be null." );
+        if ( descriptor == null )
+            throw new IllegalArgumentException( "The descriptor URI cannot be null." );
+
+        if ( isStreaming() )
+            processStream( content, descriptor );
+        else {
+            final Document document;
+            try {
+                document = newDocumentBuilder()
+                        .parse( new ByteArrayInputStream( content ), descriptor.toString() );
+            } catch ( SAXException e ) {
+                throw new ParseException( "Cannot parse XML document, see inner exception for details.", e );
+            } catch ( ParserConfigurationException e ) {
+                throw new ParseException( "XML parser configuration invalid, see inner exception for details.", e );
+            } catch ( IOException e ) {
+                // Safety net, should never happen
+                throw new IllegalStateException( e );
+            }
+            processRootElement( document.getDocumentElement() );
+            processComponents( document );
+        }
+    }
+
     /**
      * Processes all components in this IDEA metadata file.
      *
@@ -181,15 +302,168 @@ public abstract class IntelliJParserBase extends ParserBase {
             throw new IllegalArgumentException( "The document cannot be null." );
 
         for ( final Node component : extractAll( document, this.rootNodeName + "/component",
-                "Cannot extract project components" ) ) {
-            final String componentName = extract( component, "@name", "Cannot extract component name" );
+                "Cannot extract project components" ) )
+            processComponent( extract( component, "@name", "Cannot extract component name" ), component );
+    }
 
-            // Resolve handler
-            final Handler handler = this.handlerMap.containsKey( componentName ) ? this.handlerMap.get( componentName )
-                    : this.defaultHandler;
+    private void processComponent( final String componentName, final Node component ) throws ParseException {
+        // Resolve handler
+        final Handler handler = this.handlerMap.containsKey( componentName ) ? this.handlerMap.get( componentName )
+                : this.defaultHandler;
+        if ( !this.handlerMap.containsKey( componentName ) && ModelCache.isEnabled() )
+            this.unhandledComponents.add( XmlUtils.serialize( component ) );
+
+        // Parse component
+        handler.parse( componentName, component );
+    }
+
+    private void processStream( final byte[] content, final URI descriptor ) throws ParseException {
+        final Document document;
+        try {
+            document = newDocumentBuilder().newDocument();
+        } catch ( ParserConfigurationException e ) {
+            throw new ParseException( "XML parser configuration invalid, see inner exception for details.", e );
+        }
+
+        try {
+            final XMLStreamReader reader;
+            synchronized ( inputFactory ) {
+                reader = inputFactory
+                        .createXMLStreamReader( descriptor.toString(), new ByteArrayInputStream( content ) );
+            }
+            try {
+                // Process root element
+                if ( reader.nextTag() != XMLStreamConstants.START_ELEMENT )
+                    throw new ParseException( "Cannot find document root element." );
+                final Element root = createElement( reader, document );
+                document.appendChild( root );
+                processRootElement( root );
+                if ( !root.getTagName().equals( this.rootNodeName ) )
+                    return;
+
+                // Process components one at a time, discarding each once it has been handled
+                int event;
+                while ( ( event = reader.next() ) != XMLStreamConstants.END_ELEMENT ) {
+                    if ( event != XMLStreamConstants.START_ELEMENT )
+                        continue;
+                    final String componentName = reader.getAttributeValue( null, "name" );
+                    if ( !"component".equals( reader.getLocalName() ) ||
+                            this.handlerMap.get( componentName ) == ignoreHandler ) {
+                        skipElement( reader );
+                        continue;
+                    }
+
+                    final Element component = readElement( reader, document );
+                    root.appendChild( component );
+                    try {
+                        processComponent( componentName, component );
+                    } finally {
+                        root.removeChild( component );
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch ( XMLStreamException e ) {
+            throw new ParseException( "Cannot parse XML document, see inner exception for details.", e );
+        }
+    }
+
+    private static Element createElement( final XMLStreamReader reader, final Document document ) {
+        final Element element = document.createElement( qualify( reader.getPrefix(), reader.getLocalName() ) );
+        for ( int i = 0; i < reader.getAttributeCount(); ++i )
+            element.setAttribute( qualify( reader.getAttributePrefix( i ), reader.getAttributeLocalName( i ) ),
+                    reader.getAttributeValue( i ) );
+        return element;
+    }
+
+    private static String qualify( final String prefix, final String localName ) {
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * Reads the element at the current position of the stream reader (including all descendants) into a DOM element.
+     * On return the reader is positioned on the element's end tag.
+     */
+    private static Element readElement( final XMLStreamReader reader, final Document document )
+            throws XMLStreamException {
+        final Element element = createElement( reader, document );
+        Element current = element;
+        while ( true ) {
+            switch ( reader.next() ) {
+                case XMLStreamConstants.START_ELEMENT:
+                    final Element child = createElement( reader, document );
+                    current.appendChild( child );
+                    current = child;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if ( current == element )
+                        return element;
+                    current = (Element) current.getParentNode();
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    current.appendChild( document.createTextNode( reader.getText() ) );
+                    break;
+
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException( "Unexpected end of document." );
+
+                default:
+                    // Comments, processing instructions etc. are irrelevant
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Skips the element at the current position of the stream reader, including all descendants. On return the reader
+     * is positioned on the element's end tag.
+     */
+    private static void skipElement( final XMLStreamReader reader ) throws XMLStreamException {
+        int depth = 1;
+        while ( depth > 0 ) {
+            final int event = reader.next();
+            if ( event == XMLStreamConstants.START_ELEMENT )
+                ++depth;
+            else if ( event == XMLStreamConstants.END_ELEMENT )
+                --depth;
+            else if ( event == XMLStreamConstants.END_DOCUMENT )
+                throw new XMLStreamException( "Unexpected end of document." );
+        }
+    }
+
+    /**
+     * Replays all components recorded as unhandled during parsing against the specified default handler. This is used
+     * to reproduce the default handler behaviour (e.g. warnings or errors) when a file is loaded from the {@link
+     * ModelCache} instead of being parsed.
+     *
+     * @param defaultHandler The default component handler.
+     * @throws IllegalArgumentException The default handler cannot be null.
+     * @throws ParseException           An error has occurred while replaying a component.
+     */
+    final void replayUnhandledComponents( final Handler defaultHandler )
+            throws IllegalArgumentException, ParseException {
+        if ( defaultHandler == null )
+            throw new IllegalArgumentException( "The default handler cannot be null." );
 
-            // Parse component
-            handler.parse( componentName, component );
+        for ( final String xml : this.unhandledComponents ) {
+            final Element component;
+            try {
+                component = newDocumentBuilder().parse( new InputSource( new StringReader( xml ) ) )
+                        .getDocumentElement();
+            } catch ( SAXException e ) {
+                throw new ParseException( "Cannot parse cached component, see inner exception for details.", e );
+            } catch ( ParserConfigurationException e ) {
+                throw new ParseException( "XML parser configuration invalid, see inner exception for details.", e );
+            } catch ( IOException e ) {
+                // Safety net, should never happen
+                throw new IllegalStateException( e );
+            }
+            defaultHandler.parse( component.getAttribute( "name" ), component );
         }
     }
 }
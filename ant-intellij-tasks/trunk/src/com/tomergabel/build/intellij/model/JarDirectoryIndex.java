@@ -0,0 +1,293 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the JARs found in library JAR directories.
+ * <p/>
+ * Listing a large JAR directory tree for every library resolution is expensive, so each (directory, recursive) pair is
+ * scanned once and its JARs are cached along with the modification times of every directory visited. Adding, removing
+ * or renaming a JAR changes the modification time of its directory, so a cached listing is reused for as long as none
+ * of those directories changed; validating it costs one file system lookup per directory rather than a full listing.
+ * Listings of directories modified shortly before the scan are never trusted, as a file system with a coarse timestamp
+ * resolution could then miss a subsequent change.
+ * <p/>
+ * Whenever a refreshed listing differs from the one it replaces, the index {@link #generation() generation} is
+ * incremented; consumers which memoize results derived from listings (such as {@link ClasspathIndex}) compare it to
+ * detect that their results are stale.
+ * <p/>
+ * When the {@link ModelCache} is enabled, listings are also persisted to the cache directory, so that subsequent builds
+ * can reuse them as well. Listings are stored as plain text (a version header followed by one path per line) rather
+ * than serialized objects, since they are only lists of paths. This class is thread-safe.
+ */
+final class JarDirectoryIndex {
+    /**
+     * Private c'tor.
+     */
+    private JarDirectoryIndex() {
+    }
+
+    /**
+     * Directories modified within this interval before a scan are considered unstable.
+     */
+    private static final long TIMESTAMP_RESOLUTION = 2000;
+
+    private static final String UTF8 = "UTF-8";
+
+    private static final String RECURSIVE = "recursive:";
+    private static final String FLAT = "flat:";
+
+    private static final ConcurrentMap<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+
+    /**
+     * Incremented whenever an in-memory listing is discarded or replaced by a different listing.
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    /**
+     * A cached listing of a JAR directory.
+     */
+    private static class Listing {
+        final String key;
+        final String[] jars;
+        final String[] directories;
+        final long[] modified;
+        final long scanned;
+
+        Listing( final String key, final List<String> jars, final List<File> directories, final long scanned ) {
+            this.key = key;
+            this.jars = jars.toArray( new String[ jars.size() ] );
+            this.directories = new String[ directories.size() ];
+            this.modified = new long[ directories.size() ];
+            for ( int i = 0; i < this.directories.length; i++ ) {
+                this.directories[ i ] = directories.get( i ).getPath();
+                this.modified[ i ] = directories.get( i ).lastModified();
+            }
+            this.scanned = scanned;
+        }
+
+        Listing( final String key, final String[] jars, final String[] directories, final long[] modified,
+                 final long scanned ) {
+            this.key = key;
+            this.jars = jars;
+            this.directories = directories;
+            this.modified = modified;
+            this.scanned = scanned;
+        }
+
+        boolean isValid() {
+            for ( int i = 0; i < this.directories.length; i++ )
+                if ( this.modified[ i ] >= this.scanned - TIMESTAMP_RESOLUTION ||
+                        new File( this.directories[ i ] ).lastModified() != this.modified[ i ] )
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Lists the JARs (i.e. files with a <code>.jar</code> extension, regardless of case) in the specified directory.
+     *
+     * @param directory The JAR directory, which must exist.
+     * @param recursive Should subdirectories be listed as well?
+     * @return The absolute paths of the JARs found.
+     * @throws IllegalArgumentException The JAR directory cannot be null.
+     */
+    static Collection<String> list( final File directory, final boolean recursive ) throws IllegalArgumentException {
+        if ( directory == null )
+            throw new IllegalArgumentException( "The JAR directory cannot be null." );
+
+        final String key = ( recursive ? RECURSIVE : FLAT ) + directory.getAbsolutePath();
+        final Listing previous = listings.get( key );
+        Listing listing = previous;
+        if ( listing == null || !listing.isValid() ) {
+            listing = load( key );
+            if ( listing == null || !listing.isValid() ) {
+                listing = scan( key, directory.getAbsoluteFile(), recursive );
+                store( listing );
+            }
+            listings.put( key, listing );
+            if ( previous != null && !Arrays.equals( previous.jars, listing.jars ) )
+                generation.incrementAndGet();
+        }
+        return Collections.unmodifiableList( Arrays.asList( listing.jars ) );
+    }
+
+    /**
+     * Returns the current generation of the index, which changes whenever a listing is discarded or replaced by a
+     * different listing.
+     *
+     * @return The current index generation.
+     */
+    static long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Revalidates all in-memory listings, refreshing those whose directories have changed. This costs one file system
+     * lookup per directory for unchanged listings.
+     *
+     * @return The index generation after revalidation.
+     */
+    static long validate() {
+        for ( final String key : listings.keySet() ) {
+            final boolean recursive = key.startsWith( RECURSIVE );
+            final File directory = new File( key.substring( ( recursive ? RECURSIVE : FLAT ).length() ) );
+            if ( directory.isDirectory() )
+                list( directory, recursive );
+            else if ( listings.remove( key ) != null )
+                generation.incrementAndGet();
+        }
+        return generation.get();
+    }
+
+    /**
+     * Discards all in-memory listings. Persisted listings are discarded by {@link ModelCache#clear()}.
+     */
+    static void clear() {
+        listings.clear();
+        generation.incrementAndGet();
+    }
+
+    private static Listing scan( final String key, final File root, final boolean recursive ) {
+        final long scanned = System.currentTimeMillis();
+        final List<String> jars = new ArrayList<String>();
+        final List<File> directories = new ArrayList<File>();
+        final Deque<File> pending = new ArrayDeque<File>();
+        pending.push( root );
+        while ( !pending.isEmpty() ) {
+            final File directory = pending.pop();
+            directories.add( directory );
+            final File[] children = directory.listFiles();
+            if ( children == null )
+                continue;
+            for ( final File child : children )
+                if ( recursive && child.isDirectory() )
+                    pending.push( child );
+                else if ( child.getName().toLowerCase().endsWith( ".jar" ) )
+                    jars.add( child.getAbsolutePath() );
+        }
+        return new Listing( key, jars, directories, scanned );
+    }
+
+    private static Listing load( final String key ) {
+        if ( !ModelCache.isEnabled() )
+            return null;
+
+        final File entry = ModelCache.getEntryFile( key, ModelCache.INDEX_EXTENSION );
+        if ( !entry.isFile() )
+            return null;
+        try {
+            final BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( entry ), UTF8 ) );
+            try {
+                if ( !ModelCache.VERSION.equals( in.readLine() ) || !key.equals( in.readLine() ) )
+                    return null;
+                final long scanned = Long.parseLong( in.readLine() );
+                final String[] directories = new String[ Integer.parseInt( in.readLine() ) ];
+                final long[] modified = new long[ directories.length ];
+                for ( int i = 0; i < directories.length; i++ ) {
+                    modified[ i ] = Long.parseLong( in.readLine() );
+                    directories[ i ] = readPath( in );
+                }
+                final String[] jars = new String[ Integer.parseInt( in.readLine() ) ];
+                for ( int i = 0; i < jars.length; i++ )
+                    jars[ i ] = readPath( in );
+                ModelCache.touch( entry );
+                return new Listing( key, jars, directories, modified, scanned );
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // Corrupt or incompatible entry, treat as a miss
+            return null;
+        } catch ( NumberFormatException e ) {
+            return null;
+        } catch ( NegativeArraySizeException e ) {
+            return null;
+        }
+    }
+
+    private static String readPath( final BufferedReader in ) throws IOException {
+        final String path = in.readLine();
+        if ( path == null )
+            throw new EOFException( "Truncated listing." );
+        return path;
+    }
+
+    private static void store( final Listing listing ) {
+        if ( !ModelCache.isEnabled() )
+            return;
+
+        // Paths are stored one per line, so listings containing line breaks cannot be persisted
+        if ( hasLineBreak( listing.key ) )
+            return;
+        for ( final String path : listing.directories )
+            if ( hasLineBreak( path ) )
+                return;
+        for ( final String path : listing.jars )
+            if ( hasLineBreak( path ) )
+                return;
+
+        final File entry = ModelCache.getEntryFile( listing.key, ModelCache.INDEX_EXTENSION );
+        File temp = null;
+        try {
+            if ( !ModelCache.prepareDirectory() )
+                return;
+
+            // Write to a temporary file first so that concurrent builds never observe partial entries
+            temp = File.createTempFile( entry.getName(), ".tmp", entry.getParentFile() );
+            final Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( temp ), UTF8 ) );
+            try {
+                out.write( ModelCache.VERSION + "\n" + listing.key + "\n" + listing.scanned + "\n" );
+                out.write( listing.directories.length + "\n" );
+                for ( int i = 0; i < listing.directories.length; i++ )
+                    out.write( listing.modified[ i ] + "\n" + listing.directories[ i ] + "\n" );
+                out.write( listing.jars.length + "\n" );
+                for ( final String jar : listing.jars )
+                    out.write( jar + "\n" );
+            } finally {
+                out.close();
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            entry.delete();
+            if ( temp.renameTo( entry ) )
+                temp = null;
+            ModelCache.pruneIfDue();
+        } catch ( IOException e ) {
+            // Cache failures are not fatal
+        } finally {
+            if ( temp != null )
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+        }
+    }
+
+    private static boolean hasLineBreak( final String string ) {
+        return string.indexOf( '\n' ) >= 0 || string.indexOf( '\r' ) >= 0;
+    }
+}
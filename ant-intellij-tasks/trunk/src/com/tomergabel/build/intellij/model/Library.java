@@ -26,7 +26,6 @@ import com.tomergabel.util.UriUtils;
 import org.w3c.dom.Node;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -36,6 +35,8 @@ import java.util.Set;
  * Represent a single library in an IntelliJ IDEA project.
  */
 public final class Library extends ParserBase {
+    private static final long serialVersionUID = 1L;
+
     /**
      * The library name.
      */
@@ -58,6 +59,12 @@ public final class Library extends ParserBase {
      */
     private final Collection<Tuple<String, Boolean>> jarDirectories = new HashSet<Tuple<String, Boolean>>();
 
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        precompile( "@name", "jarDirectory", "@url", "@recursive", "CLASSES/root", "JAVADOC/root", "SOURCES/root" );
+    }
+
     /**
      * Package-only c'tor for testing purposes. Do not use!
      *
@@ -154,14 +161,27 @@ public final class Library extends ParserBase {
      */
     public Collection<String> resolveClasspath( final PropertyResolver resolver )
             throws IllegalArgumentException, ResolutionException {
+        return ClasspathEntry.paths( resolveClasspathEntries( resolver ) );
+    }
+
+    /**
+     * Resolves the classpath for this library using the specified {@link PropertyResolver resolver}.
+     *
+     * @param resolver The {@link PropertyResolver} used to resolve the library URIs.
+     * @return A collection of the (interned) resolved classpath entries for this library.
+     * @throws IllegalArgumentException The property resolver cannot be null.
+     * @throws ResolutionException      An error has occurred while resolving the classpath.
+     */
+    public Collection<ClasspathEntry> resolveClasspathEntries( final PropertyResolver resolver )
+            throws IllegalArgumentException, ResolutionException {
         if ( resolver == null )
             throw new IllegalArgumentException( "The property resolver cannot be null." );
 
-        final Set<String> classpath = new HashSet<String>();
+        final Set<ClasspathEntry> classpath = new HashSet<ClasspathEntry>();
 
         // Resolve class URIs
         for ( final String uri : this.classes )
-            classpath.add( UriUtils.getPath( resolver.resolveUriString( uri ) ) );
+            classpath.add( resolver.resolveClasspathEntry( uri ) );
 
         // Resolve JAR directories
         for ( final Tuple<String, Boolean> jarDirectory : this.jarDirectories )
@@ -173,7 +193,8 @@ public final class Library extends ParserBase {
     }
 
     /**
-     * Takes a JAR directory and adds all JARs therein (recursion optional) to the specified classpath container.
+     * Takes a JAR directory and adds all JARs therein (recursion optional) to the specified classpath container. JAR
+     * directory listings are cached by the {@link JarDirectoryIndex}.
      *
      * @param directory The directory to resolve.
      * @param recursive Should the directory be reoslved recursively?
@@ -183,7 +204,7 @@ public final class Library extends ParserBase {
      * @throws ResolutionException      <ul><li>The directory does not exist.</li><li>The directory parameter does not
      *                                  point to a directory.</li></ul>
      */
-    private void resolveJarDirectory( final File directory, final boolean recursive, final Set<String> bag )
+    private void resolveJarDirectory( final File directory, final boolean recursive, final Set<ClasspathEntry> bag )
             throws IllegalArgumentException, ResolutionException {
         if ( !directory.exists() )
             throw new ResolutionException(
@@ -192,17 +213,8 @@ public final class Library extends ParserBase {
             throw new ResolutionException(
                     "Directory \"" + directory + "\" is referenced by " + this.toString() + " but not a directory." );
 
-        for ( final File file : directory.listFiles( new FileFilter() {
-            @Override
-            public boolean accept( final File pathname ) {
-                return ( recursive && pathname.isDirectory() ) || pathname.getName().toLowerCase().endsWith( ".jar" );
-            }
-        } ) ) {
-            if ( recursive && file.isDirectory() )
-                resolveJarDirectory( file, recursive, bag );
-            else
-                bag.add( file.getAbsolutePath() );
-        }
+        for ( final String jar : JarDirectoryIndex.list( directory, recursive ) )
+            bag.add( ClasspathEntry.of( jar ) );
     }
 
     /**
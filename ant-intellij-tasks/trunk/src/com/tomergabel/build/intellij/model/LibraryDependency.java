@@ -30,6 +30,8 @@ import java.util.Collection;
  * the same workstation). This implementation currently <em>does not support</em> global dependencies.
  */
 public abstract class LibraryDependency implements Dependency {
+    private static final long serialVersionUID = 1L;
+
     /**
      * The level in which the library is specified.
      */
@@ -74,6 +76,19 @@ public abstract class LibraryDependency implements Dependency {
         return library.resolveClasspath( resolver );
     }
 
+    /**
+     * Resolves the entries this dependency contributes to a dependent module's classpath.
+     *
+     * @param resolver The module against which this dependency should be resolved.
+     * @return The (interned) classpath entries of the library.
+     * @throws ResolutionException An error has occurred while resolving the classpath.
+     * @see #resolveClasspath(ModuleResolver, boolean, boolean)
+     */
+    public final Collection<ClasspathEntry> resolveClasspathEntries( final ModuleResolver resolver )
+            throws ResolutionException {
+        return resolveLibrary( resolver ).resolveClasspathEntries( resolver );
+    }
+
     /**
      * Resolves this dependency and returns the corresponding library.
      *
@@ -0,0 +1,485 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A persistent, process-independent cache of parsed IntelliJ IDEA metadata files.
+ * <p/>
+ * Parsed {@link Project projects} and {@link Module modules} are serialized to a cache directory, keyed by their
+ * descriptor URI and validated against a hash of the descriptor content as well as the {@link #VERSION cache version}.
+ * This allows a fresh JVM to skip DOM building
+ * and XPath evaluation entirely for unchanged descriptors. {@link Project#parse(java.net.URI)} and {@link
+ * Module#parse(java.net.URI)} go through the cache transparently.
+ * <p/>
+ * The cache is enabled by default, and is stored under <tt>${user.home}/.ant-intellij-tasks/cache</tt>. The cache
+ * directory is created readable and writable by its owner only, and entries are deserialized through an allow-list of
+ * the model classes and the JDK types they are built from, so that entries planted by other users cannot inject
+ * arbitrary objects into the build. The cache can be disabled by setting the <tt>{@value #ENABLED_PROPERTY}</tt> system
+ * property to <tt>false</tt>, and relocated via the <tt>{@value #DIRECTORY_PROPERTY}</tt> system property; both
+ * settings can also be changed at runtime. Cache failures (e.g. an unwritable directory or an entry written by an
+ * incompatible version) are never fatal, and simply result in the descriptor being parsed.
+ * <p/>
+ * The modification time of an entry records when it was last used. The cache directory is pruned at most once every
+ * {@link #PRUNE_INTERVAL day}, when an entry is stored: entries which have not been used for {@link #MAX_UNUSED_AGE 30
+ * days}, and entries whose descriptor file no longer exists, are discarded, and if more than {@link #MAX_ENTRIES}
+ * entries remain the least recently used ones are discarded as well.
+ */
+public final class ModelCache {
+    /**
+     * Private c'tor.
+     */
+    private ModelCache() {
+    }
+
+    /**
+     * The system property used to enable or disable the cache.
+     */
+    public static final String ENABLED_PROPERTY = "ant-intellij-tasks.modelcache";
+    /**
+     * The system property used to specify the cache directory.
+     */
+    public static final String DIRECTORY_PROPERTY = "ant-intellij-tasks.modelcache.dir";
+    /**
+     * The cache entry file extension.
+     */
+    static final String EXTENSION = ".model";
+    /**
+     * The extension of entry files written by other components (e.g. the {@link JarDirectoryIndex}).
+     */
+    static final String INDEX_EXTENSION = ".index";
+    /**
+     * The file whose modification time records when the cache directory was last pruned.
+     */
+    private static final String PRUNE_MARKER = ".pruned";
+    /**
+     * The minimal interval between two prunings of the cache directory.
+     */
+    static final long PRUNE_INTERVAL = 24L * 60 * 60 * 1000;
+    /**
+     * Entries which have not been used for this long are discarded when the cache directory is pruned.
+     */
+    static final long MAX_UNUSED_AGE = 30 * PRUNE_INTERVAL;
+    /**
+     * The maximal number of entries retained when the cache directory is pruned.
+     */
+    static final int MAX_ENTRIES = 4096;
+    /**
+     * The entry format version. This must be incremented whenever the parsing logic or the serialized form of the model
+     * classes changes, so that entries written by previous versions are discarded.
+     */
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * The cache version written to every entry header, which comprises the {@link #FORMAT_VERSION format version} and
+     * the identity (size and modification time) of the JAR from which this class was loaded, if any. Entries written by
+     * any other build of this library are therefore treated as stale.
+     */
+    static final String VERSION;
+
+    /**
+     * Static c'tor
+     */
+    static {
+        String version = String.valueOf( FORMAT_VERSION );
+        try {
+            final CodeSource source = ModelCache.class.getProtectionDomain().getCodeSource();
+            if ( source != null && source.getLocation() != null &&
+                    "file".equals( source.getLocation().getProtocol() ) ) {
+                final File location = new File( source.getLocation().toURI() );
+                if ( location.isFile() )
+                    version += ":" + location.length() + ":" + location.lastModified();
+            }
+        } catch ( URISyntaxException e ) {
+            // Nothing we can do, ignore
+        } catch ( SecurityException e ) {
+            // Nothing we can do, ignore
+        }
+        VERSION = version;
+    }
+
+    private static volatile boolean enabled = !"false".equalsIgnoreCase( System.getProperty( ENABLED_PROPERTY ) );
+    private static volatile File directory = new File( System.getProperty( DIRECTORY_PROPERTY,
+            new File( System.getProperty( "user.home" ), ".ant-intellij-tasks" + File.separator + "cache" )
+                    .getPath() ) );
+
+    /**
+     * The JDK classes which may appear in a serialized model, in addition to the model classes themselves.
+     */
+    private static final Set<String> allowedClasses = new HashSet<String>( Arrays.asList(
+            "java.lang.String", "java.lang.Boolean", "java.lang.Number", "java.lang.Integer", "java.lang.Long",
+            "java.lang.Enum", "java.net.URI", "java.util.ArrayList", "java.util.LinkedList", "java.util.HashSet",
+            "java.util.LinkedHashSet", "java.util.HashMap", "java.util.LinkedHashMap", "java.util.Arrays$ArrayList",
+            "java.util.Collections$UnmodifiableCollection", "java.util.Collections$UnmodifiableSet",
+            "java.util.Collections$UnmodifiableList", "java.util.Collections$UnmodifiableRandomAccessList",
+            "java.util.Collections$UnmodifiableMap", "java.util.Collections$EmptyList",
+            "java.util.Collections$EmptySet", "java.util.Collections$EmptyMap", "java.util.Collections$SingletonSet",
+            "java.util.Collections$SingletonList", "java.util.Collections$SingletonMap",
+            "com.tomergabel.util.Tuple" ) );
+    private static final String MODEL_PACKAGE = ModelCache.class.getPackage().getName() + ".";
+
+    /**
+     * An object input stream which only resolves the model classes and the JDK types listed in {@link
+     * #allowedClasses}.
+     */
+    static class ModelInputStream extends ObjectInputStream {
+        ModelInputStream( final InputStream in ) throws IOException {
+            super( in );
+        }
+
+        @Override
+        protected Class<?> resolveClass( final ObjectStreamClass desc ) throws IOException, ClassNotFoundException {
+            if ( !isAllowed( desc.getName() ) )
+                throw new InvalidClassException( desc.getName(), "Class not allowed in a model cache entry." );
+            return super.resolveClass( desc );
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass( final String[] interfaces ) throws IOException {
+            throw new InvalidClassException( "Proxy classes are not allowed in a model cache entry." );
+        }
+
+        private static boolean isAllowed( final String name ) {
+            // Strip array dimensions; primitive arrays are always allowed
+            int i = 0;
+            while ( i < name.length() && name.charAt( i ) == '[' )
+                i++;
+            if ( i > 0 && ( i == name.length() - 1 ) )
+                return true;
+            final String component = i > 0 ? name.substring( i + 1, name.length() - 1 ) : name;
+            return component.startsWith( MODEL_PACKAGE ) || allowedClasses.contains( component );
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled( final boolean enabled ) {
+        ModelCache.enabled = enabled;
+    }
+
+    public static File getDirectory() {
+        return directory;
+    }
+
+    public static void setDirectory( final File directory ) throws IllegalArgumentException {
+        if ( directory == null )
+            throw new IllegalArgumentException( "The cache directory cannot be null." );
+        ModelCache.directory = directory;
+    }
+
+    /**
+     * Creates the cache directory, if it does not already exist, and restricts its permissions to the owner.
+     *
+     * @return {@literal true} if the cache directory exists, {@literal false} if it could not be created.
+     */
+    static boolean prepareDirectory() {
+        final File directory = ModelCache.directory;
+        if ( directory.isDirectory() )
+            return true;
+        if ( !directory.mkdirs() )
+            return false;
+
+        // Revoke all access, then grant it back to the owner
+        //noinspection ResultOfMethodCallIgnored
+        directory.setReadable( false, false );
+        //noinspection ResultOfMethodCallIgnored
+        directory.setWritable( false, false );
+        //noinspection ResultOfMethodCallIgnored
+        directory.setExecutable( false, false );
+        return directory.setReadable( true, true ) && directory.setWritable( true, true ) &&
+                directory.setExecutable( true, true );
+    }
+
+    /**
+     * Discards all entries in the cache directory.
+     */
+    public static void clear() {
+        final File[] entries = listEntries();
+        if ( entries != null )
+            for ( final File entry : entries )
+                //noinspection ResultOfMethodCallIgnored
+                entry.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File( directory, PRUNE_MARKER ).delete();
+    }
+
+    private static File[] listEntries() {
+        return directory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( final File dir, final String name ) {
+                return name.endsWith( EXTENSION ) || name.endsWith( INDEX_EXTENSION );
+            }
+        } );
+    }
+
+    /**
+     * Records that the specified entry has just been used, so that it is not pruned. To avoid a file system write on
+     * every cache hit, the modification time is only updated if it is older than the {@link #PRUNE_INTERVAL}.
+     *
+     * @param entry The entry file.
+     */
+    static void touch( final File entry ) {
+        final long now = System.currentTimeMillis();
+        if ( now - entry.lastModified() > PRUNE_INTERVAL )
+            //noinspection ResultOfMethodCallIgnored
+            entry.setLastModified( now );
+    }
+
+    /**
+     * Prunes the cache directory, unless it was already pruned within the last {@link #PRUNE_INTERVAL}. Failures are
+     * silently ignored.
+     */
+    static void pruneIfDue() {
+        final File marker = new File( directory, PRUNE_MARKER );
+        final long now = System.currentTimeMillis();
+        if ( now - marker.lastModified() < PRUNE_INTERVAL )
+            return;
+        try {
+            if ( !marker.createNewFile() && !marker.setLastModified( now ) )
+                return;
+        } catch ( IOException e ) {
+            // Cache failures are not fatal
+            return;
+        }
+        prune( MAX_ENTRIES );
+    }
+
+    /**
+     * Discards unused entries, entries whose descriptor file no longer exists and, if more than the specified number of
+     * entries remain, the least recently used entries. Abandoned temporary files are discarded as well.
+     *
+     * @param maxEntries The maximal number of entries to retain.
+     */
+    static void prune( final int maxEntries ) {
+        final long now = System.currentTimeMillis();
+        final File[] temporary = directory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( final File dir, final String name ) {
+                return name.endsWith( ".tmp" );
+            }
+        } );
+        if ( temporary != null )
+            for ( final File file : temporary )
+                if ( now - file.lastModified() > PRUNE_INTERVAL )
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+
+        final File[] entries = listEntries();
+        if ( entries == null )
+            return;
+        final List<File> retained = new ArrayList<File>( entries.length );
+        final List<Long> lastUsed = new ArrayList<Long>( entries.length );
+        for ( final File entry : entries ) {
+            final long modified = entry.lastModified();
+            if ( now - modified > MAX_UNUSED_AGE || isOrphaned( entry ) )
+                //noinspection ResultOfMethodCallIgnored
+                entry.delete();
+            else {
+                retained.add( entry );
+                lastUsed.add( modified );
+            }
+        }
+        if ( retained.size() <= maxEntries )
+            return;
+
+        // Discard the least recently used entries
+        final Integer[] order = new Integer[ retained.size() ];
+        for ( int i = 0; i < order.length; i++ )
+            order[ i ] = i;
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer a, final Integer b ) {
+                return lastUsed.get( a ).compareTo( lastUsed.get( b ) );
+            }
+        } );
+        for ( int i = 0; i < order.length - maxEntries; i++ )
+            //noinspection ResultOfMethodCallIgnored
+            retained.get( order[ i ] ).delete();
+    }
+
+    /**
+     * Determines whether the specified entry is a model entry whose descriptor file no longer exists. Only the entry
+     * header is read.
+     */
+    private static boolean isOrphaned( final File entry ) {
+        if ( !entry.getName().endsWith( EXTENSION ) )
+            return false;
+        try {
+            final ObjectInputStream in =
+                    new ModelInputStream( new BufferedInputStream( new FileInputStream( entry ) ) );
+            try {
+                in.readUTF();
+                final URI descriptor = new URI( in.readUTF() );
+                return "file".equals( descriptor.getScheme() ) && !new File( descriptor ).exists();
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // Unreadable entries simply age out
+            return false;
+        } catch ( URISyntaxException e ) {
+            return false;
+        } catch ( IllegalArgumentException e ) {
+            // Not a hierarchical file URI
+            return false;
+        }
+    }
+
+    /**
+     * Loads a cached model object for the specified descriptor.
+     *
+     * @param descriptor The descriptor URI.
+     * @param content    The current descriptor content.
+     * @param type       The expected model type.
+     * @return The cached model object, or {@literal null} if the cache is disabled, no entry exists or the entry is
+     *         stale.
+     */
+    static <T extends IntelliJParserBase> T load( final URI descriptor, final byte[] content, final Class<T> type ) {
+        if ( !enabled )
+            return null;
+
+        final File entry = getEntryFile( descriptor );
+        if ( !entry.isFile() )
+            return null;
+
+        try {
+            final ObjectInputStream in =
+                    new ModelInputStream( new BufferedInputStream( new FileInputStream( entry ) ) );
+            try {
+                if ( !VERSION.equals( in.readUTF() ) || !descriptor.toString().equals( in.readUTF() ) )
+                    return null;
+                final byte[] hash = new byte[ in.readInt() ];
+                in.readFully( hash );
+                if ( !Arrays.equals( hash, digest( content ) ) )
+                    return null;
+                final Object model = in.readObject();
+                if ( !type.isInstance( model ) )
+                    return null;
+                touch( entry );
+                return type.cast( model );
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // Corrupt or incompatible entry, treat as a miss
+            return null;
+        } catch ( ClassNotFoundException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a parsed model object for the specified descriptor. Failures are silently ignored.
+     *
+     * @param descriptor The descriptor URI.
+     * @param content    The descriptor content from which the model object was parsed.
+     * @param model      The parsed model object.
+     */
+    static void store( final URI descriptor, final byte[] content, final IntelliJParserBase model ) {
+        if ( !enabled )
+            return;
+
+        final File entry = getEntryFile( descriptor );
+        File temp = null;
+        try {
+            if ( !prepareDirectory() )
+                return;
+
+            // Write to a temporary file first so that concurrent builds never observe partial entries
+            temp = File.createTempFile( entry.getName(), ".tmp", entry.getParentFile() );
+            final ObjectOutputStream out =
+                    new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            try {
+                out.writeUTF( VERSION );
+                out.writeUTF( descriptor.toString() );
+                final byte[] hash = digest( content );
+                out.writeInt( hash.length );
+                out.write( hash );
+                out.writeObject( model );
+            } finally {
+                out.close();
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            entry.delete();
+            if ( temp.renameTo( entry ) )
+                temp = null;
+            pruneIfDue();
+        } catch ( IOException e ) {
+            // Cache failures are not fatal
+        } finally {
+            if ( temp != null )
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+        }
+    }
+
+    private static File getEntryFile( final URI descriptor ) {
+        return getEntryFile( descriptor.toString(), EXTENSION );
+    }
+
+    /**
+     * Returns the cache entry file for the specified key.
+     *
+     * @param key       The entry key.
+     * @param extension The entry file extension.
+     * @return The entry file, which may not exist.
+     */
+    static File getEntryFile( final String key, final String extension ) {
+        try {
+            return new File( directory, toHex( digest( key.getBytes( "UTF-8" ) ) ) + extension );
+        } catch ( UnsupportedEncodingException e ) {
+            // Safety net, should never happen
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static byte[] digest( final byte[] data ) {
+        try {
+            return MessageDigest.getInstance( "SHA-1" ).digest( data );
+        } catch ( NoSuchAlgorithmException e ) {
+            // Safety net, should never happen
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String toHex( final byte[] data ) {
+        final StringBuilder sb = new StringBuilder( data.length * 2 );
+        for ( final byte b : data )
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        return sb.toString();
+    }
+}
@@ -24,17 +24,16 @@ package com.tomergabel.build.intellij.model;
 import static com.tomergabel.util.CollectionUtils.deepHashCode;
 import static com.tomergabel.util.CollectionUtils.setEquals;
 import com.tomergabel.util.UriUtils;
-import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
 
 public final class Module extends IntelliJParserBase {
+    private static final long serialVersionUID = 1L;
+
     private final URI moduleDescriptor;
     private final Collection<String> sourceUrls;
     private final Collection<String> testSourceUrls;
@@ -100,6 +99,15 @@ public final class Module extends IntelliJParserBase {
         return Collections.unmodifiableCollection( this.dependencies );
     }
 
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        precompile( "@type", "@inherit-compiler-output", "output/@url", "output-test/@url", "content/@url",
+                "content/sourceFolder", "@url", "@isTestSource", "orderEntry", "library", "@name", "@level",
+                "@module-name", "setting[@name='buildJar']/@value", "facet", "setting[@name='jarUrl']/@value",
+                "setting[@name='mainClass']/@value" );
+    }
+
     private Module( final URI moduleDescriptor, final Handler defaultHandler ) throws IllegalArgumentException {
         super( "module", defaultHandler );
 
@@ -121,6 +129,14 @@ public final class Module extends IntelliJParserBase {
         registerComponentHandler( "BuildJarSettings", new BuildJarSettingsHandler() );
     }
 
+    @Override
+    protected void processRootElement( final Element root ) throws ParseException {
+        // Verify root element
+        final String moduleType = extract( root, "@type", "Cannot extract module type" );
+        if ( !"JAVA_MODULE".equals( moduleType ) )
+            throw new ParseException( "Module \"" + getName() + "\" is not a Java module." );
+    }
+
     public static Module parse( final URI descriptor ) throws IOException, ParseException, IllegalArgumentException {
         return parse( descriptor, throwHandler );
     }
@@ -130,28 +146,27 @@ public final class Module extends IntelliJParserBase {
         if ( descriptor == null )
             throw new IllegalArgumentException( "The module descriptor URI cannot be null." );
 
-        // Instantiate module and load document
-        final Module module = new Module( descriptor, defaultHandler );
-        final Document document;
-        try {
-            document = builderFactory.newDocumentBuilder().parse( new File( descriptor ) );
-        } catch ( SAXException e ) {
-            throw new ParseException( "Cannot parse XML document, see inner exception for details.", e );
-        } catch ( ParserConfigurationException e ) {
-            throw new ParseException( "XML parser configuration invalid, see inner exception for details.", e );
+        // Try the model cache first
+        final byte[] content = readDescriptor( descriptor );
+        final Module cached = ModelCache.load( descriptor, content, Module.class );
+        if ( cached != null ) {
+            try {
+                cached.replayUnhandledComponents( defaultHandler );
+            } catch ( ParseException e ) {
+                throw new ParseException( "Cannot parse module \"" + cached.getName() + "\".", e );
+            }
+            return cached;
         }
 
-        // Verify root element
-        final String moduleType = extract( document, "/module/@type", "Cannot extract module type" );
-        if ( !"JAVA_MODULE".equals( moduleType ) )
-            throw new ParseException( "Module \"" + module.getName() + "\" is not a Java module." );
-
+        // Instantiate and parse module
+        final Module module = new Module( descriptor, defaultHandler );
         try {
-            module.processComponents( document );
+            module.processDocument( content, descriptor );
         } catch ( ParseException e ) {
             throw new ParseException( "Cannot parse module \"" + module.getName() + "\".", e );
         }
 
+        ModelCache.store( descriptor, content, module );
         return module;
     }
 
@@ -306,6 +321,8 @@ public final class Module extends IntelliJParserBase {
     // Additioanl helper types
 
     public static class JarSettings extends PackagingContainer {
+        private static final long serialVersionUID = 1L;
+
         private final String jarUrl;
         private final String mainClass;
 
@@ -26,6 +26,8 @@ import java.util.Collections;
 import java.util.HashSet;
 
 public class ModuleDependency implements Dependency {
+    private static final long serialVersionUID = 1L;
+
     public final String name;
 
     public ModuleDependency( final String name ) throws IllegalArgumentException {
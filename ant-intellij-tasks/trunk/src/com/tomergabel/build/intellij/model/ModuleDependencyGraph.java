@@ -0,0 +1,423 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import java.util.*;
+
+/**
+ * The module dependency graph of a set of modules, as resolved against a {@link ProjectResolver}.
+ * <p/>
+ * The graph includes the specified modules as well as all modules they (transitively) depend on. It is built with a
+ * single iterative depth-first traversal, so each module and each dependency edge is visited exactly once regardless
+ * of how many paths lead to it. Circular dependencies are detected during the traversal and reported along with the
+ * full dependency cycle.
+ */
+public final class ModuleDependencyGraph {
+    /**
+     * Maps each module in the graph to the modules it directly depends on.
+     */
+    private final Map<Module, Collection<Module>> dependencies = new HashMap<Module, Collection<Module>>();
+    /**
+     * Maps each module in the graph to the modules which directly depend on it.
+     */
+    private final Map<Module, Collection<Module>> dependants = new HashMap<Module, Collection<Module>>();
+    /**
+     * Maps each module in the graph to its nesting depth, i.e. the length of the longest dependency chain leading from
+     * one of the root modules to it (root modules have a depth of 1).
+     */
+    private final Map<Module, Integer> depth = new HashMap<Module, Integer>();
+    /**
+     * All modules in the graph in topological order, dependencies first.
+     */
+    private final List<Module> topologicalOrder;
+
+    /**
+     * A single depth-first traversal frame: the module being visited and its remaining unvisited dependencies.
+     */
+    private static class Frame {
+        final Module module;
+        final Iterator<Module> remaining;
+
+        Frame( final Module module, final Iterator<Module> remaining ) {
+            this.module = module;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * Builds the dependency graph for the specified modules.
+     *
+     * @param resolver The project resolver against which module dependencies are resolved.
+     * @param modules  The root modules of the graph.
+     * @throws IllegalArgumentException <ul><li>The project resolver cannot be null.</li><li>The module list cannot be
+     *                                  null.</li></ul>
+     * @throws ResolutionException      <ul><li>A module dependency could not be resolved.</li><li>A circular
+     *                                  dependency was detected.</li></ul>
+     */
+    ModuleDependencyGraph( final ProjectResolver resolver, final Collection<Module> modules )
+            throws IllegalArgumentException, ResolutionException {
+        if ( resolver == null )
+            throw new IllegalArgumentException( "The project resolver cannot be null." );
+        if ( modules == null )
+            throw new IllegalArgumentException( "The module list cannot be null." );
+
+        // Iterative DFS with colour marking: modules on the current path are "in progress", modules which have
+        // been fully explored are "done". The resulting post-order is a topological order.
+        final Map<Module, Collection<Module>> resolved = new HashMap<Module, Collection<Module>>();
+        final List<Module> postOrder = new ArrayList<Module>();
+        final Set<Module> inProgress = new HashSet<Module>();
+        final Set<Module> done = new HashSet<Module>();
+        final Deque<Frame> path = new ArrayDeque<Frame>();
+
+        for ( final Module root : modules ) {
+            if ( root == null )
+                throw new IllegalArgumentException( "The module list cannot contain null modules." );
+            if ( done.contains( root ) )
+                continue;
+
+            path.push( enter( resolver, root, resolved, inProgress ) );
+            while ( !path.isEmpty() ) {
+                final Frame frame = path.peek();
+                if ( frame.remaining.hasNext() ) {
+                    final Module dependency = frame.remaining.next();
+                    if ( inProgress.contains( dependency ) )
+                        throw circularDependency( path, dependency );
+                    if ( !done.contains( dependency ) )
+                        path.push( enter( resolver, dependency, resolved, inProgress ) );
+                } else {
+                    path.pop();
+                    inProgress.remove( frame.module );
+                    done.add( frame.module );
+                    postOrder.add( frame.module );
+                }
+            }
+        }
+
+        // Build adjacency maps
+        for ( final Module module : postOrder )
+            this.dependants.put( module, new ArrayList<Module>() );
+        for ( final Module module : postOrder ) {
+            this.dependencies.put( module, Collections.unmodifiableCollection( resolved.get( module ) ) );
+            for ( final Module dependency : resolved.get( module ) )
+                this.dependants.get( dependency ).add( module );
+        }
+        for ( final Module module : postOrder )
+            this.dependants.put( module, Collections.unmodifiableCollection( this.dependants.get( module ) ) );
+
+        // Compute nesting depths in reverse topological order (dependants before their dependencies)
+        for ( final Module module : postOrder )
+            this.depth.put( module, 1 );
+        for ( int i = postOrder.size() - 1; i >= 0; --i ) {
+            final Module module = postOrder.get( i );
+            final int next = this.depth.get( module ) + 1;
+            for ( final Module dependency : resolved.get( module ) )
+                if ( this.depth.get( dependency ) < next )
+                    this.depth.put( dependency, next );
+        }
+
+        this.topologicalOrder = Collections.unmodifiableList( postOrder );
+    }
+
+    /**
+     * Marks a module as in progress and creates a traversal frame for it, resolving its direct dependencies.
+     */
+    private static Frame enter( final ProjectResolver resolver, final Module module,
+                                final Map<Module, Collection<Module>> resolved, final Set<Module> inProgress )
+            throws ResolutionException {
+        final Collection<Module> dependencies = resolver.getModuleResolver( module ).resolveModuleDependencies();
+        resolved.put( module, dependencies );
+        inProgress.add( module );
+        return new Frame( module, dependencies.iterator() );
+    }
+
+    /**
+     * Generates an exception describing the dependency cycle closed by the specified module.
+     */
+    private static ResolutionException circularDependency( final Deque<Frame> path, final Module closing ) {
+        // The path is a stack, so iterate from the top down and stop at the first occurence of the closing module
+        final LinkedList<String> cycle = new LinkedList<String>();
+        cycle.add( closing.getName() );
+        for ( final Frame frame : path ) {
+            cycle.addFirst( frame.module.getName() );
+            if ( frame.module.equals( closing ) )
+                break;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for ( final String name : cycle ) {
+            if ( sb.length() > 0 )
+                sb.append( " -> " );
+            sb.append( '"' ).append( name ).append( '"' );
+        }
+        return new ResolutionException( String.format(
+                "Circular dependency detected between modules \"%s\" and \"%s\": %s",
+                closing.getName(), path.peek().module.getName(), sb ) );
+    }
+
+    /**
+     * Returns all modules in the graph (i.e. the root modules and their transitive dependencies) in topological order,
+     * with each module preceded by all of its dependencies.
+     *
+     * @return A read-only list of all modules in the graph.
+     */
+    public List<Module> getModules() {
+        return this.topologicalOrder;
+    }
+
+    /**
+     * Returns the modules the specified module directly depends on.
+     *
+     * @param module The module.
+     * @return A read-only collection of the module's dependencies.
+     * @throws IllegalArgumentException The module is not part of the graph.
+     */
+    public Collection<Module> getDependencies( final Module module ) throws IllegalArgumentException {
+        return lookup( this.dependencies, module );
+    }
+
+    /**
+     * Returns the modules in the graph which directly depend on the specified module.
+     *
+     * @param module The module.
+     * @return A read-only collection of the module's dependants.
+     * @throws IllegalArgumentException The module is not part of the graph.
+     */
+    public Collection<Module> getDependants( final Module module ) throws IllegalArgumentException {
+        return lookup( this.dependants, module );
+    }
+
+    /**
+     * Returns the nesting depth of the specified module, i.e. the length of the longest dependency chain leading from
+     * one of the root modules to it. Root modules which no other module in the graph depends on have a depth of 1.
+     *
+     * @param module The module.
+     * @return The module's nesting depth.
+     * @throws IllegalArgumentException The module is not part of the graph.
+     */
+    public int getDepth( final Module module ) throws IllegalArgumentException {
+        return lookup( this.depth, module );
+    }
+
+    /**
+     * Sorts the specified modules by build order: modules with a greater nesting depth are built first, and modules of
+     * equal depth are ordered by name.
+     *
+     * @param modules The modules to sort. All modules must be part of the graph.
+     * @return A new list containing the specified modules in build order.
+     * @throws IllegalArgumentException A module is not part of the graph.
+     */
+    public List<Module> sortByBuildOrder( final Collection<Module> modules ) throws IllegalArgumentException {
+        final List<Module> buildOrder = new ArrayList<Module>( modules );
+        for ( final Module module : buildOrder )
+            getDepth( module );     // Verify membership before sorting
+        Collections.sort( buildOrder, new Comparator<Module>() {
+            @Override
+            public int compare( final Module o1, final Module o2 ) {
+                final int delta = ModuleDependencyGraph.this.depth.get( o2 ) -
+                        ModuleDependencyGraph.this.depth.get( o1 );
+                if ( delta == 0 )
+                    return o1.getName().compareTo( o2.getName() );  // Module name as tie-breaker
+                else
+                    return delta;
+            }
+        } );
+        return buildOrder;
+    }
+
+    /**
+     * Returns the modules among the specified set which the specified module depends on, either directly or through
+     * modules outside the set. This is the dependency relation to honor when only some of the modules in the graph
+     * are built.
+     *
+     * @param module  The module.
+     * @param modules The set of modules to consider.
+     * @return A new collection of the module's dependencies within the set.
+     * @throws IllegalArgumentException <ul><li>The module is not part of the graph.</li><li>The module set cannot be
+     *                                  null.</li></ul>
+     */
+    public Collection<Module> getDependencies( final Module module, final Set<Module> modules )
+            throws IllegalArgumentException {
+        if ( modules == null )
+            throw new IllegalArgumentException( "The module set cannot be null." );
+
+        final Collection<Module> dependencies = new HashSet<Module>();
+        final Set<Module> visited = new HashSet<Module>();
+        final Deque<Module> stack = new ArrayDeque<Module>( getDependencies( module ) );
+        while ( !stack.isEmpty() ) {
+            final Module dependency = stack.pop();
+            if ( !visited.add( dependency ) )
+                continue;
+            if ( modules.contains( dependency ) )
+                dependencies.add( dependency );
+            else
+                stack.addAll( getDependencies( dependency ) );
+        }
+        return dependencies;
+    }
+
+    /**
+     * Groups the specified modules into build levels. The first level contains the modules with no dependencies
+     * among the specified modules, and every subsequent level contains modules which only depend on modules in
+     * earlier levels; all modules within a level are independent of each other and can be built concurrently. Modules
+     * within a level are ordered by name.
+     *
+     * @param modules The modules to group. All modules must be part of the graph.
+     * @return A new list of build levels, in build order.
+     * @throws IllegalArgumentException <ul><li>The module list cannot be null.</li><li>A module is not part of the
+     *                                  graph.</li></ul>
+     */
+    public List<List<Module>> getBuildLevels( final Collection<Module> modules ) throws IllegalArgumentException {
+        final Map<Module, Integer> levels = new HashMap<Module, Integer>();
+        computeLevels( modules, levels, null );
+
+        final List<List<Module>> result = new ArrayList<List<Module>>();
+        for ( final Module module : this.topologicalOrder ) {
+            final Integer level = levels.get( module );
+            if ( level == null )
+                continue;
+            while ( result.size() < level )
+                result.add( new ArrayList<Module>() );
+            result.get( level - 1 ).add( module );
+        }
+        for ( final List<Module> level : result )
+            Collections.sort( level, new Comparator<Module>() {
+                @Override
+                public int compare( final Module o1, final Module o2 ) {
+                    return o1.getName().compareTo( o2.getName() );
+                }
+            } );
+        return result;
+    }
+
+    /**
+     * Returns the critical path of the specified modules, i.e. the longest chain of modules (among those specified)
+     * each of which depends on the previous one. The length of the critical path equals the number of
+     * {@link #getBuildLevels(java.util.Collection) build levels}; no build of these modules can complete in fewer
+     * sequential steps.
+     *
+     * @param modules The modules to consider. All modules must be part of the graph.
+     * @return A new list of the modules on the critical path, in build order.
+     * @throws IllegalArgumentException <ul><li>The module list cannot be null.</li><li>A module is not part of the
+     *                                  graph.</li></ul>
+     */
+    public List<Module> getCriticalPath( final Collection<Module> modules ) throws IllegalArgumentException {
+        final Map<Module, Integer> levels = new HashMap<Module, Integer>();
+        final Map<Module, Module> predecessors = new HashMap<Module, Module>();
+        computeLevels( modules, levels, predecessors );
+
+        // Find the last module on the longest chain (module name as tie-breaker) and walk back to its start
+        Module last = null;
+        for ( final Map.Entry<Module, Integer> entry : levels.entrySet() ) {
+            if ( last == null || entry.getValue() > levels.get( last ) ||
+                    ( entry.getValue().equals( levels.get( last ) ) &&
+                            entry.getKey().getName().compareTo( last.getName() ) < 0 ) )
+                last = entry.getKey();
+        }
+        final LinkedList<Module> path = new LinkedList<Module>();
+        for ( Module module = last; module != null; module = predecessors.get( module ) )
+            path.addFirst( module );
+        return path;
+    }
+
+    /**
+     * Computes the remaining path cost of each of the specified modules: the module's own cost plus the greatest
+     * remaining path cost among the (specified) modules which depend on it. When building concurrently, starting the
+     * modules with the highest remaining path cost first keeps the critical path busy and minimizes the overall build
+     * time.
+     *
+     * @param modules     The modules to consider. All modules must be part of the graph.
+     * @param costs       The cost (e.g. historical build duration) of each module. Modules with no known cost are
+     *                    assigned the default cost.
+     * @param defaultCost The cost of modules not present in the cost map.
+     * @return A new map of each specified module to its remaining path cost.
+     * @throws IllegalArgumentException <ul><li>The module list cannot be null.</li><li>The cost map cannot be
+     *                                  null.</li><li>A module is not part of the graph.</li></ul>
+     */
+    public Map<Module, Long> getRemainingPathCosts( final Collection<Module> modules, final Map<Module, Long> costs,
+                                                    final long defaultCost ) throws IllegalArgumentException {
+        if ( modules == null )
+            throw new IllegalArgumentException( "The module list cannot be null." );
+        if ( costs == null )
+            throw new IllegalArgumentException( "The cost map cannot be null." );
+
+        final Set<Module> scheduled = new HashSet<Module>( modules );
+        for ( final Module module : scheduled )
+            getDepth( module );     // Verify membership
+
+        // Process dependants before their dependencies, propagating each module's path cost down to its dependencies
+        final Map<Module, Long> remaining = new HashMap<Module, Long>();
+        for ( final Module module : scheduled )
+            remaining.put( module, 0L );
+        for ( int i = this.topologicalOrder.size() - 1; i >= 0; --i ) {
+            final Module module = this.topologicalOrder.get( i );
+            if ( !scheduled.contains( module ) )
+                continue;
+            final Long cost = costs.get( module );
+            final long total = remaining.get( module ) + ( cost != null ? cost : defaultCost );
+            remaining.put( module, total );
+            for ( final Module dependency : getDependencies( module, scheduled ) )
+                if ( remaining.get( dependency ) < total )
+                    remaining.put( dependency, total );
+        }
+        return remaining;
+    }
+
+    /**
+     * Computes the build level of each of the specified modules in topological order, optionally recording for each
+     * module the dependency which determined its level.
+     */
+    private void computeLevels( final Collection<Module> modules, final Map<Module, Integer> levels,
+                                final Map<Module, Module> predecessors ) throws IllegalArgumentException {
+        if ( modules == null )
+            throw new IllegalArgumentException( "The module list cannot be null." );
+
+        final Set<Module> scheduled = new HashSet<Module>( modules );
+        for ( final Module module : scheduled )
+            getDepth( module );     // Verify membership
+        for ( final Module module : this.topologicalOrder ) {
+            if ( !scheduled.contains( module ) )
+                continue;
+            int level = 1;
+            Module predecessor = null;
+            for ( final Module dependency : getDependencies( module, scheduled ) ) {
+                final int next = levels.get( dependency ) + 1;
+                if ( next > level || ( next == level && predecessor != null &&
+                        dependency.getName().compareTo( predecessor.getName() ) < 0 ) ) {
+                    level = next;
+                    predecessor = dependency;
+                }
+            }
+            levels.put( module, level );
+            if ( predecessors != null && predecessor != null )
+                predecessors.put( module, predecessor );
+        }
+    }
+
+    private static <T> T lookup( final Map<Module, T> map, final Module module ) throws IllegalArgumentException {
+        if ( module == null )
+            throw new IllegalArgumentException( "The module cannot be null." );
+        final T value = map.get( module );
+        if ( value == null )
+            throw new IllegalArgumentException( "Module \"" + module.getName() + "\" is not part of the graph." );
+        return value;
+    }
+}
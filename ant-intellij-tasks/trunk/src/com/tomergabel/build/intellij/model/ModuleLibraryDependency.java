@@ -22,6 +22,8 @@
 package com.tomergabel.build.intellij.model;
 
 public class ModuleLibraryDependency extends LibraryDependency {
+    private static final long serialVersionUID = 1L;
+
     private final Library library;
 
     public ModuleLibraryDependency( final Library library ) {
@@ -30,6 +30,10 @@ import java.util.*;
 public class ModuleResolver extends PropertyResolver {
     private final Module module;
     private final ProjectResolver projectResolver;
+    /**
+     * The memoized output entries, indexed by test/production.
+     */
+    private final ClasspathEntry[] outputEntries = new ClasspathEntry[ 2 ];
 
     public ModuleResolver( final Project project, final Module module ) throws ResolutionException {
         this( project == null ? null : new ProjectResolver( project ), module );
@@ -54,7 +58,17 @@ public class ModuleResolver extends PropertyResolver {
     }
 
     public String resolveModuleOutputPath( final boolean test ) throws ResolutionException {
-        return resolveModuleOutput( test ).getAbsolutePath();
+        return resolveModuleOutputEntry( test ).getPath();
+    }
+
+    public ClasspathEntry resolveModuleOutputEntry( final boolean test ) throws ResolutionException {
+        final int index = test ? 1 : 0;
+        ClasspathEntry entry = this.outputEntries[ index ];
+        if ( entry == null ) {
+            entry = ClasspathEntry.of( resolveModuleOutput( test ).getAbsolutePath() );
+            this.outputEntries[ index ] = entry;
+        }
+        return entry;
     }
 
     public File resolveModuleOutput( final boolean test ) throws ResolutionException {
@@ -81,13 +95,32 @@ public class ModuleResolver extends PropertyResolver {
 
     public Collection<String> resolveModuleClasspath( final boolean includeSources, final boolean includeTests )
             throws ResolutionException {
-        final Collection<String> classpath = new HashSet<String>();
+        // Module classpaths are memoized per project; standalone modules are resolved directly
+        if ( this.projectResolver != null )
+            return this.projectResolver.getClasspathIndex()
+                    .resolveModuleClasspath( this, includeSources, includeTests );
+
+        return ClasspathEntry.paths( resolveModuleClasspathEntries( includeSources, includeTests ) );
+    }
+
+    public Collection<ClasspathEntry> resolveModuleClasspathEntries( final boolean includeSources,
+                                                                     final boolean includeTests )
+            throws ResolutionException {
+        if ( this.projectResolver != null )
+            return this.projectResolver.getClasspathIndex()
+                    .resolveModuleClasspathEntries( this, includeSources, includeTests );
+
+        final Collection<ClasspathEntry> classpath = new HashSet<ClasspathEntry>();
         for ( final Dependency dependency : this.module.getDependencies() )
-            classpath.addAll( dependency.resolveClasspath( this, includeSources, includeTests ) );
+            if ( dependency instanceof LibraryDependency )
+                classpath.addAll( ( (LibraryDependency) dependency ).resolveClasspathEntries( this ) );
+            else
+                for ( final String entry : dependency.resolveClasspath( this, includeSources, includeTests ) )
+                    classpath.add( ClasspathEntry.of( entry ) );
         if ( includeSources )
-            classpath.add( resolveModuleOutputPath( false ) );
+            classpath.add( resolveModuleOutputEntry( false ) );
         if ( includeTests )
-            classpath.add( resolveModuleOutputPath( true ) );
+            classpath.add( resolveModuleOutputEntry( true ) );
         return Collections.unmodifiableCollection( classpath );
     }
 
@@ -22,6 +22,8 @@
 package com.tomergabel.build.intellij.model;
 
 public class NamedLibraryDependency extends LibraryDependency {
+    private static final long serialVersionUID = 1L;
+
     private final LibraryDependency.Level level;
     private final String name;
 
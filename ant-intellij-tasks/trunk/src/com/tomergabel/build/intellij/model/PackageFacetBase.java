@@ -23,9 +23,12 @@ package com.tomergabel.build.intellij.model;
 
 import org.w3c.dom.Node;
 
+import java.io.Serializable;
 import java.util.*;
 
 public abstract class PackageFacetBase extends Facet {
+    private static final long serialVersionUID = 1L;
+
     private String explodedUrl;
     private String targetUrl;
     private final PackagingContainer packaging;
@@ -47,6 +50,16 @@ public abstract class PackageFacetBase extends Facet {
     }
 
 
+    private static final String BUILD_SETTING = "configuration/building/setting[@name='%s']/@value";
+
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        for ( final String setting : new String[] { "EXPLODED_ENABLED", "JAR_ENABLED", "EXPLODED_URL", "JAR_URL" } )
+            precompile( String.format( BUILD_SETTING, setting ) );
+        precompile( "configuration/packaging", "@url", "@relative" );
+    }
+
     public PackageFacetBase( final Node facetNode ) throws IllegalArgumentException, ParseException {
         super( facetNode );
 
@@ -57,16 +70,16 @@ public abstract class PackageFacetBase extends Facet {
 
     private void parseBuildParameters( final Node facetNode ) throws ParseException {
         final String message = "Cannot extract build option.";
-        final String path = "configuration/building/setting[@name='%s']/@value";
         final boolean explodeEnabled = "true"
-                .equals( extract( facetNode, String.format( path, "EXPLODED_ENABLED" ), message ) );
+                .equals( extract( facetNode, String.format( BUILD_SETTING, "EXPLODED_ENABLED" ), message ) );
         final boolean jarEnabled = "true"
-                .equals( extract( facetNode, String.format( path, "JAR_ENABLED" ), message ) );
-        this.explodedUrl = explodeEnabled ? extract( facetNode, String.format( path, "EXPLODED_URL" ), message ) : null;
+                .equals( extract( facetNode, String.format( BUILD_SETTING, "JAR_ENABLED" ), message ) );
+        this.explodedUrl =
+                explodeEnabled ? extract( facetNode, String.format( BUILD_SETTING, "EXPLODED_URL" ), message ) : null;
         if ( explodeEnabled && this.explodedUrl == null )
             throw new ParseException(
                     "Module " + getShortName() + " has exploded target enabled but no URL is specified." );
-        this.targetUrl = jarEnabled ? extract( facetNode, String.format( path, "JAR_URL" ), message ) : null;
+        this.targetUrl = jarEnabled ? extract( facetNode, String.format( BUILD_SETTING, "JAR_URL" ), message ) : null;
         if ( jarEnabled && this.targetUrl == null )
             throw new ParseException(
                     "Module " + getShortName() + " has exploded target enabled but no URL is specified." );
@@ -78,7 +91,9 @@ public abstract class PackageFacetBase extends Facet {
         return this.packaging;
     }
 
-    public static class Root {
+    public static class Root implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         private final String url;
         private final String targetUri;
 
@@ -23,14 +23,19 @@ package com.tomergabel.build.intellij.model;
 
 import org.w3c.dom.Node;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Collections;
 
 public class PackagingContainer extends ParserBase {
+    private static final long serialVersionUID = 1L;
+
     private final Collection<ContainerElement> elements = new HashSet<ContainerElement>();
 
-    public static class ContainerElement {
+    public static class ContainerElement implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         private final Dependency dependency;
         private final PackagingMethod method;
         private final String targetUri;
@@ -89,6 +94,13 @@ public class PackagingContainer extends ParserBase {
         }
     }
 
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        precompile( "containerElement", "@type", "@name", "@level", "attribute[@name='method']/@value",
+                "attribute[@name='URI']/@value" );
+    }
+
     public Collection<ContainerElement> getElements() {
         return Collections.unmodifiableCollection( this.elements );
     }
@@ -34,7 +34,7 @@ public enum PackagingMethod {
     static {
         stringMap = new HashMap<String, PackagingMethod>();
         stringMap.put( "1", COPY );
-//        stringMap.put( "2", JAR );
+        stringMap.put( "2", JAR );
 //        stringMap.put( "3", JAR_AND_LINK );
         stringMap.put( "6", JAR_AND_LINK );
     }
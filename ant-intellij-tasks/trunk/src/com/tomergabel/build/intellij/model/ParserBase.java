@@ -25,18 +25,61 @@ import com.tomergabel.util.XmlUtils;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URI;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArraySet;
 
-class ParserBase {
+/**
+ * A base class for XML-backed model objects. Model objects are {@link Serializable} so that they can be persisted by
+ * the {@link ModelCache}.
+ */
+class ParserBase implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The XPath factory from which per-thread {@link XPath} instances are created. Factories are not thread-safe, so
+     * access must be synchronized.
+     */
+    private static final XPathFactory xpathFactory = XPathFactory.newInstance();
+    /**
+     * Expressions registered via {@link #precompile(String...)}. These are compiled eagerly whenever a new thread
+     * starts evaluating expressions.
+     */
+    private static final Collection<String> registeredExpressions = new CopyOnWriteArraySet<String>();
     /**
-     * A static {@link javax.xml.xpath.XPath} instnace which can be used to perform XPath queries.
+     * Per-thread caches of compiled XPath expressions. Neither {@link XPath} nor {@link XPathExpression} is
+     * thread-safe, so each thread compiles and evaluates its own copies.
      */
-    static final XPath xpath = XPathFactory.newInstance().newXPath();
+    private static final ThreadLocal<ExpressionCache> expressionCache = new ThreadLocal<ExpressionCache>() {
+        @Override
+        protected ExpressionCache initialValue() {
+            final ExpressionCache cache = new ExpressionCache();
+            for ( final String expression : registeredExpressions )
+                try {
+                    cache.get( expression );
+                } catch ( XPathExpressionException e ) {
+                    // Safety net, should never happen (expressions are validated on registration)
+                    throw new IllegalStateException( e );
+                }
+            return cache;
+        }
+    };
     /**
      * A DOM document builder factory, provided to implementors for convenience.
      */
@@ -69,7 +112,7 @@ class ParserBase {
             throw new IllegalArgumentException( "The failure message cannot be null." );
 
         try {
-            final NodeList list = (NodeList) Module.xpath.evaluate( xpath, context, XPathConstants.NODESET );
+            final NodeList list = (NodeList) compile( xpath ).evaluate( context, XPathConstants.NODESET );
             assert list != null;
             if ( list.getLength() > 1 ) throw new ParseException(
                     failMessage + LINE_SEPERATOR + "More than one node matches expression '" + xpath + "'" );
@@ -118,10 +161,109 @@ class ParserBase {
             throw new IllegalArgumentException( "The failure message cannot be null." );
 
         try {
-            return XmlUtils.wrapNodeList( (NodeList) Module.xpath.evaluate( xpath, context, XPathConstants.NODESET ) );
+            return XmlUtils.wrapNodeList( (NodeList) compile( xpath ).evaluate( context, XPathConstants.NODESET ) );
         } catch ( XPathExpressionException e ) {
             throw new ParseException( failMessage, e );
         }
     }
 
+    /**
+     * Creates a new DOM document builder. Document builder factories are not thread-safe, so implementors should always
+     * use this method rather than accessing {@link #builderFactory} directly.
+     *
+     * @return A new {@link DocumentBuilder}.
+     * @throws ParserConfigurationException The XML parser configuration is invalid.
+     */
+    static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        synchronized ( builderFactory ) {
+            return builderFactory.newDocumentBuilder();
+        }
+    }
+
+    /**
+     * Pre-registers a set of XPath expressions. Registered expressions are validated and compiled immediately, and are
+     * compiled eagerly by every thread which subsequently evaluates expressions. This is typically called from the
+     * static initializer of a parser class with the fixed expressions it uses.
+     *
+     * @param expressions The XPath expressions to register.
+     * @throws IllegalArgumentException <ul><li>The expression list cannot be null.</li><li>An expression cannot be
+     *                                  compiled.</li></ul>
+     */
+    static void precompile( final String... expressions ) throws IllegalArgumentException {
+        if ( expressions == null )
+            throw new IllegalArgumentException( "The expression list cannot be null." );
+
+        for ( final String expression : expressions )
+            try {
+                compile( expression );
+                registeredExpressions.add( expression );
+            } catch ( XPathExpressionException e ) {
+                throw new IllegalArgumentException( "Cannot compile XPath expression '" + expression + "'", e );
+            }
+    }
+
+    /**
+     * Returns a compiled version of the specified XPath expression from the calling thread's cache, compiling it if
+     * necessary.
+     *
+     * @param expression The XPath expression.
+     * @return The compiled expression. The returned instance must only be used on the calling thread.
+     * @throws XPathExpressionException The expression cannot be compiled.
+     */
+    static XPathExpression compile( final String expression ) throws XPathExpressionException {
+        return expressionCache.get().get( expression );
+    }
+
+    /**
+     * Determines whether the specified XPath expression is compiled in the calling thread's cache.
+     *
+     * @param expression The XPath expression.
+     * @return {@literal true} if the expression is compiled for the calling thread, {@literal false} otherwise.
+     */
+    static boolean isCompiled( final String expression ) {
+        return expressionCache.get().expressions.containsKey( expression );
+    }
+
+    private static final class ExpressionCache {
+        private final XPath xpath;
+        private final Map<String, XPathExpression> expressions = new HashMap<String, XPathExpression>();
+
+        ExpressionCache() {
+            synchronized ( xpathFactory ) {
+                this.xpath = xpathFactory.newXPath();
+            }
+        }
+
+        XPathExpression get( final String expression ) throws XPathExpressionException {
+            XPathExpression compiled = this.expressions.get( expression );
+            if ( compiled == null ) {
+                compiled = this.xpath.compile( expression );
+                this.expressions.put( expression, compiled );
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * Reads the entire content of the specified descriptor file.
+     *
+     * @param descriptor The descriptor URI.
+     * @return The descriptor content.
+     * @throws IllegalArgumentException The descriptor URI does not point to a file.
+     * @throws IOException              An error has occurred while reading the descriptor.
+     */
+    static byte[] readDescriptor( final URI descriptor ) throws IllegalArgumentException, IOException {
+        final File file = new File( descriptor );
+        final ByteArrayOutputStream content = new ByteArrayOutputStream( (int) Math.max( file.length(), 0 ) );
+        final InputStream in = new FileInputStream( file );
+        try {
+            final byte[] buffer = new byte[ 8192 ];
+            int read;
+            while ( ( read = in.read( buffer ) ) != -1 )
+                content.write( buffer, 0, read );
+        } finally {
+            in.close();
+        }
+        return content.toByteArray();
+    }
 }
@@ -22,12 +22,9 @@
 package com.tomergabel.build.intellij.model;
 
 import com.tomergabel.util.UriUtils;
-import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
@@ -38,6 +35,8 @@ import java.util.regex.Pattern;
  * A parser for IntelliJ IDEA project (.ipr) files.
  */
 public final class Project extends IntelliJParserBase {
+    private static final long serialVersionUID = 1L;
+
     private final URI projectRoot;
     private boolean relativePaths;
     private String outputUrl;
@@ -130,6 +129,14 @@ public final class Project extends IntelliJParserBase {
 
     private final URI projectDescriptor;
 
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        precompile( "@relativePaths", "output/@url", "option[@name=\"projectName\"]/@value", "modules/module",
+                "@fileurl", "library", "resourceExtensions/entry/@name", "wildcardResourcePatterns/entry/@name",
+                "option[@name='BUILD_JARS_ON_MAKE']/@value" );
+    }
+
     private Project( final URI projectDescriptor, final Handler defaultHandler ) throws IllegalArgumentException {
         super( "project", defaultHandler );
 
@@ -178,6 +185,11 @@ public final class Project extends IntelliJParserBase {
         registerComponentHandler( "CompilerConfiguration", new CompilerConfigurationHandler() );
     }
 
+    @Override
+    protected void processRootElement( final Element root ) throws ParseException {
+        this.relativePaths = "true".equals( extract( root, "@relativePaths", "Cannot extract relative paths flag" ) );
+    }
+
     public static Project parse( final URI descriptor ) throws IllegalArgumentException, IOException, ParseException {
         return parse( descriptor, throwHandler );
     }
@@ -187,23 +199,18 @@ public final class Project extends IntelliJParserBase {
         if ( descriptor == null )
             throw new IllegalArgumentException( "The project descriptor URI cannot be null." );
 
-        // Load document
-        final Document document;
-        try {
-            document = builderFactory.newDocumentBuilder().parse( new File( descriptor ) );
-        } catch ( SAXException e ) {
-            throw new ParseException( "Cannot parse XML document, see inner exception for details.", e );
-        } catch ( ParserConfigurationException e ) {
-            throw new ParseException( "XML parser configuration invalid, see inner exception for details.", e );
+        // Try the model cache first
+        final byte[] content = readDescriptor( descriptor );
+        final Project cached = ModelCache.load( descriptor, content, Project.class );
+        if ( cached != null ) {
+            cached.replayUnhandledComponents( defaultHandler );
+            return cached;
         }
 
-        // Instantiate project and parse relative paths flag
+        // Instantiate and parse project
         final Project project = new Project( descriptor, defaultHandler );
-        project.relativePaths = "true"
-                .equals( extract( document, "/project/@relativePaths", "Cannot extract relative paths flag" ) );
-
-        // Parse all components
-        project.processComponents( document );
+        project.processDocument( content, descriptor );
+        ModelCache.store( descriptor, content, project );
         return project;
     }
 
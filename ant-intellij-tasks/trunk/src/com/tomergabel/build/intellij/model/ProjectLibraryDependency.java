@@ -24,6 +24,8 @@ package com.tomergabel.build.intellij.model;
 import java.util.Map;
 
 public class ProjectLibraryDependency extends LibraryDependency {
+    private static final long serialVersionUID = 1L;
+
     private final String name;
 
     public ProjectLibraryDependency( final String name ) {
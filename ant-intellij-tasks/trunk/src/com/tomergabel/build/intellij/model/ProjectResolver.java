@@ -25,6 +25,7 @@ import com.tomergabel.util.*;
 
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class ProjectResolver extends PropertyResolver {
     private final Project project;
@@ -32,6 +33,7 @@ public class ProjectResolver extends PropertyResolver {
     private final Map<String, Lazy<Module>> moduleNameMap;
     private final Map<Lazy<Module>, Lazy<ModuleResolver>> moduleResolverLazyMap;
     private final Map<Module, ModuleResolver> moduleResolverMap;
+    private volatile ClasspathIndex classpathIndex;
 
     public ProjectResolver( final Project project ) throws ResolutionException {
         super( null );
@@ -42,7 +44,8 @@ public class ProjectResolver extends PropertyResolver {
         this.moduleDescriptorMap = new HashMap<URI, Lazy<Module>>();
         this.moduleNameMap = new HashMap<String, Lazy<Module>>();
         this.moduleResolverLazyMap = new HashMap<Lazy<Module>, Lazy<ModuleResolver>>();
-        this.moduleResolverMap = new HashMap<Module, ModuleResolver>();
+        this.moduleResolverMap = new ConcurrentHashMap<Module, ModuleResolver>();
+        this.classpathIndex = new ClasspathIndex( this );
 
         // Iterate modules and create module maps
         for ( final String moduleUrl : project.getModules() ) {
@@ -55,13 +58,13 @@ public class ProjectResolver extends PropertyResolver {
             final String moduleName =
                     fileName.lastIndexOf( '.' ) != -1 ? fileName.substring( 0, fileName.lastIndexOf( '.' ) ) : fileName;
 
-            // Create lazy loader
-            final Lazy<Module> loader = new Lazy<Module>() {
+            // Create lazy loader (parse failures are memoized to avoid reparsing a broken descriptor)
+            final Lazy<Module> loader = ConcurrentLazy.failFast( new Callable<Module>() {
                 @Override
                 public Module call() throws Exception {
                     return Module.parse( resolvedDescriptor );
                 }
-            };
+            } );
 
             // Add to module maps
             if ( this.moduleDescriptorMap.put( resolvedDescriptor, loader ) != null )
@@ -69,7 +72,7 @@ public class ProjectResolver extends PropertyResolver {
                         "Module descriptor URI \"" + moduleUrl + "\" resolves to more than one module" );
             if ( this.moduleNameMap.put( moduleName, loader ) != null )
                 throw new ResolutionException( "Module name \"" + moduleName + "\" resolves to more than one module" );
-            this.moduleResolverLazyMap.put( loader, new Lazy<ModuleResolver>() {
+            this.moduleResolverLazyMap.put( loader, new ConcurrentLazy<ModuleResolver>() {
                 @Override
                 public ModuleResolver call() throws Exception {
                     final ModuleResolver resolver = new ModuleResolver( ProjectResolver.this, loader.get() );
@@ -100,6 +103,49 @@ public class ProjectResolver extends PropertyResolver {
         }
     }
 
+    /**
+     * Loads all module descriptors in the project, parsing up to the specified number of descriptors concurrently.
+     * <p/>
+     * Only module parsing is performed on the worker threads; module resolvers are created on the calling thread once
+     * all modules have been loaded.
+     *
+     * @param threads The maximum number of module descriptors to parse concurrently. A value of 1 loads modules
+     *                sequentially on the calling thread.
+     * @throws IllegalArgumentException The thread count must be positive.
+     * @throws ResolutionException      An error has occurred while loading a module.
+     */
+    public void preloadModules( final int threads ) throws IllegalArgumentException, ResolutionException {
+        if ( threads < 1 )
+            throw new IllegalArgumentException( "The thread count must be positive." );
+
+        final Collection<Lazy<Module>> modules = this.moduleDescriptorMap.values();
+        if ( threads > 1 && modules.size() > 1 ) {
+            final ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, modules.size() ) );
+            try {
+                final Collection<Future<Module>> futures = new ArrayList<Future<Module>>( modules.size() );
+                for ( final Lazy<Module> module : modules )
+                    futures.add( executor.submit( new Callable<Module>() {
+                        @Override
+                        public Module call() throws LazyInitializationException {
+                            return module.get();
+                        }
+                    } ) );
+                for ( final Future<Module> future : futures )
+                    future.get();
+            } catch ( ExecutionException e ) {
+                throw new ResolutionException( e.getCause() );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new ResolutionException( "Interrupted while loading modules.", e );
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // Create module resolvers (modules loaded above are simply retrieved)
+        preloadModules( modules );
+    }
+
     @Override
     protected Map<String, String> generatePropertyMap() {
         return this.project.getProperties();
@@ -123,52 +169,26 @@ public class ProjectResolver extends PropertyResolver {
         if ( modules == null )
             throw new IllegalArgumentException( "The module list cannot be null." );
 
+        // Resolve according to dependency tree depth (module name as tie-breaker)
+        return Collections.unmodifiableCollection(
+                resolveModuleDependencyGraph( modules ).sortByBuildOrder( modules ) );
+    }
+
+    public ModuleDependencyGraph resolveModuleDependencyGraph() throws ResolutionException {
+        preloadModules();
+        return resolveModuleDependencyGraph( this.moduleResolverMap.keySet() );
+    }
+
+    public ModuleDependencyGraph resolveModuleDependencyGraph( final Collection<Module> modules )
+            throws IllegalArgumentException, ResolutionException {
+        if ( modules == null )
+            throw new IllegalArgumentException( "The module list cannot be null." );
+
         // Assert that a project has been specified
         if ( this.project == null )
-            throw new ResolutionException( "Cannot resolve module build order, project not specified" );
-
-        // Iterate descriptor map. We'll have to lazy-load each module to extract its dependencies
-        final Map<Module, Integer> nesting = new HashMap<Module, Integer>();
-        processModuleDependencyTree( nesting, new ArrayDeque<Module>(), modules );
-
-        // Resolve according to dependency tree depth and render into priority queue
-        final List<Module> buildOrder = new ArrayList<Module>( modules );
-        Collections.sort( buildOrder, new Comparator<Module>() {
-            @Override
-            public int compare( final Module o1, final Module o2 ) {
-                if ( o1 == null || o2 == null )
-                    // Safety net, should never happen
-                    throw new IllegalArgumentException( "Null module encountered?" );
-                final int delta = nesting.get( o2 ) - nesting.get( o1 );
-                if ( delta == 0 )
-                    return o1.getName().compareTo( o2.getName() );  // Module name as tie-breaker
-                else
-                    return delta;
-            } } );
-        return Collections.unmodifiableCollection( buildOrder );
-    }
-
-    private void processModuleDependencyTree( final Map<Module, Integer> nesting, final Deque<Module> ancestry,
-                                              final Iterable<Module> modules ) throws ResolutionException {
-        final Module parent = ancestry.peekLast();
-
-        for ( final Module module : modules ) {
-            // Verify no circular paths
-            if ( ancestry.contains( module ) )
-                throw new ResolutionException(
-                        String.format( "Circular dependency detected between modules \"%s\" and \"%s\"",
-                                module.getName(), parent.getName() ) );
-
-            // Update nesting
-            nesting.put( module,
-                    Math.max( nesting.containsKey( module ) ? nesting.get( module ) : 1, ancestry.size() + 1 ) );
-
-            // Recurse
-            final Deque<Module> newAncestry = new ArrayDeque<Module>( ancestry );
-            newAncestry.add( module );
-            processModuleDependencyTree( nesting, newAncestry,
-                    getModuleResolver( module ).resolveModuleDependencies() );
-        }
+            throw new ResolutionException( "Cannot resolve module dependency graph, project not specified" );
+
+        return new ModuleDependencyGraph( this, modules );
     }
 
     public ModuleResolver getModuleResolver( final String moduleName )
@@ -222,4 +242,21 @@ public class ProjectResolver extends PropertyResolver {
     public Project getProject() {
         return this.project;
     }
+
+    public Set<URI> getModuleDescriptors() {
+        return Collections.unmodifiableSet( this.moduleDescriptorMap.keySet() );
+    }
+
+    /**
+     * Discards all memoized module classpaths. Memoized classpaths are discarded automatically when a changed library
+     * JAR directory is listed again (which {@link ProjectResolverRegistry} does whenever it reuses a resolver), so this
+     * is only necessary for resolvers obtained elsewhere whose library JAR directories may have changed.
+     */
+    public void clearClasspathCache() {
+        this.classpathIndex = new ClasspathIndex( this );
+    }
+
+    ClasspathIndex getClasspathIndex() {
+        return this.classpathIndex;
+    }
 }
@@ -0,0 +1,180 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import com.tomergabel.util.UriUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process-wide registry of {@link ProjectResolver}s, keyed by project descriptor.
+ * <p/>
+ * Ant tasks are instantiated anew for every invocation, which means that without some form of sharing each task would
+ * reparse the project descriptor as well as every module descriptor it happens to touch. This registry allows all tasks
+ * running within the same JVM to share a single parsed {@link Project}, along with its {@link ProjectResolver} and the
+ * {@link Module}/{@link ModuleResolver} instances it caches.
+ * <p/>
+ * Entries are keyed by the canonical project descriptor URI, and are validated against the last modification time and
+ * size of the project descriptor and all module descriptors referenced by it; if any of these changes on disk, the
+ * entry is discarded and the project is reparsed. When a cached entry is reused, the {@link JarDirectoryIndex} listings
+ * are revalidated as well, so that memoized module classpaths reflect JARs added to or removed from library JAR
+ * directories. Descriptors which do not reside on the local file system cannot be validated and are therefore never
+ * cached.
+ */
+public final class ProjectResolverRegistry {
+    /**
+     * Private c'tor.
+     */
+    private ProjectResolverRegistry() {
+    }
+
+    /**
+     * The cached resolvers, keyed by canonical project descriptor URI.
+     */
+    private static final Map<URI, Entry> entries = new HashMap<URI, Entry>();
+
+    /**
+     * Returns a shared {@link ProjectResolver} for the specified project descriptor, parsing the project if it isn't
+     * already cached or if the cached version is stale.
+     *
+     * @param descriptor     The project descriptor URI.
+     * @param defaultHandler The default component handler used if the project has to be parsed.
+     * @return A {@link ProjectResolver} for the specified project.
+     * @throws IllegalArgumentException The project descriptor URI cannot be null.
+     * @throws IOException              An error has occurred while reading the project descriptor.
+     * @throws ParseException           An error has occurred while parsing the project descriptor.
+     * @throws ResolutionException      An error has occurred while resolving the project modules.
+     */
+    public static ProjectResolver get( final URI descriptor, final IntelliJParserBase.Handler defaultHandler )
+            throws IllegalArgumentException, IOException, ParseException, ResolutionException {
+        if ( descriptor == null )
+            throw new IllegalArgumentException( "The project descriptor URI cannot be null." );
+
+        // Descriptors which cannot be validated are not cached
+        final File file = getFile( descriptor );
+        if ( file == null )
+            return new ProjectResolver( Project.parse( descriptor, defaultHandler ) );
+
+        final URI key = file.getCanonicalFile().toURI();
+        synchronized ( entries ) {
+            final Entry cached = entries.get( key );
+            if ( cached != null && cached.isCurrent() ) {
+                // Memoized classpaths are discarded by the classpath index if a listing changed
+                JarDirectoryIndex.validate();
+                return cached.resolver;
+            }
+
+            // Stamp the descriptor prior to parsing, so that a concurrent modification
+            // results in a stale entry rather than a stale model
+            final Stamp stamp = new Stamp( file );
+            final ProjectResolver resolver = new ProjectResolver( Project.parse( descriptor, defaultHandler ) );
+            entries.put( key, new Entry( stamp, resolver ) );
+            return resolver;
+        }
+    }
+
+    /**
+     * Discards the cached resolver for the specified project descriptor, if one exists.
+     *
+     * @param descriptor The project descriptor URI.
+     * @throws IllegalArgumentException The project descriptor URI cannot be null.
+     * @throws IOException              An error has occurred while canonicalizing the descriptor path.
+     */
+    public static void invalidate( final URI descriptor ) throws IllegalArgumentException, IOException {
+        if ( descriptor == null )
+            throw new IllegalArgumentException( "The project descriptor URI cannot be null." );
+        final File file = getFile( descriptor );
+        if ( file != null )
+            synchronized ( entries ) {
+                entries.remove( file.getCanonicalFile().toURI() );
+            }
+    }
+
+    /**
+     * Discards all cached resolvers.
+     */
+    public static void clear() {
+        synchronized ( entries ) {
+            entries.clear();
+        }
+    }
+
+    private static File getFile( final URI descriptor ) {
+        try {
+            return UriUtils.getFile( descriptor );
+        } catch ( IllegalArgumentException e ) {
+            // Not a file URI
+            return null;
+        }
+    }
+
+    /**
+     * Captures the last modification time and size of a file.
+     */
+    private static final class Stamp {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        Stamp( final File file ) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean isCurrent() {
+            return this.file.lastModified() == this.lastModified && this.file.length() == this.length;
+        }
+    }
+
+    private static final class Entry {
+        private final Stamp project;
+        private final Collection<Stamp> modules;
+        private final ProjectResolver resolver;
+
+        Entry( final Stamp project, final ProjectResolver resolver ) {
+            this.project = project;
+            this.resolver = resolver;
+            this.modules = new ArrayList<Stamp>();
+            for ( final URI descriptor : resolver.getModuleDescriptors() ) {
+                final File file = getFile( descriptor );
+                if ( file != null )
+                    this.modules.add( new Stamp( file ) );
+            }
+        }
+
+        boolean isCurrent() {
+            if ( !this.project.isCurrent() )
+                return false;
+            for ( final Stamp module : this.modules )
+                if ( !module.isCurrent() )
+                    return false;
+            return true;
+        }
+    }
+}
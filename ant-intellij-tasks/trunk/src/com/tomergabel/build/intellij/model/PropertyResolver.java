@@ -21,6 +21,7 @@
 
 package com.tomergabel.build.intellij.model;
 
+import com.tomergabel.util.ConcurrentLazy;
 import com.tomergabel.util.Lazy;
 import com.tomergabel.util.LazyInitializationException;
 import com.tomergabel.util.UriUtils;
@@ -32,9 +33,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class PropertyResolver {
-    private final Lazy<Map<String, String>> propertyCache = new Lazy<Map<String, String>>() {
+    private final Lazy<Map<String, String>> propertyCache = new ConcurrentLazy<Map<String, String>>() {
         @Override
         public Map<String, String> call() {
             return Collections.unmodifiableMap( PropertyResolver.this.generatePropertyMap() );
@@ -46,14 +49,39 @@ public abstract class PropertyResolver {
 
     private final PropertyResolver parent;
 
+    /**
+     * Resolved URIs and files, by raw string. Property values never change once generated, so resolutions are
+     * memoized for the lifetime of the resolver.
+     */
+    private final ConcurrentMap<String, URI> resolvedUris = new ConcurrentHashMap<String, URI>();
+    private final ConcurrentMap<String, File> resolvedFiles = new ConcurrentHashMap<String, File>();
+    private final ConcurrentMap<String, ClasspathEntry> resolvedEntries =
+            new ConcurrentHashMap<String, ClasspathEntry>();
+    /**
+     * Compiled property templates, by raw string. Templates do not depend on property values, so they are shared with
+     * the parent resolver (e.g. all module resolvers of a project share the project resolver's templates) and are
+     * released along with the root resolver.
+     */
+    private final ConcurrentMap<String, PropertyTemplate> templates;
+
     public PropertyResolver( final PropertyResolver parent ) {
         this.parent = parent;
+        this.templates = parent != null ? parent.templates : new ConcurrentHashMap<String, PropertyTemplate>();
     }
 
     public URI resolveUriString( final String string ) throws IllegalArgumentException, ResolutionException {
         if ( string == null )
             return null;
 
+        URI uri = this.resolvedUris.get( string );
+        if ( uri == null ) {
+            uri = resolveUncached( string );
+            this.resolvedUris.put( string, uri );
+        }
+        return uri;
+    }
+
+    private URI resolveUncached( final String string ) throws ResolutionException {
         // Expand embedded properties
         final String expandedString = expandProperties( string );
         final URI expandedUri;
@@ -81,7 +109,28 @@ public abstract class PropertyResolver {
     }
 
     public File resolveUriFile( final String string ) throws IllegalArgumentException, ResolutionException {
-        return UriUtils.getFile( resolveUriString( string ) );
+        if ( string == null )
+            throw new IllegalArgumentException( "The URI cannot be null." );
+
+        File file = this.resolvedFiles.get( string );
+        if ( file == null ) {
+            file = UriUtils.getFile( resolveUriString( string ) );
+            this.resolvedFiles.put( string, file );
+        }
+        return file;
+    }
+
+    public ClasspathEntry resolveClasspathEntry( final String string )
+            throws IllegalArgumentException, ResolutionException {
+        if ( string == null )
+            throw new IllegalArgumentException( "The URI cannot be null." );
+
+        ClasspathEntry entry = this.resolvedEntries.get( string );
+        if ( entry == null ) {
+            entry = ClasspathEntry.of( UriUtils.getPath( resolveUriString( string ) ) );
+            this.resolvedEntries.put( string, entry );
+        }
+        return entry;
     }
 
     public Collection<File> resolveUriFiles( final Collection<String> uris ) throws ResolutionException {
@@ -115,44 +164,23 @@ public abstract class PropertyResolver {
         if ( string == null )
             throw new IllegalArgumentException( "The string cannot be null." );
 
-        // Look up and expand all macros
-        int segmentIndex = 0;
-        int next;
-        final StringBuilder sb = new StringBuilder();
-        while ( ( next = string.indexOf( '$', segmentIndex ) ) > -1 ) {
-            // Append up to match point
-            sb.append( string.substring( segmentIndex, next ) );
-
-            // Look up next dollar sign
-            segmentIndex = next + 1;
-            next = string.indexOf( '$', segmentIndex );
-            if ( next == -1 )
-                throw new ResolutionException( "Unmatched escape character $ in string \"" + string + "\"" );
-
-            // Extract property name and advance segment pointer
-            final String propertyName = string.substring( segmentIndex, next );
-            segmentIndex = next + 1;
-
-            // Inspect property for special behavior
-            if ( "APPLICATION_HOME_DIR".equals( propertyName ) )
-                throw new ResolutionException( propertyName, "Component depends on a JAR located under the " +
-                        "IntelliJ IDEA home directory. This is not supported. Please replace the dependency " +
-                        "with a project- or module-level library dependency." );
-
-            // Expand property
-            final String propertyValue = getPropertyValue( propertyName );
-            if ( propertyValue == null )
-                throw new ResolutionException( propertyName, "Could not resolve property '" + propertyName + "'" );
-
-            // Append property and skip trailing backslashes
-            sb.append( propertyValue );
-            if ( propertyValue.endsWith( "/" ) && segmentIndex < string.length() &&
-                    string.charAt( segmentIndex ) == '/' )
-                ++segmentIndex;
-        }
+        return getTemplate( string ).expand( this );
+    }
 
-        // Append final segment and return resolved string
-        sb.append( string.substring( segmentIndex ) );
-        return sb.toString();
+    /**
+     * Returns the compiled template for the specified string, compiling it if it is not cached yet.
+     *
+     * @param string The string.
+     * @return The compiled template.
+     */
+    PropertyTemplate getTemplate( final String string ) {
+        PropertyTemplate template = this.templates.get( string );
+        if ( template == null ) {
+            template = PropertyTemplate.compile( string );
+            final PropertyTemplate existing = this.templates.putIfAbsent( string, template );
+            if ( existing != null )
+                template = existing;
+        }
+        return template;
     }
 }
@@ -0,0 +1,139 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled form of a string with embedded <code>$PROPERTY$</code> macros (e.g.
+ * <code>jar://$PROJECT_DIR$/lib/x.jar!/</code>), split once into literal and property segments so that it can be
+ * expanded repeatedly without being rescanned. Templates do not depend on property values, and are therefore shared by
+ * a {@link PropertyResolver resolver} and its descendants (e.g. a project resolver and its module resolvers). This
+ * class is immutable and thread-safe.
+ */
+final class PropertyTemplate {
+    private final String string;
+    /**
+     * The template segments; literal segments are non-empty strings, property segments are property names.
+     */
+    private final String[] segments;
+    private final boolean[] properties;
+    /**
+     * The reason the string is malformed, or {@literal null} if it is well-formed.
+     */
+    private final String error;
+
+    private PropertyTemplate( final String string ) {
+        this.string = string;
+        final List<String> segments = new ArrayList<String>();
+        final List<Boolean> properties = new ArrayList<Boolean>();
+        String error = null;
+
+        int segmentIndex = 0;
+        int next;
+        while ( ( next = string.indexOf( '$', segmentIndex ) ) > -1 ) {
+            if ( next > segmentIndex ) {
+                segments.add( string.substring( segmentIndex, next ) );
+                properties.add( false );
+            }
+
+            // Look up next dollar sign
+            segmentIndex = next + 1;
+            next = string.indexOf( '$', segmentIndex );
+            if ( next == -1 ) {
+                error = "Unmatched escape character $ in string \"" + string + "\"";
+                break;
+            }
+
+            segments.add( string.substring( segmentIndex, next ) );
+            properties.add( true );
+            segmentIndex = next + 1;
+        }
+        if ( error == null && segmentIndex < string.length() ) {
+            segments.add( string.substring( segmentIndex ) );
+            properties.add( false );
+        }
+
+        this.segments = segments.toArray( new String[ segments.size() ] );
+        this.properties = new boolean[ properties.size() ];
+        for ( int i = 0; i < this.properties.length; i++ )
+            this.properties[ i ] = properties.get( i );
+        this.error = error;
+    }
+
+    /**
+     * Compiles the specified string. Templates are cached by {@link PropertyResolver#getTemplate(String)}.
+     *
+     * @param string The string.
+     * @return The compiled template.
+     * @throws IllegalArgumentException The string cannot be null.
+     */
+    static PropertyTemplate compile( final String string ) throws IllegalArgumentException {
+        if ( string == null )
+            throw new IllegalArgumentException( "The string cannot be null." );
+
+        return new PropertyTemplate( string );
+    }
+
+    /**
+     * Expands the template using the specified resolver.
+     *
+     * @param resolver The resolver used to look up property values.
+     * @return The expanded string.
+     * @throws ResolutionException <ul><li>The string contains an unmatched escape character.</li><li>A property
+     *                             cannot be resolved.</li><li>The string references the IntelliJ IDEA home
+     *                             directory.</li></ul>
+     */
+    String expand( final PropertyResolver resolver ) throws ResolutionException {
+        if ( this.error != null )
+            throw new ResolutionException( this.error );
+        if ( this.segments.length == 1 && !this.properties[ 0 ] )
+            return this.string;
+
+        final StringBuilder sb = new StringBuilder();
+        boolean skipSlash = false;
+        for ( int i = 0; i < this.segments.length; i++ ) {
+            final String segment = this.segments[ i ];
+            if ( !this.properties[ i ] ) {
+                // Skip the leading slash if the preceding property value already ends with one
+                sb.append( segment, skipSlash && segment.charAt( 0 ) == '/' ? 1 : 0, segment.length() );
+                skipSlash = false;
+                continue;
+            }
+
+            // Inspect property for special behavior
+            if ( "APPLICATION_HOME_DIR".equals( segment ) )
+                throw new ResolutionException( segment, "Component depends on a JAR located under the " +
+                        "IntelliJ IDEA home directory. This is not supported. Please replace the dependency " +
+                        "with a project- or module-level library dependency." );
+
+            // Expand property
+            final String propertyValue = resolver.getPropertyValue( segment );
+            if ( propertyValue == null )
+                throw new ResolutionException( segment, "Could not resolve property '" + segment + "'" );
+            sb.append( propertyValue );
+            skipSlash = propertyValue.endsWith( "/" );
+        }
+        return sb.toString();
+    }
+}
@@ -26,6 +26,8 @@ import org.w3c.dom.Node;
 import java.util.Collection;
 
 public class WebFacet extends PackageFacetBase {
+    private static final long serialVersionUID = 1L;
+
     private final String webDescriptorUrl;
     private final Collection<Root> webRoots;
     private final Collection<Root> sourceRoots;
@@ -42,6 +44,13 @@ public class WebFacet extends PackageFacetBase {
         return this.sourceRoots;
     }
 
+    /** Static c'tor */
+    static {
+        // Pre-register fixed XPath expressions
+        precompile( "configuration/descriptors/deploymentDescriptor/@url", "configuration/webroots/root",
+                "configuration/sourceRoots/root" );
+    }
+
     public WebFacet( final Node facetNode ) throws IllegalArgumentException, ParseException {
         super( facetNode );
 
@@ -0,0 +1,175 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.util;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A thread-safe variant of {@link Lazy}, which guarantees that the initializer is invoked at most once at a time and
+ * that its result is safely published to all threads.
+ * <p/>
+ * Initialization uses double-checked locking on a volatile flag, so once the value has been initialized {@link #get()}
+ * does not acquire any lock. By default this class mimics the semantics of {@link Lazy}: {@literal null} values and
+ * failures are not memoized, and the initializer is invoked again on the next call to {@link #get()}. Both behaviors
+ * can be changed at construction time:<ul><li>Memoizing {@literal null} values means a {@literal null} result is
+ * considered a legitimate value (see {@link #nullable(java.util.concurrent.Callable)}).</li><li>Memoizing failures
+ * means that the exception thrown by the initializer is rethrown by all subsequent calls, without invoking the
+ * initializer again (see {@link #failFast(java.util.concurrent.Callable)}).</li></ul>
+ *
+ * @param <T> The type wrapped by the lazy initializer.
+ */
+public abstract class ConcurrentLazy<T> extends Lazy<T> {
+    /**
+     * Whether or not {@literal null} values are memoized.
+     */
+    private final boolean memoizeNull;
+    /**
+     * Whether or not initialization failures are memoized.
+     */
+    private final boolean memoizeFailure;
+    /**
+     * Set once the value (or failure) has been memoized. Written last, so that reading {@literal true} guarantees
+     * visibility of {@link #value} and {@link #failure}.
+     */
+    private volatile boolean initialized = false;
+    /**
+     * The actual value.
+     */
+    private T value = null;
+    /**
+     * The memoized failure, if any.
+     */
+    private LazyInitializationException failure = null;
+
+    /**
+     * Creates a lazy initializer with the same memoization semantics as {@link Lazy}.
+     */
+    protected ConcurrentLazy() {
+        this( false, false );
+    }
+
+    /**
+     * Creates a lazy initializer with the specified memoization semantics.
+     *
+     * @param memoizeNull    {@literal true} to treat a {@literal null} result as a legitimate value.
+     * @param memoizeFailure {@literal true} to rethrow the initial failure on subsequent calls.
+     */
+    protected ConcurrentLazy( final boolean memoizeNull, final boolean memoizeFailure ) {
+        super();
+        this.memoizeNull = memoizeNull;
+        this.memoizeFailure = memoizeFailure;
+    }
+
+    /**
+     * Retreives the lazy-loaded value, initializing it on the fly if necessary. Concurrent callers block until the
+     * initialization completes.
+     *
+     * @return The lazy-loaded value.
+     * @throws LazyInitializationException An error has occurred while initializing the lazy-loaded value. Please see
+     *                                     the exception {@link Exception#getCause() cause} for detials.
+     */
+    @Override
+    public T get() throws LazyInitializationException {
+        if ( !this.initialized )
+            synchronized ( this ) {
+                if ( !this.initialized ) {
+                    try {
+                        this.value = call();
+                    } catch ( Exception e ) {
+                        final LazyInitializationException failure = new LazyInitializationException( e );
+                        if ( this.memoizeFailure ) {
+                            this.failure = failure;
+                            this.initialized = true;
+                        }
+                        throw failure;
+                    }
+                    if ( this.value != null || this.memoizeNull )
+                        this.initialized = true;
+                    return this.value;
+                }
+            }
+
+        if ( this.failure != null )
+            throw this.failure;
+        return this.value;
+    }
+
+    /**
+     * Returns whether or not the value (or a failure) has been memoized.
+     *
+     * @return {@literal true} if subsequent calls to {@link #get()} will not invoke the initializer.
+     */
+    public boolean isInitialized() {
+        return this.initialized;
+    }
+
+    /**
+     * Wraps the specified callable with a thread-safe lazy initializer with the same memoization semantics as {@link
+     * Lazy}.
+     *
+     * @param initializer The initializer.
+     * @param <T>         The type wrapped by the lazy initializer.
+     * @return A {@link ConcurrentLazy} instance for the specified initializer.
+     * @throws IllegalArgumentException The initializer cannot be null.
+     */
+    public static <T> ConcurrentLazy<T> from( final Callable<T> initializer ) throws IllegalArgumentException {
+        return wrap( initializer, false, false );
+    }
+
+    /**
+     * Wraps the specified callable with a thread-safe lazy initializer which memoizes {@literal null} values.
+     *
+     * @param initializer The initializer.
+     * @param <T>         The type wrapped by the lazy initializer.
+     * @return A {@link ConcurrentLazy} instance for the specified initializer.
+     * @throws IllegalArgumentException The initializer cannot be null.
+     */
+    public static <T> ConcurrentLazy<T> nullable( final Callable<T> initializer ) throws IllegalArgumentException {
+        return wrap( initializer, true, false );
+    }
+
+    /**
+     * Wraps the specified callable with a thread-safe lazy initializer which memoizes failures, i.e. the initializer
+     * is invoked exactly once regardless of its outcome. {@literal null} values are memoized as well.
+     *
+     * @param initializer The initializer.
+     * @param <T>         The type wrapped by the lazy initializer.
+     * @return A {@link ConcurrentLazy} instance for the specified initializer.
+     * @throws IllegalArgumentException The initializer cannot be null.
+     */
+    public static <T> ConcurrentLazy<T> failFast( final Callable<T> initializer ) throws IllegalArgumentException {
+        return wrap( initializer, true, true );
+    }
+
+    private static <T> ConcurrentLazy<T> wrap( final Callable<T> initializer, final boolean memoizeNull,
+                                               final boolean memoizeFailure ) throws IllegalArgumentException {
+        if ( initializer == null )
+            throw new IllegalArgumentException( "The initializer cannot be null." );
+
+        return new ConcurrentLazy<T>( memoizeNull, memoizeFailure ) {
+            @Override
+            public T call() throws Exception {
+                return initializer.call();
+            }
+        };
+    }
+}
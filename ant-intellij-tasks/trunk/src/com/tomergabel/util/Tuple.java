@@ -21,7 +21,11 @@
 
 package com.tomergabel.util;
 
-public class Tuple<L, R> {
+import java.io.Serializable;
+
+public class Tuple<L, R> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final L left;
     public final R right;
 
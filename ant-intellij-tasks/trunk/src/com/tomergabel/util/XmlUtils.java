@@ -24,6 +24,13 @@ package com.tomergabel.util;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -32,6 +39,33 @@ public final class XmlUtils {
     private XmlUtils() {
     }
 
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    /**
+     * Serializes the specified node (and its descendants) to an XML string.
+     *
+     * @param node The node to serialize.
+     * @return The XML representation of the node, without an XML declaration.
+     * @throws IllegalArgumentException <ul><li>The node cannot be null.</li><li>The node cannot be serialized.</li></ul>
+     */
+    public static String serialize( final Node node ) throws IllegalArgumentException {
+        if ( node == null )
+            throw new IllegalArgumentException( "The node cannot be null." );
+
+        final StringWriter writer = new StringWriter();
+        try {
+            final Transformer transformer;
+            synchronized ( transformerFactory ) {
+                transformer = transformerFactory.newTransformer();
+            }
+            transformer.setOutputProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
+            transformer.transform( new DOMSource( node ), new StreamResult( writer ) );
+        } catch ( TransformerException e ) {
+            throw new IllegalArgumentException( "The node cannot be serialized.", e );
+        }
+        return writer.toString();
+    }
+
     public static Collection<Node> wrapNodeList( final NodeList nodeList ) throws IllegalArgumentException {
         if ( nodeList == null )
             throw new IllegalArgumentException( "Cannot wrap null NodeList" );
@@ -21,6 +21,7 @@
 
 package com.tomergabel.build.intellij.ant;
 
+import com.tomergabel.build.intellij.model.MockModel;
 import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
 
@@ -35,6 +36,7 @@ public class AntTestBase {
     protected static final String DEFAULT_TYPES = "org/apache/tools/ant/types/defaults.properties";
 
     public AntTestBase() throws URISyntaxException, IOException {
+        MockModel.useTemporaryModelCache();
         this.project = new Project();
 
         // Load type definitions
@@ -0,0 +1,208 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import static com.tomergabel.build.intellij.model.MockModel.Projects.allModules;
+import static com.tomergabel.build.intellij.model.MockModel.Projects.buildOrderTest;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.util.*;
+
+public class BuildModulesParallelTaskTests extends AntTestBase {
+    public BuildModulesParallelTaskTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    /**
+     * Records the start and end of every module build.
+     */
+    public static class RecordTask extends Task {
+        static final List<String> events = Collections.synchronizedList( new ArrayList<String>() );
+        private String module;
+        private String fail;
+
+        public void setModule( final String module ) {
+            this.module = module;
+        }
+
+        public void setFail( final String fail ) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void execute() throws BuildException {
+            events.add( "start:" + this.module );
+            try {
+                Thread.sleep( 20 );
+            } catch ( InterruptedException e ) {
+                throw new BuildException( e );
+            }
+            if ( this.module.equals( this.fail ) )
+                throw new BuildException( "Module " + this.module + " failed." );
+            events.add( "end:" + this.module );
+        }
+    }
+
+    private BuildModulesParallelTask task;
+
+    @Before
+    public void setup() throws Exception {
+        RecordTask.events.clear();
+        this.project.addTaskDefinition( "record", RecordTask.class );
+        this.task = new BuildModulesParallelTask();
+        task.setProject( this.project );
+        task.setProject( buildOrderTest.get() );
+        task.setOutputMode( ResolutionModes.names );
+        task.setThreads( 4 );
+    }
+
+    private void record( final String fail ) {
+        final UnknownElement record = new UnknownElement( "record" );
+        record.setProject( this.project );
+        record.setTaskName( "record" );
+        record.setQName( "record" );
+        final RuntimeConfigurable wrapper = new RuntimeConfigurable( record, "record" );
+        wrapper.setAttribute( "module", "@{module}" );
+        if ( fail != null )
+            wrapper.setAttribute( "fail", fail );
+        ( (TaskContainer) task.createSequential() ).addTask( record );
+    }
+
+    private static void assertBuiltAfter( final String module, final String dependency ) {
+        final int start = RecordTask.events.indexOf( "start:" + module );
+        final int end = RecordTask.events.indexOf( "end:" + dependency );
+        assertTrue( "Module " + module + " was not built.", start >= 0 );
+        assertTrue( "Module " + dependency + " was not built.", end >= 0 );
+        assertTrue( "Module " + module + " was built before its dependency " + dependency + ".", end < start );
+    }
+
+    @Test
+    public void execute_NoSequentialSpecified_BuildExceptionIsThrown() {
+        try {
+            task.execute();
+            fail( "Nested sequential not specified but no exception was thrown." );
+        } catch ( BuildException e ) {
+            // Expected, all is well
+        }
+    }
+
+    @Test
+    public void execute_AllModules_ModulesBuiltAfterDependencies() {
+        record( null );
+        task.execute();
+
+        assertEquals( "Not all modules were built.", 8, RecordTask.events.size() );
+        assertBuiltAfter( "build-order-test-a", "build-order-test-b" );
+        assertBuiltAfter( "build-order-test-b", "build-order-test-c" );
+        assertBuiltAfter( "build-order-test-b", "build-order-test-d" );
+        assertBuiltAfter( "build-order-test-c", "build-order-test-d" );
+    }
+
+    @Test
+    public void execute_ModuleSubset_OnlySpecifiedModulesBuilt() {
+        task.setModules( "build-order-test-a,build-order-test-c" );
+        record( null );
+        task.execute();
+
+        assertEquals( "Unexpected modules were built.", 4, RecordTask.events.size() );
+        assertBuiltAfter( "build-order-test-a", "build-order-test-c" );
+    }
+
+    @Test
+    public void execute_ModuleFails_DependantsNotBuiltAndBuildExceptionIsThrown() {
+        record( "build-order-test-c" );
+        try {
+            task.execute();
+            fail( "Module failed but no exception was thrown." );
+        } catch ( BuildException e ) {
+            // Expected, all is well
+        }
+
+        assertFalse( "Dependant of failed module was built.",
+                RecordTask.events.contains( "start:build-order-test-b" ) );
+        assertFalse( "Dependant of failed module was built.",
+                RecordTask.events.contains( "start:build-order-test-a" ) );
+    }
+    @Test
+    public void execute_CriticalPathSchedule_LongestRemainingPathStartedFirst() throws Exception {
+        final File stats = File.createTempFile( "build-stats", ".properties" );
+        stats.deleteOnExit();
+        final Properties durations = new Properties();
+        durations.setProperty( "dependee", "10" );
+        durations.setProperty( "dependant-module", "5000" );
+        durations.setProperty( "dependant-library", "1000" );
+        durations.setProperty( "self-contained", "1000" );
+        final OutputStream out = new FileOutputStream( stats );
+        try {
+            durations.store( out, null );
+        } finally {
+            out.close();
+        }
+
+        task.setProject( allModules.get() );
+        task.setModules( "dependee,dependant-module,dependant-library,self-contained" );
+        task.setThreads( 1 );
+        task.setSchedule( BuildModulesParallelTask.Schedule.criticalpath );
+        task.setStatsFile( stats );
+        record( null );
+        task.execute();
+
+        assertEquals( "Modules scheduled in incorrect order.", Arrays.asList(
+                "start:dependee", "end:dependee",
+                "start:dependant-module", "end:dependant-module",
+                "start:dependant-library", "end:dependant-library",
+                "start:self-contained", "end:self-contained" ), RecordTask.events );
+    }
+
+    @Test
+    public void execute_StatsFileSpecified_DurationsRecorded() throws Exception {
+        final File stats = File.createTempFile( "build-stats", ".properties" );
+        stats.deleteOnExit();
+        //noinspection ResultOfMethodCallIgnored
+        stats.delete();
+
+        task.setStatsFile( stats );
+        record( null );
+        task.execute();
+
+        assertTrue( "Statistics file was not written.", stats.isFile() );
+        final Properties durations = new Properties();
+        final InputStream in = new FileInputStream( stats );
+        try {
+            durations.load( in );
+        } finally {
+            in.close();
+        }
+        assertEquals( "Incorrect number of durations recorded.", 4, durations.size() );
+        assertTrue( "Duration recorded incorrectly.",
+                Long.parseLong( durations.getProperty( "build-order-test-a" ) ) >= 20 );
+    }
+}
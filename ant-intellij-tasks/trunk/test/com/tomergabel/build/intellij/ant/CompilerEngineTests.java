@@ -0,0 +1,220 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.types.Path;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+public class CompilerEngineTests extends AntTestBase {
+    private File directory;
+    private File source;
+    private File target;
+
+    public CompilerEngineTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    @Before
+    public void testSetup() throws IOException {
+        this.directory = File.createTempFile( "compilerengine", null );
+        this.directory.delete();
+        this.source = new File( this.directory, "src" );
+        this.target = new File( this.directory, "classes" );
+        new File( this.source, "test" ).mkdirs();
+    }
+
+    @After
+    public void testTeardown() {
+        final CompilerEngine engine = CompilerEngine.forProject( this.project );
+        if ( engine != null )
+            engine.close();
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( this.directory );
+        delete.execute();
+    }
+
+    private File writeSource( final String name, final String contents ) throws IOException {
+        final File file = new File( this.source, "test" + File.separator + name + ".java" );
+        final Writer writer = new FileWriter( file );
+        try {
+            writer.write( contents );
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private CompilerEngine engine() {
+        final CompilerEngine engine = CompilerEngine.forProject( this.project );
+        assertNotNull( "Compiler engine not available.", engine );
+        return engine;
+    }
+
+    @Test
+    public void testForProject_SameProject_EngineShared() {
+        assertSame( "Compiler engine not shared across the build.", engine(),
+                CompilerEngine.forProject( this.project ) );
+    }
+
+    @Test
+    public void testForProject_JavacSelected_NoEngine() {
+        this.project.setProperty( CompilerEngine.COMPILER_PROPERTY, "javac" );
+        assertNull( "Compiler engine returned although javac was selected.",
+                CompilerEngine.forProject( this.project ) );
+    }
+
+    @Test
+    public void testCompile_ValidSources_ClassesGenerated() throws IOException {
+        writeSource( "A", "package test; public class A { B b; }" );
+        writeSource( "B", "package test; public class B {}" );
+        this.target.mkdirs();
+        engine().compile( Collections.singleton( this.source ), this.target, null );
+        assertTrue( "Class A not generated.", new File( this.target, "test/A.class" ).isFile() );
+        assertTrue( "Class B not generated.", new File( this.target, "test/B.class" ).isFile() );
+    }
+
+    @Test
+    public void testCompile_UpToDateSources_NotRecompiled() throws IOException {
+        final File a = writeSource( "A", "package test; public class A {}" );
+        this.target.mkdirs();
+        engine().compile( Collections.singleton( this.source ), this.target, null );
+        final File compiled = new File( this.target, "test/A.class" );
+        assertTrue( "Class A not generated.", compiled.isFile() );
+        compiled.setLastModified( a.lastModified() + 10000 );
+
+        // An invalid source is not compiled while its class file is up to date
+        writeSource( "A", "package test; this does not compile" ).setLastModified( a.lastModified() );
+        engine().compile( Collections.singleton( this.source ), this.target, null );
+    }
+
+    @Test( expected = BuildException.class )
+    public void testCompile_InvalidSource_BuildExceptionThrown() throws IOException {
+        writeSource( "A", "package test; public class A { Missing m; }" );
+        this.target.mkdirs();
+        engine().compile( Collections.singleton( this.source ), this.target, null );
+    }
+
+    @Test
+    public void testCompile_ViaAntUtils_ClassesGenerated() throws IOException {
+        writeSource( "A", "package test; public class A {}" );
+        new AntUtils( this.project ).compile( this.source, this.target, null );
+        assertTrue( "Class A not generated.", new File( this.target, "test/A.class" ).isFile() );
+    }
+
+    @Test( expected = BuildException.class )
+    public void testCompile_AntDependencyWithClasspath_AntRuntimeNotOnClasspath() throws IOException {
+        writeSource( "A", "package test; public class A { org.apache.tools.ant.Project p; }" );
+        new AntUtils( this.project ).compile( this.source, this.target, new Path( this.project ) );
+    }
+
+    @Test
+    public void testCompile_JavacWithClasspath_ClassesGenerated() throws IOException {
+        this.project.setProperty( CompilerEngine.COMPILER_PROPERTY, "javac" );
+        writeSource( "B", "package test; public class B {}" );
+        new AntUtils( this.project ).compile( this.source, this.target, new Path( this.project ) );
+        assertTrue( "Class B not generated by javac.", new File( this.target, "test/B.class" ).isFile() );
+    }
+
+    /**
+     * Compiles the specified source of class <code>lib.L</code> into a JAR.
+     */
+    private void writeJar( final File jar, final String contents ) throws IOException {
+        final File library = new File( this.directory, "lib" );
+        new File( library, "lib" ).mkdirs();
+        final Writer writer = new FileWriter( new File( library, "lib" + File.separator + "L.java" ) );
+        try {
+            writer.write( contents );
+        } finally {
+            writer.close();
+        }
+        final Map<String, byte[]> classes = engine().compileToMemory( Collections.singleton( library ),
+                Collections.<File>emptyList(), Collections.<String>emptyList() );
+        assertNotNull( "Library compilation failed.", classes );
+        final JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ) );
+        try {
+            for ( final Map.Entry<String, byte[]> entry : classes.entrySet() ) {
+                out.putNextEntry( new ZipEntry( entry.getKey() ) );
+                out.write( entry.getValue() );
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testCompile_ClasspathJarChanged_ChangedJarUsed() throws IOException {
+        final File jar = new File( this.directory, "lib.jar" );
+        writeJar( jar, "package lib; public class L { public static void a() {} }" );
+        final List<File> classpath = Collections.singletonList( jar );
+        this.target.mkdirs();
+        final File a = writeSource( "A", "package test; public class A { void f() { lib.L.a(); } }" );
+        assertTrue( "Compilation against the original JAR failed.", engine().compile( Collections.singleton( a ),
+                Collections.singleton( this.source ), this.target, classpath, Collections.<String>emptyList(), null ) );
+
+        writeJar( jar, "package lib; public class L { public static void b() {} public static void c() {} }" );
+        jar.setLastModified( jar.lastModified() - 10000 );
+        final File b = writeSource( "B", "package test; public class B { void f() { lib.L.b(); } }" );
+        assertTrue( "Stale JAR contents used by a pooled file manager.", engine().compile( Collections.singleton( b ),
+                Collections.singleton( this.source ), this.target, classpath, Collections.<String>emptyList(), null ) );
+    }
+
+    @Test
+    public void testEffectiveOptions_SourceAndTargetProperties_LevelsPassed() {
+        this.project.setProperty( CompilerEngine.SOURCE_PROPERTY, "1.6" );
+        this.project.setProperty( CompilerEngine.TARGET_PROPERTY, "1.7" );
+        assertEquals( "Source and target levels not passed to the compiler.",
+                Arrays.asList( "-g", "-source", "1.6", "-target", "1.7" ),
+                engine().effectiveOptions( Collections.singleton( "-g" ) ) );
+    }
+
+    @Test
+    public void testEffectiveOptions_LevelsSpecified_PropertiesIgnored() {
+        this.project.setProperty( CompilerEngine.SOURCE_PROPERTY, "1.6" );
+        this.project.setProperty( CompilerEngine.TARGET_PROPERTY, "1.6" );
+        final List<String> options = Arrays.asList( "-source", "1.7", "-target", "1.7" );
+        assertEquals( "Explicit levels overridden.", options, engine().effectiveOptions( options ) );
+    }
+
+    @Test
+    public void testEffectiveOptions_NoProperties_OptionsUnchanged() {
+        assertEquals( "Options changed without source or target properties.", Arrays.asList( "-g" ),
+                engine().effectiveOptions( Collections.singleton( "-g" ) ) );
+    }
+}
@@ -0,0 +1,116 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.taskdefs.Delete;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class FingerprintTests extends AntTestBase {
+    private File directory;
+
+    public FingerprintTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    @Before
+    public void testSetup() throws IOException {
+        this.directory = File.createTempFile( "fingerprint", null );
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void testTeardown() {
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( this.directory );
+        delete.execute();
+    }
+
+    private File write( final String path, final String contents, final long lastModified ) throws IOException {
+        final File file = new File( this.directory, path );
+        file.getParentFile().mkdirs();
+        final Writer writer = new FileWriter( file );
+        try {
+            writer.write( contents );
+        } finally {
+            writer.close();
+        }
+        file.setLastModified( lastModified );
+        return file;
+    }
+
+    private String tree() {
+        return new Fingerprint().addTree( this.directory ).toString();
+    }
+
+    @Test
+    public void testAddTree_NothingChanged_SameFingerprint() throws IOException {
+        write( "a/b.txt", "b", 100000 );
+        assertEquals( "Fingerprint changed although nothing changed.", tree(), tree() );
+    }
+
+    @Test
+    public void testAddTree_FileModified_FingerprintChanged() throws IOException {
+        write( "a/b.txt", "b", 100000 );
+        final String before = tree();
+        write( "a/b.txt", "b", 200000 );
+        assertFalse( "Fingerprint not changed although a file was modified.", before.equals( tree() ) );
+    }
+
+    @Test
+    public void testAddTree_FileAdded_FingerprintChanged() throws IOException {
+        write( "a/b.txt", "b", 100000 );
+        final String before = tree();
+        write( "a/c.txt", "c", 100000 );
+        assertFalse( "Fingerprint not changed although a file was added.", before.equals( tree() ) );
+    }
+
+    @Test
+    public void testAddClasspathEntry_CompiledDirectory_OnlyApiFingerprinted() throws IOException {
+        final File source = new File( this.directory, "src" );
+        final File target = new File( this.directory, "classes" );
+        final IncrementalCompiler compiler =
+                new IncrementalCompiler( this.project, CompilerEngine.forProject( this.project ) );
+        write( "src/test/A.java", "package test; public class A { int f() { return 1; } }", 100000 );
+        compiler.compile( Collections.singleton( source ), target, Collections.<File>emptyList(),
+                Arrays.asList( "-g" ) );
+        final String before = new Fingerprint().addClasspathEntry( target ).toString();
+
+        write( "src/test/A.java", "package test; public class A { int f() { return 2; } }", 200000 );
+        compiler.compile( Collections.singleton( source ), target, Collections.<File>emptyList(),
+                Arrays.asList( "-g" ) );
+        assertEquals( "Fingerprint changed although the API did not change.", before,
+                new Fingerprint().addClasspathEntry( target ).toString() );
+        CompilerEngine.forProject( this.project ).close();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+public class IncrementalCompilerTests extends AntTestBase {
+    private File directory;
+    private File source;
+    private File target;
+    private IncrementalCompiler compiler;
+    private long timestamp = System.currentTimeMillis() - 100000;
+
+    public IncrementalCompilerTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    @Before
+    public void testSetup() throws IOException {
+        this.directory = File.createTempFile( "incrementalcompiler", null );
+        this.directory.delete();
+        this.source = new File( this.directory, "src" );
+        this.target = new File( this.directory, "classes" );
+        new File( this.source, "test" ).mkdirs();
+
+        final CompilerEngine engine = CompilerEngine.forProject( this.project );
+        assertNotNull( "Compiler engine not available.", engine );
+        this.compiler = new IncrementalCompiler( this.project, engine );
+    }
+
+    @After
+    public void testTeardown() {
+        CompilerEngine.forProject( this.project ).close();
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( this.directory );
+        delete.execute();
+    }
+
+    private File writeSource( final String name, final String contents ) throws IOException {
+        return writeSource( this.source, "test", name, contents );
+    }
+
+    private File writeSource( final File root, final String pkg, final String name, final String contents )
+            throws IOException {
+        final File file = new File( root, pkg + File.separator + name + ".java" );
+        file.getParentFile().mkdirs();
+        final Writer writer = new FileWriter( file );
+        try {
+            writer.write( contents );
+        } finally {
+            writer.close();
+        }
+
+        // Timestamps are set explicitly so that changes are detected regardless of file system resolution
+        file.setLastModified( this.timestamp += 10000 );
+        return file;
+    }
+
+    private File classFile( final String name ) {
+        return new File( this.target, "test" + File.separator + name + ".class" );
+    }
+
+    private int compile( final File... classpath ) {
+        final List<String> options = Arrays.asList( "-g" );
+        return this.compiler.compile( Collections.singleton( this.source ), this.target, Arrays.asList( classpath ),
+                options );
+    }
+
+    private void writeSources() throws IOException {
+        writeSource( "A", "package test; public class A { B b; }" );
+        writeSource( "B", "package test; public class B { public static class Inner {} }" );
+        writeSource( "C", "package test; public class C {}" );
+    }
+
+    @Test
+    public void testCompile_NoState_AllSourcesCompiled() throws IOException {
+        writeSources();
+        assertEquals( "Incorrect number of sources compiled.", 3, compile() );
+        assertTrue( "Class A not generated.", classFile( "A" ).isFile() );
+        assertTrue( "Class B$Inner not generated.", classFile( "B$Inner" ).isFile() );
+        assertTrue( "Build state not stored.", new File( this.target, IncrementalCompiler.STATE_FILE ).isFile() );
+    }
+
+    @Test
+    public void testCompile_NothingChanged_NothingCompiled() throws IOException {
+        writeSources();
+        compile();
+        assertEquals( "Sources recompiled although nothing changed.", 0, compile() );
+    }
+
+    @Test
+    public void testCompile_TargetOnClasspath_NothingCompiled() throws IOException {
+        writeSources();
+        compile( this.target );
+        assertEquals( "Sources recompiled although nothing changed.", 0, compile( this.target ) );
+    }
+
+    @Test
+    public void testCompile_DependeeChanged_DependantsRecompiled() throws IOException {
+        writeSources();
+        compile();
+        writeSource( "B", "package test; public class B { public static class Inner {} int x; }" );
+        assertEquals( "Incorrect number of sources compiled.", 2, compile() );
+    }
+
+    @Test
+    public void testCompile_DependantChanged_DependeeNotRecompiled() throws IOException {
+        writeSources();
+        compile();
+        writeSource( "A", "package test; public class A { B b; int x; }" );
+        assertEquals( "Incorrect number of sources compiled.", 1, compile() );
+    }
+
+    @Test
+    public void testCompile_SourceRemoved_ClassFilesDeleted() throws IOException {
+        writeSources();
+        compile();
+        new File( this.source, "test" + File.separator + "C.java" ).delete();
+        assertEquals( "Sources recompiled although only a source was removed.", 0, compile() );
+        assertFalse( "Class C not deleted.", classFile( "C" ).exists() );
+        assertTrue( "Class A deleted.", classFile( "A" ).isFile() );
+    }
+
+    @Test
+    public void testCompile_NestedClassRemoved_ClassFileDeleted() throws IOException {
+        writeSources();
+        compile();
+        writeSource( "B", "package test; public class B {}" );
+        compile();
+        assertFalse( "Class B$Inner not deleted.", classFile( "B$Inner" ).exists() );
+        assertTrue( "Class B not generated.", classFile( "B" ).isFile() );
+    }
+
+    @Test
+    public void testCompile_ClassFileDeleted_SourceRecompiled() throws IOException {
+        writeSources();
+        compile();
+        classFile( "C" ).delete();
+        assertEquals( "Incorrect number of sources compiled.", 1, compile() );
+        assertTrue( "Class C not generated.", classFile( "C" ).isFile() );
+    }
+
+    @Test
+    public void testCompile_ClasspathChanged_AllSourcesCompiled() throws IOException {
+        writeSources();
+        compile();
+        assertEquals( "Incorrect number of sources compiled.", 3, compile( this.source ) );
+    }
+
+    @Test
+    public void testCompile_FailedCompilation_RecompiledOnNextBuild() throws IOException {
+        writeSources();
+        compile();
+        writeSource( "B", "package test; public class B { Missing m; }" );
+        try {
+            compile();
+            fail( "Compilation did not fail." );
+        } catch ( BuildException e ) {
+            // Expected
+        }
+        writeSource( "B", "package test; public class B {}" );
+        assertEquals( "Incorrect number of sources compiled.", 2, compile() );
+        assertTrue( "Class A not generated.", classFile( "A" ).isFile() );
+    }
+
+    private void writeConstantSources() throws IOException {
+        writeSource( "K", "package test; public class K { public static final int X = 1; void f() {} }" );
+        writeSource( "UsesK", "package test; public class UsesK { int x = K.X; }" );
+        writeSource( "C", "package test; public class C {}" );
+        compile();
+    }
+
+    @Test
+    public void testCompile_ConstantChanged_AllSourcesRecompiled() throws IOException {
+        writeConstantSources();
+        writeSource( "K", "package test; public class K { public static final int X = 2; void f() {} }" );
+        assertEquals( "Incorrect number of sources compiled.", 3, compile() );
+        assertEquals( "Nothing recompiled after the constant change.", 0, compile() );
+    }
+
+    @Test
+    public void testCompile_ConstantsUnchanged_UnrelatedSourcesNotRecompiled() throws IOException {
+        writeConstantSources();
+        writeSource( "K", "package test; public class K { public static final int X = 1; void f() { f(); } }" );
+        assertEquals( "Incorrect number of sources compiled.", 2, compile() );
+    }
+
+    @Test
+    public void testCompile_ConstantRemovedWithSource_AllSourcesRecompiled() throws IOException {
+        writeConstantSources();
+        new File( this.source, "test" + File.separator + "K.java" ).delete();
+        try {
+            compile();
+            fail( "Source using a removed constant compiled." );
+        } catch ( BuildException e ) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCompile_FailedCompilationAfterConstantChange_AllSourcesRecompiledOnNextBuild()
+            throws IOException {
+        writeConstantSources();
+        writeSource( "K", "package test; public class K { public static final int X = 2; Missing m; }" );
+        try {
+            compile();
+            fail( "Compilation did not fail." );
+        } catch ( BuildException e ) {
+            // Expected
+        }
+        writeSource( "K", "package test; public class K { public static final int X = 2; void f() {} }" );
+        assertEquals( "Incorrect number of sources compiled.", 3, compile() );
+    }
+
+    @Test
+    public void testReadReferences_FieldReference_Found() throws IOException {
+        writeSources();
+        compile();
+        assertTrue( "Field type reference not found.",
+                ClassFile.read( classFile( "A" ) ).getReferences().contains( "test/B" ) );
+    }
+
+    private int compileDownstream() {
+        return this.compiler.compile( Collections.singleton( new File( this.directory, "src2" ) ),
+                new File( this.directory, "classes2" ), Collections.singleton( this.target ), Arrays.asList( "-g" ) );
+    }
+
+    private void writeModules() throws IOException {
+        writeSource( "A", "package test; public class A { public static final int X = 1; " +
+                "public int f() { return 1; } private void g() {} }" );
+        writeSource( "B", "package test; public class B { public void h() {} }" );
+        final File downstream = new File( this.directory, "src2" );
+        writeSource( downstream, "down", "UsesA", "package down; public class UsesA { int y = new test.A().f(); }" );
+        writeSource( downstream, "down", "UsesX", "package down; public class UsesX { int x = test.A.X; }" );
+        writeSource( downstream, "down", "UsesB", "package down; public class UsesB { " +
+                "void h() { new test.B().h(); } }" );
+        compile();
+        compileDownstream();
+    }
+
+    @Test
+    public void testCompile_UpstreamBodyChanged_DownstreamNotRecompiled() throws IOException {
+        writeModules();
+        writeSource( "A", "package test; public class A { public static final int X = 1; " +
+                "public int f() { return 2; } private void g() { f(); } private int i; }" );
+        assertEquals( "Upstream source not recompiled.", 1, compile() );
+        assertEquals( "Downstream sources recompiled although the API did not change.", 0, compileDownstream() );
+    }
+
+    @Test
+    public void testCompile_UpstreamApiChanged_ReferencingSourcesRecompiled() throws IOException {
+        writeModules();
+        writeSource( "A", "package test; public class A { public static final int X = 1; " +
+                "public int f() { return 1; } public void g() {} }" );
+        compile();
+        // javac 9 and later record a reference to the class declaring an inlined constant, javac 6 through 8 do not
+        final boolean referenced = ClassFile.read( new File( this.directory, "classes2" + File.separator + "down" +
+                File.separator + "UsesX.class" ) ).getReferences().contains( "test/A" );
+        assertEquals( "Incorrect number of downstream sources recompiled.", referenced ? 2 : 1, compileDownstream() );
+    }
+
+    @Test
+    public void testCompile_UpstreamConstantChanged_AllDownstreamSourcesRecompiled() throws Exception {
+        writeModules();
+        writeSource( "A", "package test; public class A { public static final int X = 2; " +
+                "public int f() { return 1; } private void g() {} }" );
+        compile();
+        assertEquals( "Incorrect number of downstream sources recompiled.", 3, compileDownstream() );
+        final URL classes = new File( this.directory, "classes2" ).toURI().toURL();
+        final Class<?> usesX = new URLClassLoader( new URL[] { classes } ).loadClass( "down.UsesX" );
+        final Field x = usesX.getDeclaredField( "x" );
+        x.setAccessible( true );
+        assertEquals( "Inlined constant not updated downstream.", 2, x.getInt( usesX.newInstance() ) );
+    }
+
+    @Test
+    public void testCompile_UpstreamSupertypeChanged_SubclassApiChanged() throws IOException {
+        writeSource( "A", "package test; public class A { public void f() {} }" );
+        writeSource( "B", "package test; public class B extends A {}" );
+        compile();
+        final String before = load().api.get( "test/B" );
+        writeSource( "A", "package test; public class A { public void f() {} public void g() {} }" );
+        compile();
+        assertNotNull( "Class B not exported.", before );
+        assertFalse( "Supertype API change not reflected in subclass.", before.equals( load().api.get( "test/B" ) ) );
+    }
+
+    private IncrementalCompiler.State load() {
+        final IncrementalCompiler.State state = IncrementalCompiler.load( this.target );
+        assertNotNull( "Build state not loaded.", state );
+        return state;
+    }
+
+    private void writeState( final Object state ) throws IOException {
+        this.target.mkdirs();
+        final ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream( new File( this.target, IncrementalCompiler.STATE_FILE ) ) );
+        try {
+            out.writeObject( state );
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testLoad_ForeignObjectInState_StateIgnored() throws IOException {
+        final HashMap<String, Object> state = new HashMap<String, Object>();
+        state.put( "date", new Date() );
+        writeState( state );
+        assertNull( "Foreign object deserialized from build state.", IncrementalCompiler.load( this.target ) );
+    }
+
+    @Test
+    public void testLoad_CorruptState_AllSourcesCompiled() throws IOException {
+        writeSources();
+        compile();
+        final Writer writer = new FileWriter( new File( this.target, IncrementalCompiler.STATE_FILE ) );
+        try {
+            writer.write( "corrupt" );
+        } finally {
+            writer.close();
+        }
+        assertNull( "Corrupt build state loaded.", IncrementalCompiler.load( this.target ) );
+        assertEquals( "Incorrect number of sources compiled.", 3, compile() );
+    }
+
+    @Test
+    public void testGetApiFingerprint_PrivateClassesNotExported() throws IOException {
+        writeSource( "A", "package test; public class A { private static class P {} " +
+                "Object o = new Object() {}; public static class N {} }" );
+        compile();
+        assertNull( "Private nested class exported.", ClassFile.read( classFile( "A$P" ) ).getApiFingerprint() );
+        assertNull( "Anonymous class exported.", ClassFile.read( classFile( "A$1" ) ).getApiFingerprint() );
+        assertNotNull( "Nested class not exported.", ClassFile.read( classFile( "A$N" ) ).getApiFingerprint() );
+    }
+
+    private boolean isUpToDate() {
+        return IncrementalCompiler.isUpToDate( Collections.singleton( this.source ), this.target );
+    }
+
+    @Test
+    public void testIsUpToDate_NoState_NotUpToDate() throws IOException {
+        writeSources();
+        assertFalse( "Target without build state reported up to date.", isUpToDate() );
+    }
+
+    @Test
+    public void testIsUpToDate_NothingChanged_UpToDate() throws IOException {
+        writeSources();
+        compile();
+        assertTrue( "Target reported out of date although nothing changed.", isUpToDate() );
+    }
+
+    @Test
+    public void testIsUpToDate_SourceChanged_NotUpToDate() throws IOException {
+        writeSources();
+        compile();
+        writeSource( "C", "package test; public class C { int x; }" );
+        assertFalse( "Target reported up to date although a source changed.", isUpToDate() );
+    }
+
+    @Test
+    public void testIsUpToDate_SourceAdded_NotUpToDate() throws IOException {
+        writeSources();
+        compile();
+        writeSource( "D", "package test; public class D {}" );
+        assertFalse( "Target reported up to date although a source was added.", isUpToDate() );
+    }
+
+    @Test
+    public void testIsUpToDate_UpstreamApiChanged_NotUpToDate() throws IOException {
+        writeModules();
+        final File downstream = new File( this.directory, "classes2" );
+        final Collection<File> sources = Collections.singleton( new File( this.directory, "src2" ) );
+        assertTrue( "Downstream reported out of date although nothing changed.",
+                IncrementalCompiler.isUpToDate( sources, downstream ) );
+        writeSource( "A", "package test; public class A { public static final int X = 1; " +
+                "public int f() { return 1; } public void g() {} }" );
+        compile();
+        assertFalse( "Downstream reported up to date although the upstream API changed.",
+                IncrementalCompiler.isUpToDate( sources, downstream ) );
+    }
+
+    @Test
+    public void testIsUpToDate_UpstreamConstantChanged_NotUpToDate() throws IOException {
+        writeModules();
+        writeSource( "A", "package test; public class A { public static final int X = 2; " +
+                "public int f() { return 1; } private void g() {} }" );
+        compile();
+        assertFalse( "Downstream reported up to date although an upstream constant changed.",
+                IncrementalCompiler.isUpToDate( Collections.singleton( new File( this.directory, "src2" ) ),
+                        new File( this.directory, "classes2" ) ) );
+    }
+}
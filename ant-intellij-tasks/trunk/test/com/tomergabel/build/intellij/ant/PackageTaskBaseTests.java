@@ -0,0 +1,370 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.taskdefs.Copy;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class PackageTaskBaseTests extends AntTestBase {
+    private File directory;
+    private final List<String> messages = new ArrayList<String>();
+
+    public PackageTaskBaseTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    @Before
+    public void testSetup() throws IOException, URISyntaxException {
+        this.directory = File.createTempFile( "packagetask", null );
+        this.directory.delete();
+        this.directory.mkdirs();
+
+        final Copy copy = (Copy) this.project.createTask( "copy" );
+        copy.setTodir( this.directory );
+        copy.addFileset( fileset( new File( getClass().getResource( "packaging-test" ).toURI() ) ) );
+        copy.execute();
+
+        this.project.addBuildListener( new BuildListener() {
+            public void messageLogged( final BuildEvent event ) {
+                messages.add( event.getMessage() );
+            }
+
+            public void buildStarted( final BuildEvent event ) {
+            }
+
+            public void buildFinished( final BuildEvent event ) {
+            }
+
+            public void targetStarted( final BuildEvent event ) {
+            }
+
+            public void targetFinished( final BuildEvent event ) {
+            }
+
+            public void taskStarted( final BuildEvent event ) {
+            }
+
+            public void taskFinished( final BuildEvent event ) {
+            }
+        } );
+    }
+
+    @After
+    public void testTeardown() {
+        final CompilerEngine engine = CompilerEngine.forProject( this.project );
+        if ( engine != null )
+            engine.close();
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( this.directory );
+        delete.execute();
+    }
+
+    private FileSet fileset( final File dir ) {
+        final FileSet fileset = new FileSet();
+        fileset.setProject( this.project );
+        fileset.setDir( dir );
+        return fileset;
+    }
+
+    private void write( final String path, final String contents ) throws IOException {
+        final File file = new File( this.directory, path );
+        file.getParentFile().mkdirs();
+        final Writer writer = new FileWriter( file );
+        try {
+            writer.write( contents );
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeLibrarySource() throws IOException {
+        write( "lib/src/lib/Lib.java", "package lib; public class Lib {}" );
+    }
+
+    private void compileLibraryOutput() throws IOException {
+        final CompilerEngine engine = CompilerEngine.forProject( this.project );
+        assertNotNull( "Compiler engine not available.", engine );
+        final File output = new File( this.directory, "lib/bin" );
+        new IncrementalCompiler( this.project, engine ).compile(
+                Collections.singleton( new File( this.directory, "lib/src" ) ), output, Collections.<File>emptyList(),
+                Collections.<String>emptyList() );
+
+        // Output reuse packages the classes in the output directory as-is, so this file identifies reused output
+        write( "lib/bin/lib/Reused.class", "" );
+        write( "lib/bin/stale.properties", "" );
+    }
+
+    private static Set<String> entries( final File archive ) throws IOException {
+        final Set<String> entries = new HashSet<String>();
+        final ZipFile zip = new ZipFile( archive );
+        try {
+            final Enumeration<? extends ZipEntry> enumeration = zip.entries();
+            while ( enumeration.hasMoreElements() )
+                entries.add( enumeration.nextElement().getName() );
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private static Set<String> nestedEntries( final File archive, final String path ) throws IOException {
+        final Set<String> entries = new HashSet<String>();
+        final ZipFile zip = new ZipFile( archive );
+        try {
+            final ZipEntry entry = zip.getEntry( path );
+            assertNotNull( "Nested archive \"" + path + "\" not found.", entry );
+            final InputStream in = zip.getInputStream( entry );
+            try {
+                final JarInputStream nested = new JarInputStream( in );
+                ZipEntry nestedEntry;
+                while ( ( nestedEntry = nested.getNextEntry() ) != null )
+                    entries.add( nestedEntry.getName() );
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private <T extends PackageTaskBase> T setupTask( final T task ) {
+        task.setProject( this.project );
+        task.setProjectFile( new File( this.directory, "packaging-test.ipr" ) );
+        task.setModuleName( "app" );
+        return task;
+    }
+
+    private boolean skipped( final PackageTaskBase task ) {
+        this.messages.clear();
+        task.execute();
+        for ( final String message : this.messages )
+            if ( message.endsWith( " is up to date" ) )
+                return true;
+        return false;
+    }
+
+    private boolean skippedJar() {
+        return skipped( setupTask( new PackageModuleJarTask() ) );
+    }
+
+    private boolean skippedWar() {
+        return skipped( setupTask( new PackageWebFacetTask() ) );
+    }
+
+    private File jarTarget() {
+        return new File( this.directory, "out" + File.separator + "app.jar" );
+    }
+
+    @Test
+    public void testExecute_JarPackagedTwice_SecondRunSkipped() {
+        assertFalse( "JAR package skipped although it was never packaged.", skippedJar() );
+        assertTrue( "JAR package not created.", jarTarget().isFile() );
+        assertTrue( "JAR package rebuilt although nothing changed.", skippedJar() );
+    }
+
+    @Test
+    public void testExecute_JarPackaged_RecordStoredNextToTarget() {
+        skippedJar();
+        assertTrue( "Fingerprint record not stored next to the target.",
+                PackageTaskBase.getRecordFile( "jar", jarTarget() ).isFile() );
+        assertEquals( "Fingerprint record stored in the wrong directory.", jarTarget().getParentFile(),
+                PackageTaskBase.getRecordFile( "jar", jarTarget() ).getParentFile() );
+    }
+
+    @Test
+    public void testExecute_JarResourceChanged_JarRebuilt() throws IOException {
+        skippedJar();
+        write( "lib/src/lib.properties", "lib.name=changed\n" );
+        assertFalse( "JAR package skipped although a dependee resource changed.", skippedJar() );
+        assertTrue( "JAR package rebuilt although nothing changed.", skippedJar() );
+    }
+
+    @Test
+    public void testExecute_JarTargetRemoved_JarRebuilt() {
+        skippedJar();
+        assertTrue( "Cannot delete JAR package.", jarTarget().delete() );
+        assertFalse( "JAR package skipped although the target was removed.", skippedJar() );
+        assertTrue( "JAR package not recreated.", jarTarget().isFile() );
+    }
+
+    @Test
+    public void testExecute_JarTargetFileChanged_JarRebuilt() {
+        skippedJar();
+        final PackageModuleJarTask task = setupTask( new PackageModuleJarTask() );
+        task.setTargetFile( new File( this.directory, "other.jar" ) );
+        assertFalse( "JAR package skipped although the target file changed.", skipped( task ) );
+        assertTrue( "JAR package not created at the new target.", new File( this.directory, "other.jar" ).isFile() );
+    }
+
+    @Test
+    public void testExecute_JarStoredExtensionsChanged_JarRebuilt() {
+        skippedJar();
+        final PackageModuleJarTask task = setupTask( new PackageModuleJarTask() );
+        task.setStore( "properties" );
+        assertFalse( "JAR package skipped although the stored extensions changed.", skipped( task ) );
+    }
+
+    @Test
+    public void testExecute_JarThreadsChanged_JarRebuilt() {
+        final PackageModuleJarTask first = setupTask( new PackageModuleJarTask() );
+        first.setThreads( 1 );
+        skipped( first );
+        final PackageModuleJarTask second = setupTask( new PackageModuleJarTask() );
+        second.setThreads( 2 );
+        assertFalse( "JAR package skipped although the thread count changed.", skipped( second ) );
+    }
+
+    @Test
+    public void testExecute_JarReuseOutputChanged_JarRebuilt() {
+        skippedJar();
+        final PackageModuleJarTask task = setupTask( new PackageModuleJarTask() );
+        task.setReuseOutput( true );
+        assertFalse( "JAR package skipped although output reuse was enabled.", skipped( task ) );
+    }
+
+    @Test
+    public void testExecute_ExplodeModeChanged_WarRebuilt() {
+        skippedWar();
+        final PackageWebFacetTask task = setupTask( new PackageWebFacetTask() );
+        task.setExplodeMode( PackageWebFacetTask.ExplodeMode.sync );
+        assertFalse( "WAR package skipped although the exploded output mode changed.", skipped( task ) );
+    }
+
+    @Test
+    public void testExecute_WarStoredExtensionsChanged_WarRebuilt() {
+        skippedWar();
+        final PackageWebFacetTask task = setupTask( new PackageWebFacetTask() );
+        task.setStore( "" );
+        assertFalse( "WAR package skipped although the stored extensions changed.", skipped( task ) );
+    }
+
+    @Test
+    public void testExecute_WarPackagedTwice_SecondRunSkipped() {
+        assertFalse( "WAR package skipped although it was never packaged.", skippedWar() );
+        assertTrue( "WAR package not created.", new File( this.directory, "out/app.war" ).isFile() );
+        assertTrue( "Exploded output not created.", new File( this.directory, "out/exploded/index.html" ).isFile() );
+        assertTrue( "WAR package rebuilt although nothing changed.", skippedWar() );
+    }
+
+    @Test
+    public void testExecute_WarWebResourceChanged_WarRebuilt() throws IOException {
+        skippedWar();
+        write( "app/web/index.html", "<html><body>changed</body></html>" );
+        assertFalse( "WAR package skipped although a web resource changed.", skippedWar() );
+        assertTrue( "WAR package rebuilt although nothing changed.", skippedWar() );
+    }
+
+    @Test
+    public void testExecute_ExplodedOutputRemoved_WarRebuilt() {
+        skippedWar();
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( new File( this.directory, "out/exploded" ) );
+        delete.execute();
+        assertFalse( "WAR package skipped although the exploded output was removed.", skippedWar() );
+    }
+
+    @Test
+    public void testExecute_ReuseOutputWithUpToDateOutput_OutputPackaged() throws IOException {
+        writeLibrarySource();
+        compileLibraryOutput();
+        final PackageModuleJarTask task = setupTask( new PackageModuleJarTask() );
+        task.setReuseOutput( true );
+        task.execute();
+        final Set<String> entries = entries( jarTarget() );
+        assertTrue( "Module output not reused.", entries.contains( "lib/Reused.class" ) );
+        assertTrue( "Class missing from reused module output.", entries.contains( "lib/Lib.class" ) );
+        assertTrue( "Resource missing from package.", entries.contains( "lib.properties" ) );
+        assertFalse( "Build state packaged with reused output.", entries.contains( IncrementalCompiler.STATE_FILE ) );
+        assertFalse( "Resource packaged from reused output.", entries.contains( "stale.properties" ) );
+    }
+
+    @Test
+    public void testExecute_ReuseOutputWithStaleOutput_ModuleCompiled() throws IOException {
+        writeLibrarySource();
+        compileLibraryOutput();
+        write( "lib/src/lib/Other.java", "package lib; public class Other {}" );
+        final PackageModuleJarTask task = setupTask( new PackageModuleJarTask() );
+        task.setReuseOutput( true );
+        task.execute();
+        final Set<String> entries = entries( jarTarget() );
+        assertFalse( "Stale module output reused.", entries.contains( "lib/Reused.class" ) );
+        assertTrue( "Class not compiled.", entries.contains( "lib/Lib.class" ) );
+        assertTrue( "Added class not compiled.", entries.contains( "lib/Other.class" ) );
+    }
+
+    @Test
+    public void testExecute_ReuseOutputNotSpecified_ModuleCompiled() throws IOException {
+        writeLibrarySource();
+        compileLibraryOutput();
+        skippedJar();
+        final Set<String> entries = entries( jarTarget() );
+        assertFalse( "Module output reused although output reuse is disabled by default.",
+                entries.contains( "lib/Reused.class" ) );
+        assertTrue( "Class not compiled.", entries.contains( "lib/Lib.class" ) );
+    }
+
+    @Test
+    public void testExecute_JarPackagingMethod_DependeePackagedAsNestedJar() throws IOException {
+        writeLibrarySource();
+        skippedWar();
+        final File war = new File( this.directory, "out/app.war" );
+        assertTrue( "Nested JAR missing from WAR package.", entries( war ).contains( "WEB-INF/lib/lib.jar" ) );
+        assertFalse( "Dependee classes packaged outside of the nested JAR.",
+                entries( war ).contains( "WEB-INF/classes/lib/Lib.class" ) );
+        final Set<String> nested = nestedEntries( war, "WEB-INF/lib/lib.jar" );
+        assertTrue( "Class missing from nested JAR.", nested.contains( "lib/Lib.class" ) );
+        assertTrue( "Resource missing from nested JAR.", nested.contains( "lib.properties" ) );
+        assertTrue( "Nested JAR missing from exploded output.",
+                new File( this.directory, "out/exploded/WEB-INF/lib/lib.jar" ).isFile() );
+    }
+
+    @Test
+    public void testExecute_JarPackagingMethodWithReuseOutput_OutputPackagedAsNestedJar() throws IOException {
+        writeLibrarySource();
+        compileLibraryOutput();
+        final PackageWebFacetTask task = setupTask( new PackageWebFacetTask() );
+        task.setReuseOutput( true );
+        task.execute();
+        final Set<String> nested = nestedEntries( new File( this.directory, "out/app.war" ), "WEB-INF/lib/lib.jar" );
+        assertTrue( "Module output not reused in nested JAR.", nested.contains( "lib/Reused.class" ) );
+        assertTrue( "Class missing from nested JAR.", nested.contains( "lib/Lib.class" ) );
+    }
+}
@@ -0,0 +1,317 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import org.apache.tools.ant.taskdefs.Delete;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class PackageWriterTests extends AntTestBase {
+    private File directory;
+    private TaskBase task;
+
+    public PackageWriterTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    @Before
+    public void testSetup() throws IOException {
+        this.directory = File.createTempFile( "packagewriter", null );
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.task = new TaskBase() {
+            @Override
+            protected void executeTask() {
+            }
+        };
+        this.task.setProject( this.project );
+    }
+
+    @After
+    public void testTeardown() {
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( this.directory );
+        delete.execute();
+    }
+
+    private File write( final String path, final String contents ) throws IOException {
+        final File file = new File( this.directory, path );
+        file.getParentFile().mkdirs();
+        final Writer writer = new FileWriter( file );
+        try {
+            writer.write( contents );
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static String read( final InputStream in ) throws IOException {
+        try {
+            final Reader reader = new InputStreamReader( in );
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ( ( c = reader.read() ) >= 0 )
+                sb.append( (char) c );
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Map<String, String> entries( final File archive ) throws IOException {
+        final Map<String, String> entries = new TreeMap<String, String>();
+        final ZipFile zip = new ZipFile( archive );
+        try {
+            for ( final Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                final ZipEntry entry = e.nextElement();
+                entries.put( entry.getName(), entry.isDirectory() ? null : read( zip.getInputStream( entry ) ) );
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    @Test
+    public void testForArchive_FilesAndData_EntriesWritten() throws IOException {
+        final File archive = new File( this.directory, "out/test.jar" );
+        final PackageWriter writer = PackageWriter.forArchive( this.task, archive, null );
+        try {
+            writer.addFile( "a/b.txt", write( "src/b.txt", "b" ) );
+            writer.addData( "c.txt", "c".getBytes() );
+        } finally {
+            writer.close();
+        }
+
+        final Map<String, String> expected = new TreeMap<String, String>();
+        expected.put( "a/", null );
+        expected.put( "a/b.txt", "b" );
+        expected.put( "c.txt", "c" );
+        assertEquals( "Archive entries differ.", expected, entries( archive ) );
+    }
+
+    @Test
+    public void testForArchive_Manifest_ManifestWritten() throws IOException {
+        final File archive = new File( this.directory, "test.jar" );
+        final PackageWriter writer =
+                PackageWriter.forArchive( this.task, archive, PackageTaskBase.generateManifest( "a.Main" ) );
+        try {
+            // A manifest in the packaged content must not override the generated one
+            writer.addData( "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes() );
+        } finally {
+            writer.close();
+        }
+
+        final JarFile jar = new JarFile( archive );
+        try {
+            final Manifest manifest = jar.getManifest();
+            assertNotNull( "Manifest not written.", manifest );
+            assertEquals( "Main class not written.", "a.Main",
+                    manifest.getMainAttributes().getValue( "Main-Class" ) );
+        } finally {
+            jar.close();
+        }
+    }
+
+    @Test
+    public void testAddTree_DuplicatePath_FirstEntryKept() throws IOException {
+        write( "first/x.txt", "first" );
+        write( "second/x.txt", "second" );
+        write( "second/y.txt", "y" );
+        final File archive = new File( this.directory, "test.zip" );
+        final PackageWriter writer = PackageWriter.forArchive( this.task, archive, null );
+        try {
+            writer.addTree( "", new File( this.directory, "first" ) );
+            writer.addTree( "", new File( this.directory, "second" ) );
+        } finally {
+            writer.close();
+        }
+
+        final Map<String, String> entries = entries( archive );
+        assertEquals( "Duplicate entry overwrote the first entry.", "first", entries.get( "x.txt" ) );
+        assertEquals( "Non-duplicate entry not written.", "y", entries.get( "y.txt" ) );
+        assertEquals( "Unexpected entry count.", 2, entries.size() );
+    }
+
+    @Test
+    public void testAddTree_UnsortedNames_EntriesWrittenInNameOrder() throws IOException {
+        for ( final String name : new String[] { "c.txt", "a.txt", "d/x.txt", "b.txt" } )
+            write( "tree/" + name, name );
+        final File archive = new File( this.directory, "test.zip" );
+        final PackageWriter writer = PackageWriter.forArchive( this.task, archive, null );
+        try {
+            writer.addTree( "", new File( this.directory, "tree" ) );
+        } finally {
+            writer.close();
+        }
+
+        final List<String> names = new ArrayList<String>();
+        final ZipFile zip = new ZipFile( archive );
+        try {
+            for ( final Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); )
+                names.add( e.nextElement().getName() );
+        } finally {
+            zip.close();
+        }
+        assertEquals( "Entries not written in name order.", Arrays.asList( "a.txt", "b.txt", "c.txt", "d/", "d/x.txt" ),
+                names );
+    }
+
+    @Test
+    public void testForArchive_GeneratedEntries_IdenticalArchives() throws IOException, InterruptedException {
+        final File first = new File( this.directory, "first.jar" );
+        final File second = new File( this.directory, "second.jar" );
+        for ( final File archive : new File[] { first, second } ) {
+            final PackageWriter writer =
+                    PackageWriter.forArchive( this.task, archive, PackageTaskBase.generateManifest( "a.Main" ) );
+            try {
+                writer.addData( "a/Main.class", "class".getBytes() );
+            } finally {
+                writer.close();
+            }
+
+            // ZIP entry times have a resolution of two seconds
+            if ( archive == first )
+                Thread.sleep( 2100 );
+        }
+
+        final DataInputStream firstIn = new DataInputStream( new FileInputStream( first ) );
+        final DataInputStream secondIn = new DataInputStream( new FileInputStream( second ) );
+        try {
+            final byte[] firstContent = new byte[(int) first.length()];
+            final byte[] secondContent = new byte[(int) second.length()];
+            firstIn.readFully( firstContent );
+            secondIn.readFully( secondContent );
+            assertArrayEquals( "Archive depends on the time at which it was written.", firstContent, secondContent );
+        } finally {
+            firstIn.close();
+            secondIn.close();
+        }
+    }
+
+    @Test
+    public void testCombine_ArchiveAndDirectory_BothWritten() throws IOException {
+        final File archive = new File( this.directory, "test.war" );
+        final File exploded = new File( this.directory, "exploded" );
+        final PackageWriter writer = PackageWriter.combine( this.task,
+                PackageWriter.forArchive( this.task, archive, null ), PackageWriter.forDirectory( this.task, exploded ) );
+        try {
+            writer.addFile( "WEB-INF/web.xml", write( "src/web.xml", "<web-app/>" ) );
+        } finally {
+            writer.close();
+        }
+
+        assertEquals( "Archive entry not written.", "<web-app/>", entries( archive ).get( "WEB-INF/web.xml" ) );
+        assertEquals( "Directory entry not written.", "<web-app/>",
+                read( new FileInputStream( new File( exploded, "WEB-INF/web.xml" ) ) ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testAddData_EmptyPath_ThrowsIllegalArgumentException() throws IOException {
+        final PackageWriter writer = PackageWriter.forDirectory( this.task, this.directory );
+        try {
+            writer.addData( "", new byte[0] );
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void sync( final boolean link, final File... files ) throws IOException {
+        final PackageWriter writer =
+                PackageWriter.forSyncedDirectory( this.task, new File( this.directory, "exploded" ), link );
+        try {
+            for ( final File file : files )
+                writer.addFile( file.getName(), file );
+            writer.addData( "data.txt", "data".getBytes() );
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testForSyncedDirectory_UnchangedEntries_NotRewritten() throws IOException {
+        final File source = write( "src/a.txt", "a" );
+        sync( false, source );
+        final File target = new File( this.directory, "exploded/a.txt" );
+        final File data = new File( this.directory, "exploded/data.txt" );
+        assertEquals( "File entry not written.", "a", read( new FileInputStream( target ) ) );
+
+        // Mark the existing files; unchanged entries must leave them as they are
+        data.setLastModified( 100000 );
+        sync( false, source );
+        assertEquals( "Unchanged data entry rewritten.", 100000, data.lastModified() );
+        assertEquals( "Unchanged file entry modification time differs.", source.lastModified(), target.lastModified() );
+    }
+
+    @Test
+    public void testForSyncedDirectory_ChangedEntry_Rewritten() throws IOException {
+        final File source = write( "src/a.txt", "a" );
+        sync( false, source );
+        write( "src/a.txt", "changed" );
+        sync( false, source );
+        assertEquals( "Changed file entry not rewritten.", "changed",
+                read( new FileInputStream( new File( this.directory, "exploded/a.txt" ) ) ) );
+    }
+
+    @Test
+    public void testForSyncedDirectory_RemovedEntry_Deleted() throws IOException {
+        final File a = write( "src/a.txt", "a" );
+        final File b = write( "src/b.txt", "b" );
+        write( "exploded/stale/c.txt", "c" );
+        sync( false, a, b );
+        sync( false, a );
+        assertTrue( "Current entry deleted.", new File( this.directory, "exploded/a.txt" ).isFile() );
+        assertFalse( "Removed entry not deleted.", new File( this.directory, "exploded/b.txt" ).exists() );
+        assertFalse( "Stale directory not deleted.", new File( this.directory, "exploded/stale" ).exists() );
+    }
+
+    @Test
+    public void testForSyncedDirectory_Link_ContentMatchesSource() throws IOException {
+        final File source = write( "src/a.txt", "a" );
+        sync( true, source );
+        assertEquals( "Linked entry content differs.", "a",
+                read( new FileInputStream( new File( this.directory, "exploded/a.txt" ) ) ) );
+
+        // Switching to copying must not write through the link into the source
+        write( "src/a.txt", "changed" );
+        final PackageWriter writer =
+                PackageWriter.forSyncedDirectory( this.task, new File( this.directory, "exploded" ), false );
+        try {
+            writer.addData( "a.txt", "overwritten".getBytes() );
+        } finally {
+            writer.close();
+        }
+        assertEquals( "Source modified through the exploded output.", "changed",
+                read( new FileInputStream( source ) ) );
+    }
+}
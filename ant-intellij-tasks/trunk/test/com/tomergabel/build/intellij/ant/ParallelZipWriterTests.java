@@ -0,0 +1,248 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class ParallelZipWriterTests {
+    private static byte[] zip( final int threads, final Set<String> storedExtensions,
+                               final Map<String, byte[]> entries ) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ParallelZipWriter writer = new ParallelZipWriter( out, threads, storedExtensions );
+        try {
+            for ( final Map.Entry<String, byte[]> entry : entries.entrySet() )
+                if ( entry.getKey().endsWith( "/" ) )
+                    writer.addDirectory( entry.getKey(), 1000000000000L );
+                else
+                    writer.addFile( entry.getKey(), entry.getValue(), 1000000000000L );
+        } finally {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] zipFiles( final int threads, final Set<String> storedExtensions,
+                                    final Map<String, byte[]> entries ) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ParallelZipWriter writer = new ParallelZipWriter( out, threads, storedExtensions );
+            try {
+                for ( final Map.Entry<String, byte[]> entry : entries.entrySet() ) {
+                    final File file = File.createTempFile( "parallelzipwriter", null );
+                    files.add( file );
+                    final OutputStream fileOut = new FileOutputStream( file );
+                    try {
+                        fileOut.write( entry.getValue() );
+                    } finally {
+                        fileOut.close();
+                    }
+                    writer.addFile( entry.getKey(), file, 1000000000000L );
+                }
+            } finally {
+                writer.close();
+            }
+            return out.toByteArray();
+        } finally {
+            for ( final File file : files )
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        }
+    }
+
+    private static Map<String, ZipEntry> unzip( final byte[] zip, final Map<String, byte[]> contents )
+            throws IOException {
+        final Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+        final ZipInputStream in = new ZipInputStream( new ByteArrayInputStream( zip ) );
+        try {
+            ZipEntry entry;
+            while ( ( entry = in.getNextEntry() ) != null ) {
+                // Reading the entry to its end verifies its CRC
+                final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+                int read;
+                while ( ( read = in.read( buffer ) ) >= 0 )
+                    data.write( buffer, 0, read );
+                entries.put( entry.getName(), entry );
+                contents.put( entry.getName(), data.toByteArray() );
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    private static byte[] text( final int lines ) {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < lines; i++ )
+            sb.append( "line " ).append( i ).append( '\n' );
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void testAddFile_ManyEntries_WrittenInOrderWithContent() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put( "dir/", null );
+        for ( int i = 0; i < 200; i++ )
+            entries.put( "dir/file" + ( 199 - i ) + ".txt", text( i * 10 ) );
+
+        final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        final Map<String, ZipEntry> written =
+                unzip( zip( 4, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ), contents );
+        assertEquals( "Entries not written in order.", new ArrayList<String>( entries.keySet() ),
+                new ArrayList<String>( written.keySet() ) );
+        for ( final Map.Entry<String, byte[]> entry : entries.entrySet() )
+            if ( entry.getValue() != null )
+                assertArrayEquals( "Entry content differs: " + entry.getKey(), entry.getValue(),
+                        contents.get( entry.getKey() ) );
+        assertTrue( "Directory entry not recognized.", written.get( "dir/" ).isDirectory() );
+        assertEquals( "Compressible entry not deflated.", ZipEntry.DEFLATED,
+                written.get( "dir/file0.txt" ).getMethod() );
+    }
+
+    @Test
+    public void testAddFile_SameEntriesDifferentThreads_IdenticalArchives() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        for ( int i = 0; i < 50; i++ )
+            entries.put( "file" + i + ".txt", text( i * 20 ) );
+        assertArrayEquals( "Archive depends on the thread count.",
+                zip( 1, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ),
+                zip( 8, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ) );
+    }
+
+    @Test
+    public void testAddFile_StoredExtension_EntryStored() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put( "lib/dep.JAR", text( 100 ) );
+        entries.put( "lib/dep.txt", text( 100 ) );
+
+        final Map<String, ZipEntry> written = unzip(
+                zip( 2, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ), new HashMap<String, byte[]>() );
+        assertEquals( "Entry with stored extension deflated.", ZipEntry.STORED,
+                written.get( "lib/dep.JAR" ).getMethod() );
+        assertEquals( "Entry without stored extension not deflated.", ZipEntry.DEFLATED,
+                written.get( "lib/dep.txt" ).getMethod() );
+    }
+
+    @Test
+    public void testAddFile_IncompressibleData_EntryStored() throws IOException {
+        final byte[] random = new byte[4096];
+        new Random( 42 ).nextBytes( random );
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put( "random.bin", random );
+        entries.put( "empty.txt", new byte[0] );
+
+        final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        final Map<String, ZipEntry> written = unzip( zip( 2, Collections.<String>emptySet(), entries ), contents );
+        assertEquals( "Incompressible entry deflated.", ZipEntry.STORED, written.get( "random.bin" ).getMethod() );
+        assertArrayEquals( "Entry content differs.", random, contents.get( "random.bin" ) );
+        assertEquals( "Empty entry content differs.", 0, contents.get( "empty.txt" ).length );
+    }
+
+    @Test
+    public void testAddFile_SameFilesAndData_IdenticalArchives() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        for ( int i = 0; i < 20; i++ )
+            entries.put( "file" + i + ".txt", text( i * 20 ) );
+        entries.put( "lib/dep.jar", text( 100 ) );
+        entries.put( "empty.txt", new byte[0] );
+        assertArrayEquals( "Archive differs between file and in-memory entries.",
+                zip( 4, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ),
+                zipFiles( 4, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ) );
+    }
+
+    @Test
+    public void testAddFile_LargeFile_DeflatedWhileWritten() throws IOException {
+        final byte[] large = text( (int) ( ParallelZipWriter.STREAMING_THRESHOLD / 8 ) );
+        assertTrue( "Test data not larger than the streaming threshold.",
+                large.length > ParallelZipWriter.STREAMING_THRESHOLD );
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put( "small.txt", text( 10 ) );
+        entries.put( "large.txt", large );
+        entries.put( "other.txt", text( 20 ) );
+        final byte[] zip = zipFiles( 2, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries );
+
+        final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        final Map<String, ZipEntry> written = unzip( zip, contents );
+        assertEquals( "Entries not written in order.", new ArrayList<String>( entries.keySet() ),
+                new ArrayList<String>( written.keySet() ) );
+        assertEquals( "Large entry not deflated.", ZipEntry.DEFLATED, written.get( "large.txt" ).getMethod() );
+        for ( final Map.Entry<String, byte[]> entry : entries.entrySet() )
+            assertArrayEquals( "Entry content differs: " + entry.getKey(), entry.getValue(),
+                    contents.get( entry.getKey() ) );
+
+        // The central directory must carry the sizes and checksum written after the entry data
+        final File archive = File.createTempFile( "parallelzipwriter", ".zip" );
+        try {
+            final OutputStream out = new FileOutputStream( archive );
+            try {
+                out.write( zip );
+            } finally {
+                out.close();
+            }
+            final ZipFile zipFile = new ZipFile( archive );
+            try {
+                final ZipEntry entry = zipFile.getEntry( "large.txt" );
+                assertEquals( "Incorrect entry size in central directory.", large.length, entry.getSize() );
+                final CRC32 crc = new CRC32();
+                crc.update( large );
+                assertEquals( "Incorrect entry checksum in central directory.", crc.getValue(), entry.getCrc() );
+                assertEquals( "Incorrect entry following the large entry.", "other.txt",
+                        zipFile.getEntry( "other.txt" ).getName() );
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            archive.delete();
+        }
+    }
+
+    @Test
+    public void testAddFile_StoredFile_CopiedFromFile() throws IOException {
+        final byte[] large = text( (int) ( ParallelZipWriter.STREAMING_THRESHOLD / 8 ) );
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put( "lib/large.jar", large );
+        entries.put( "lib/small.png", text( 10 ) );
+
+        final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        final Map<String, ZipEntry> written =
+                unzip( zipFiles( 2, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS, entries ), contents );
+        assertEquals( "Stored file deflated.", ZipEntry.STORED, written.get( "lib/large.jar" ).getMethod() );
+        assertArrayEquals( "Stored file content differs.", large, contents.get( "lib/large.jar" ) );
+        assertArrayEquals( "Stored file content differs.", entries.get( "lib/small.png" ),
+                contents.get( "lib/small.png" ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testConstructor_NoThreads_ThrowsIllegalArgumentException() {
+        new ParallelZipWriter( new ByteArrayOutputStream(), 0, ParallelZipWriter.DEFAULT_STORED_EXTENSIONS );
+    }
+}
@@ -113,6 +113,16 @@ public class ResolveBuildOrderTaskTests {
         assertEquals( "Build order incorrectly resolved.", nameBuildOrder, property );
     }
 
+    @Test
+    public void execute_ProjectProperty_ParallelPreload_PropertyGeneratedCorrectly()
+            throws LazyInitializationException {
+        task.setProject( MockModel.Projects.buildOrderTest.get() );
+        task.setProperty( "property" );
+        task.setParallelPreload( true );
+        task.execute();
+        assertEquals( "Build order incorrectly resolved.", nameBuildOrder, project.getProperty( "property" ) );
+    }
+
     @Test
     public void execute_ProjectProperty_InputUnspecified_DescriptorOutput_PropertyGeneratedCorrectly()
             throws LazyInitializationException {
@@ -224,4 +234,34 @@ public class ResolveBuildOrderTaskTests {
                 "build-order-test-b,build-order-test-a",
                 property );
     }
+
+    @Test
+    public void execute_LevelsLayout_LevelPropertiesGeneratedCorrectly() throws LazyInitializationException {
+        task.setProject( MockModel.Projects.buildOrderTest.get() );
+        task.setProperty( "property" );
+        task.setModules( "build-order-test-a,build-order-test-b,build-order-test-c" );
+        task.setLayout( ResolveBuildOrderTask.Layout.levels );
+        task.setCriticalPath( true );
+        task.execute();
+        assertEquals( "Build order incorrectly resolved.", "build-order-test-c,build-order-test-b,build-order-test-a",
+                project.getProperty( "property" ) );
+        assertEquals( "Level count incorrectly resolved.", "3", project.getProperty( "property.levels" ) );
+        assertEquals( "build-order-test-c", project.getProperty( "property.level.1" ) );
+        assertEquals( "build-order-test-b", project.getProperty( "property.level.2" ) );
+        assertEquals( "build-order-test-a", project.getProperty( "property.level.3" ) );
+        assertEquals( "Critical path incorrectly resolved.", "build-order-test-c,build-order-test-b,build-order-test-a",
+                project.getProperty( "property.critical-path" ) );
+        assertEquals( "3", project.getProperty( "property.critical-path.length" ) );
+    }
+
+    @Test
+    public void execute_SequentialLayout_NoLevelPropertiesGenerated() throws LazyInitializationException {
+        task.setProject( MockModel.Projects.buildOrderTest.get() );
+        task.setProperty( "property" );
+        task.execute();
+        assertNull( "Level properties generated, no such behavior expected.",
+                project.getProperty( "property.levels" ) );
+        assertNull( "Critical path generated, no such behavior expected.",
+                project.getProperty( "property.critical-path" ) );
+    }
 }
@@ -28,14 +28,21 @@ import com.tomergabel.build.intellij.model.ModuleResolver;
 import static com.tomergabel.util.TestUtils.assertSetEquality;
 import static junit.framework.Assert.assertNotNull;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Copy;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Path;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
 
 @SuppressWarnings( { "ConstantConditions" } )
 public class ResolveModuleClasspathTaskTests extends AntTestBase {
@@ -144,4 +151,104 @@ public class ResolveModuleClasspathTaskTests extends AntTestBase {
                 new ModuleResolver( allModules.get(), dependantLibrary.get() ).resolveModuleClasspath( true, false ),
                 ( (Path) object ).list() );
     }
+
+    @Test
+    public void testExecute_JarOutput_PathingJarGenerated() throws Exception {
+        final File directory = File.createTempFile( "pathingjar", null );
+        directory.delete();
+        try {
+            task.setModule( dependantLibrary.get() );
+            task.setProject( allModules.get() );
+            task.setPathId( "testpath" );
+            task.setOutput( ResolveModuleClasspathTask.Output.jar );
+            task.setDestDir( directory );
+            this.task.execute();
+
+            // Assert on generated path and manifest
+            final String[] path = ( (Path) project.getReference( "testpath" ) ).list();
+            assertEquals( "Pathing JAR path should contain exactly one entry.", 1, path.length );
+            final JarFile jar = new JarFile( path[ 0 ] );
+            try {
+                assertEquals( "Class-Path generated incorrectly.", ResolveModuleClasspathTask.generateClassPath(
+                        new ModuleResolver( allModules.get(), dependantLibrary.get() )
+                                .resolveModuleClasspathEntries( true, false ) ),
+                        jar.getManifest().getMainAttributes().getValue( Attributes.Name.CLASS_PATH ) );
+            } finally {
+                jar.close();
+            }
+        } finally {
+            final Delete delete = (Delete) this.project.createTask( "delete" );
+            delete.setDir( directory );
+            delete.execute();
+        }
+    }
+
+    @Test
+    public void testExecute_JarOutputWithUnchangedClasspath_PathingJarNotRegenerated() throws Exception {
+        final File directory = File.createTempFile( "pathingjar", null );
+        directory.delete();
+        try {
+            task.setModule( dependantLibrary.get() );
+            task.setProject( allModules.get() );
+            task.setPathId( "testpath" );
+            task.setOutput( ResolveModuleClasspathTask.Output.jar );
+            task.setDestDir( directory );
+            this.task.execute();
+            final File jar = new File( ( (Path) project.getReference( "testpath" ) ).list()[ 0 ] );
+            assertTrue( "Cannot set modification time.", jar.setLastModified( 1000000000000L ) );
+
+            final ResolveModuleClasspathTask again = new ResolveModuleClasspathTask();
+            again.setProject( this.project );
+            again.setModule( dependantLibrary.get() );
+            again.setProject( allModules.get() );
+            again.setPathId( "testpath" );
+            again.setOutput( ResolveModuleClasspathTask.Output.jar );
+            again.setDestDir( directory );
+            again.execute();
+            assertEquals( "Pathing JAR regenerated although the classpath did not change.", 1000000000000L,
+                    jar.lastModified() );
+        } finally {
+            final Delete delete = (Delete) this.project.createTask( "delete" );
+            delete.setDir( directory );
+            delete.execute();
+        }
+    }
+
+    private File resolvePathingJar( final File projectDirectory, final SourceFilter filter ) {
+        final ResolveModuleClasspathTask task = new ResolveModuleClasspathTask();
+        task.setProject( this.project );
+        task.setProjectFile( new File( projectDirectory, "packaging-test.ipr" ) );
+        task.setModuleName( "app" );
+        task.setPathId( "testpath" );
+        task.setFilter( filter );
+        task.setOutput( ResolveModuleClasspathTask.Output.jar );
+        task.execute();
+        return new File( ( (Path) project.getReference( "testpath" ) ).list()[ 0 ] );
+    }
+
+    @Test
+    public void testExecute_JarOutputWithoutDestDir_PathingJarGeneratedInModuleOutput() throws Exception {
+        final File directory = File.createTempFile( "pathingjar", null );
+        directory.delete();
+        try {
+            final Copy copy = (Copy) this.project.createTask( "copy" );
+            copy.setTodir( directory );
+            final FileSet fileset = new FileSet();
+            fileset.setProject( this.project );
+            fileset.setDir( new File( getClass().getResource( "packaging-test" ).toURI() ) );
+            copy.addFileset( fileset );
+            copy.execute();
+
+            assertEquals( "Source pathing JAR not generated in the module output directory.",
+                    new File( directory, "app/bin" ), resolvePathingJar( directory, SourceFilter.source )
+                            .getParentFile() );
+            assertEquals( "Test pathing JAR not generated in the module test output directory.",
+                    new File( directory, "app/testbin" ), resolvePathingJar( directory, SourceFilter.both )
+                            .getParentFile() );
+        } finally {
+            final Delete delete = (Delete) this.project.createTask( "delete" );
+            delete.setDir( directory );
+            delete.execute();
+        }
+    }
 }
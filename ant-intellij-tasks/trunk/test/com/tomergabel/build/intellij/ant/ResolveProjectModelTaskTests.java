@@ -0,0 +1,126 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import static com.tomergabel.build.intellij.model.MockModel.Modules.*;
+import static com.tomergabel.build.intellij.model.MockModel.Projects.allModules;
+import static com.tomergabel.build.intellij.model.MockModel.Projects.buildOrderTest;
+import com.tomergabel.build.intellij.model.Module;
+import com.tomergabel.build.intellij.model.ModuleResolver;
+import static com.tomergabel.util.CollectionUtils.join;
+import static com.tomergabel.util.CollectionUtils.map;
+import static com.tomergabel.util.TestUtils.assertSetEquality;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.Path;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class ResolveProjectModelTaskTests extends AntTestBase {
+    public ResolveProjectModelTaskTests() throws URISyntaxException, IOException, ClassNotFoundException {
+        super();
+    }
+
+    private ResolveProjectModelTask task;
+
+    @Before
+    public void setup() {
+        this.task = new ResolveProjectModelTask();
+        task.setProject( this.project );
+    }
+
+    @Test
+    public void execute_NoProjectSpecified_BuildExceptionIsThrown() {
+        try {
+            task.execute();
+            fail( "Project not specified but no exception was thrown." );
+        } catch ( BuildException e ) {
+            // Expected, all is well
+        }
+    }
+
+    @Test
+    public void execute_UnresolvableModuleDependency_BuildExceptionIsThrown() throws Exception {
+        task.setProject( allModules.get() );
+        try {
+            task.execute();
+            fail( "Module dependency cannot be resolved but no exception was thrown." );
+        } catch ( BuildException e ) {
+            // Expected, all is well
+        }
+    }
+
+    @Test
+    public void execute_ProjectSpecified_BuildOrderPublished() throws Exception {
+        task.setProject( buildOrderTest.get() );
+        task.execute();
+        final Collection<Module> buildOrder = Arrays.asList( buildOrderTestD.get(), buildOrderTestC.get(),
+                buildOrderTestB.get(), buildOrderTestA.get() );
+        assertEquals( "Build order incorrectly resolved.", join( map( buildOrder, ResolutionModes.names.mapper ) ),
+                project.getProperty( "idea.build-order" ) );
+        assertEquals( "Build order incorrectly resolved.",
+                join( map( buildOrder, ResolutionModes.descriptors.mapper ) ),
+                project.getProperty( "idea.build-order.descriptors" ) );
+    }
+
+    @Test
+    public void execute_ProjectSpecified_ModuleClasspathsPublished() throws Exception {
+        task.setProject( allModules.get() );
+        task.setModules( "dependant-module,dependant-library,dependee" );
+        task.setPrefix( "model" );
+        task.execute();
+
+        final Object classpath = project.getReference( "model.dependant-module.classpath.source" );
+        assertTrue( "Classpath was not published.", classpath instanceof Path );
+        assertSetEquality( "Classpath published incorrectly.",
+                new ModuleResolver( allModules.get(), dependantModule.get() ).resolveModuleClasspath( true, false ),
+                ( (Path) classpath ).list() );
+
+        final Object both = project.getReference( "model.dependant-library.classpath.both" );
+        assertTrue( "Classpath was not published.", both instanceof Path );
+        assertSetEquality( "Classpath published incorrectly.",
+                new ModuleResolver( allModules.get(), dependantLibrary.get() ).resolveModuleClasspath( true, true ),
+                ( (Path) both ).list() );
+    }
+
+    @Test
+    public void execute_ProjectSpecified_ModuleOutputAndSourcesPublished() throws Exception {
+        task.setProject( allModules.get() );
+        task.setModules( "dependant-module,dependee" );
+        task.execute();
+
+        final ModuleResolver resolver = new ModuleResolver( allModules.get(), dependantModule.get() );
+        assertEquals( "Output directory published incorrectly.", resolver.resolveModuleOutputPath( false ),
+                project.getProperty( "idea.dependant-module.output.source" ) );
+        assertNotNull( "Source directories not published.",
+                project.getProperty( "idea.dependant-module.sourcedirs.source" ) );
+        assertTrue( "Source path not published.",
+                project.getReference( "idea.dependant-module.sources.source" ) instanceof Path );
+        assertTrue( "Resource path not published.",
+                project.getReference( "idea.dependant-module.resources.test" ) instanceof Path );
+    }
+}
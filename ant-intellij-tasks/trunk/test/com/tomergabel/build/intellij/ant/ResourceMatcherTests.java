@@ -0,0 +1,136 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.ant;
+
+import static org.junit.Assert.*;
+import org.apache.tools.ant.taskdefs.Delete;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.*;
+
+public class ResourceMatcherTests extends AntTestBase {
+    private static final List<String> extensions = Arrays.asList( "properties", "xml", "tar.gz" );
+    private static final List<String> patterns = Arrays.asList( "?*.dtd", "icon?.png", "META-INF/*.MF" );
+
+    private File directory;
+
+    public ResourceMatcherTests() throws URISyntaxException, IOException {
+        super();
+    }
+
+    @Before
+    public void testSetup() throws IOException {
+        this.directory = File.createTempFile( "resourcematcher", null );
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void testTeardown() {
+        final Delete delete = (Delete) this.project.createTask( "delete" );
+        delete.setDir( this.directory );
+        delete.execute();
+    }
+
+    private void create( final String... paths ) throws IOException {
+        for ( final String path : paths ) {
+            final File file = new File( this.directory, path );
+            file.getParentFile().mkdirs();
+            assertTrue( "Cannot create " + file, file.createNewFile() );
+        }
+    }
+
+    private static Set<String> names( final ResourceCollection resources ) {
+        final Set<String> names = new HashSet<String>();
+        for ( final Iterator i = resources.iterator(); i.hasNext(); )
+            names.add( ( (Resource) i.next() ).getName().replace( File.separatorChar, '/' ) );
+        return names;
+    }
+
+    @Test
+    public void testMatches_Extensions_MatchedBySuffix() {
+        final ResourceMatcher matcher = new ResourceMatcher( extensions, Collections.<String>emptyList() );
+        assertTrue( "Extension not matched.", matcher.matches( "a.properties", "a.properties" ) );
+        assertTrue( "Compound extension not matched.", matcher.matches( "a.tar.gz", "a.tar.gz" ) );
+        assertTrue( "Bare extension not matched.", matcher.matches( ".xml", ".xml" ) );
+        assertFalse( "Partial extension matched.", matcher.matches( "a.gz", "a.gz" ) );
+        assertFalse( "Extension without a dot matched.", matcher.matches( "axml", "axml" ) );
+        assertFalse( "Extension matched case-insensitively.", matcher.matches( "a.XML", "a.XML" ) );
+    }
+
+    @Test
+    public void testMatches_WildcardPatterns_MatchedByName() {
+        final ResourceMatcher matcher = new ResourceMatcher( Collections.<String>emptyList(), patterns );
+        assertTrue( "Wildcard pattern not matched.", matcher.matches( "a.dtd", "a.dtd" ) );
+        assertFalse( "'?' matched an empty string.", matcher.matches( ".dtd", ".dtd" ) );
+        assertTrue( "Wildcard pattern not matched.", matcher.matches( "icon1.png", "icon1.png" ) );
+        assertFalse( "'?' matched more than one character.", matcher.matches( "icon12.png", "icon12.png" ) );
+    }
+
+    @Test
+    public void testSelect_SourceDirectory_SameResourcesAsFileSet() throws IOException {
+        create( "a.properties", "b.java", "pkg/c.xml", "pkg/d.txt", "pkg/sub/e.tar.gz", "f.dtd", "pkg/icon1.png",
+                "pkg/icon12.png", "META-INF/MANIFEST.MF", "pkg/META-INF/X.MF", "g.MF", ".svn/h.xml",
+                "pkg/CVS/i.properties", "j.xml~", "pkg/.#k.xml" );
+
+        final FileSet fileset = new FileSet();
+        fileset.setProject( this.project );
+        fileset.setDir( this.directory );
+        for ( final String extension : extensions )
+            fileset.createInclude().setName( "**/*." + extension );
+        for ( final String pattern : patterns )
+            fileset.createInclude().setName( "**/" + pattern );
+
+        final ResourceCollection selected = new ResourceMatcher( extensions, patterns ).select( this.directory );
+        assertEquals( "Resources selected incorrectly.", names( fileset ), names( selected ) );
+        assertEquals( "Unexpected resources selected.", new HashSet<String>( Arrays.asList( "a.properties",
+                "pkg/c.xml", "pkg/sub/e.tar.gz", "f.dtd", "pkg/icon1.png", "META-INF/MANIFEST.MF",
+                "pkg/META-INF/X.MF" ) ), names( selected ) );
+    }
+
+    @Test
+    public void testSelect_NoExtensionsOrPatterns_AllFilesSelected() throws IOException {
+        create( "a.properties", "pkg/b.java", ".svn/c.xml" );
+        assertEquals( "Resources selected incorrectly.", new HashSet<String>( Arrays.asList( "a.properties",
+                "pkg/b.java" ) ), names( new ResourceMatcher( Collections.<String>emptyList(),
+                Collections.<String>emptyList() ).select( this.directory ) ) );
+    }
+
+    @Test
+    public void testSelect_UnsortedNames_SelectedInNameOrder() throws IOException {
+        create( "c.xml", "b/y.xml", "a.xml", "b/x.xml", "d.xml" );
+        final List<String> names = new ArrayList<String>();
+        for ( final Iterator i = new ResourceMatcher( extensions, patterns ).select( this.directory ).iterator();
+              i.hasNext(); )
+            names.add( ( (Resource) i.next() ).getName().replace( File.separatorChar, '/' ) );
+        assertEquals( "Resources not selected in name order.",
+                Arrays.asList( "a.xml", "c.xml", "d.xml", "b/x.xml", "b/y.xml" ), names );
+    }
+}
@@ -0,0 +1,82 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+public class ClasspathEntryTests {
+    @Test
+    public void testOf_EqualPaths_SameInstanceReturned() {
+        final ClasspathEntry entry = ClasspathEntry.of( new String( "/lib/a.jar" ) );
+        assertSame( "Entry not interned.", entry, ClasspathEntry.of( new String( "/lib/a.jar" ) ) );
+        assertEquals( "Path incorrect.", "/lib/a.jar", entry.getPath() );
+        assertEquals( "File incorrect.", new File( "/lib/a.jar" ), entry.getFile() );
+    }
+
+    @Test
+    public void testOf_DifferentPaths_DifferentEntriesReturned() {
+        assertFalse( "Different paths considered equal.",
+                ClasspathEntry.of( "/lib/a.jar" ).equals( ClasspathEntry.of( "/lib/b.jar" ) ) );
+    }
+
+    @Test
+    public void testOf_UnreferencedEntries_EntriesReclaimed() throws InterruptedException {
+        final int before = ClasspathEntry.internedCount();
+        final List<WeakReference<ClasspathEntry>> references = new ArrayList<WeakReference<ClasspathEntry>>();
+        for ( int i = 0; i < 1000; i++ )
+            references.add( new WeakReference<ClasspathEntry>( ClasspathEntry.of( "/reclaimed/" + i + ".jar" ) ) );
+        // Cleared references are enqueued asynchronously, so wait for the intern table to shrink as well
+        for ( int attempt = 0; attempt < 50 && ( references.get( 0 ).get() != null ||
+                ClasspathEntry.internedCount() >= before + 1000 ); attempt++ ) {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+
+        assertNull( "Unreferenced entry not reclaimed.", references.get( 0 ).get() );
+        assertTrue( "Reclaimed entries not removed from the intern table.",
+                ClasspathEntry.internedCount() < before + 1000 );
+        final ClasspathEntry entry = ClasspathEntry.of( "/reclaimed/0.jar" );
+        assertSame( "Entry not interned again after being reclaimed.", entry, ClasspathEntry.of( "/reclaimed/0.jar" ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testOf_NullPath_ThrowsIllegalArgumentException() {
+        ClasspathEntry.of( null );
+    }
+
+    @Test
+    public void testPaths_EntriesSpecified_PathsReturned() {
+        final Collection<ClasspathEntry> entries = new ArrayList<ClasspathEntry>();
+        entries.add( ClasspathEntry.of( "/lib/a.jar" ) );
+        entries.add( ClasspathEntry.of( "/out/production/module" ) );
+        assertEquals( "Paths view incorrect.", Arrays.asList( "/lib/a.jar", "/out/production/module" ),
+                new ArrayList<String>( ClasspathEntry.paths( entries ) ) );
+    }
+}
@@ -21,19 +21,23 @@
 
 package com.tomergabel.build.intellij.model;
 
-import com.tomergabel.util.LazyInitializationException;
 import static com.tomergabel.util.TestUtils.assertSetEquality;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.net.URI;
 import java.util.Collection;
 import java.util.Collections;
 
-public class FacetParsingTests {
+public class FacetParsingTests extends ParserBackendTestBase {
+    public FacetParsingTests( final String backend ) {
+        super( backend );
+    }
+
     @SuppressWarnings( { "ConstantConditions" } )
     @Test
-    public void test_ModuleWithWebFacet_WebFacetSuccessfullyParsed() throws LazyInitializationException {
-        final Module module = MockModel.Modules.withWebFacet.get();
+    public void test_ModuleWithWebFacet_WebFacetSuccessfullyParsed() throws Exception {
+        final Module module = parse( "modules/with-web-facet.iml" );
         final WebFacet facet = resolve( module.getFacets(), WebFacet.class );
         assertEquals( "Web descriptor URL incorrectly parsed.", "file://$MODULE_DIR$/web/WEB-INF/web.xml",
                 facet.getWebDescriptorUrl() );
@@ -62,8 +66,8 @@ public class FacetParsingTests {
 
     @SuppressWarnings( { "ConstantConditions" } )
     @Test
-    public void test_ModuleWithEjbFacet_EjbFacetSuccessfullyParsed() throws LazyInitializationException {
-        final Module module = MockModel.Modules.withEjbFacet.get();
+    public void test_ModuleWithEjbFacet_EjbFacetSuccessfullyParsed() throws Exception {
+        final Module module = parse( "modules/with-ejb-facet.iml" );
         final EjbFacet facet = resolve( module.getFacets(), EjbFacet.class );
         assertNotNull( "Target URL enable flag incorrectly parsed.", facet.getTargetUrl() );
         assertEquals( "Target URL incorrectly parsed.", "file://$MODULE_DIR$/out/with-ejb-facet.jar", facet.getTargetUrl() );
@@ -79,6 +83,12 @@ public class FacetParsingTests {
         }, facet.getPackagingContainer().getElements() );
     }                        
 
+    private Module parse( final String file ) throws Exception {
+        // Parsed directly rather than through MockModel, whose instances are shared across backends
+        final URI uri = MockModel.class.getResource( file ).toURI();
+        return Module.parse( uri );
+    }
+
     @SuppressWarnings( { "unchecked" } )
     private <U, T extends U> T resolve( final Collection<U> collection, final Class<T> subclass ) {
         T result = null;
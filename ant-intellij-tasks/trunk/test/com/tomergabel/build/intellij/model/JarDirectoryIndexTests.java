@@ -0,0 +1,198 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+
+public class JarDirectoryIndexTests {
+    private static final long OLD = 1000000000000L;
+
+    private File directory;
+    private File cacheDirectory;
+    private File originalCacheDirectory;
+    private boolean originallyEnabled;
+
+    @Before
+    public void testSetup() throws IOException {
+        this.originalCacheDirectory = ModelCache.getDirectory();
+        this.originallyEnabled = ModelCache.isEnabled();
+        this.cacheDirectory = File.createTempFile( "modelcache", null );
+        this.cacheDirectory.delete();
+        ModelCache.setDirectory( this.cacheDirectory );
+        ModelCache.setEnabled( false );
+        JarDirectoryIndex.clear();
+
+        this.directory = File.createTempFile( "jardirectory", null );
+        this.directory.delete();
+        new File( this.directory, "sub" ).mkdirs();
+        touch( "a.jar" );
+        touch( "B.JAR" );
+        touch( "readme.txt" );
+        touch( "sub/c.jar" );
+        age( this.directory );
+        age( new File( this.directory, "sub" ) );
+    }
+
+    @After
+    public void testTeardown() {
+        JarDirectoryIndex.clear();
+        ModelCache.clear();
+        this.cacheDirectory.delete();
+        ModelCache.setDirectory( this.originalCacheDirectory );
+        ModelCache.setEnabled( this.originallyEnabled );
+        for ( final String name : new String[] { "sub/c.jar", "sub/d.jar", "sub", "a.jar", "B.JAR", "readme.txt",
+                "new.jar", "" } )
+            new File( this.directory, name ).delete();
+    }
+
+    private File touch( final String name ) throws IOException {
+        final File file = new File( this.directory, name );
+        file.createNewFile();
+        return file;
+    }
+
+    private static void age( final File directory ) {
+        directory.setLastModified( OLD );
+    }
+
+    private Set<String> expected( final String... names ) {
+        final Set<String> set = new HashSet<String>();
+        for ( final String name : names )
+            set.add( new File( this.directory, name ).getAbsolutePath() );
+        return set;
+    }
+
+    private Set<String> list( final boolean recursive ) {
+        return new HashSet<String>( JarDirectoryIndex.list( this.directory, recursive ) );
+    }
+
+    @Test
+    public void testList_Flat_TopLevelJarsListed() {
+        assertEquals( "Incorrect JARs listed.", expected( "a.jar", "B.JAR" ), list( false ) );
+    }
+
+    @Test
+    public void testList_Recursive_AllJarsListed() {
+        assertEquals( "Incorrect JARs listed.", expected( "a.jar", "B.JAR", "sub/c.jar" ), list( true ) );
+    }
+
+    @Test
+    public void testList_DirectoryUnchanged_CachedListingReused() throws IOException {
+        list( true );
+        touch( "new.jar" );
+        age( this.directory );
+        assertEquals( "Cached listing not reused.", expected( "a.jar", "B.JAR", "sub/c.jar" ), list( true ) );
+    }
+
+    @Test
+    public void testList_SubdirectoryChanged_ListingRefreshed() throws IOException {
+        list( true );
+        touch( "sub/d.jar" );
+        assertEquals( "Listing not refreshed.", expected( "a.jar", "B.JAR", "sub/c.jar", "sub/d.jar" ),
+                list( true ) );
+    }
+
+    @Test
+    public void testList_RecentlyModifiedDirectory_NotTrusted() throws IOException {
+        this.directory.setLastModified( System.currentTimeMillis() );
+        list( false );
+        touch( "new.jar" );
+        this.directory.setLastModified( System.currentTimeMillis() );
+        assertEquals( "Unstable listing reused.", expected( "a.jar", "B.JAR", "new.jar" ), list( false ) );
+    }
+
+    @Test
+    public void testValidate_DirectoryUnchanged_GenerationUnchanged() {
+        list( true );
+        final long generation = JarDirectoryIndex.generation();
+        assertEquals( "Generation changed although no listing did.", generation, JarDirectoryIndex.validate() );
+    }
+
+    @Test
+    public void testValidate_JarAdded_ListingRefreshedAndGenerationIncremented() throws IOException {
+        list( true );
+        final long generation = JarDirectoryIndex.generation();
+        touch( "sub/d.jar" );
+        assertFalse( "Generation unchanged although a listing changed.", generation == JarDirectoryIndex.validate() );
+        assertEquals( "Listing not refreshed.", expected( "a.jar", "B.JAR", "sub/c.jar", "sub/d.jar" ),
+                list( true ) );
+    }
+
+    @Test
+    public void testValidate_DirectoryRemoved_GenerationIncremented() throws IOException {
+        final File removed = new File( this.directory, "removed" );
+        removed.mkdir();
+        JarDirectoryIndex.list( removed, false );
+        final long generation = JarDirectoryIndex.generation();
+        removed.delete();
+        assertFalse( "Generation unchanged although a listed directory was removed.",
+                generation == JarDirectoryIndex.validate() );
+    }
+
+    private File[] persistedListings() {
+        return this.cacheDirectory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( final File dir, final String name ) {
+                return name.endsWith( ModelCache.INDEX_EXTENSION );
+            }
+        } );
+    }
+
+    @Test
+    public void testList_ModelCacheEnabled_ListingPersisted() throws IOException {
+        ModelCache.setEnabled( true );
+        list( false );
+        JarDirectoryIndex.clear();
+        touch( "new.jar" );
+        age( this.directory );
+        assertEquals( "Persisted listing not reused.", expected( "a.jar", "B.JAR" ), list( false ) );
+        assertEquals( "Listing not persisted.", 1, persistedListings().length );
+    }
+
+    @Test
+    public void testList_CorruptPersistedListing_DirectoryRescanned() throws IOException {
+        ModelCache.setEnabled( true );
+        list( false );
+        JarDirectoryIndex.clear();
+
+        // Truncate the persisted listing after its header
+        final File entry = persistedListings()[ 0 ];
+        final BufferedReader in = new BufferedReader( new FileReader( entry ) );
+        final String header = in.readLine() + "\n" + in.readLine() + "\n";
+        in.close();
+        assertEquals( "Listing not stored as text.", ModelCache.VERSION, header.substring( 0, header.indexOf( '\n' ) ) );
+        final Writer out = new FileWriter( entry );
+        out.write( header );
+        out.close();
+
+        touch( "new.jar" );
+        age( this.directory );
+        assertEquals( "Corrupt listing reused.", expected( "a.jar", "B.JAR", "new.jar" ), list( false ) );
+    }
+}
@@ -24,6 +24,7 @@ package com.tomergabel.build.intellij.model;
 import com.tomergabel.util.Lazy;
 import com.tomergabel.util.UriUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
@@ -33,6 +34,34 @@ public final class MockModel {
     private MockModel() {
     }
 
+    private static File temporaryCacheDirectory;
+
+    /**
+     * Points the model cache at a temporary directory, which is deleted when the JVM exits, so that test runs never
+     * populate the user's cache. A cache directory specified via system property is left alone.
+     */
+    public static synchronized void useTemporaryModelCache() {
+        if ( temporaryCacheDirectory != null || System.getProperty( ModelCache.DIRECTORY_PROPERTY ) != null )
+            return;
+        try {
+            temporaryCacheDirectory = File.createTempFile( "modelcache", null );
+        } catch ( IOException e ) {
+            throw new IllegalStateException( e );
+        }
+        temporaryCacheDirectory.delete();
+        ModelCache.setDirectory( temporaryCacheDirectory );
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            @Override
+            public void run() {
+                final File[] files = temporaryCacheDirectory.listFiles();
+                if ( files != null )
+                    for ( final File file : files )
+                        file.delete();
+                temporaryCacheDirectory.delete();
+            }
+        } );
+    }
+
     // ------------------------------------------------------
     // Support code
     // ------------------------------------------------------
@@ -47,6 +76,7 @@ public final class MockModel {
 
         @Override
         public T call() throws Exception {
+            useTemporaryModelCache();
             final URL resource = MockModel.class.getResource( this.file );
             if ( resource == null )
                 throw new Exception( "Resource \"" + this.file + "\" not found!" );
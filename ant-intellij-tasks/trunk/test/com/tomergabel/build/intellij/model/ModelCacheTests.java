@@ -0,0 +1,291 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+import java.io.*;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+
+public class ModelCacheTests {
+    private File directory;
+    private File originalDirectory;
+    private boolean originallyEnabled;
+
+    @Before
+    public void testSetup() throws IOException {
+        this.originalDirectory = ModelCache.getDirectory();
+        this.originallyEnabled = ModelCache.isEnabled();
+
+        this.directory = File.createTempFile( "modelcache", null );
+        this.directory.delete();
+        ModelCache.setDirectory( this.directory );
+        ModelCache.setEnabled( true );
+    }
+
+    @After
+    public void testTeardown() {
+        ModelCache.clear();
+        this.directory.delete();
+        ModelCache.setDirectory( this.originalDirectory );
+        ModelCache.setEnabled( this.originallyEnabled );
+    }
+
+    private static URI resource( final String name ) throws Exception {
+        return MockModel.class.getResource( name ).toURI();
+    }
+
+    private File[] entries() {
+        final File[] entries = this.directory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( final File dir, final String name ) {
+                return name.endsWith( ModelCache.EXTENSION );
+            }
+        } );
+        return entries != null ? entries : new File[ 0 ];
+    }
+
+    private int entryCount() {
+        return entries().length;
+    }
+
+    @Test
+    public void testParse_ModuleParsedTwice_EquivalentModuleLoadedFromCache() throws Exception {
+        final URI descriptor = resource( "modules/with-web-facet.iml" );
+        final Module parsed = Module.parse( descriptor );
+        assertEquals( "Cache entry not created.", 1, entryCount() );
+        final Module cached = Module.parse( descriptor );
+        assertNotSame( "Module not loaded from cache.", parsed, cached );
+        assertEquals( "Cached module differs from parsed module.", parsed, cached );
+    }
+
+    @Test
+    public void testParse_ProjectParsedTwice_EquivalentProjectLoadedFromCache() throws Exception {
+        final URI descriptor = resource( "projects/all-modules.ipr" );
+        final Project parsed = Project.parse( descriptor );
+        final Project cached = Project.parse( descriptor );
+        assertNotSame( "Project not loaded from cache.", parsed, cached );
+        // Libraries do not implement value equality, so the project is compared piecemeal
+        assertEquals( parsed.getName(), cached.getName() );
+        assertEquals( parsed.getOutputUrl(), cached.getOutputUrl() );
+        assertEquals( new HashSet<String>( parsed.getModules() ), new HashSet<String>( cached.getModules() ) );
+        assertEquals( parsed.getLibraries().keySet(), cached.getLibraries().keySet() );
+        assertEquals( new HashSet<String>( parsed.getResourceExtensions() ),
+                new HashSet<String>( cached.getResourceExtensions() ) );
+        assertEquals( new HashSet<String>( parsed.getResourceWildcardPatterns() ),
+                new HashSet<String>( cached.getResourceWildcardPatterns() ) );
+    }
+
+    @Test
+    public void testParse_CacheDisabled_NoEntriesCreated() throws Exception {
+        ModelCache.setEnabled( false );
+        Module.parse( resource( "modules/self-contained.iml" ) );
+        assertEquals( "Cache entry created while cache is disabled.", 0, entryCount() );
+    }
+
+    @Test
+    public void testParse_UnhandledComponent_ReplayedFromCache() throws Exception {
+        final File descriptor = File.createTempFile( "modelcache", ".iml" );
+        try {
+            final Writer writer = new FileWriter( descriptor );
+            try {
+                writer.write( "<module type=\"JAVA_MODULE\" version=\"4\"><component name=\"Unknown\" /></module>" );
+            } finally {
+                writer.close();
+            }
+
+            final Collection<String> components = new ArrayList<String>();
+            final IntelliJParserBase.Handler recorder = new IntelliJParserBase.Handler() {
+                @Override
+                public void parse( final String componentName, final Node componentNode ) {
+                    components.add( componentName );
+                }
+            };
+
+            Module.parse( descriptor.toURI(), recorder );
+            Module.parse( descriptor.toURI(), recorder );
+            assertEquals( "Unhandled component not replayed.", 2, components.size() );
+            assertEquals( "Unknown", components.iterator().next() );
+
+            try {
+                Module.parse( descriptor.toURI() );
+                fail( "Unhandled component not replayed against throw handler, ParseException expected." );
+            } catch ( ParseException e ) {
+                // Expected, all is well
+            }
+        } finally {
+            descriptor.delete();
+        }
+    }
+
+    private static Object roundTrip( final Object object ) throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream( buffer );
+        out.writeObject( object );
+        out.close();
+        return new ModelCache.ModelInputStream( new ByteArrayInputStream( buffer.toByteArray() ) ).readObject();
+    }
+
+    @Test
+    public void testModelInputStream_ModelObject_Deserialized() throws Exception {
+        final Project project = Project.parse( resource( "projects/all-modules.ipr" ) );
+        assertEquals( "Model object not deserialized.", project.getName(), ( (Project) roundTrip( project ) ).getName() );
+        for ( final String name : new String[] { "with-web-facet", "with-ejb-facet", "with-module-library",
+                "with-jar-directory-recursive", "jar-output-self-contained", "dependant-both" } ) {
+            final Module module = Module.parse( resource( "modules/" + name + ".iml" ) );
+            // Libraries do not implement value equality, so the module is compared piecemeal
+            final Module deserialized = (Module) roundTrip( module );
+            assertEquals( "Model object not deserialized.", module.getName(), deserialized.getName() );
+            assertEquals( "Model object not deserialized.", module.getDependencies().size(),
+                    deserialized.getDependencies().size() );
+        }
+    }
+
+    @Test( expected = InvalidClassException.class )
+    public void testModelInputStream_ForeignObject_ThrowsInvalidClassException() throws Exception {
+        roundTrip( new Date() );
+    }
+
+    @Test( expected = InvalidClassException.class )
+    public void testModelInputStream_ForeignObjectInAllowedCollection_ThrowsInvalidClassException() throws Exception {
+        final Collection<Object> collection = new ArrayList<Object>();
+        collection.add( new Date() );
+        roundTrip( collection );
+    }
+
+    @Test
+    public void testParse_CacheDirectoryCreated_OwnerOnlyPermissions() throws Exception {
+        Module.parse( resource( "modules/self-contained.iml" ) );
+        assertTrue( "Cache directory not created.", this.directory.isDirectory() );
+        assertTrue( "Cache directory not accessible by owner.", this.directory.canRead() && this.directory.canWrite() );
+    }
+
+    @Test
+    public void testParse_EntryFromOtherVersion_EntryIgnored() throws Exception {
+        final URI descriptor = resource( "modules/self-contained.iml" );
+        final Module parsed = Module.parse( descriptor );
+
+        // Rewrite the entry's version header, keeping the rest of the entry intact
+        final File entry = entries()[ 0 ];
+        final ObjectInputStream in = new ObjectInputStream( new FileInputStream( entry ) );
+        final String version = in.readUTF();
+        final String key = in.readUTF();
+        final byte[] hash = new byte[ in.readInt() ];
+        in.readFully( hash );
+        final Object model = in.readObject();
+        in.close();
+        assertEquals( "Entry version header not written.", ModelCache.VERSION, version );
+        final ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( entry ) );
+        out.writeUTF( "0" );
+        out.writeUTF( key );
+        out.writeInt( hash.length );
+        out.write( hash );
+        out.writeObject( model );
+        out.close();
+
+        assertNull( "Entry from another version loaded.",
+                ModelCache.load( descriptor, ParserBase.readDescriptor( descriptor ), Module.class ) );
+        assertEquals( "Module not parsed.", parsed, Module.parse( descriptor ) );
+    }
+
+    private static File writeDescriptor() throws IOException {
+        final File descriptor = File.createTempFile( "modelcache", ".iml" );
+        final Writer writer = new FileWriter( descriptor );
+        try {
+            writer.write( "<module type=\"JAVA_MODULE\" version=\"4\" />" );
+        } finally {
+            writer.close();
+        }
+        return descriptor;
+    }
+
+    @Test
+    public void testPrune_DescriptorRemoved_EntryDiscarded() throws Exception {
+        final File descriptor = writeDescriptor();
+        Module.parse( descriptor.toURI() );
+        Module.parse( resource( "modules/self-contained.iml" ) );
+        assertEquals( "Cache entries not created.", 2, entryCount() );
+        descriptor.delete();
+        ModelCache.prune( ModelCache.MAX_ENTRIES );
+        assertEquals( "Entry of removed descriptor not discarded.", 1, entryCount() );
+        assertNotNull( "Entry of existing descriptor discarded.", ModelCache.load(
+                resource( "modules/self-contained.iml" ),
+                ParserBase.readDescriptor( resource( "modules/self-contained.iml" ) ), Module.class ) );
+    }
+
+    @Test
+    public void testPrune_EntryUnused_EntryDiscarded() throws Exception {
+        Module.parse( resource( "modules/self-contained.iml" ) );
+        Module.parse( resource( "modules/dependee.iml" ) );
+        final File entry = entries()[ 0 ];
+        entry.setLastModified( System.currentTimeMillis() - ModelCache.MAX_UNUSED_AGE - ModelCache.PRUNE_INTERVAL );
+        ModelCache.prune( ModelCache.MAX_ENTRIES );
+        assertFalse( "Unused entry not discarded.", entry.exists() );
+        assertEquals( "Recently used entry discarded.", 1, entryCount() );
+    }
+
+    @Test
+    public void testPrune_TooManyEntries_LeastRecentlyUsedDiscarded() throws Exception {
+        Module.parse( resource( "modules/self-contained.iml" ) );
+        Module.parse( resource( "modules/dependee.iml" ) );
+        Module.parse( resource( "modules/dependant-module.iml" ) );
+        final File[] entries = entries();
+        for ( int i = 0; i < entries.length; i++ )
+            entries[ i ].setLastModified( System.currentTimeMillis() - ( i + 1 ) * 60000L );
+        ModelCache.prune( 2 );
+        assertEquals( "Entries not discarded.", 2, entryCount() );
+        assertFalse( "Least recently used entry not discarded.", entries[ entries.length - 1 ].exists() );
+    }
+
+    @Test
+    public void testLoad_EntryUsed_LastUsedTimeUpdated() throws Exception {
+        final URI descriptor = resource( "modules/self-contained.iml" );
+        Module.parse( descriptor );
+        final File entry = entries()[ 0 ];
+        final long old = System.currentTimeMillis() - 2 * ModelCache.PRUNE_INTERVAL;
+        entry.setLastModified( old );
+        Module.parse( descriptor );
+        assertTrue( "Last used time not updated.", entry.lastModified() > old + ModelCache.PRUNE_INTERVAL );
+    }
+
+    @Test
+    public void testStore_PruneDue_DirectoryPruned() throws Exception {
+        final File descriptor = writeDescriptor();
+        Module.parse( descriptor.toURI() );
+        descriptor.delete();
+        assertEquals( "Directory pruned more than once per interval.", 1, entryCount() );
+
+        // Backdate the last pruning, the next store prunes the directory
+        new File( this.directory, ".pruned" ).setLastModified(
+                System.currentTimeMillis() - 2 * ModelCache.PRUNE_INTERVAL );
+        Module.parse( resource( "modules/self-contained.iml" ) );
+        assertEquals( "Directory not pruned.", 1, entryCount() );
+    }
+}
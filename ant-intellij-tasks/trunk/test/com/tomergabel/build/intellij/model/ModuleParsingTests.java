@@ -32,10 +32,14 @@ import org.junit.Test;
 import java.net.URI;
 import java.net.URISyntaxException;
 
-public class ModuleParsingTests {
+public class ModuleParsingTests extends ParserBackendTestBase {
     private URI resource;
     private Module module;
 
+    public ModuleParsingTests( final String backend ) {
+        super( backend );
+    }
+
     @Before
     public void testSetup() throws Exception {
         this.resource = this.getClass().getResource( "parsing-test.iml" ).toURI();
@@ -27,13 +27,14 @@ import com.tomergabel.util.Lazy;
 import com.tomergabel.util.LazyInitializationException;
 import static com.tomergabel.util.TestUtils.assertSetEquality;
 import com.tomergabel.util.UriUtils;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 import org.junit.Test;
 
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 
 public class ModuleResolverTests {
     // ------------------------------------------------------
@@ -226,6 +227,47 @@ public class ModuleResolverTests {
         }, resolver.resolveModuleClasspath( true, false ) );
     }
 
+    @Test
+    public void testResolveClasspath_WithSourcesAndTests_ClasspathIncludesDependeeTestOutput() throws Exception {
+        final ModuleResolver dependee =
+                new ProjectResolver( Projects.allModules.get() ).getModuleResolver( "dependee" );
+        resolve( Projects.allModules, Modules.dependantModule );
+        final Collection<String> classpath = resolver.resolveModuleClasspath( true, true );
+        assertTrue( "Dependee output missing from classpath.",
+                classpath.contains( dependee.resolveModuleOutputPath( false ) ) );
+        assertTrue( "Dependee test output missing from classpath.",
+                classpath.contains( dependee.resolveModuleOutputPath( true ) ) );
+        assertTrue( "Module test output missing from classpath.",
+                classpath.contains( resolver.resolveModuleOutputPath( true ) ) );
+    }
+
+    @Test
+    public void testResolveClasspath_RepeatedCalls_ClasspathIsMemoized() throws Exception {
+        resolve( Projects.allModules, Modules.dependantBoth );
+        final Collection<String> classpath = resolver.resolveModuleClasspath( true, false );
+        assertSame( "Classpath was not memoized.", classpath, resolver.resolveModuleClasspath( true, false ) );
+        final Collection<String> dependencies = resolver.resolveModuleClasspath( false, false );
+        assertFalse( "Classpath memoized across filters.",
+                new HashSet<String>( classpath ).equals( new HashSet<String>( dependencies ) ) );
+        assertFalse( "Module output found in unfiltered classpath.",
+                dependencies.contains( resolver.resolveModuleOutputPath( false ) ) );
+
+        resolver.getProjectResolver().clearClasspathCache();
+        final Collection<String> recomputed = resolver.resolveModuleClasspath( true, false );
+        assertNotSame( "Classpath cache was not cleared.", classpath, recomputed );
+        assertSetEquality( "Classpath recomputed incorrectly.", classpath, recomputed );
+    }
+
+    @Test
+    public void testResolveClasspath_JarDirectoryListingsChanged_ClasspathRecomputed() throws Exception {
+        resolve( Projects.allModules, Modules.dependantBoth );
+        final Collection<String> classpath = resolver.resolveModuleClasspath( true, false );
+        JarDirectoryIndex.clear();
+        final Collection<String> recomputed = resolver.resolveModuleClasspath( true, false );
+        assertNotSame( "Stale classpath returned after the JAR directory listings changed.", classpath, recomputed );
+        assertSetEquality( "Classpath recomputed incorrectly.", classpath, recomputed );
+    }
+
     @Test
     public void testResolveClasspath_WithProjectLevelLibraryDependenciesAndNoProjectSpecified_ResolutionExceptionIsThrown()
             throws Exception {
@@ -0,0 +1,78 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+@RunWith( Parameterized.class )
+public abstract class ParserBackendTestBase {
+    private final String backend;
+    private String previousBackend;
+    private File cacheDirectory;
+    private File previousCacheDirectory;
+    private boolean previousCacheEnabled;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> backends() {
+        return Arrays.asList( new Object[][] { { "stax" }, { "dom" } } );
+    }
+
+    protected ParserBackendTestBase( final String backend ) {
+        this.backend = backend;
+    }
+
+    @Before
+    public void selectBackend() throws IOException {
+        this.previousBackend = System.getProperty( IntelliJParserBase.PARSER_PROPERTY );
+        System.setProperty( IntelliJParserBase.PARSER_PROPERTY, this.backend );
+        assertEquals( "Parser backend not selected.", "stax".equals( this.backend ), IntelliJParserBase.isStreaming() );
+
+        // Bypass the model cache so that every test actually parses with the selected backend
+        this.previousCacheDirectory = ModelCache.getDirectory();
+        this.previousCacheEnabled = ModelCache.isEnabled();
+        this.cacheDirectory = File.createTempFile( "modelcache", null );
+        this.cacheDirectory.delete();
+        ModelCache.setDirectory( this.cacheDirectory );
+        ModelCache.setEnabled( false );
+    }
+
+    @After
+    public void restoreBackend() {
+        ModelCache.clear();
+        this.cacheDirectory.delete();
+        ModelCache.setDirectory( this.previousCacheDirectory );
+        ModelCache.setEnabled( this.previousCacheEnabled );
+        if ( this.previousBackend == null )
+            System.clearProperty( IntelliJParserBase.PARSER_PROPERTY );
+        else
+            System.setProperty( IntelliJParserBase.PARSER_PROPERTY, this.previousBackend );
+    }
+}
@@ -0,0 +1,175 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static com.tomergabel.util.TestUtils.assertSetEquality;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.xpath.XPathExpression;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.*;
+
+public class ParserBaseTests {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 25;
+
+    private ExecutorService executor;
+    private File cacheDirectory;
+    private File originalCacheDirectory;
+    private boolean cacheEnabled;
+
+    @Before
+    public void testSetup() throws IOException {
+        this.executor = Executors.newFixedThreadPool( THREADS );
+        this.originalCacheDirectory = ModelCache.getDirectory();
+        this.cacheEnabled = ModelCache.isEnabled();
+        this.cacheDirectory = File.createTempFile( "modelcache", null );
+        this.cacheDirectory.delete();
+        ModelCache.setDirectory( this.cacheDirectory );
+        ModelCache.setEnabled( false );
+    }
+
+    @After
+    public void testTeardown() {
+        ModelCache.clear();
+        this.cacheDirectory.delete();
+        ModelCache.setDirectory( this.originalCacheDirectory );
+        ModelCache.setEnabled( this.cacheEnabled );
+        this.executor.shutdownNow();
+    }
+
+    private <T> T onNewThread( final Callable<T> callable ) throws Exception {
+        // Each call uses a fresh thread so that it starts with an empty expression cache
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            return thread.submit( callable ).get();
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompile_SameThread_ExpressionReused() throws Exception {
+        final XPathExpression expression = ParserBase.compile( "test/compile/same-thread" );
+        assertSame( "Expression not cached.", expression, ParserBase.compile( "test/compile/same-thread" ) );
+        assertTrue( "Expression not cached.", ParserBase.isCompiled( "test/compile/same-thread" ) );
+    }
+
+    @Test
+    public void testCompile_DifferentThreads_ExpressionsNotShared() throws Exception {
+        final XPathExpression expression = ParserBase.compile( "test/compile/different-threads" );
+        assertFalse( "Expression shared across threads.", onNewThread( new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return ParserBase.isCompiled( "test/compile/different-threads" );
+            }
+        } ) );
+        assertNotSame( "Expression shared across threads.", expression, onNewThread(
+                new Callable<XPathExpression>() {
+                    @Override
+                    public XPathExpression call() throws Exception {
+                        return ParserBase.compile( "test/compile/different-threads" );
+                    }
+                } ) );
+    }
+
+    @Test
+    public void testPrecompile_ValidExpressions_CompiledEagerlyOnNewThreads() throws Exception {
+        ParserBase.precompile( "test/precompile/a", "test/precompile/b" );
+        assertTrue( "Registered expressions not compiled on a new thread.", onNewThread( new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return ParserBase.isCompiled( "test/precompile/a" ) && ParserBase.isCompiled( "test/precompile/b" ) &&
+                        !ParserBase.isCompiled( "test/precompile/unregistered" );
+            }
+        } ) );
+    }
+
+    @Test
+    public void testPrecompile_InvalidExpression_IllegalArgumentExceptionThrown() throws Exception {
+        try {
+            ParserBase.precompile( "test/precompile/[invalid" );
+            fail( "Invalid expression registered, IllegalArgumentException expected." );
+        } catch ( IllegalArgumentException e ) {
+            // Expected, all is well
+        }
+        assertFalse( "Invalid expression registered.", onNewThread( new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return ParserBase.isCompiled( "test/precompile/[invalid" );
+            }
+        } ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testPrecompile_NullExpressionList_IllegalArgumentExceptionThrown() {
+        ParserBase.precompile( (String[]) null );
+    }
+
+    @Test
+    public void testParse_ConcurrentParsers_ResultsConsistent() throws Exception {
+        final URI moduleUri = this.getClass().getResource( "parsing-test.iml" ).toURI();
+        final URI projectUri = this.getClass().getResource( "parsing-test.ipr" ).toURI();
+        final Module expectedModule = Module.parse( moduleUri );
+        final Project expectedProject = Project.parse( projectUri );
+
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final Collection<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for ( int i = 0; i < THREADS; ++i )
+            futures.add( this.executor.submit( new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    for ( int j = 0; j < ITERATIONS; ++j ) {
+                        final Module module = Module.parse( moduleUri );
+                        assertEquals( "Module name incorrectly parsed.", expectedModule.getName(), module.getName() );
+                        assertSetEquality( "Dependencies incorrectly parsed.", expectedModule.getDependencies(),
+                                module.getDependencies().toArray( new Dependency[ 0 ] ) );
+                        final Project project = Project.parse( projectUri );
+                        assertSetEquality( "Project modules incorrectly parsed.", expectedProject.getModules(),
+                                project.getModules().toArray( new String[ 0 ] ) );
+                        assertSetEquality( "Project libraries incorrectly parsed.",
+                                expectedProject.getLibraries().keySet(),
+                                project.getLibraries().keySet().toArray( new String[ 0 ] ) );
+                    }
+                    return ITERATIONS;
+                }
+            } ) );
+
+        start.countDown();
+        for ( final Future<Integer> future : futures )
+            try {
+                assertEquals( ITERATIONS, (int) future.get( 60, TimeUnit.SECONDS ) );
+            } catch ( ExecutionException e ) {
+                if ( e.getCause() instanceof AssertionError )
+                    throw (AssertionError) e.getCause();
+                throw e;
+            }
+    }
+}
@@ -29,10 +29,14 @@ import org.junit.Test;
 
 import java.net.URI;
 
-public class ProjectParsingTests {
+public class ProjectParsingTests extends ParserBackendTestBase {
     private URI resource;
     private Project project;
 
+    public ProjectParsingTests( final String backend ) {
+        super( backend );
+    }
+
     @Before
     public void testSetup() throws Exception {
         this.resource = this.getClass().getResource( "parsing-test.ipr" ).toURI();
@@ -0,0 +1,97 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class ProjectResolverRegistryTests {
+    private File descriptor;
+
+    @Before
+    public void testSetup() throws IOException {
+        // Work on a copy of the project descriptor so that it can be safely modified
+        this.descriptor = File.createTempFile( "registrytest", ".ipr" );
+        final InputStream in = MockModel.class.getResourceAsStream( "projects/build-order-test.ipr" );
+        try {
+            final OutputStream out = new FileOutputStream( this.descriptor );
+            try {
+                final byte[] buffer = new byte[ 4096 ];
+                int read;
+                while ( ( read = in.read( buffer ) ) != -1 )
+                    out.write( buffer, 0, read );
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @After
+    public void testTeardown() throws IOException {
+        ProjectResolverRegistry.invalidate( this.descriptor.toURI() );
+        this.descriptor.delete();
+    }
+
+    private ProjectResolver get() throws Exception {
+        return ProjectResolverRegistry.get( this.descriptor.toURI(), IntelliJParserBase.throwHandler );
+    }
+
+    @Test
+    public void testGet_DescriptorUnchanged_SameResolverReturned() throws Exception {
+        assertSame( "Resolver not shared across calls.", get(), get() );
+    }
+
+    @Test
+    public void testGet_DescriptorModified_NewResolverReturned() throws Exception {
+        final ProjectResolver resolver = get();
+        final OutputStream out = new FileOutputStream( this.descriptor, true );
+        try {
+            out.write( '\n' );
+        } finally {
+            out.close();
+        }
+        assertNotSame( "Stale resolver returned for modified project descriptor.", resolver, get() );
+    }
+
+    @Test
+    public void testInvalidate_ResolverCached_NewResolverReturned() throws Exception {
+        final ProjectResolver resolver = get();
+        ProjectResolverRegistry.invalidate( this.descriptor.toURI() );
+        assertNotSame( "Invalidated resolver returned.", resolver, get() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testGet_NullDescriptor_ThrowsIllegalArgumentException() throws Exception {
+        ProjectResolverRegistry.get( null, IntelliJParserBase.throwHandler );
+    }
+}
@@ -24,11 +24,16 @@ package com.tomergabel.build.intellij.model;
 import static com.tomergabel.build.intellij.model.MockModel.Modules.*;
 import com.tomergabel.util.LazyInitializationException;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ProjectResolverTests {
     // ------------------------------------------------------
@@ -59,6 +64,116 @@ public class ProjectResolverTests {
         }
     }
 
+    @Test
+    public void testResolveModuleBuildOrder_CircularDependencyPresent_CyclePathIsReported()
+            throws ResolutionException, LazyInitializationException {
+        try {
+            new ProjectResolver( MockModel.Projects.circularDependencyTest.get() ).resolveModuleBuildOrder();
+            fail( "Project with circularly-dependent modules resolved correctly, ResolutionException expected." );
+        } catch ( ResolutionException e ) {
+            assertTrue( "Dependency cycle not reported: " + e.getMessage(),
+                    e.getMessage().contains( "\"circular-dependency-test-a\" -> \"circular-dependency-test-b\" -> " +
+                            "\"circular-dependency-test-a\"" ) ||
+                    e.getMessage().contains( "\"circular-dependency-test-b\" -> \"circular-dependency-test-a\" -> " +
+                            "\"circular-dependency-test-b\"" ) );
+        }
+    }
+
+    @Test
+    public void testPreloadModules_MultipleThreads_BuildOrderResolvedCorrectly()
+            throws ResolutionException, LazyInitializationException {
+        final ProjectResolver resolver = new ProjectResolver( MockModel.Projects.buildOrderTest.get() );
+        resolver.preloadModules( 4 );
+        assertArrayEquals( "Build order resolved incorrectly after parallel preload.", new Object[] {
+                buildOrderTestD.get(),
+                buildOrderTestC.get(),
+                buildOrderTestB.get(),
+                buildOrderTestA.get()
+        }, resolver.resolveModuleBuildOrder().toArray() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testPreloadModules_ZeroThreads_ThrowsIllegalArgumentException()
+            throws ResolutionException, LazyInitializationException {
+        new ProjectResolver( MockModel.Projects.buildOrderTest.get() ).preloadModules( 0 );
+    }
+
+    // ------------------------------------------------------
+    // resolveModuleDependencyGraph tests
+    // ------------------------------------------------------
+
+    @Test
+    public void testResolveModuleDependencyGraph_DiamondDependency_DepthResolvedByLongestPath()
+            throws ResolutionException, LazyInitializationException {
+        final ModuleDependencyGraph graph = new ProjectResolver( MockModel.Projects.buildOrderTest.get() )
+                .resolveModuleDependencyGraph( Arrays.asList( buildOrderTestA.get() ) );
+        assertEquals( "Graph contains an incorrect number of modules.", 4, graph.getModules().size() );
+        assertEquals( 1, graph.getDepth( buildOrderTestA.get() ) );
+        assertEquals( 2, graph.getDepth( buildOrderTestB.get() ) );
+        assertEquals( 3, graph.getDepth( buildOrderTestC.get() ) );
+        assertEquals( 4, graph.getDepth( buildOrderTestD.get() ) );
+        assertArrayEquals( "Topological order resolved incorrectly.", new Object[] {
+                buildOrderTestD.get(),
+                buildOrderTestC.get(),
+                buildOrderTestB.get(),
+                buildOrderTestA.get()
+        }, graph.getModules().toArray() );
+    }
+
+    @Test
+    public void testGetBuildLevels_IndependentModules_GroupedIntoSameLevel()
+            throws ResolutionException, LazyInitializationException {
+        final Collection<Module> modules = Arrays.asList( dependantModule.get(), dependantLibrary.get(),
+                dependee.get(), selfContained.get() );
+        final ModuleDependencyGraph graph = new ProjectResolver( MockModel.Projects.allModules.get() )
+                .resolveModuleDependencyGraph( modules );
+        final List<List<Module>> levels = graph.getBuildLevels( modules );
+        assertEquals( "Incorrect number of build levels.", 2, levels.size() );
+        assertArrayEquals( "First build level resolved incorrectly.", new Object[] {
+                dependantLibrary.get(),
+                dependee.get(),
+                selfContained.get()
+        }, levels.get( 0 ).toArray() );
+        assertArrayEquals( "Second build level resolved incorrectly.", new Object[] {
+                dependantModule.get()
+        }, levels.get( 1 ).toArray() );
+        assertArrayEquals( "Critical path resolved incorrectly.", new Object[] {
+                dependee.get(),
+                dependantModule.get()
+        }, graph.getCriticalPath( modules ).toArray() );
+    }
+
+    @Test
+    public void testGetBuildLevels_PartialModulesWithIndirectDependency_DependencyHonored()
+            throws ResolutionException, LazyInitializationException {
+        final Collection<Module> modules = Arrays.asList( buildOrderTestA.get(), buildOrderTestC.get() );
+        final ModuleDependencyGraph graph = new ProjectResolver( MockModel.Projects.buildOrderTest.get() )
+                .resolveModuleDependencyGraph( modules );
+        final List<List<Module>> levels = graph.getBuildLevels( modules );
+        assertEquals( "Incorrect number of build levels.", 2, levels.size() );
+        assertArrayEquals( new Object[] { buildOrderTestC.get() }, levels.get( 0 ).toArray() );
+        assertArrayEquals( new Object[] { buildOrderTestA.get() }, levels.get( 1 ).toArray() );
+        assertArrayEquals( "Critical path resolved incorrectly.", new Object[] {
+                buildOrderTestC.get(),
+                buildOrderTestA.get()
+        }, graph.getCriticalPath( modules ).toArray() );
+    }
+
+    @Test
+    public void testGetRemainingPathCosts_WithCosts_CostsAccumulatedAlongDependants()
+            throws ResolutionException, LazyInitializationException {
+        final Collection<Module> modules = Arrays.asList( dependantModule.get(), dependee.get(), selfContained.get() );
+        final ModuleDependencyGraph graph = new ProjectResolver( MockModel.Projects.allModules.get() )
+                .resolveModuleDependencyGraph( modules );
+        final Map<Module, Long> costs = new HashMap<Module, Long>();
+        costs.put( dependee.get(), 10L );
+        costs.put( dependantModule.get(), 5L );
+        final Map<Module, Long> remaining = graph.getRemainingPathCosts( modules, costs, 1 );
+        assertEquals( 5L, (long) remaining.get( dependantModule.get() ) );
+        assertEquals( 15L, (long) remaining.get( dependee.get() ) );
+        assertEquals( 1L, (long) remaining.get( selfContained.get() ) );
+    }
+
     @Test
     public void testResolveModuleBuildOrderByNames_ProjectSpecifiedAndModulesAvailable_PartialBuildOrderResolvedCorrectly()
             throws ResolutionException, LazyInitializationException {
@@ -0,0 +1,121 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.intellij.model;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PropertyTemplateTests {
+    private final PropertyResolver resolver = new PropertyResolver( null ) {
+        @Override
+        protected Map<String, String> generatePropertyMap() {
+            final Map<String, String> properties = new HashMap<String, String>();
+            properties.put( "DIR", "/root/" );
+            properties.put( "NAME", "lib" );
+            return properties;
+        }
+    };
+
+    private String expand( final String string ) throws ResolutionException {
+        return PropertyTemplate.compile( string ).expand( this.resolver );
+    }
+
+    @Test
+    public void testExpand_NoProperties_StringReturned() throws ResolutionException {
+        assertEquals( "Literal string changed.", "file:///a/b", expand( "file:///a/b" ) );
+        assertEquals( "Empty string changed.", "", expand( "" ) );
+    }
+
+    @Test
+    public void testExpand_EmbeddedProperties_PropertiesExpanded() throws ResolutionException {
+        assertEquals( "Properties expanded incorrectly.", "jar:///root/x/lib.jar!/",
+                expand( "jar://$DIR$x/$NAME$.jar!/" ) );
+    }
+
+    @Test
+    public void testExpand_PropertyEndsWithSlash_FollowingSlashSkipped() throws ResolutionException {
+        assertEquals( "Duplicate slash not skipped.", "file:///root/lib", expand( "file://$DIR$/$NAME$" ) );
+    }
+
+    @Test
+    public void testExpand_AdjacentProperties_PropertiesExpanded() throws ResolutionException {
+        assertEquals( "Adjacent properties expanded incorrectly.", "/root/lib", expand( "$DIR$$NAME$" ) );
+    }
+
+    @Test( expected = ResolutionException.class )
+    public void testExpand_UnmatchedEscape_ThrowsResolutionException() throws ResolutionException {
+        expand( "file://$DIR$/$NAME" );
+    }
+
+    @Test( expected = ResolutionException.class )
+    public void testExpand_UnknownProperty_ThrowsResolutionException() throws ResolutionException {
+        expand( "file://$UNKNOWN$/x" );
+    }
+
+    @Test( expected = ResolutionException.class )
+    public void testExpand_ApplicationHomeDir_ThrowsResolutionException() throws ResolutionException {
+        expand( "jar://$APPLICATION_HOME_DIR$/lib/x.jar!/" );
+    }
+
+    @Test
+    public void testGetTemplate_SameString_TemplateShared() {
+        assertSame( "Template not shared.", this.resolver.getTemplate( "file://$DIR$/x" ),
+                this.resolver.getTemplate( "file://$DIR$/x" ) );
+    }
+
+    @Test
+    public void testGetTemplate_ChildResolver_TemplateSharedWithParent() {
+        final PropertyResolver child = new PropertyResolver( this.resolver ) {
+            @Override
+            protected Map<String, String> generatePropertyMap() {
+                return new HashMap<String, String>();
+            }
+        };
+        assertSame( "Template not shared with the parent resolver.", this.resolver.getTemplate( "file://$DIR$/x" ),
+                child.getTemplate( "file://$DIR$/x" ) );
+    }
+
+    @Test
+    public void testGetTemplate_UnrelatedResolvers_TemplatesNotShared() {
+        final PropertyResolver other = new PropertyResolver( null ) {
+            @Override
+            protected Map<String, String> generatePropertyMap() {
+                return new HashMap<String, String>();
+            }
+        };
+        assertNotSame( "Template shared between unrelated resolvers.", this.resolver.getTemplate( "file://$DIR$/x" ),
+                other.getTemplate( "file://$DIR$/x" ) );
+    }
+
+    @Test
+    public void testResolveUriFile_ResolvedTwice_ResolutionMemoized() throws ResolutionException {
+        final File file = this.resolver.resolveUriFile( "jar://$DIR$/$NAME$.jar!/" );
+        assertEquals( "File resolved incorrectly.", new File( "/root/lib.jar" ), file );
+        assertSame( "File resolution not memoized.", file, this.resolver.resolveUriFile( "jar://$DIR$/$NAME$.jar!/" ) );
+        assertSame( "URI resolution not memoized.", this.resolver.resolveUriString( "file://$DIR$" ),
+                this.resolver.resolveUriString( "file://$DIR$" ) );
+    }
+}
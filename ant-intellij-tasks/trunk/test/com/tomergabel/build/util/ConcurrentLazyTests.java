@@ -0,0 +1,142 @@
+/*
+	Copyright 2009 Tomer Gabel <tomer@tomergabel.com>
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+
+
+	ant-intellij-tasks project (http://code.google.com/p/ant-intellij-tasks/)
+
+	$Id$
+*/
+
+package com.tomergabel.build.util;
+
+import com.tomergabel.util.ConcurrentLazy;
+import com.tomergabel.util.Lazy;
+import com.tomergabel.util.LazyInitializationException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentLazyTests {
+    private static Callable<String> counting( final AtomicInteger counter, final String value ) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                counter.incrementAndGet();
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void get_ConcurrentCallers_InitializerInvokedOnce() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        final Lazy<String> lazy = ConcurrentLazy.from( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                counter.incrementAndGet();
+                Thread.sleep( 50 );
+                return "value";
+            }
+        } );
+
+        final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            final Collection<Future<String>> futures = new ArrayList<Future<String>>();
+            for ( int i = 0; i < 8; ++i )
+                futures.add( executor.submit( new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return lazy.get();
+                    }
+                } ) );
+            for ( final Future<String> future : futures )
+                assertEquals( "value", future.get() );
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals( "Initializer invoked more than once.", 1, counter.get() );
+    }
+
+    @Test
+    public void get_NullValue_DefaultSemantics_InitializerInvokedAgain() throws LazyInitializationException {
+        final AtomicInteger counter = new AtomicInteger();
+        final ConcurrentLazy<String> lazy = ConcurrentLazy.from( counting( counter, null ) );
+        assertNull( lazy.get() );
+        assertNull( lazy.get() );
+        assertFalse( lazy.isInitialized() );
+        assertEquals( 2, counter.get() );
+    }
+
+    @Test
+    public void get_NullValue_Nullable_NullMemoized() throws LazyInitializationException {
+        final AtomicInteger counter = new AtomicInteger();
+        final ConcurrentLazy<String> lazy = ConcurrentLazy.nullable( counting( counter, null ) );
+        assertNull( lazy.get() );
+        assertNull( lazy.get() );
+        assertTrue( lazy.isInitialized() );
+        assertEquals( 1, counter.get() );
+    }
+
+    @Test
+    public void get_InitializerFails_FailFast_FailureMemoized() {
+        final AtomicInteger counter = new AtomicInteger();
+        final Lazy<String> lazy = ConcurrentLazy.failFast( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                counter.incrementAndGet();
+                throw new IllegalStateException( "failure" );
+            }
+        } );
+
+        for ( int i = 0; i < 2; ++i )
+            try {
+                lazy.get();
+                fail( "Initializer failed, LazyInitializationException expected." );
+            } catch ( LazyInitializationException e ) {
+                assertTrue( e.getCause() instanceof IllegalStateException );
+            }
+        assertEquals( "Failed initializer invoked more than once.", 1, counter.get() );
+    }
+
+    @Test
+    public void get_InitializerFails_DefaultSemantics_InitializerInvokedAgain() {
+        final AtomicInteger counter = new AtomicInteger();
+        final Lazy<String> lazy = ConcurrentLazy.from( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                counter.incrementAndGet();
+                throw new IllegalStateException( "failure" );
+            }
+        } );
+
+        for ( int i = 0; i < 2; ++i )
+            try {
+                lazy.get();
+                fail( "Initializer failed, LazyInitializationException expected." );
+            } catch ( LazyInitializationException e ) {
+                // Expected, all is well
+            }
+        assertEquals( 2, counter.get() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void from_NullInitializer_ThrowsIllegalArgumentException() {
+        ConcurrentLazy.from( (Callable<String>) null );
+    }
+}